@@ -0,0 +1,34 @@
+package benchmark;
+
+import messenger.Credentials;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking a password with {@link Credentials} at the configured number of iterations: hashing it, as logging in
+ * does, and comparing it with the one checked at login, as every other request does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialsBenchmarks {
+    @Param({"true", "false"})
+    public boolean login;
+
+    private Credentials credentials;
+
+    @Setup
+    public void setUp() {
+        credentials = new Credentials();
+        credentials.add("alice", "hunter2", credentials.hash("hunter2").join());
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return credentials.verify("alice", "hunter2", login).join();
+    }
+}
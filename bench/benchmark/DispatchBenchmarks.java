@@ -0,0 +1,70 @@
+package benchmark;
+
+import messenger.Server;
+import org.openjdk.jmh.annotations.*;
+import protocol.Method;
+import protocol.Packet;
+import server.HandlesMethod;
+import server.PacketHandler;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding and calling the handler for a request in a {@link PacketHandler}, with handlers that do no work.
+ * The handler is shared, so running these with {@code -t max} measures them from every core at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmarks {
+    public static class EchoHandler extends PacketHandler {
+        private static final Packet RESPONSE = new Packet(Method.SUCCESS);
+
+        @HandlesMethod(Method.WHOIS)
+        public Packet onRequestWHOIS(Packet request) {
+            return RESPONSE;
+        }
+
+        @HandlesMethod(Method.STATUS)
+        public Packet onRequestSTATUS(Packet request) {
+            return RESPONSE;
+        }
+    }
+
+    private final EchoHandler handler = new EchoHandler();
+    private final Packet request = new Packet(Method.WHOIS);
+    private final Packet unsupported = new Packet(Method.GOODBYE);
+
+    @Benchmark
+    public Packet runRequestHandler() {
+        return handler.runRequestHandler(request);
+    }
+
+    @Benchmark
+    public Object runRequestHandlerUnsupported() {
+        try {
+            return handler.runRequestHandler(unsupported);
+        } catch (IllegalArgumentException e) {
+            return e;
+        }
+    }
+
+    /**
+     * What finding handlers by reflection costs, once per class, when the annotation processor did not run.
+     */
+    @Benchmark
+    @Threads(1)
+    public Map<?, ?> enumerateRequestHandlers() {
+        return PacketHandler.enumerateRequestHandlers(EchoHandler.class);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Map<?, ?> enumerateRequestHandlersServer() {
+        return PacketHandler.enumerateRequestHandlers(Server.class);
+    }
+}
@@ -0,0 +1,60 @@
+package benchmark;
+
+import messenger.FileTransfer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One file sent over loopback by {@link FileTransfer}, over one connection and over several, from the first
+ * connection to the last byte written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileTransferBenchmarks {
+    static final int FILE_SIZE = 16 * 1024 * 1024 + 123;
+
+    @Param({"1", "4"})
+    public int streams;
+
+    private Path directory;
+    private Path source;
+    private Path target;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("benchmark-files");
+        var bytes = new byte[FILE_SIZE];
+        new Random(345).nextBytes(bytes);
+        source = Files.write(directory.resolve("source.bin"), bytes);
+        target = directory.resolve("target.bin");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long transfer() throws IOException, InterruptedException {
+        var receiver = new FileTransfer.Receiver(target, FILE_SIZE, streams);
+        var receiverThread = new Thread(receiver);
+        receiverThread.start();
+        var sent = FileTransfer.send(InetAddress.getLoopbackAddress(), receiver.port(), source, streams);
+        receiverThread.join();
+        if (!receiver.completed())
+            throw new IllegalStateException("The file did not arrive.");
+        return sent;
+    }
+}
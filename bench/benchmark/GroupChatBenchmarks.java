@@ -0,0 +1,83 @@
+package benchmark;
+
+import messenger.Client;
+import messenger.Config;
+import messenger.GroupChat;
+import messenger.MemoryTransport;
+import messenger.Server;
+import org.openjdk.jmh.annotations.*;
+import protocol.Error;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a {@link GroupChat} message takes to reach every member of a group, down the relay tree, once the
+ * sessions along it are open. Everything runs in this process over a {@link MemoryTransport}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupChatBenchmarks {
+    static final String GROUP = "benchmark";
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private final String prefix = Long.toString(System.currentTimeMillis(), 36);
+    private final List<Client> members = new ArrayList<>();
+    private volatile CountDownLatch delivered;
+    private Path offline;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        var transport = new MemoryTransport();
+        offline = Files.createTempDirectory("benchmark-offline");
+        var server = new Server(0, offline, transport);
+        server.credentials().setIterations(1);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        for (var i = 0; i < size; i++) {
+            var member = Client.open(0, Config.SERVER_IP, server.port(), transport);
+            members.add(member);
+            check(member.register(prefix + i, "password"));
+            check(member.groups().join(GROUP));
+            member.groups().onMessage(_ -> delivered.countDown());
+        }
+        // the first message opens the sessions down the tree
+        send();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (var member: members)
+            member.close();
+        for (var i = 0; i < size; i++) {
+            Scratch.delete(Path.of(Config.HISTORY_DIRECTORY, prefix + i));
+            Scratch.delete(Path.of(Config.SEARCH_DIRECTORY, prefix + i));
+        }
+        Scratch.delete(offline);
+    }
+
+    private static void check(Error error) {
+        if (error != Error.OK)
+            throw new IllegalStateException(error.toString());
+    }
+
+    @Benchmark
+    public void send() throws IOException, InterruptedException {
+        delivered = new CountDownLatch(size - 1);
+        check(members.getFirst().groups().send(GROUP, "hello, group!"));
+        if (!delivered.await(120, TimeUnit.SECONDS))
+            throw new IllegalStateException("The message did not reach every member.");
+    }
+}
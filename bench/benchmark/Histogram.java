@@ -0,0 +1,69 @@
+package benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, so that every value is kept to within about
+ * 1.6% no matter how large it is, in a fixed 30 KiB. Safe to record into from any number of threads.
+ */
+public class Histogram {
+    // values below this are counted exactly; above, each power of two is split into SUB_BUCKETS buckets
+    private static final int EXACT = 128;
+    private static final int SUB_BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(EXACT + (Long.SIZE - 7) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long value) {
+        if (value < EXACT)
+            return (int) value;
+        var shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 7;
+        return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return The middle of the range of values counted in a bucket.
+     */
+    private static long value(int index) {
+        if (index < EXACT)
+            return index;
+        var shift = (index - EXACT) / SUB_BUCKETS + 1;
+        var mantissa = (long) (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return (mantissa << shift) + (1L << (shift - 1));
+    }
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return The value that percentile of the recorded values are at or below, give or take a bucket.
+     */
+    public long percentile(double percentile) {
+        var total = count();
+        if (total == 0)
+            return 0;
+        var target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (var i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(value(i), max());
+        }
+        return max();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmark;
+
+import messenger.HistoryStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending to a {@link HistoryStore} that already holds a million messages, which should not wait for the disk,
+ * and reading the last few of them back, which should not read the whole log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryStoreBenchmarks {
+    static final int MESSAGES = 1_000_000;
+
+    private Path directory;
+    private HistoryStore history;
+    private long appended = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("benchmark-history");
+        history = new HistoryStore(directory);
+        for (var i = 0; i < MESSAGES; i++)
+            history.append("bob", "alice", "message number " + i);
+        history.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        history.close();
+        Scratch.delete(directory);
+    }
+
+    @Benchmark
+    public void append() {
+        history.append("bob", "alice", "message number " + appended++);
+    }
+
+    @Benchmark
+    public List<HistoryStore.Entry> lastTwenty() throws IOException {
+        return history.last("bob", 20);
+    }
+}
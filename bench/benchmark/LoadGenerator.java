@@ -0,0 +1,345 @@
+package benchmark;
+
+import messenger.Client;
+import messenger.Config;
+import messenger.PeerSession;
+import messenger.Server;
+import messenger.Tls;
+import messenger.Transport;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a server on this machine under the load of thousands of simulated clients, each on a virtual thread, and
+ * reports the throughput and latency percentiles of every kind of request.
+ * <pre>
+ *     benchmark.LoadGenerator [--clients 1000] [--mode closed|open] [--rate 5000] [--think 0]
+ *                             [--mix REGISTER=1,LOGIN=4,WHOIS=50,STATUS=30,MESSAGE=10,FILE=1]
+ *                             [--peers 20] [--file-size 65536] [--transport local|tls|tcp|memory]
+ *                             [--duration 30] [--warmup 5] [--port 6789] [--password-iterations 600000]
+ * </pre>
+ * <p>In closed-loop mode ({@code --mode closed}), every client sends its next request as soon as the previous one
+ * is answered, after {@code --think} milliseconds if given. In open-loop mode ({@code --mode open}), requests
+ * start at a fixed {@code --rate} per second whether or not earlier ones are done, as requests from real users
+ * would. Either way, a request's latency is counted from when it was meant to start rather than from when it
+ * did, so a server that stalls is charged for the requests that queued up behind the stall too instead of
+ * getting away with fewer samples (coordinated omission). Only closed-loop mode without think time has no
+ * schedule to correct against.</p>
+ * <p>{@code REGISTER}, {@code LOGIN}, {@code WHOIS} and {@code STATUS} are sent by lightweight clients that each
+ * open a connection per request, as {@link Client#makeServerRequest(Packet)} does. {@code MESSAGE} and
+ * {@code FILE} go between {@code --peers} real {@link Client}s, paired up with a chat session each; a message
+ * counts as done once the peer acknowledges it. The server is started in this process unless {@code --port}
+ * names one already running on this machine, and {@code --password-iterations} makes that server's password hashes
+ * cheaper, which registering thousands of clients up front may call for.</p>
+ * <p>{@code --transport local}, the default, connects the way {@link Transport#DEFAULT} does, which is over a local
+ * socket since everything is on this machine. {@code tls} connects the lightweight clients straight over TLS
+ * instead, as clients elsewhere would. {@code tcp} puts everything on plain TCP, and {@code memory} on in-memory
+ * pipes that leave the operating system out of the measurement altogether.</p>
+ */
+public class LoadGenerator {
+    enum Operation { REGISTER, LOGIN, WHOIS, STATUS, MESSAGE, FILE }
+
+    private record Pair(Client sender, Client receiver, PeerSession session, Path file) {}
+
+    private static final String PASSWORD = "password";
+
+    private final int clients;
+    private final boolean open;
+    private final double rate;
+    private final long thinkNanos;
+    private final Operation[] mix;
+    private final int peers;
+    private final int fileSize;
+    private final boolean tls;
+    private final Transport transport;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private int port;
+    private final int passwordIterations;
+
+    private final String prefix = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong newUsers = new AtomicLong();
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private final List<Pair> pairs = new ArrayList<>();
+    private Path scratch;
+    private volatile long measureFrom;
+    private volatile long stopAt;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.clients = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        this.open = options.getOrDefault("mode", "closed").equals("open");
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "5000"));
+        this.thinkNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.getOrDefault("think", "0")));
+        this.peers = Integer.parseInt(options.getOrDefault("peers", "20")) / 2 * 2;
+        this.fileSize = Integer.parseInt(options.getOrDefault("file-size", "65536"));
+        var transport = options.getOrDefault("transport", "local");
+        this.tls = transport.equals("tls");
+        this.transport = transport.equals("local") || tls ? Transport.DEFAULT : Transport.byName(transport);
+        this.durationNanos = (long) (Double.parseDouble(options.getOrDefault("duration", "30")) * 1e9);
+        this.warmupNanos = (long) (Double.parseDouble(options.getOrDefault("warmup", "5")) * 1e9);
+        this.port = Integer.parseInt(options.getOrDefault("port", "0"));
+        this.passwordIterations = Integer.parseInt(options.getOrDefault("password-iterations",
+                String.valueOf(Config.PASSWORD_ITERATIONS)));
+        if (port != 0 && transport.equals("memory"))
+            throw new IllegalArgumentException("The memory transport cannot reach a server in another process.");
+        // each operation appears in the mix as many times as its weight, so picking one is a single lookup
+        var mix = new ArrayList<Operation>();
+        for (var entry: options.getOrDefault("mix", "REGISTER=1,LOGIN=4,WHOIS=50,STATUS=30,MESSAGE=10,FILE=1")
+                .split(",")) {
+            var parts = entry.split("=");
+            var operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            if (peers == 0 && (operation == Operation.MESSAGE || operation == Operation.FILE))
+                continue;
+            for (var i = 0; i < Integer.parseInt(parts[1].trim()); i++)
+                mix.add(operation);
+        }
+        if (mix.isEmpty())
+            throw new IllegalArgumentException("The mix is empty.");
+        this.mix = mix.toArray(Operation[]::new);
+        for (var operation: Operation.values()) {
+            latencies.put(operation, new Histogram());
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    private String username(int client) {
+        return "%s-%d".formatted(prefix, client);
+    }
+
+    private Socket connect() throws IOException {
+        if (!tls)
+            return transport.connect(Config.SERVER_IP, port);
+        // straight over TLS, even though the server is on this machine, as a client elsewhere would connect
+        var socket = Tls.context().getSocketFactory().createSocket(Config.SERVER_IP, port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private Packet request(Packet request) throws Exception {
+        try (var socket = connect()) {
+            Packet.sendPacket(socket, request);
+            return Packet.readPacket(socket);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void setUp() throws Exception {
+        scratch = Files.createTempDirectory("load");
+        if (port == 0) {
+            port = freePort();
+            var server = new Server(port, scratch.resolve("offline"), transport);
+            server.credentials().setIterations(passwordIterations);
+            Thread.ofPlatform().daemon().name("server").start(server::listenLoop);
+        }
+        // everybody registers up front, a few at a time
+        var threads = new ArrayList<Thread>();
+        var next = new AtomicLong();
+        for (var t = 0; t < 64; t++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                int client;
+                while ((client = (int) next.getAndIncrement()) < clients) {
+                    try {
+                        // more registrations than the server has room to hash are turned away until it catches up
+                        while (request(new Packet(Method.REGISTER, Map.of("username", username(client),
+                                "password", PASSWORD, "listenPort", "1"))).getError() == Error.SERVER_BUSY)
+                            Thread.sleep(10);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Cannot register the simulated clients.", e);
+                    }
+                }
+            }));
+        }
+        for (var thread: threads)
+            thread.join();
+        for (var i = 0; i < peers; i += 2) {
+            var sender = peer("sender" + i);
+            var receiver = peer("receiver" + i);
+            pairs.add(new Pair(sender, receiver, sender.connectToPeer(receiver.username()),
+                    scratch.resolve("file" + i)));
+        }
+    }
+
+    private Client peer(String name) throws IOException {
+        var client = Client.open(freePort(), Config.SERVER_IP, port, transport);
+        if (client.register("%s-%s".formatted(prefix, name), PASSWORD) != Error.OK)
+            throw new IllegalStateException("Cannot register peer " + name);
+        return client;
+    }
+
+    /**
+     * Run one operation as a client.
+     * @return Whether it succeeded.
+     */
+    private boolean run(Operation operation, int client) throws Exception {
+        var random = ThreadLocalRandom.current();
+        return switch (operation) {
+            case REGISTER -> request(new Packet(Method.REGISTER, Map.of(
+                    "username", "%s-new%d".formatted(prefix, newUsers.getAndIncrement()),
+                    "password", PASSWORD,
+                    "listenPort", "1"
+            ))).method() == Method.SUCCESS;
+            case LOGIN -> request(new Packet(Method.LOGIN, Map.of(
+                    "username", username(client),
+                    "password", PASSWORD,
+                    "listenPort", "1"
+            ))).method() == Method.SUCCESS;
+            case WHOIS -> request(new Packet(Method.WHOIS, Map.of(
+                    "username", username(random.nextInt(clients))
+            ))).method() == Method.SUCCESS;
+            case STATUS -> request(new Packet(Method.STATUS, Map.of(
+                    "username", username(client),
+                    "password", PASSWORD,
+                    "status", random.nextBoolean() ? "BUSY" : "READY"
+            ))).method() == Method.SUCCESS;
+            case MESSAGE -> {
+                var pair = pairs.get(client % pairs.size());
+                yield pair.sender().sendMessage(pair.session(), "message from client " + client)
+                        .get(30, TimeUnit.SECONDS) == Error.OK;
+            }
+            case FILE -> {
+                var pair = pairs.get(client % pairs.size());
+                // a user sends one file at a time, and new contents every time so nothing can be skipped
+                synchronized (pair) {
+                    var contents = new byte[fileSize];
+                    random.nextBytes(contents);
+                    Files.write(pair.file(), contents);
+                    yield pair.sender().sendFile(pair.session(), pair.file().toString(),
+                            pair.file() + ".received") == Error.OK;
+                }
+            }
+        };
+    }
+
+    /**
+     * Run an operation that was meant to start at a particular time, and record how long it took from then.
+     */
+    private void run(int client, long intended) {
+        var operation = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+        boolean ok;
+        try {
+            ok = run(operation, client);
+        } catch (Exception e) {
+            ok = false;
+        }
+        if (intended < measureFrom || intended >= stopAt)
+            return;
+        if (ok)
+            latencies.get(operation).record(System.nanoTime() - intended);
+        else
+            errors.get(operation).incrementAndGet();
+    }
+
+    private void closedLoop() {
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var c = 0; c < clients; c++) {
+                var client = c;
+                executor.execute(() -> {
+                    // spread the clients' schedules over the think time, so they do not all start at once
+                    var intended = System.nanoTime()
+                            + (thinkNanos > 0 ? ThreadLocalRandom.current().nextLong(thinkNanos) : 0);
+                    while (intended < stopAt) {
+                        LockSupport.parkNanos(intended - System.nanoTime());
+                        if (thinkNanos > 0) {
+                            run(client, intended);
+                            intended += thinkNanos;
+                        } else {
+                            run(client, System.nanoTime());
+                            intended = System.nanoTime();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void openLoop() {
+        var interval = 1e9 / rate;
+        var start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; ; i++) {
+                var intended = start + (long) (i * interval);
+                if (intended >= stopAt)
+                    break;
+                LockSupport.parkNanos(intended - System.nanoTime());
+                var client = (int) (i % clients);
+                executor.execute(() -> run(client, intended));
+            }
+        }
+    }
+
+    private void report(PrintStream out) {
+        var seconds = durationNanos / 1e9;
+        out.printf("%s loop, %d clients, %s, %.0f s%n", open ? "open" : "closed", clients,
+                open ? "%.0f requests per second".formatted(rate)
+                        : thinkNanos > 0 ? "%d ms think time".formatted(thinkNanos / 1_000_000) : "no think time",
+                seconds);
+        out.printf("%-10s %10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "completed", "per second", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long total = 0;
+        for (var operation: Operation.values()) {
+            var histogram = latencies.get(operation);
+            var failed = errors.get(operation).get();
+            if (histogram.count() == 0 && failed == 0)
+                continue;
+            total += histogram.count();
+            out.printf("%-10s %10d %10.0f %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n", operation, histogram.count(),
+                    histogram.count() / seconds, failed, histogram.percentile(50) / 1e6,
+                    histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6,
+                    histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+        }
+        out.printf("%-10s %10d %10.0f%n", "total", total, total / seconds);
+    }
+
+    private void tearDown() throws IOException {
+        for (var pair: pairs) {
+            pair.sender().close();
+            pair.receiver().close();
+        }
+        try (var files = Files.walk(scratch)) {
+            for (var file: files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        }
+    }
+
+    static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Unknown argument " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        var generator = new LoadGenerator(options);
+        generator.setUp();
+        generator.measureFrom = System.nanoTime() + generator.warmupNanos;
+        generator.stopAt = generator.measureFrom + generator.durationNanos;
+        if (generator.open)
+            generator.openLoop();
+        else
+            generator.closedLoop();
+        generator.report(System.out);
+        generator.tearDown();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,126 @@
+package benchmark;
+
+import messenger.Client;
+import messenger.Config;
+import messenger.PeerSession;
+import messenger.Server;
+import messenger.Tls;
+import org.openjdk.jmh.annotations.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Talking to a server and to a peer on the same machine, which {@link Tls#connect} does over a Unix domain socket
+ * instead of TCP and TLS: a request to the server on a new connection, over each, and 1000 chat messages to a peer
+ * until every one of them is acknowledged.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalSocketBenchmarks {
+    static final int MESSAGES = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Requests {
+        @Param({"tls", "local"})
+        public String connection;
+
+        private final Packet whois = new Packet(Method.WHOIS, Map.of("username", "nobody"));
+        private Path offline;
+        private int port;
+
+        @Setup
+        public void setUp() throws IOException {
+            offline = Files.createTempDirectory("benchmark-offline");
+            var server = new Server(0, offline);
+            port = server.port();
+            var serverThread = new Thread(server::listenLoop);
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Scratch.delete(offline);
+        }
+
+        Socket connect() throws IOException {
+            if (connection.equals("local"))
+                return Tls.connect(Config.SERVER_IP, port);
+            var socket = Tls.context().getSocketFactory().createSocket(Config.SERVER_IP, port);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Peers {
+        private final String prefix = Long.toString(System.currentTimeMillis(), 36);
+        private Path offline;
+        private Client alice;
+        private Client bob;
+        private PeerSession session;
+
+        @Setup
+        public void setUp() throws IOException {
+            offline = Files.createTempDirectory("benchmark-offline");
+            var server = new Server(0, offline);
+            server.credentials().setIterations(1);
+            var serverThread = new Thread(server::listenLoop);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            alice = Client.open(0, Config.SERVER_IP, server.port());
+            bob = Client.open(0, Config.SERVER_IP, server.port());
+            check(alice.register(prefix + "alice", "password"));
+            check(bob.register(prefix + "bob", "password"));
+            session = alice.connectToPeer(bob.username());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            alice.close();
+            bob.close();
+            for (var client: List.of("alice", "bob")) {
+                Scratch.delete(Path.of(Config.HISTORY_DIRECTORY, prefix + client));
+                Scratch.delete(Path.of(Config.SEARCH_DIRECTORY, prefix + client));
+            }
+            Scratch.delete(offline);
+        }
+    }
+
+    private static void check(Error error) {
+        if (error != Error.OK)
+            throw new IllegalStateException(error.toString());
+    }
+
+    @Benchmark
+    public Packet request(Requests requests) throws IOException {
+        try (var socket = requests.connect()) {
+            Packet.sendPacket(socket, requests.whois);
+            return Packet.readPacket(socket);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void messages(Peers peers) {
+        var results = new ArrayList<CompletableFuture<Error>>();
+        for (var i = 0; i < MESSAGES; i++)
+            results.add(peers.alice.sendMessage(peers.session, "message " + i));
+        for (var result: results)
+            check(result.join());
+    }
+}
@@ -0,0 +1,48 @@
+package benchmark;
+
+import messenger.Config;
+import messenger.Log;
+import org.openjdk.jmh.annotations.*;
+import protocol.Method;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What logging a record costs the thread that logs it, at a level that is written and at one that is not.
+ * The writer runs in the background, so records it cannot keep up with are dropped rather than slowing the loggers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmarks {
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+
+    @Setup
+    public void setUp() throws IOException {
+        Log.setOutput(Files.createTempDirectory("log-benchmark").resolve("benchmark.log"));
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Log.flush();
+        Log.setOutput(Path.of(Config.LOG_FILE));
+    }
+
+    @Benchmark
+    public void disabled() {
+        Log.debug("request", "from", address, "method", Method.WHOIS, "username", "alice");
+    }
+
+    @Benchmark
+    public void enabled() {
+        Log.info("request", "from", address, "method", Method.WHOIS, "username", "alice");
+    }
+}
@@ -0,0 +1,79 @@
+package benchmark;
+
+import messenger.OfflineQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queueing messages for users who are offline with {@link OfflineQueue}: appending to a queue that already holds
+ * a million messages, and appending and waiting for the message to be synced to disk, alone and with other
+ * senders to share the fsyncs with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfflineQueueBenchmarks {
+    static final int QUEUED = 1_000_000;
+    static final int USERS = 10;
+
+    /**
+     * The recipient a thread queues its next message for, round robin.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int user;
+
+        String next() {
+            user = (user + 1) % USERS;
+            return "user" + user;
+        }
+    }
+
+    private final byte[] message = "x".repeat(100).getBytes(StandardCharsets.UTF_8);
+    private Path directory;
+    private OfflineQueue queue;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("benchmark-queue");
+        queue = new OfflineQueue(directory, 8 << 20, Long.MAX_VALUE, Duration.ofDays(1));
+        for (var i = 0; i < QUEUED; i++)
+            queue.enqueue("user" + i % USERS, message);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        queue.close();
+        Scratch.delete(directory);
+    }
+
+    @Benchmark
+    public long enqueue(Cursor cursor) throws IOException {
+        return queue.enqueue(cursor.next(), message);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long enqueueSyncedAlone(Cursor cursor) throws IOException {
+        var offset = queue.enqueue(cursor.next(), message);
+        queue.sync();
+        return offset;
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long enqueueSyncedTogether(Cursor cursor) throws IOException {
+        var offset = queue.enqueue(cursor.next(), message);
+        queue.sync();
+        return offset;
+    }
+}
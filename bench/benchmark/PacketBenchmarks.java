@@ -0,0 +1,135 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import protocol.Method;
+import protocol.Packet;
+import protocol.PacketMalformedException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding, sending and reading packets over in-memory streams, so only the protocol's own cost is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmarks {
+    /**
+     * A socket whose streams are in memory: it reads the same bytes over and over and throws away what it writes.
+     */
+    static class MemorySocket extends Socket {
+        private final byte[] incoming;
+        private final ByteArrayOutputStream outgoing = new ByteArrayOutputStream();
+
+        MemorySocket(byte[] incoming) {
+            this.incoming = incoming;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(incoming);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            outgoing.reset();
+            return outgoing;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+
+    /**
+     * A stream that repeats the same text forever, for a long-lived reader to read packets from back to back.
+     */
+    static class RepeatingReader extends Reader {
+        private final String text;
+        private int position = 0;
+
+        RepeatingReader(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            var count = Math.min(length, text.length() - position);
+            text.getChars(position, position + count, buffer, offset);
+            position = (position + count) % text.length();
+            return count;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static final Map<String, Packet> SAMPLES = Map.of(
+            "whois", new Packet(Method.WHOIS, Map.of("username", "alice")),
+            "login", new Packet(Method.LOGIN, Map.of(
+                    "username", "alice",
+                    "password", "correct horse battery staple",
+                    "listenPort", "1234"
+            )),
+            "message", new Packet(Method.MESSAGE, Map.of("to", "bob", "seq", "42"), "x".repeat(4096))
+    );
+
+    @Param({"whois", "login", "message"})
+    public String sample;
+
+    private Packet packet;
+    private MemorySocket socket;
+    private final StringWriter writer = new StringWriter();
+    private BufferedReader reader;
+
+    @Setup
+    public void setUp() {
+        packet = SAMPLES.get(sample);
+        var encoded = packet.encode();
+        socket = new MemorySocket(encoded);
+        reader = new BufferedReader(new RepeatingReader(new String(encoded, StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return packet.encode();
+    }
+
+    @Benchmark
+    public Socket sendPacket() throws IOException {
+        Packet.sendPacket(socket, packet);
+        return socket;
+    }
+
+    @Benchmark
+    public StringWriter sendPacketWriter() throws IOException {
+        writer.getBuffer().setLength(0);
+        Packet.sendPacket(writer, packet);
+        return writer;
+    }
+
+    /**
+     * A new reader for every packet, as the server does.
+     */
+    @Benchmark
+    public Packet readPacket() throws IOException, PacketMalformedException {
+        return Packet.readPacket(socket);
+    }
+
+    /**
+     * A long-lived reader, as a multiplexed stream or file transfer uses.
+     */
+    @Benchmark
+    public Packet readPacketReader() throws IOException, PacketMalformedException {
+        return Packet.readPacket(reader, InetAddress.getLoopbackAddress());
+    }
+}
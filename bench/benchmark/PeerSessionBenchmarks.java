@@ -0,0 +1,93 @@
+package benchmark;
+
+import messenger.Client;
+import messenger.Config;
+import messenger.MemoryTransport;
+import messenger.PeerSession;
+import messenger.Server;
+import org.openjdk.jmh.annotations.*;
+import protocol.Error;
+import protocol.Multiplexer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a {@link PeerSession} takes to come back from a broken connection: the connection under a session is
+ * closed, as a network outage would, while both sides send 100 messages, and the time is up once every one of
+ * them is acknowledged. Everything runs in this process over a {@link MemoryTransport}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerSessionBenchmarks {
+    static final int MESSAGES = 100;
+
+    /**
+     * Which side of the session notices the outage first.
+     */
+    @Param({"dialed", "accepted"})
+    public String broken;
+
+    private final String prefix = Long.toString(System.currentTimeMillis(), 36);
+    private Path offline;
+    private Client alice;
+    private Client bob;
+    private PeerSession toBob;
+    private PeerSession toAlice;
+
+    @Setup
+    public void setUp() throws IOException {
+        var transport = new MemoryTransport();
+        offline = Files.createTempDirectory("benchmark-offline");
+        var server = new Server(0, offline, transport);
+        server.credentials().setIterations(1);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        alice = Client.open(0, Config.SERVER_IP, server.port(), transport);
+        bob = Client.open(0, Config.SERVER_IP, server.port(), transport);
+        check(alice.register(prefix + "alice", "password"));
+        check(bob.register(prefix + "bob", "password"));
+        toBob = alice.connectToPeer(bob.username());
+        check(alice.sendMessage(toBob, "hello").join());
+        toAlice = bob.sessions().get(alice.username());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        alice.close();
+        bob.close();
+        for (var client: List.of("alice", "bob")) {
+            Scratch.delete(Path.of(Config.HISTORY_DIRECTORY, prefix + client));
+            Scratch.delete(Path.of(Config.SEARCH_DIRECTORY, prefix + client));
+        }
+        Scratch.delete(offline);
+    }
+
+    private static void check(Error error) {
+        if (error != Error.OK)
+            throw new IllegalStateException(error.toString());
+    }
+
+    @Benchmark
+    public void resume() throws IOException {
+        var session = broken.equals("dialed") ? toBob : toAlice;
+        session.open(Multiplexer.Priority.NORMAL).multiplexer().socket().close();
+        var results = new ArrayList<CompletableFuture<Error>>();
+        for (var i = 0; i < MESSAGES; i++) {
+            results.add(alice.sendMessage(toBob, "message " + i));
+            results.add(bob.sendMessage(toAlice, "message " + i));
+        }
+        for (var result: results)
+            check(result.join());
+    }
+}
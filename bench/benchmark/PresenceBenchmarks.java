@@ -0,0 +1,74 @@
+package benchmark;
+
+import messenger.Presence;
+import messenger.Status;
+import messenger.UdpDatagrams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every client changing its status at once over {@link Presence}, from the first datagram sent to the last update
+ * handed to the server in a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceBenchmarks {
+    @Param({"10", "100"})
+    public int clients;
+
+    private final Status[] statuses = {Status.BUSY, Status.READY};
+    private final List<Presence.Sender> senders = new ArrayList<>();
+    // the last counter received from each client
+    private final Map<String, Long> received = new HashMap<>();
+    private Presence.Receiver receiver;
+    private int round;
+
+    @Setup
+    public void setUp() throws IOException {
+        receiver = Presence.Receiver.start(new UdpDatagrams(0), this::receive);
+        for (var i = 0; i < clients; i++)
+            senders.add(Presence.Sender.start(new UdpDatagrams(0), "127.0.0.1", receiver.issue("user" + i),
+                    Status.READY));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (var sender: senders)
+            sender.close();
+        senders.clear();
+        receiver.close();
+    }
+
+    private synchronized void receive(List<Presence.Update> batch) {
+        for (var update: batch)
+            received.put(update.username(), update.counter());
+        notifyAll();
+    }
+
+    @Benchmark
+    public int changeAll() throws IOException, InterruptedException {
+        var status = statuses[round++ % statuses.length];
+        var sent = new long[clients];
+        for (var i = 0; i < clients; i++) {
+            senders.get(i).send(status);
+            sent[i] = senders.get(i).change(status);
+        }
+        // a datagram that got lost is made up for by the next heartbeat
+        synchronized (this) {
+            for (var i = 0; i < clients; i++)
+                while (received.getOrDefault("user" + i, 0L) < sent[i])
+                    wait();
+            return received.size();
+        }
+    }
+}
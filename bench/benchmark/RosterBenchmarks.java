@@ -0,0 +1,42 @@
+package benchmark;
+
+import messenger.Roster;
+import messenger.Status;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client catching up on its {@link Roster} after one of its contacts changed status, with a few contacts and
+ * with as many as {@link messenger.Config#MAX_CONTACTS}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterBenchmarks {
+    @Param({"10", "1000"})
+    public int contacts;
+
+    private final Status[] statuses = Status.values();
+    private Roster roster;
+    private int round;
+
+    @Setup
+    public void setUp() {
+        roster = new Roster();
+        for (var i = 0; i < contacts; i++)
+            roster.add("alice", "user" + i);
+    }
+
+    @Benchmark
+    public Roster.Delta sync() {
+        var version = roster.version("alice");
+        // every round of the contacts gives each of them another status
+        roster.setStatus("user" + round % contacts, statuses[round / contacts % statuses.length]);
+        round++;
+        return roster.since("alice", version);
+    }
+}
@@ -0,0 +1,26 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+/**
+ * Clearing up after benchmarks that leave files behind, in temporary directories or in the directories the
+ * clients keep under the one they run in.
+ */
+final class Scratch {
+    private Scratch() {}
+
+    /**
+     * Delete a file, or a directory and everything in it, if it exists.
+     */
+    static void delete(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+        try (var files = Files.walk(path)) {
+            for (var file: files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        }
+    }
+}
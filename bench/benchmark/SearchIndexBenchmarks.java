@@ -0,0 +1,91 @@
+package benchmark;
+
+import messenger.Config;
+import messenger.HistoryStore;
+import messenger.SearchIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing messages into a {@link SearchIndex} of a million messages from 50 conversations, and searching it with
+ * random pairs of words from a vocabulary of 20,000, words that are in every tenth message, and peers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchIndexBenchmarks {
+    static final int MESSAGES = 1_000_000;
+    static final int CONVERSATIONS = 50;
+
+    /**
+     * The query a thread searches for next, round robin.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int query;
+
+        int next(int queries) {
+            query = (query + 1) % queries;
+            return query;
+        }
+    }
+
+    private final Random random = new Random(345);
+    private final String[] vocabulary = new String[20_000];
+    private final List<String> queries = new ArrayList<>();
+    private Path directory;
+    private SearchIndex index;
+    private long added = MESSAGES;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (var i = 0; i < vocabulary.length; i++)
+            vocabulary[i] = "word" + i;
+        directory = Files.createTempDirectory("benchmark-search");
+        try (var index = new SearchIndex(directory)) {
+            for (var i = 0; i < MESSAGES; i++)
+                index.add("user" + i % CONVERSATIONS, message(i));
+        }
+        // opened again once every segment is merged, as a client finds it after a restart
+        index = new SearchIndex(directory);
+        for (var i = 0; i < 1000; i++)
+            queries.add(vocabulary[random.nextInt(vocabulary.length)] + " "
+                    + vocabulary[random.nextInt(vocabulary.length)]);
+        queries.addAll(List.of("word7", "common", "common word7", "from:user7 common"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+        Scratch.delete(directory);
+    }
+
+    private HistoryStore.Entry message(long i) {
+        var text = new StringBuilder(i % 10 == 0 ? "common" : "");
+        for (var j = 0; j < 8; j++)
+            text.append(' ').append(vocabulary[random.nextInt(vocabulary.length)]);
+        var seq = i / CONVERSATIONS;
+        return new HistoryStore.Entry(seq, seq, "user" + i % CONVERSATIONS, text.toString());
+    }
+
+    @Benchmark
+    public void add() throws IOException {
+        var i = added++;
+        index.add("user" + i % CONVERSATIONS, message(i));
+    }
+
+    @Benchmark
+    public List<SearchIndex.Hit> search(Cursor cursor) {
+        return index.search(queries.get(cursor.next(queries.size())), Config.SEARCH_RESULTS);
+    }
+}
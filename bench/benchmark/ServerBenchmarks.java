@@ -0,0 +1,186 @@
+package benchmark;
+
+import messenger.Server;
+import org.openjdk.jmh.annotations.*;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Every request handler of {@link Server}, called the way the server calls them: through
+ * {@link Server#runRequestHandler(Packet)}, one at a time under the server's lock, from as many threads as there
+ * are connections being served. Run with {@code -t max}, this measures the contention on that lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmarks {
+    static final int USERS = 10_000;
+    static final int GROUP_MEMBERS = 100;
+    static final String PASSWORD = "password";
+
+    /**
+     * The user a thread sends its next request as. Threads start at different users and go round robin, so they
+     * rarely touch the same one.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final AtomicInteger threads = new AtomicInteger();
+        private int user;
+
+        @Setup
+        public void setUp() {
+            user = (int) (threads.getAndIncrement() * 7919L % USERS);
+        }
+
+        int next() {
+            user = (user + 1) % USERS;
+            return user;
+        }
+    }
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+    private final AtomicLong newUsers = new AtomicLong();
+    private Path offline;
+    private Server server;
+    private Packet[] login, logout, presence, whois, status, directory, join, leave, members, message, fetch;
+
+    @Setup
+    public void setUp() throws IOException {
+        offline = Files.createTempDirectory("benchmark-offline");
+        server = new Server(0, offline);
+        // hashing passwords is slow on purpose and done before the lock is taken; this measures the handlers
+        server.credentials().setIterations(1);
+        for (var i = 0; i < USERS; i++)
+            handle(request(Method.REGISTER, i, Map.of("listenPort", "1234")));
+        for (var i = 0; i < GROUP_MEMBERS; i++)
+            handle(request(Method.JOIN, i, Map.of("group", "members")));
+        for (var i = 0; i < 100; i++)
+            handle(request(Method.MESSAGE, i, Map.of("to", "user0"), "x".repeat(100)));
+
+        login = perUser(i -> request(Method.LOGIN, i, Map.of("listenPort", "1234")));
+        logout = perUser(i -> request(Method.LOGOUT, i, Map.of()));
+        presence = perUser(i -> request(Method.PRESENCE, i, Map.of()));
+        whois = perUser(i -> new Packet(Method.WHOIS, Map.of("username", "user" + i), "", address));
+        status = perUser(i -> request(Method.STATUS, i, Map.of("status", i % 2 == 0 ? "BUSY" : "READY")));
+        directory = perUser(i -> new Packet(Method.DIRECTORY, Map.of("prefix", "user" + i % 10), "", address));
+        join = perUser(i -> request(Method.JOIN, i, Map.of("group", "group" + i % 100)));
+        leave = perUser(i -> request(Method.LEAVE, i, Map.of("group", "group" + i % 100)));
+        members = perUser(i -> request(Method.MEMBERS, i % GROUP_MEMBERS, Map.of("group", "members")));
+        message = perUser(i -> request(Method.MESSAGE, i, Map.of("to", "user" + (i + 1) % USERS), "x".repeat(100)));
+        fetch = perUser(_ -> request(Method.FETCH, 0, Map.of()));
+        // everybody is online, as they are once the server has been up a while
+        for (var request: login)
+            handle(request);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(offline)) {
+            for (var file: files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        }
+    }
+
+    private Packet handle(Packet request) {
+        synchronized (server) {
+            return server.runRequestHandler(request);
+        }
+    }
+
+    private Packet request(Method method, int user, Map<String, String> headers) {
+        return request(method, user, headers, "");
+    }
+
+    private Packet request(Method method, int user, Map<String, String> headers, String content) {
+        var all = new HashMap<>(headers);
+        all.put("username", "user" + user);
+        all.put("password", PASSWORD);
+        return new Packet(method, all, content, address);
+    }
+
+    /**
+     * Build a request for every user up front, so that building them is not measured.
+     */
+    private static Packet[] perUser(IntFunction<Packet> request) {
+        var requests = new Packet[USERS];
+        for (var i = 0; i < USERS; i++)
+            requests[i] = request.apply(i);
+        return requests;
+    }
+
+    @Benchmark
+    public Packet register() {
+        return handle(new Packet(Method.REGISTER,
+                Map.of("username", "new" + newUsers.getAndIncrement(), "password", PASSWORD, "listenPort", "1234"),
+                "", address));
+    }
+
+    @Benchmark
+    public Packet login(Cursor cursor) {
+        return handle(login[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet loginLogout(Cursor cursor) {
+        var user = cursor.next();
+        handle(login[user]);
+        return handle(logout[user]);
+    }
+
+    @Benchmark
+    public Packet presence(Cursor cursor) {
+        return handle(presence[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet whois(Cursor cursor) {
+        return handle(whois[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet status(Cursor cursor) {
+        return handle(status[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet directory(Cursor cursor) {
+        return handle(directory[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet joinLeave(Cursor cursor) {
+        var user = cursor.next();
+        handle(join[user]);
+        return handle(leave[user]);
+    }
+
+    @Benchmark
+    public Packet members(Cursor cursor) {
+        return handle(members[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet message(Cursor cursor) {
+        return handle(message[cursor.next()]);
+    }
+
+    @Benchmark
+    public Packet fetch(Cursor cursor) {
+        return handle(fetch[cursor.next()]);
+    }
+}
@@ -0,0 +1,62 @@
+package benchmark;
+
+import messenger.Config;
+import messenger.Server;
+import messenger.Tls;
+import org.openjdk.jmh.annotations.*;
+import protocol.Method;
+import protocol.Packet;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request to the server on a new TLS connection, as {@link messenger.Client#makeServerRequest(Packet)} makes
+ * to a server on another machine, with the previous TLS session resumed and with a full handshake every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsBenchmarks {
+    @Param({"true", "false"})
+    public boolean resume;
+
+    private final Packet whois = new Packet(Method.WHOIS, Map.of("username", "nobody"));
+    private Path offline;
+    private int port;
+
+    @Setup
+    public void setUp() throws IOException {
+        offline = Files.createTempDirectory("benchmark-offline");
+        var server = new Server(0, offline);
+        port = server.port();
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Scratch.delete(offline);
+    }
+
+    @Benchmark
+    public Packet request() throws Exception {
+        // not with Tls.connect, which would take the server's local socket
+        try (var socket = (SSLSocket) Tls.context().getSocketFactory().createSocket(Config.SERVER_IP, port)) {
+            socket.setTcpNoDelay(true);
+            Packet.sendPacket(socket, whois);
+            var response = Packet.readPacket(socket);
+            if (!resume)
+                socket.getSession().invalidate();
+            return response;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package benchmark;
+
+import messenger.Status;
+import messenger.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A page of {@link UserDirectory} search results by username prefix, with and without a status filter, which
+ * should take as long with a million accounts as with a thousand.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserDirectoryBenchmarks {
+    static final int PREFIXES = 100;
+
+    @Param({"1000", "1000000"})
+    public int accounts;
+
+    /**
+     * The prefix a thread searches for next, round robin.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int prefix;
+
+        String next() {
+            prefix = (prefix + 1) % PREFIXES;
+            return "user" + prefix;
+        }
+    }
+
+    private UserDirectory directory;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(345);
+        directory = new UserDirectory();
+        for (var i = 0; i < accounts; i++) {
+            var username = "user" + random.nextInt(Integer.MAX_VALUE);
+            directory.add(username);
+            directory.setStatus(username, Status.values()[i % Status.values().length]);
+        }
+    }
+
+    @Benchmark
+    public UserDirectory.Page search(Cursor cursor) {
+        return directory.search(cursor.next(), null, null, 20);
+    }
+
+    @Benchmark
+    public UserDirectory.Page searchBusy(Cursor cursor) {
+        return directory.search(cursor.next(), Status.BUSY, null, 20);
+    }
+}
@@ -0,0 +1,308 @@
+package processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Finds the {@code @HandlesMethod} request handlers of every {@code server.PacketHandler}, and the
+ * {@code @Command} commands and {@code @Help} texts of every {@code commandline.CommandLineInterface}, at compile
+ * time. For each class declaring any, it generates a table next to it that calls them directly, e.g.
+ * {@code messenger.Server_RequestHandlers}, so they need not be discovered and invoked by reflection at runtime.
+ * <p>It checks the signatures the runtime used to check, and fails the build instead: a handler must take a
+ * {@code Packet} and return one, a command must take the rest of the line as a {@code String} and return nothing,
+ * and both must be instance methods the generated table can call that throw no checked exceptions. Two methods
+ * may not handle the same thing in one class. As with reflection, a class inherits the handlers and commands of its superclasses unless it overrides
+ * them with its own.</p>
+ * <p>Compile this first, then pass it to javac with {@code -processorpath}; see the README.</p>
+ */
+@SupportedAnnotationTypes({IndexProcessor.HANDLES_METHOD, IndexProcessor.COMMAND, IndexProcessor.HELP})
+public class IndexProcessor extends AbstractProcessor {
+    static final String HANDLES_METHOD = "server.HandlesMethod";
+    static final String COMMAND = "commandline.Command";
+    static final String HELP = "commandline.Help";
+    private static final String PACKET_HANDLER = "server.PacketHandler";
+    private static final String COMMAND_LINE = "commandline.CommandLineInterface";
+    private static final String PACKET = "protocol.Packet";
+
+    private record Entry(String key, ExecutableElement method, String help) {}
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        var handlers = annotated(round, HANDLES_METHOD);
+        var commands = annotated(round, COMMAND);
+        for (var method: annotated(round, HELP)) {
+            if (annotation(method, COMMAND) == null)
+                error(method, "@Help is only for methods with @Command");
+        }
+
+        for (var type: enclosingTypes(handlers)) {
+            if (check(type, PACKET_HANDLER, "@HandlesMethod")) {
+                var table = table(type, HANDLES_METHOD, this::checkHandler);
+                if (table != null)
+                    writeHandlers(type, table);
+            }
+        }
+        for (var type: enclosingTypes(commands)) {
+            if (check(type, COMMAND_LINE, "@Command")) {
+                var table = table(type, COMMAND, this::checkCommand);
+                if (table != null)
+                    writeCommands(type, table);
+            }
+        }
+        return true;
+    }
+
+    private List<ExecutableElement> annotated(RoundEnvironment round, String annotation) {
+        var type = processingEnv.getElementUtils().getTypeElement(annotation);
+        if (type == null)
+            return List.of();
+        var methods = new ArrayList<ExecutableElement>();
+        for (var element: round.getElementsAnnotatedWith(type))
+            methods.add((ExecutableElement) element);
+        return methods;
+    }
+
+    private static Set<TypeElement> enclosingTypes(List<ExecutableElement> methods) {
+        var types = new LinkedHashSet<TypeElement>();
+        for (var method: methods)
+            types.add((TypeElement) method.getEnclosingElement());
+        return types;
+    }
+
+    /**
+     * Check that a class is the right kind of class, and that the generated table can refer to it.
+     * Other kinds of classes may use the annotations to document methods they call themselves, and are left alone.
+     */
+    private boolean check(TypeElement type, String superclass, String annotation) {
+        var expected = processingEnv.getElementUtils().getTypeElement(superclass);
+        var types = processingEnv.getTypeUtils();
+        if (expected == null || !types.isSubtype(types.erasure(type.asType()), types.erasure(expected.asType())))
+            return false;
+        // the generated table lives in the same package, and must be able to name the class
+        Element enclosing = type;
+        for (; enclosing instanceof TypeElement outer; enclosing = outer.getEnclosingElement()) {
+            if (outer.getModifiers().contains(Modifier.PRIVATE) || outer.getNestingKind() == NestingKind.LOCAL
+                    || outer.getNestingKind() == NestingKind.ANONYMOUS) {
+                error(type, "Classes with %s methods must not be private, local or anonymous".formatted(annotation));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private interface Checker {
+        boolean check(ExecutableElement method, String key, boolean report);
+    }
+
+    /**
+     * Collect the methods of a class and its superclasses with an annotation, by the annotation's value, the
+     * nearest one winning.
+     * @return The methods, or {@code null} if any declared in the class itself is wrong.
+     */
+    private Map<String, Entry> table(TypeElement type, String annotation, Checker checker) {
+        var table = new LinkedHashMap<String, Entry>();
+        var valid = true;
+        for (var current = type; current != null; current = superclass(current)) {
+            var own = current.equals(type);
+            var seen = new HashMap<String, ExecutableElement>();
+            for (var element: current.getEnclosedElements()) {
+                if (!(element instanceof ExecutableElement method) || element.getKind() != ElementKind.METHOD)
+                    continue;
+                var value = annotation(method, annotation);
+                if (value == null)
+                    continue;
+                var key = value.getValue() instanceof VariableElement constant
+                        ? constant.getSimpleName().toString() : value.getValue().toString();
+                var other = seen.put(key, method);
+                if (own && other != null) {
+                    error(method, "Both %s and %s are @%s(%s)".formatted(other.getSimpleName(), method.getSimpleName(),
+                            annotation.substring(annotation.lastIndexOf('.') + 1), value));
+                    valid = false;
+                }
+                if (!checker.check(method, key, own)) {
+                    valid &= !own;
+                    continue;
+                }
+                if (!accessibleFrom(method, type))
+                    continue;
+                var help = annotation(method, HELP);
+                table.putIfAbsent(key, new Entry(key, method, help == null ? null : (String) help.getValue()));
+            }
+        }
+        return valid ? table : null;
+    }
+
+    private static TypeElement superclass(TypeElement type) {
+        var superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED)
+            return null;
+        var element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private boolean checkHandler(ExecutableElement method, String key, boolean report) {
+        var parameters = method.getParameters();
+        if (parameters.size() != 1 || !is(parameters.getFirst().asType(), PACKET)
+                || !is(method.getReturnType(), PACKET))
+            return fail(report, method, "Method %s with annotation @HandlesMethod(%s) must have type Packet -> Packet."
+                    .formatted(method.getSimpleName(), key));
+        return checkCallable(method, report, "@HandlesMethod");
+    }
+
+    private boolean checkCommand(ExecutableElement method, String key, boolean report) {
+        var parameters = method.getParameters();
+        if (parameters.size() != 1 || !is(parameters.getFirst().asType(), "java.lang.String")
+                || method.getReturnType().getKind() != TypeKind.VOID)
+            return fail(report, method, "Method %s with annotation @Command(%s) must have type String -> void."
+                    .formatted(method.getSimpleName(), key));
+        return checkCallable(method, report, "@Command");
+    }
+
+    private boolean checkCallable(ExecutableElement method, boolean report, String annotation) {
+        if (method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.PRIVATE))
+            return fail(report, method, "Methods with %s must be instance methods that are not private"
+                    .formatted(annotation));
+        for (var thrown: method.getThrownTypes()) {
+            if (!is(thrown, "java.lang.RuntimeException", true) && !is(thrown, "java.lang.Error", true))
+                return fail(report, method, "Methods with %s must not throw checked exceptions such as %s"
+                        .formatted(annotation, thrown));
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether a table generated in the package of a class may call a method, which may be inherited.
+     */
+    private boolean accessibleFrom(ExecutableElement method, TypeElement type) {
+        if (method.getModifiers().contains(Modifier.PUBLIC))
+            return true;
+        var elements = processingEnv.getElementUtils();
+        return elements.getPackageOf(method).equals(elements.getPackageOf(type));
+    }
+
+    private boolean fail(boolean report, Element element, String message) {
+        if (report)
+            error(element, message);
+        return false;
+    }
+
+    private boolean is(TypeMirror type, String name) {
+        return is(type, name, false);
+    }
+
+    private boolean is(TypeMirror type, String name, boolean orSubtype) {
+        var element = processingEnv.getElementUtils().getTypeElement(name);
+        if (element == null)
+            return false;
+        var types = processingEnv.getTypeUtils();
+        return orSubtype ? types.isSubtype(type, element.asType()) : types.isSameType(type, element.asType());
+    }
+
+    private static AnnotationValue annotation(Element element, String name) {
+        for (var mirror: element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+                for (var value: mirror.getElementValues().entrySet()) {
+                    if (value.getKey().getSimpleName().contentEquals("value"))
+                        return value.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private void writeHandlers(TypeElement type, Map<String, Entry> table) {
+        write(type, "_RequestHandlers", "@HandlesMethod handlers", out -> {
+            out.println("    public static final java.util.Map<protocol.Method, server.RequestHandler> HANDLERS;");
+            out.println();
+            out.println("    static {");
+            out.println("        var handlers = new java.util.EnumMap<protocol.Method, server.RequestHandler>("
+                    + "protocol.Method.class);");
+            for (var entry: table.values())
+                out.println(("        handlers.put(protocol.Method.%s, "
+                        + "(handler, request) -> ((%s) handler).%s(request));")
+                        .formatted(entry.key(), reference(type), entry.method().getSimpleName()));
+            out.println("        HANDLERS = java.util.Collections.unmodifiableMap(handlers);");
+            out.println("    }");
+        });
+    }
+
+    private void writeCommands(TypeElement type, Map<String, Entry> table) {
+        write(type, "_Commands", "@Command commands", out -> {
+            out.println("    public static final java.util.Map<String, commandline.CommandHandler> COMMANDS;");
+            out.println("    public static final java.util.Map<String, String> HELP;");
+            out.println();
+            out.println("    static {");
+            out.println("        var commands = new java.util.HashMap<String, commandline.CommandHandler>();");
+            out.println("        var help = new java.util.HashMap<String, String>();");
+            for (var entry: table.values()) {
+                var key = processingEnv.getElementUtils().getConstantExpression(entry.key());
+                out.println("        commands.put(%s, (commandLine, arguments) -> ((%s) commandLine).%s(arguments));"
+                        .formatted(key, reference(type), entry.method().getSimpleName()));
+                if (entry.help() != null)
+                    out.println("        help.put(%s, %s);".formatted(key,
+                            processingEnv.getElementUtils().getConstantExpression(entry.help())));
+            }
+            out.println("        COMMANDS = java.util.Collections.unmodifiableMap(commands);");
+            out.println("        HELP = java.util.Collections.unmodifiableMap(help);");
+            out.println("    }");
+        });
+    }
+
+    /**
+     * @return How generated code refers to a class, with wildcards for any type parameters.
+     */
+    private static String reference(TypeElement type) {
+        var name = type.getQualifiedName().toString();
+        var parameters = type.getTypeParameters().size();
+        return parameters == 0 ? name : name + "<" + String.join(", ", Collections.nCopies(parameters, "?")) + ">";
+    }
+
+    private interface Body {
+        void write(PrintWriter out);
+    }
+
+    private void write(TypeElement type, String suffix, String what, Body body) {
+        var elements = processingEnv.getElementUtils();
+        var packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        var binaryName = elements.getBinaryName(type).toString();
+        var simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                .replace('$', '_') + suffix;
+        var name = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        try (var out = new PrintWriter(processingEnv.getFiler().createSourceFile(name, type).openWriter())) {
+            if (!packageName.isEmpty())
+                out.println("package %s;".formatted(packageName));
+            out.println();
+            out.println("/**");
+            out.println(" * The %s of {@link %s}, generated by {@code processor.IndexProcessor}.".formatted(what,
+                    type.getQualifiedName()));
+            out.println(" */");
+            out.println("@javax.annotation.processing.Generated(\"processor.IndexProcessor\")");
+            out.println("public final class %s {".formatted(simpleName));
+            body.write(out);
+            out.println();
+            out.println("    private %s() {}".formatted(simpleName));
+            out.println("}");
+        } catch (IOException e) {
+            error(type, "Could not generate %s: %s".formatted(name, e.getMessage()));
+        }
+    }
+}
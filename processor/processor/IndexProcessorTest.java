@@ -0,0 +1,293 @@
+package processor;
+
+import commandline.CommandLineInterface;
+import org.junit.jupiter.api.Test;
+import protocol.Method;
+import protocol.Packet;
+import server.PacketHandler;
+
+import javax.tools.*;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexProcessorTest {
+    private record Result(boolean success, List<String> errors, ClassLoader loader) {}
+
+    private static JavaFileObject source(String name, String code) {
+        return new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+
+    /**
+     * Compile classes with the processor, against the classes under test.
+     */
+    private static Result compile(JavaFileObject... sources) throws IOException, URISyntaxException {
+        var out = Files.createTempDirectory("processor");
+        var classpath = Path.of(PacketHandler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        var task = ToolProvider.getSystemJavaCompiler().getTask(null, null, diagnostics,
+                List.of("-d", out.toString(), "-classpath", classpath.toString()), null, List.of(sources));
+        task.setProcessors(List.of(new IndexProcessor()));
+        var success = task.call();
+        var errors = new ArrayList<String>();
+        for (var diagnostic: diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                errors.add(diagnostic.getMessage(null));
+        }
+        var loader = new URLClassLoader(new java.net.URL[] {out.toUri().toURL()},
+                IndexProcessorTest.class.getClassLoader());
+        return new Result(success, errors, loader);
+    }
+
+    private static void assertError(Result result, String message) {
+        assertAll(
+                () -> assertFalse(result.success()),
+                () -> assertTrue(result.errors().stream().anyMatch(error -> error.contains(message)),
+                        "no error containing \"%s\" in %s".formatted(message, result.errors()))
+        );
+    }
+
+    private static final String ECHO = """
+            package sample;
+
+            import protocol.Method;
+            import protocol.Packet;
+            import server.HandlesMethod;
+            import server.PacketHandler;
+
+            public class Echo extends PacketHandler {
+                @HandlesMethod(Method.WHOIS)
+                public Packet onWhois(Packet request) {
+                    return new Packet(Method.SUCCESS, "whois " + request.content());
+                }
+
+                @HandlesMethod(Method.STATUS)
+                Packet onStatus(Packet request) {
+                    return new Packet(Method.SUCCESS, "status " + request.content());
+                }
+            }
+            """;
+
+    @Test
+    void handlers() throws Exception {
+        var result = compile(source("sample.Echo", ECHO));
+        assertTrue(result.success(), result.errors().toString());
+        var echo = (PacketHandler) result.loader().loadClass("sample.Echo").getConstructor().newInstance();
+        assertAll(
+                () -> assertNotNull(result.loader().loadClass("sample.Echo_RequestHandlers")),
+                () -> assertEquals("whois alice", echo.runRequestHandler(new Packet(Method.WHOIS, "alice")).content()),
+                () -> assertEquals("status busy", echo.runRequestHandler(new Packet(Method.STATUS, "busy")).content()),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> echo.runRequestHandler(new Packet(Method.HELLO)))
+        );
+    }
+
+    @Test
+    void inheritedHandlers() throws Exception {
+        var result = compile(source("sample.Echo", ECHO), source("sample.Loud", """
+                package sample;
+
+                import protocol.Method;
+                import protocol.Packet;
+                import server.HandlesMethod;
+
+                public class Loud extends Echo {
+                    @HandlesMethod(Method.WHOIS)
+                    public Packet onLoudWhois(Packet request) {
+                        return new Packet(Method.SUCCESS, "WHOIS " + request.content());
+                    }
+                }
+                """));
+        assertTrue(result.success(), result.errors().toString());
+        var loud = (PacketHandler) result.loader().loadClass("sample.Loud").getConstructor().newInstance();
+        assertAll(
+                () -> assertEquals("WHOIS alice", loud.runRequestHandler(new Packet(Method.WHOIS, "alice")).content()),
+                () -> assertEquals("status busy", loud.runRequestHandler(new Packet(Method.STATUS, "busy")).content())
+        );
+    }
+
+    @Test
+    void wrongSignature() throws Exception {
+        assertError(compile(source("sample.Wrong", """
+                package sample;
+
+                import protocol.Method;
+                import protocol.Packet;
+                import server.HandlesMethod;
+                import server.PacketHandler;
+
+                public class Wrong extends PacketHandler {
+                    @HandlesMethod(Method.WHOIS)
+                    public String onWhois(Packet request) {
+                        return "";
+                    }
+                }
+                """)), "must have type Packet -> Packet");
+    }
+
+    @Test
+    void privateHandler() throws Exception {
+        assertError(compile(source("sample.Hidden", """
+                package sample;
+
+                import protocol.Method;
+                import protocol.Packet;
+                import server.HandlesMethod;
+                import server.PacketHandler;
+
+                public class Hidden extends PacketHandler {
+                    @HandlesMethod(Method.WHOIS)
+                    private Packet onWhois(Packet request) {
+                        return request;
+                    }
+                }
+                """)), "must be instance methods that are not private");
+    }
+
+    @Test
+    void duplicateHandler() throws Exception {
+        assertError(compile(source("sample.Twice", """
+                package sample;
+
+                import protocol.Method;
+                import protocol.Packet;
+                import server.HandlesMethod;
+                import server.PacketHandler;
+
+                public class Twice extends PacketHandler {
+                    @HandlesMethod(Method.WHOIS)
+                    public Packet first(Packet request) {
+                        return request;
+                    }
+
+                    @HandlesMethod(Method.WHOIS)
+                    public Packet second(Packet request) {
+                        return request;
+                    }
+                }
+                """)), "Both first and second");
+    }
+
+    @Test
+    void checkedException() throws Exception {
+        assertError(compile(source("sample.Throws", """
+                package sample;
+
+                import protocol.Method;
+                import protocol.Packet;
+                import server.HandlesMethod;
+                import server.PacketHandler;
+
+                public class Throws extends PacketHandler {
+                    @HandlesMethod(Method.WHOIS)
+                    public Packet onWhois(Packet request) throws java.io.IOException {
+                        return request;
+                    }
+                }
+                """)), "must not throw checked exceptions");
+    }
+
+    @Test
+    void notAPacketHandler() throws Exception {
+        // the annotation only documents which request a method is for, so it is left alone
+        var result = compile(source("sample.Plain", """
+                package sample;
+
+                import protocol.Method;
+                import protocol.Packet;
+                import server.HandlesMethod;
+
+                public class Plain {
+                    @HandlesMethod(Method.WHOIS)
+                    String onWhois(Packet request) throws java.io.IOException {
+                        return "";
+                    }
+                }
+                """));
+        assertAll(
+                () -> assertTrue(result.success(), result.errors().toString()),
+                () -> assertThrows(ClassNotFoundException.class,
+                        () -> result.loader().loadClass("sample.Plain_RequestHandlers"))
+        );
+    }
+
+    @Test
+    void commands() throws Exception {
+        var result = compile(source("sample.Shell", """
+                package sample;
+
+                import commandline.Command;
+                import commandline.CommandLineInterface;
+                import commandline.Help;
+
+                public class Shell extends CommandLineInterface {
+                    public String said = null;
+
+                    @Command("/say")
+                    @Help("Say something.")
+                    public void say(String arguments) {
+                        said = arguments;
+                    }
+
+                    @Command("/quit")
+                    void quit(String arguments) {}
+                }
+                """));
+        assertTrue(result.success(), result.errors().toString());
+        var shell = (CommandLineInterface) result.loader().loadClass("sample.Shell").getConstructor().newInstance();
+        assertAll(
+                () -> assertNotNull(result.loader().loadClass("sample.Shell_Commands")),
+                () -> assertTrue(shell.runCommand("/say hello  world")),
+                () -> assertEquals("hello  world", shell.getClass().getField("said").get(shell)),
+                () -> assertTrue(shell.runCommand("/quit")),
+                () -> assertFalse(shell.runCommand("/nope")),
+                () -> assertEquals(Map.of("/say", "Say something."), shell.help())
+        );
+    }
+
+    @Test
+    void wrongCommand() throws Exception {
+        assertError(compile(source("sample.Shell", """
+                package sample;
+
+                import commandline.Command;
+                import commandline.CommandLineInterface;
+
+                public class Shell extends CommandLineInterface {
+                    @Command("/say")
+                    public boolean say(String[] arguments) {
+                        return true;
+                    }
+                }
+                """)), "must have type String -> void");
+    }
+
+    @Test
+    void helpWithoutCommand() throws Exception {
+        assertError(compile(source("sample.Shell", """
+                package sample;
+
+                import commandline.CommandLineInterface;
+                import commandline.Help;
+
+                public class Shell extends CommandLineInterface {
+                    @Help("Say something.")
+                    public void say(String arguments) {}
+                }
+                """)), "@Help is only for methods with @Command");
+    }
+}
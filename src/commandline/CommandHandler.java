@@ -0,0 +1,10 @@
+package commandline;
+
+/**
+ * Runs one {@link Command} of a {@link CommandLineInterface}, given the rest of the line after the command.
+ * The tables of these that the annotation processor generates let a command be run without reflection.
+ */
+@FunctionalInterface
+public interface CommandHandler {
+    void run(CommandLineInterface commandLine, String arguments);
+}
@@ -1,15 +1,81 @@
 package commandline;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A command line whose commands are the methods of a subclass marked with {@link Command}, documented by
+ * {@link Help}. Like the handlers of a {@link server.PacketHandler}, they are found at compile time by
+ * {@code processor.IndexProcessor} if it runs, and by reflection otherwise, once per class.
+ */
 public class CommandLineInterface {
-    private final Map<String, Method> commands;
+    private record Table(Map<String, CommandHandler> commands, Map<String, String> help) {}
 
+    private static final ClassValue<Table> tables = new ClassValue<>() {
+        @Override
+        protected Table computeValue(Class<?> type) {
+            var generated = generatedTable(type);
+            return generated != null ? generated : reflectiveTable(type.asSubclass(CommandLineInterface.class));
+        }
+    };
+
+    private final Map<String, CommandHandler> commands;
+    private final Map<String, String> help;
+
+    /**
+     * @throws IllegalArgumentException if we discover a command with an incorrect type signature.
+     */
     public CommandLineInterface() {
-        this.commands = CommandLineInterface.enumerateCommands(this.getClass());
+        var table = tables.get(this.getClass());
+        this.commands = table.commands();
+        this.help = table.help();
+    }
+
+    /**
+     * @return The name of the class the annotation processor generates for the commands of a class, e.g.
+     *         {@code messenger.Client_Commands}.
+     */
+    public static String generatedClassName(Class<?> kind) {
+        return kind.getName().replace('$', '_') + "_Commands";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Table generatedTable(Class<?> kind) {
+        try {
+            var generated = Class.forName(generatedClassName(kind), true, kind.getClassLoader());
+            return new Table((Map<String, CommandHandler>) generated.getField("COMMANDS").get(null),
+                    (Map<String, String>) generated.getField("HELP").get(null));
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Generated commands for %s are unusable".formatted(kind), e);
+        }
+    }
+
+    private static Table reflectiveTable(Class<? extends CommandLineInterface> kind) {
+        var commands = new HashMap<String, CommandHandler>();
+        var help = new HashMap<String, String>();
+        CommandLineInterface.enumerateCommands(kind).forEach((name, method) -> {
+            if (method.getParameterTypes().length != 1
+                    || method.getParameterTypes()[0] != String.class
+                    || method.getReturnType() != void.class)
+                throw new IllegalArgumentException("Method %s with annotation @Command(%s) must have type String -> void."
+                        .formatted(method, name));
+            commands.put(name, (self, arguments) -> {
+                try {
+                    method.invoke(self, arguments);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            var text = method.getAnnotation(Help.class);
+            if (text != null)
+                help.put(name, text.value());
+        });
+        return new Table(Collections.unmodifiableMap(commands), Collections.unmodifiableMap(help));
     }
 
     public static Map<String, Method> enumerateCommands(Class<? extends CommandLineInterface> kind) {
@@ -27,4 +93,24 @@ public class CommandLineInterface {
 
         return Collections.unmodifiableMap(commands);
     }
+
+    /**
+     * Run the command a line starts with, passing it the rest of the line.
+     * @return Whether there is such a command.
+     */
+    public boolean runCommand(String line) {
+        var split = line.strip().split("\\s+", 2);
+        var command = commands.get(split[0]);
+        if (command == null)
+            return false;
+        command.run(this, split.length > 1 ? split[1] : "");
+        return true;
+    }
+
+    /**
+     * @return The help text of each command that has some, by command.
+     */
+    public Map<String, String> help() {
+        return help;
+    }
 }
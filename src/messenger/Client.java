@@ -1,160 +1,727 @@
 package messenger;
 
+import protocol.Deadline;
 import protocol.Error;
 import protocol.Method;
+import protocol.Multiplexer;
 import protocol.Packet;
+import protocol.PacketMalformedException;
 import server.HandlesMethod;
 import server.PacketHandler;
 
 import java.io.*;
 import java.net.*;
 import java.nio.file.*;
-import java.util.Locale;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
+/**
+ * A messenger user: their account on the server, their sessions with peers, and their chat history.
+ * Nothing here reads the terminal or prints to it, so any number of clients can run in one process, for bots and
+ * services as well as for the {@link Console}.
+ * <p>Every call that goes over the network has a blocking form and one ending in {@code Async} that returns a
+ * {@link CompletableFuture} straight away and makes the call on a virtual thread. Whatever arrives without being
+ * asked for, such as messages from peers, is published as {@link ClientEvent}s by {@link Client#events()}.</p>
+ */
 public class Client {
-    public int port;
-    public String serverIP;
-    public int serverPort;
-    public String username;
-    public String password;
-    public Socket peerSocket = null;
-    public Thread incomingThread = null;
-    public ServerSocket serverSocket;
-    public Thread serverThread;
-    public String peerName = null;
+    final int port;
+    private volatile String serverIP;
+    private volatile int serverPort;
+    public final Transport transport;
+    volatile String username;
+    volatile String password;
+    final Listener serverSocket;
+    private Thread serverThread;
+    final Map<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    volatile String activeSession = null;
 
-    private static class IncomingPacketHandler implements Runnable {
-        private Socket socket;
+    final DeltaSync.Index receivedFiles = new DeltaSync.Index();
+    final GroupChat groups = new GroupChat(this);
+    private HistoryStore history = null;
+    private SearchIndex search = null;
+    private Presence.Sender presence = null;
+    private Status status = Status.READY;
+    // our contacts, as of the roster version we last heard from the server
+    private final Map<String, Roster.Entry> contacts = new TreeMap<>();
+    private long rosterVersion = 0;
 
-        public IncomingPacketHandler(Socket socket) {
-            this.socket = socket;
+    // subscribers are called on virtual threads, which every client in the process shares
+    private static final ExecutorService eventExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final SubmissionPublisher<ClientEvent> events =
+            new SubmissionPublisher<>(eventExecutor, Config.CLIENT_EVENT_BUFFER);
+
+    private record PendingFile(Packet offer, Path path, DeltaSync.Source[] sources) {}
+
+    /**
+     * Serves the requests arriving on one stream of a peer connection, until the peer closes it.
+     */
+    static class IncomingPacketHandler implements Runnable {
+        private final Multiplexer.Stream stream;
+        private final PeerSession session;
+        private final DeltaSync.Index receivedFiles;
+        private final Map<String, PendingFile> pendingFiles = new HashMap<>();
+        private int unacknowledged = 0;
+
+        public IncomingPacketHandler(Multiplexer.Stream stream, PeerSession session) {
+            this.stream = stream;
+            this.session = session;
+            this.receivedFiles = session.client().receivedFiles;
         }
 
         @Override
         public void run() {
-            while (!socket.isClosed()) {
-                try {
-                    Packet response = null;
-                    try {
-                        var request = Packet.readPacket(socket);
-                        response = switch (request.method()) {
-                            case HELLO -> handleHELLO(request);
-                            case MESSAGE -> handleMESSAGE(request);
-                            case GOODBYE -> handlesGOODBYE(request);
-                            case FILE -> handleFILE(request);
-                            default -> new Packet(Error.UNSUPPORTED_METHOD);
-                        };
-                    } catch (IOException e) {
-                        e.printStackTrace();
+            try (stream) {
+                while (true) {
+                    var request = stream.readPacket();
+                    try (var _ = Trace.join(request, "peer " + request.method())) {
+                        handle(request);
                     }
+                }
+            } catch (EOFException e) {
+                // the peer is done with this stream
+            } catch (IOException | PacketMalformedException e) {
+                if (!stream.multiplexer().isClosed())
+                    Log.warn("peer.stream.failed", "peer", session.name(), "error", e);
+            }
+        }
 
-                    try {
-                        Packet.sendPacket(socket, response);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } catch (Exception e) {}
+        private void handle(Packet request) throws IOException {
+            if (request.method() == Method.MESSAGE && request.headers().containsKey("group")) {
+                // group messages are relayed, not acknowledged
+                session.client().groups.receive(session, request);
+                return;
             }
+            if (request.method() == Method.MESSAGE && request.headers().containsKey("seq")) {
+                var ack = handleSequencedMESSAGE(request);
+                if (ack != null)
+                    stream.sendPacket(ack);
+                return;
+            }
+            var response = switch (request.method()) {
+                case HELLO -> handleHELLO(request);
+                case RESUME -> handleRESUME(request);
+                case MESSAGE -> handleMESSAGE(request);
+                case GOODBYE -> handlesGOODBYE(request);
+                case FILE -> handleFILE(request);
+                default -> new Packet(Error.UNSUPPORTED_METHOD);
+            };
+            stream.sendPacket(response);
         }
 
+        /**
+         * File the session under the username the peer introduces itself with, once the server confirms that user
+         * is online where the connection came from.
+         * A session that claims a name we already have a live session with is left under its address.
+         */
         @HandlesMethod(Method.HELLO)
         public Packet handleHELLO(Packet hello) throws IOException {
+            var username = hello.headers().get("username");
+            if (username != null) {
+                var client = session.client();
+                var peer = client.whoisAt(username, session.address());
+                if (peer == null) {
+                    Log.warn("peer.hello.rejected", "peer", session.name(), "username", username);
+                    return new Packet(Error.WRONG_CREDENTIALS);
+                }
+                if (!client.renameSession(session, username))
+                    return new Packet(Error.USER_ALREADY_EXISTS);
+                session.pin(peer.certificate());
+            }
+            var token = hello.headers().get("token");
+            if (token != null)
+                session.introduced(token);
             return new Packet(Method.SUCCESS);
         }
 
+        /**
+         * Hand this connection over to the session the peer wants to resume.
+         * @return The sequence number of the last message we received in that session.
+         */
+        @HandlesMethod(Method.RESUME)
+        public Packet handleRESUME(Packet resume) throws IOException {
+            var username = resume.headers().get("username");
+            var token = resume.headers().get("token");
+            long received;
+            try {
+                received = Long.parseLong(resume.headers().get("received"));
+            } catch (NumberFormatException e) {
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+            if (username == null || token == null)
+                return new Packet(Error.MALFORMED_REQUEST);
+            var resumed = session.client().resumeSession(session, username, token, received);
+            if (resumed == null)
+                return new Packet(Error.NO_SUCH_SESSION);
+            return new Packet(Method.SUCCESS, Map.of("received", String.valueOf(resumed.received())));
+        }
+
         @HandlesMethod(Method.MESSAGE)
         public Packet handleMESSAGE(Packet message) {
-            IO.println(">" + message.content());
+            session.client().record(session.name(), session.name(), message.content());
+            session.client().emit(new ClientEvent.Message(session.name(), message.content(), false));
             return new Packet(Method.SUCCESS);
         }
 
+        private void received(Path path) {
+            receivedFiles.add(path);
+            session.client().emit(new ClientEvent.FileReceived(session.name(), path));
+        }
+
+        private void failed(String filename) {
+            session.client().emit(new ClientEvent.Notice("Failed to download file %s!".formatted(filename)));
+        }
+
+        /**
+         * Handle a message sent through a {@link MessageWindow}.
+         * Acknowledgements are cumulative and delayed while more messages are already waiting to be read.
+         * @return The acknowledgement to send, or {@code null} to hold it back for now.
+         */
+        public Packet handleSequencedMESSAGE(Packet message) throws IOException {
+            long seq;
+            try {
+                seq = Long.parseLong(message.headers().get("seq"));
+            } catch (NumberFormatException e) {
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+            // messages sent again after the session was resumed are only acknowledged
+            if (session.receive(seq))
+                handleMESSAGE(message);
+            if (++unacknowledged < Config.MESSAGE_ACK_EVERY && stream.hasBufferedInput())
+                return null;
+            unacknowledged = 0;
+            return new Packet(Method.SUCCESS, Map.of("ack", String.valueOf(session.received())));
+        }
+
         @HandlesMethod(Method.FILE)
         public Packet handleFILE(Packet message) {
-            System.out.printf("Received file %s\n", message.headers().get("filename"));
-            try (var output = new BufferedWriter(new FileWriter(message.headers().get("filename")))) {
-                output.write(message.content());
+            if (message.headers().containsKey("streams"))
+                return handleParallelFILE(message);
+            var sync = message.headers().getOrDefault("sync", "");
+            if (sync.equals("offer"))
+                return handleFileOffer(message);
+            if (sync.equals("delta"))
+                return handleFileDelta(message);
+            var filename = message.headers().get("filename");
+            Path path;
+            try {
+                path = download(filename);
+            } catch (IllegalArgumentException e) {
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+            try {
+                Files.createDirectories(path.getParent());
+                Files.writeString(path, message.content());
             } catch (IOException e) {
-                IO.println("Failed to download file!");
-                e.printStackTrace();
+                failed(filename);
+                return new Packet(Method.SUCCESS);
             }
+            received(path);
             return new Packet(Method.SUCCESS);
         }
 
+        /**
+         * Where to keep a file a peer sent us: directly inside {@link Config#DOWNLOAD_DIRECTORY}, whatever
+         * directories the peer put in its name, so that no peer can write anywhere else.
+         * @throws IllegalArgumentException if there is no file name, or only {@code .} or {@code ..}.
+         */
+        static Path download(String filename) {
+            if (filename == null)
+                throw new IllegalArgumentException("No file name.");
+            var name = Path.of(filename).getFileName();
+            if (name == null || name.toString().equals(".") || name.toString().equals(".."))
+                throw new IllegalArgumentException("Not a file name: " + filename);
+            return Path.of(Config.DOWNLOAD_DIRECTORY).resolve(name);
+        }
+
+        public Packet handleFileOffer(Packet offer) {
+            var filename = offer.headers().get("filename");
+            var hash = offer.headers().get("hash");
+            Path path;
+            long length;
+            int blockSize;
+            try {
+                path = download(filename);
+                length = Long.parseLong(offer.headers().get("length"));
+                blockSize = Integer.parseInt(offer.headers().get("blockSize"));
+            } catch (IllegalArgumentException e) {
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+            if (hash == null || length < 0 || length > Config.MAX_FILE_BYTES || blockSize <= 0)
+                return new Packet(Error.MALFORMED_REQUEST);
+            try {
+                var existing = receivedFiles.find(hash);
+                if (existing != null) {
+                    if (!existing.equals(path.toAbsolutePath().normalize())) {
+                        Files.createDirectories(path.getParent());
+                        Files.copy(existing, path, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    received(path);
+                    return new Packet(Method.SUCCESS, Map.of("have", "all"));
+                }
+                var blocks = DeltaSync.decodeSignature(offer.content(), length, blockSize);
+                var sources = receivedFiles.match(blocks, blockSize);
+                var have = new BitSet(sources.length);
+                for (var i = 0; i < sources.length; i++)
+                    have.set(i, sources[i] != null);
+                pendingFiles.put(filename, new PendingFile(offer, path, sources));
+                return new Packet(Method.SUCCESS, Base64.getEncoder().encodeToString(have.toByteArray()));
+            } catch (IOException | IllegalArgumentException e) {
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+        }
+
+        public Packet handleFileDelta(Packet delta) {
+            var filename = delta.headers().get("filename");
+            var pending = filename == null ? null : pendingFiles.remove(filename);
+            if (pending == null)
+                return new Packet(Error.MALFORMED_REQUEST);
+            var offer = pending.offer().headers();
+            Path partial = null;
+            try {
+                Files.createDirectories(pending.path().getParent());
+                // assembled next to the file, so a failed sync leaves any file of the same name alone
+                partial = Files.createTempFile(pending.path().getParent(), pending.path().getFileName().toString(),
+                        ".part");
+                var hash = DeltaSync.assemble(
+                        partial,
+                        Long.parseLong(offer.get("length")),
+                        Integer.parseInt(offer.get("blockSize")),
+                        pending.sources(),
+                        Base64.getDecoder().decode(delta.content())
+                );
+                if (!hash.equals(offer.get("hash"))) {
+                    Files.delete(partial);
+                    return new Packet(Error.MALFORMED_REQUEST);
+                }
+                Files.move(partial, pending.path(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | IllegalArgumentException e) {
+                if (partial != null) {
+                    try {
+                        Files.deleteIfExists(partial);
+                    } catch (IOException ignored) {}
+                }
+                failed(filename);
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+            received(pending.path());
+            return new Packet(Method.SUCCESS);
+        }
+
+        public Packet handleParallelFILE(Packet offer) {
+            var filename = offer.headers().get("filename");
+            Path path;
+            FileTransfer.Receiver receiver;
+            try {
+                path = download(filename);
+                Files.createDirectories(path.getParent());
+                receiver = new FileTransfer.Receiver(path,
+                        Long.parseLong(offer.headers().get("length")),
+                        Integer.parseInt(offer.headers().get("streams")), session.client().transport);
+            } catch (IOException | IllegalArgumentException e) {
+                failed(filename);
+                return new Packet(Error.MALFORMED_REQUEST);
+            }
+            Thread.ofVirtual().start(() -> {
+                receiver.run();
+                if (receiver.completed())
+                    received(path);
+                else
+                    failed(filename);
+            });
+            return new Packet(Method.SUCCESS, Map.of("port", String.valueOf(receiver.port())));
+        }
+
         @HandlesMethod(Method.GOODBYE)
         public Packet handlesGOODBYE(Packet message) throws IOException {
-            socket.close();
+            session.end();
             return new Packet(Method.SUCCESS);
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        Client client = new Client(Integer.parseInt(args.length > 0 ? args[0] : String.valueOf(Config.SERVER_PORT)),
-                Config.SERVER_IP, Config.SERVER_PORT);
-        client.runConsole();
+    private Client(int port, String serverIP, int serverPort, Transport transport) throws IOException {
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+        this.transport = transport;
+        this.serverSocket = transport.listen(port);
+        // any free port if we were given 0
+        this.port = serverSocket.port();
+    }
+
+    public static Client open(int port, String serverIP, int serverPort) throws IOException {
+        return open(port, serverIP, serverPort, Transport.DEFAULT);
+    }
+
+    /**
+     * Start a client, listening for peers on a port.
+     * @param transport How to reach the server and peers, and how they reach us.
+     */
+    public static Client open(int port, String serverIP, int serverPort, Transport transport) throws IOException {
+        var client = new Client(port, serverIP, serverPort, transport);
+        client.serverThread = new Thread(client::acceptLoop);
+        client.serverThread.start();
+        return client;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                var connection = serverSocket.accept();
+                Thread.ofVirtual().start(() -> acceptSession(connection));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    Log.warn("client.accept.failed", "port", port, "error", e);
+            }
+        }
+    }
+
+    private void acceptSession(Socket connection) {
+        try {
+            var session = new PeerSession(this,
+                    "%s:%d".formatted(connection.getInetAddress().getHostAddress(), connection.getPort()),
+                    connection, false);
+            addSession(session);
+            // we were closed while it connected, after every session was ended
+            if (serverSocket.isClosed()) {
+                session.close();
+                return;
+            }
+            session.start();
+            if (username != null)
+                setStatus(Status.CHATTING);
+        } catch (IOException e) {
+            Log.warn("peer.accept.failed", "from", connection.getInetAddress(), "error", e);
+        }
+    }
+
+    /**
+     * @return The port peers connect to us on.
+     */
+    public int port() {
+        return port;
     }
 
-    public Client(int port, String serverIP, int serverPort) throws IOException {
-        this.port = port;
+    /**
+     * @return The user we registered or logged in as, or {@code null} if we have done neither yet.
+     */
+    public String username() {
+        return username;
+    }
+
+    /**
+     * Send server requests to a different server from now on.
+     */
+    public void setServer(String serverIP, int serverPort) {
         this.serverIP = serverIP;
         this.serverPort = serverPort;
-        this.serverSocket = new ServerSocket(port);
-        this.serverThread = new Thread(() -> {
+    }
 
-            while (true) {
-                try (var connection = serverSocket.accept()) {
-                    setStatus(Status.CHATTING);
-                    synchronized (Client.this) {
-                        peerSocket = connection;
-                        incomingThread = new Thread(new IncomingPacketHandler(connection));
-                        incomingThread.start();
-                    }
-                    incomingThread.join();
-                } catch (IOException | InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+    /**
+     * @return Our sessions with peers, by the peer's username (or address, until it introduces itself).
+     */
+    public Map<String, PeerSession> sessions() {
+        return Collections.unmodifiableMap(sessions);
+    }
+
+    /**
+     * @return The group chats we take part in.
+     */
+    public GroupChat groups() {
+        return groups;
+    }
+
+    /**
+     * @return The events of this client, for as many subscribers as like. Each subscriber is sent events on a
+     * virtual thread as it requests them; while one is {@link Config#CLIENT_EVENT_BUFFER} events behind, whatever
+     * publishes the next event waits for it, down to the peer sending us messages, rather than letting them pile
+     * up. Events published while nobody is subscribed are dropped.
+     */
+    public Flow.Publisher<ClientEvent> events() {
+        return events;
+    }
+
+    /**
+     * Call a function for every event from now on.
+     * @return A future completed once the client is closed.
+     * @see Client#events()
+     */
+    public CompletableFuture<Void> onEvent(Consumer<? super ClientEvent> listener) {
+        return events.consume(listener);
+    }
+
+    void emit(ClientEvent event) {
+        try {
+            events.submit(event);
+        } catch (IllegalStateException e) {
+            // closed, and nobody is listening any more
+        }
+    }
+
+    /**
+     * Make a blocking call on a virtual thread of its own.
+     */
+    private static <T> CompletableFuture<T> async(Callable<T> call) {
+        var future = new CompletableFuture<T>();
+        Thread.ofVirtual().name("client-call").start(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
             }
         });
-        this.serverThread.start();
+        return future;
+    }
+
+    /**
+     * @return The session messages go to unless another is given, or {@code null} if there is none.
+     */
+    public PeerSession session() {
+        var name = activeSession;
+        return name == null ? null : sessions.get(name);
+    }
+
+    /**
+     * Add a session to the table, unless we already have a live session with the same peer.
+     * The first session becomes the active one.
+     * @return The session now filed under that name.
+     */
+    synchronized PeerSession addSession(PeerSession session) {
+        var previous = sessions.get(session.name());
+        if (previous != null && previous != session && !previous.isClosed())
+            return previous;
+        sessions.put(session.name(), session);
+        if (session() == null)
+            activeSession = session.name();
+        return session;
+    }
+
+    /**
+     * File a session under the username its peer introduced itself with.
+     * If we already have a live session with that user, for instance because we both connected at the same time,
+     * the new one stays filed under its address.
+     * @return Whether the session is now filed under that name.
+     */
+    synchronized boolean renameSession(PeerSession session, String name) {
+        var oldName = session.name();
+        var previous = sessions.get(name);
+        if (previous != null && previous != session && previous.isSuspended()) {
+            // the peer started over instead of resuming, so it has forgotten the old session
+            previous.close();
+            previous = null;
+        }
+        if (oldName.equals(name))
+            return true;
+        if (previous != null && !previous.isClosed())
+            return false;
+        sessions.remove(oldName, session);
+        session.rename(name);
+        sessions.put(name, session);
+        if (oldName.equals(activeSession) || activeSession == null)
+            activeSession = name;
+        return true;
+    }
+
+    /**
+     * Make another of our sessions the one messages go to unless another is given.
+     * @return Whether we have a session with that name.
+     */
+    public synchronized boolean switchSession(String name) {
+        if (!sessions.containsKey(name))
+            return false;
+        activeSession = name;
+        return true;
+    }
+
+    /**
+     * @return The name of the session messages go to unless another is given, or {@code null} if there is none.
+     */
+    public String activeSession() {
+        return activeSession;
+    }
+
+    synchronized void removeSession(PeerSession session) {
+        if (sessions.remove(session.name(), session) && session.name().equals(activeSession))
+            activeSession = null;
+    }
+
+    /**
+     * Resume a session whose connection dropped, on the connection a new session was accepted on.
+     * @param accepted The session the peer's new connection was accepted as.
+     * @param acknowledged The sequence number of the last of our messages the peer received.
+     * @return The resumed session, or {@code null} if we have no session with the peer under that token.
+     */
+    synchronized PeerSession resumeSession(PeerSession accepted, String username, String token, long acknowledged)
+            throws IOException {
+        var session = sessions.get(username);
+        if (session == null || session == accepted || !session.resume(accepted, token, acknowledged))
+            return null;
+        removeSession(accepted);
+        return session;
     }
 
+    /**
+     * Send a request to the server on a connection of its own.
+     * @throws SocketTimeoutException if the server does not answer within {@link Config#READ_TIMEOUT_MILLIS}.
+     */
     public Packet makeServerRequest(Packet request) throws IOException {
-        try (var socket = new Socket(serverIP, serverPort)) {
-            Packet.sendPacket(socket, request);
-            return Packet.readPacket(socket);
+        try (var _ = Trace.start("request " + request.method());
+             var socket = transport.connect(serverIP, serverPort);
+             var deadline = Deadline.after(socket, Config.READ_TIMEOUT_MILLIS)) {
+            try {
+                Packet.sendPacket(socket, Trace.inject(request));
+                return Packet.readPacket(socket);
+            } catch (IOException e) {
+                if (deadline.expired())
+                    throw new SocketTimeoutException("The server did not answer %s in time"
+                            .formatted(request.method()));
+                throw e;
+            }
         }
     }
 
     public Error register(String username, String password) throws IOException {
+        forgetContacts(username);
         this.username = username;
         this.password = password;
-        var request = new Packet(Method.REGISTER,
-                Map.of(
-                        "username", username,
-                        "password", password,
-                        "listenPort", String.valueOf(port)
-                )
-        );
+        var request = new Packet(Method.REGISTER, withCertificate(Map.of(
+                "username", username,
+                "password", password,
+                "listenPort", String.valueOf(port)
+        )));
 
         var response = makeServerRequest(request);
+        if (response.method() == Method.SUCCESS)
+            startPresence();
         return response.getError();
     }
 
+    /**
+     * Add the fingerprint of the certificate we present to peers to the headers of a request, for the server to
+     * vouch for it to them.
+     */
+    private Map<String, String> withCertificate(Map<String, String> headers) throws IOException {
+        var fingerprint = transport.fingerprint();
+        if (fingerprint == null)
+            return headers;
+        var all = new HashMap<>(headers);
+        all.put("certificate", fingerprint);
+        return all;
+    }
+
+    /**
+     * @see Client#register(String, String)
+     */
+    public CompletableFuture<Error> registerAsync(String username, String password) {
+        return async(() -> register(username, password));
+    }
+
+    /**
+     * Log in, bringing our contacts up to date with the changes to our roster since we last heard of it.
+     */
     public Error login(String username, String password) throws IOException {
+        forgetContacts(username);
         this.username = username;
         this.password = password;
-        var request = new Packet(Method.LOGIN,
+        var request = new Packet(Method.LOGIN, withCertificate(Map.of(
+                "username", username,
+                "password", password,
+                "listenPort", String.valueOf(port),
+                "since", String.valueOf(rosterVersion())
+        )));
+
+        var response = makeServerRequest(request);
+        if (response.method() == Method.SUCCESS) {
+            updateContacts(response);
+            startPresence();
+            for (var message: fetchOfflineMessages()) {
+                var from = message.headers().get("from");
+                record(from, from, message.content());
+                emit(new ClientEvent.Message(from, message.content(), true));
+            }
+        }
+        return response.getError();
+    }
+
+    /**
+     * Log in, and fetch the messages left for us while we were offline, which are published as
+     * {@link ClientEvent.Message}s.
+     * @see Client#login(String, String)
+     */
+    public CompletableFuture<Error> loginAsync(String username, String password) {
+        return async(() -> login(username, password));
+    }
+
+    public Error logout() throws IOException {
+        stopPresence();
+        var request = new Packet(Method.LOGOUT,
                 Map.of(
                         "username", username,
-                        "password", password,
-                        "listenPort", String.valueOf(port)
+                        "password", password
                 )
         );
+        var response = makeServerRequest(request);
+        return response.getError();
+    }
+
+    /**
+     * @see Client#logout()
+     */
+    public CompletableFuture<Error> logoutAsync() {
+        return async(this::logout);
+    }
 
+    /**
+     * Leave a message on the server for a user who is offline.
+     * @return {@link Error#QUOTA_EXCEEDED} if the user already has too many messages waiting.
+     */
+    public Error leaveMessage(String username, String message) throws IOException {
+        var request = new Packet(Method.MESSAGE,
+                Map.of(
+                        "username", this.username,
+                        "password", password,
+                        "to", username
+                ),
+                message
+        );
         var response = makeServerRequest(request);
+        if (response.method() == Method.SUCCESS)
+            record(username, this.username, message);
         return response.getError();
     }
 
+    /**
+     * Fetch every message left for us on the server, a batch at a time.
+     * Each batch is acknowledged by the request for the next one, so a message is only deleted from the server
+     * once we have received it.
+     * @return The messages, oldest first, with {@code from} and {@code timestamp} headers.
+     */
+    public List<Packet> fetchOfflineMessages() throws IOException {
+        var messages = new ArrayList<Packet>();
+        String after = null;
+        while (true) {
+            var headers = new HashMap<>(Map.of("username", username, "password", password));
+            if (after != null)
+                headers.put("after", after);
+            var response = makeServerRequest(new Packet(Method.FETCH, headers));
+            if (response.method() != Method.SUCCESS)
+                return messages;
+            var batch = new BufferedReader(new StringReader(response.content()));
+            var count = 0;
+            while (true) {
+                try {
+                    messages.add(Packet.readPacket(batch, null));
+                    count++;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            // the final, empty request acknowledges the last batch
+            if (count == 0)
+                return messages;
+            after = response.headers().get("next");
+        }
+    }
+
     public Peer whois(String username) throws IOException {
         var request = new Packet(Method.WHOIS, Map.of("username", username));
         var response = makeServerRequest(request);
@@ -164,138 +731,519 @@ public class Client {
                 username,
                 InetAddress.getByName(response.headers().get("address")),
                 Integer.parseInt(response.headers().get("port")),
-                Status.valueOf(response.headers().get("status"))
+                Status.valueOf(response.headers().get("status")),
+                response.headers().get("certificate")
         );
     }
 
-    public Error setStatus(Status status) throws IOException {
-        var request = new Packet(Method.STATUS,
-                Map.of(
-                        "username", username,
-                        "password", password,
-                        "status", status.toString()
-                )
-        );
-        var response = makeServerRequest(request);
-        return response.getError();
+    /**
+     * Check with the server that a user is online at an address, before believing a peer that says it is them.
+     * A connection from this machine may come from any user logged in from this machine, since peers on the same
+     * machine reach us over the loopback interface or a Unix domain socket.
+     * @return The user as the server describes them, or {@code null} if they are not online at that address.
+     */
+    Peer whoisAt(String username, InetAddress address) throws IOException {
+        var peer = whois(username);
+        if (peer == null)
+            return null;
+        if (peer.address().equals(address))
+            return peer;
+        var local = address.isLoopbackAddress()
+                && (peer.address().isLoopbackAddress() || NetworkInterface.getByInetAddress(peer.address()) != null);
+        return local ? peer : null;
     }
 
-    public Socket connectToPeer(String username) throws IOException {
-        var peer = whois(username);
-        if (peer == null) {
-            IO.println("Invalid user!");
+    /**
+     * @return A future completed with the user, or with {@code null} if there is no such user online.
+     * @see Client#whois(String)
+     */
+    public CompletableFuture<Peer> whoisAsync(String username) {
+        return async(() -> whois(username));
+    }
+
+    /**
+     * List the users whose username starts with a prefix, a page at a time.
+     * @param status Only list users who are online with this status, or {@code null} to list everyone.
+     * @param after The {@link UserDirectory.Page#next()} of the previous page, or {@code null} for the first page.
+     * @return The page, or {@code null} if the server refused the request.
+     */
+    public UserDirectory.Page directory(String prefix, Status status, String after) throws IOException {
+        var headers = new HashMap<String, String>();
+        headers.put("prefix", prefix);
+        if (status != null)
+            headers.put("status", status.toString());
+        if (after != null)
+            headers.put("after", after);
+        var response = makeServerRequest(new Packet(Method.DIRECTORY, headers));
+        if (response.method() != Method.SUCCESS)
             return null;
+        var users = new ArrayList<UserDirectory.Entry>();
+        for (var line: response.content().lines().toList()) {
+            var split = line.split(" ");
+            users.add(new UserDirectory.Entry(split[0], split.length > 1 ? Status.valueOf(split[1]) : null));
         }
-        if (peer.status() != Status.READY) {
-            IO.println("User is busy!");
-            // return null;
+        return new UserDirectory.Page(users, response.headers().get("next"));
+    }
+
+    /**
+     * @see Client#directory(String, Status, String)
+     */
+    public CompletableFuture<UserDirectory.Page> directoryAsync(String prefix, Status status, String after) {
+        return async(() -> directory(prefix, status, after));
+    }
+
+    /**
+     * @return Our contacts in alphabetical order, with their statuses as of when we last heard from the server.
+     * @see Client#syncContacts()
+     */
+    public synchronized List<Roster.Entry> contacts() {
+        return List.copyOf(contacts.values());
+    }
+
+    private synchronized long rosterVersion() {
+        return rosterVersion;
+    }
+
+    /**
+     * Drop our copy of the roster when somebody else logs in on this client.
+     */
+    private synchronized void forgetContacts(String username) {
+        if (!username.equals(this.username)) {
+            contacts.clear();
+            rosterVersion = 0;
+        }
+    }
+
+    /**
+     * Apply the changes to our roster listed in a response, see {@link Server#onRequestROSTER(Packet)}.
+     */
+    private synchronized void updateContacts(Packet response) {
+        var version = response.headers().get("version");
+        if (version == null)
+            return;
+        if (response.headers().containsKey("full"))
+            contacts.clear();
+        for (var line: response.content().lines().toList()) {
+            if (line.startsWith("-")) {
+                contacts.remove(line.substring(1));
+                continue;
+            }
+            var split = line.split(" ");
+            contacts.put(split[0], new Roster.Entry(split[0], split.length > 1 ? Status.valueOf(split[1]) : null));
         }
-        peerName = username;
-        setStatus(Status.CHATTING);
-        peerSocket = new Socket(peer.address(), peer.port());
-        incomingThread = new Thread(new IncomingPacketHandler(peerSocket));
-        incomingThread.start();
-        return peerSocket;
+        rosterVersion = Long.parseLong(version);
     }
 
-   public Error sendMessage(String message) throws IOException {
-        if (peerSocket == null)
-            return Error.MALFORMED_REQUEST;
-        var packet = new Packet(Method.MESSAGE, message);
-        Packet.sendPacket(peerSocket, packet);
-        var response = Packet.readPacket(peerSocket);
+    private Error updateRoster(String header, String contact) throws IOException {
+        var headers = new HashMap<>(Map.of(
+                "username", username,
+                "password", password,
+                "since", String.valueOf(rosterVersion())
+        ));
+        if (header != null)
+            headers.put(header, contact);
+        var response = makeServerRequest(new Packet(Method.ROSTER, headers));
+        if (response.method() == Method.SUCCESS)
+            updateContacts(response);
         return response.getError();
-   }
+    }
 
-    public synchronized void destroySession() throws IOException {
-        if (!peerSocket.isClosed()) {
-            Packet.sendPacket(peerSocket, new Packet(Method.GOODBYE));
-            peerSocket.close();
-        }
-        incomingThread = null;
-        peerSocket = null;
+    /**
+     * Add a user to our roster on the server, which keeps their status in {@link Client#contacts()} up to date from
+     * then on, in every client we log in on.
+     * @return {@link Error#NO_SUCH_USER} if there is no such user, or {@link Error#QUOTA_EXCEEDED} if we already have
+     * {@link Config#MAX_CONTACTS} contacts.
+     */
+    public Error addContact(String username) throws IOException {
+        return updateRoster("add", username);
+    }
+
+    /**
+     * @see Client#addContact(String)
+     */
+    public CompletableFuture<Error> addContactAsync(String username) {
+        return async(() -> addContact(username));
+    }
+
+    public Error removeContact(String username) throws IOException {
+        return updateRoster("remove", username);
+    }
+
+    /**
+     * @see Client#removeContact(String)
+     */
+    public CompletableFuture<Error> removeContactAsync(String username) {
+        return async(() -> removeContact(username));
+    }
+
+    /**
+     * Fetch whatever changed in our roster since we last heard of it, such as contacts coming online.
+     * The server sends only the changes, so this costs the same however many contacts we have.
+     */
+    public Error syncContacts() throws IOException {
+        return updateRoster(null, null);
+    }
+
+    /**
+     * @see Client#syncContacts()
+     */
+    public CompletableFuture<Error> syncContactsAsync() {
+        return async(this::syncContacts);
     }
 
-    public void runConsole() throws IOException {
+    /**
+     * Ask the server for a ticket to send heartbeats over datagrams, and start sending them.
+     * If the server does not offer one, we stay online until we log out, as without heartbeats.
+     */
+    private void startPresence() throws IOException {
+        stopPresence();
+        status = Status.READY;
+        var response = makeServerRequest(new Packet(Method.PRESENCE,
+                Map.of("username", username, "password", password)));
+        if (response.method() != Method.SUCCESS)
+            return;
         try {
-            BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
-
-            String line;
-            while ((line = stdin.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = line.trim().split("\\s+");
-                String cmd = parts[0].toLowerCase(Locale.ROOT);
-
-                switch (cmd) {
-                    case "/server": {
-                        serverIP = parts[1];
-                        serverPort = parts.length > 2 ? Integer.parseInt(parts[2]) : Config.SERVER_PORT;
-                    } break;
-                    case "/register": {
-                        String username = parts[1];
-                        String password = parts[2];
-                        register(username, password);
-                    } break;
-                    case "/login": {
-                        String username = parts[1];
-                        String password = parts[2];
-                        login(username, password);
-                    } break;
-                    case "/getstatus": {
-                        var peer = whois(parts[1]);
-                        System.out.printf("User %s: %s\n", peer.username(), peer.status());
-                    } break;
-                    case "/connect": {
-                        if (peerSocket != null && !peerSocket.isClosed()) {
-                            destroySession();
-                        }
-                        connectToPeer(parts[1]);
-                    } break;
-                    case "/disconnect": {
-                        if (peerSocket != null && !peerSocket.isClosed()) {
-                            destroySession();
-                        }
-                    } break;
-                    case "/sendfile": {
-                        sendFile(parts[1], parts[2]);
-                    } break;
-                    case "/quit": {
-                        close();
-                        System.out.println("Bye.");
-                    } return;
-                    default: sendMessage(line);
-                }
+            var ticket = new Presence.Ticket(
+                    Integer.parseInt(response.headers().get("id")),
+                    Base64.getDecoder().decode(response.headers().get("key")),
+                    Integer.parseInt(response.headers().get("port"))
+            );
+            synchronized (this) {
+                presence = Presence.Sender.start(transport.datagrams(0), serverIP, ticket, status);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // stay on TCP
         }
     }
 
-    public void sendFile(String path, String filename) {
-        String contents;
-        try (var reader = new BufferedReader(new FileReader(path))) {
-            contents = reader.readAllAsString();
-        } catch (FileNotFoundException ex) {
-            IO.println("File not found!");
-            return;
-        } catch (IOException ex) {
-            IO.println("An error has occurred!");
-            return;
+    private void stopPresence() throws IOException {
+        Presence.Sender presence;
+        synchronized (this) {
+            presence = this.presence;
+            this.presence = null;
         }
-        var request = new Packet(Method.FILE, Map.of(
-                "filename", filename
-        ), contents);
+        if (presence != null)
+            presence.close();
+    }
+
+    /**
+     * Change our status, and wait for the server to apply it.
+     * Our heartbeats carry the new status from then on.
+     */
+    public Error setStatus(Status status) throws IOException {
+        var headers = new HashMap<>(Map.of(
+                "username", username,
+                "password", password,
+                "status", status.toString()
+        ));
+        synchronized (this) {
+            this.status = status;
+            if (presence != null)
+                headers.put("presence", String.valueOf(presence.change(status)));
+        }
+        var response = makeServerRequest(new Packet(Method.STATUS, headers));
+        return response.getError();
+    }
+
+    /**
+     * @see Client#setStatus(Status)
+     */
+    public CompletableFuture<Error> setStatusAsync(Status status) {
+        return async(() -> setStatus(status));
+    }
+
+    /**
+     * Open a session with another user, or reuse the one we already have, and make it the active session.
+     * @return The session, or {@code null} if the user could not be found.
+     */
+    public PeerSession connectToPeer(String username) throws IOException {
+        var existing = sessions.get(username);
+        if (existing != null && !existing.isClosed()) {
+            activeSession = username;
+            return existing;
+        }
+        try (var _ = Trace.start("connect " + username)) {
+            var peer = whois(username);
+            if (peer == null)
+                return null;
+            if (peer.status() != Status.READY)
+                emit(new ClientEvent.Notice("User %s is busy!".formatted(username)));
+            setStatus(Status.CHATTING);
+            var session = sessionWith(peer);
+            activeSession = username;
+            return session;
+        }
+    }
+
+    /**
+     * @see Client#connectToPeer(String)
+     */
+    public CompletableFuture<PeerSession> connectToPeerAsync(String username) {
+        return async(() -> connectToPeer(username));
+    }
+
+    /**
+     * Get our session with a peer, opening one if there is none yet.
+     * Unlike {@link Client#connectToPeer(String)}, the active session and our status are left alone.
+     */
+    PeerSession sessionWith(Peer peer) throws IOException {
+        var existing = sessions.get(peer.username());
+        if (existing != null && !existing.isClosed())
+            return existing;
+        Socket connection;
+        try (var _ = Trace.child("dial " + peer.username())) {
+            connection = transport.connect(peer);
+        }
+        var session = new PeerSession(this, peer.username(), connection, true);
+        session.pin(peer.certificate());
+        var added = addSession(session);
+        if (added != session) {
+            // somebody else opened one in the meantime
+            session.close();
+            return added;
+        }
+        session.start();
+        if (this.username != null)
+            session.hello(this.username);
+        return session;
+    }
+
+    /**
+     * Send a chat message without waiting for it to be delivered.
+     * @return A future completed with the peer's response.
+     * @see MessageWindow#send(String)
+     */
+    public CompletableFuture<Error> sendMessage(String message) {
+        return sendMessage(session(), message);
+    }
+
+    /**
+     * Send a chat message to a particular session.
+     * @see Client#sendMessage(String)
+     */
+    public CompletableFuture<Error> sendMessage(PeerSession session, String message) {
+        if (session == null)
+            return CompletableFuture.completedFuture(Error.MALFORMED_REQUEST);
+        record(session.name(), username, message);
+        return session.messages().send(message);
+    }
+
+    /**
+     * Send a message to a user whether or not they are online, without changing the active session.
+     * If they are offline (or cannot be reached) the message is left on the server for them.
+     * @return {@link Error#OK} once the message is on its way, or why the server would not keep it.
+     */
+    public Error tell(String username, String message) throws IOException {
         try {
-            Packet.sendPacket(peerSocket, request);
-            var response = Packet.readPacket(peerSocket);
-            IO.println("File sent successfully!");
+            var session = sessions.get(username);
+            if (session == null || session.isClosed()) {
+                var peer = whois(username);
+                if (peer != null)
+                    session = sessionWith(peer);
+            }
+            if (session != null) {
+                sendMessage(session, message);
+                return Error.OK;
+            }
         } catch (IOException e) {
-            IO.println("Failed to send file! Network error.");
+            // fall back to the server
+        }
+        return leaveMessage(username, message);
+    }
+
+    /**
+     * @see Client#tell(String, String)
+     */
+    public CompletableFuture<Error> tellAsync(String username, String message) {
+        return async(() -> tell(username, message));
+    }
+
+    /**
+     * @return Our chat history, opened on first use, or {@code null} until we have a username.
+     */
+    public synchronized HistoryStore history() throws IOException {
+        if (history == null && username != null) {
+            var history = new HistoryStore(Path.of(Config.HISTORY_DIRECTORY, username));
+            var search = new SearchIndex(Path.of(Config.SEARCH_DIRECTORY, username));
+            // nothing can be appended before we return, so no message is missed or indexed twice
+            search.catchUp(history);
+            history.onWrite((conversation, entry) -> {
+                try {
+                    search.add(conversation, entry);
+                } catch (IOException e) {
+                    Log.warn("search.index.failed", "conversation", conversation, "error", e);
+                }
+            });
+            this.history = history;
+            this.search = search;
+        }
+        return history;
+    }
+
+    /**
+     * @return The search index over our chat history, or {@code null} until we have a username.
+     */
+    public synchronized SearchIndex search() throws IOException {
+        history();
+        return search;
+    }
+
+    /**
+     * Add a message to our chat history. Keeping history is best effort and never gets in the way of chatting.
+     * @param conversation The peer's username, or {@code #group} for a group chat.
+     */
+    void record(String conversation, String from, String text) {
+        try {
+            var history = history();
+            if (history != null)
+                history.append(conversation, from, text);
+        } catch (IOException | IllegalArgumentException e) {
+            // e.g. a session whose peer has not introduced itself yet
         }
     }
 
+    public void destroySession(PeerSession session) {
+        session.close();
+        removeSession(session);
+    }
+
+    public Error sendFile(String path, String filename) throws IOException {
+        return sendFile(session(), path, filename);
+    }
+
+    /**
+     * Send a file over a session, only sending the blocks the peer does not have already.
+     * @return {@link Error#OK} once the peer has the file, {@link Error#NO_SUCH_SESSION} if there is no session,
+     * or why the peer refused it.
+     * @throws NoSuchFileException if there is no file at the path.
+     */
+    public Error sendFile(PeerSession session, String path, String filename) throws IOException {
+        if (session == null)
+            return Error.NO_SUCH_SESSION;
+        var contents = Files.readAllBytes(Path.of(path));
+        var blockSize = Config.DELTA_BLOCK_SIZE;
+        var offer = new Packet(Method.FILE, Map.of(
+                "filename", filename,
+                "sync", "offer",
+                "length", String.valueOf(contents.length),
+                "blockSize", String.valueOf(blockSize),
+                "hash", DeltaSync.contentHash(contents)
+        ), DeltaSync.encodeSignature(DeltaSync.signature(contents, blockSize)));
+        try (var stream = session.open(Multiplexer.Priority.BULK)) {
+            stream.sendPacket(offer);
+            var response = stream.readPacket();
+            if (response.method() != Method.SUCCESS)
+                return response.getError();
+            if (!"all".equals(response.headers().get("have"))) {
+                var have = BitSet.valueOf(Base64.getDecoder().decode(response.content()));
+                var delta = new Packet(Method.FILE, Map.of(
+                        "filename", filename,
+                        "sync", "delta"
+                ), Base64.getEncoder().encodeToString(DeltaSync.missingBlocks(contents, blockSize, have)));
+                stream.sendPacket(delta);
+                response = stream.readPacket();
+                // the peer could not rebuild the file
+                if (response.method() != Method.SUCCESS)
+                    return response.getError();
+            }
+            return Error.OK;
+        }
+    }
+
+    public Error sendFileParallel(String path, String filename, int streams) throws IOException {
+        return sendFileParallel(session(), path, filename, streams);
+    }
+
+    /**
+     * Send a whole file over several connections of its own, negotiated on a session.
+     * @return {@link Error#OK} once the peer has the file, {@link Error#NO_SUCH_SESSION} if there is no session,
+     * or why the peer refused it.
+     * @throws NoSuchFileException if there is no file at the path.
+     */
+    public Error sendFileParallel(PeerSession session, String path, String filename, int streams)
+            throws IOException {
+        if (session == null)
+            return Error.NO_SUCH_SESSION;
+        var file = Path.of(path);
+        if (!Files.isRegularFile(file))
+            throw new NoSuchFileException(path);
+        try (var stream = session.open(Multiplexer.Priority.BULK)) {
+            var offer = new Packet(Method.FILE, Map.of(
+                    "filename", filename,
+                    "length", String.valueOf(Files.size(file)),
+                    "streams", String.valueOf(streams)
+            ));
+            stream.sendPacket(offer);
+            var response = stream.readPacket();
+            if (response.method() != Method.SUCCESS)
+                return response.getError();
+            FileTransfer.send(transport, session.address(), Integer.parseInt(response.headers().get("port")),
+                    session.certificate(), file, streams);
+            return Error.OK;
+        }
+    }
+
+    /**
+     * Send a file over a session, over as many connections as {@link FileTransfer#chooseStreams(long)} picks for
+     * its size.
+     * @see Client#sendFile(PeerSession, String, String)
+     * @see Client#sendFileParallel(PeerSession, String, String, int)
+     */
+    public CompletableFuture<Error> sendFileAsync(PeerSession session, String path, String filename) {
+        return sendFileAsync(session, path, filename, 0);
+    }
+
+    /**
+     * Send a file over a session.
+     * @param streams The number of connections to send it over, or 0 to choose from the size of the file.
+     * @see Client#sendFile(PeerSession, String, String)
+     * @see Client#sendFileParallel(PeerSession, String, String, int)
+     */
+    public CompletableFuture<Error> sendFileAsync(PeerSession session, String path, String filename, int streams) {
+        return async(() -> {
+            var count = streams > 0 ? streams : FileTransfer.chooseStreams(new File(path).length());
+            return count > 1
+                    ? sendFileParallel(session, path, filename, count)
+                    : sendFile(session, path, filename);
+        });
+    }
+
+    /**
+     * Stop listening for peers, end every session, stop reporting our status and close the history.
+     * The thread accepting peers has exited by the time this returns.
+     */
     public void close() {
-        try { if (peerSocket != null) peerSocket.close(); } catch (IOException ignored) {}
-        peerSocket = null;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.warn("client.close.failed", "port", port, "error", e);
+        }
+        for (var session: sessions.values())
+            session.close();
+        sessions.clear();
+        activeSession = null;
+        try {
+            stopPresence();
+        } catch (IOException e) {
+            Log.warn("presence.stop.failed", "error", e);
+        }
+        synchronized (this) {
+            if (history != null)
+                history.close();
+            history = null;
+            try {
+                if (search != null)
+                    search.close();
+            } catch (IOException e) {
+                Log.warn("search.close.failed", "error", e);
+            }
+            search = null;
+        }
+        events.close();
+        try {
+            serverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -5,6 +5,8 @@ import protocol.Error;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -12,26 +14,24 @@ import static org.junit.jupiter.api.Assertions.*;
 class ClientClientTest {
     static Client client;
     static Client peer;
+    static Server server;
     static Thread serverThread;
+    // the server port is shared with other tests, so each has a transport of its own
+    static final Transport transport = new MemoryTransport();
     static final int CLIENT_PORT = 1234;
     static final int PEER_PORT = 1235;
     static final String PEER_USERNAME = "bob";
+    static final int SESSIONS = 100;
 
     @BeforeAll
     static void setUp() throws IOException, InterruptedException {
-        serverThread = new Thread(() -> {
-            try {
-                var server = new Server(Config.SERVER_PORT);
-                server.listenLoop();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        server = new Server(Config.SERVER_PORT, transport);
+        serverThread = new Thread(server::listenLoop);
         serverThread.start();
         Thread.sleep(1000);
 
-        client = new Client(CLIENT_PORT, Config.SERVER_IP, Config.SERVER_PORT);
-        peer = new Client(PEER_PORT, Config.SERVER_IP, Config.SERVER_PORT);
+        client = Client.open(CLIENT_PORT, Config.SERVER_IP, Config.SERVER_PORT, transport);
+        peer = Client.open(PEER_PORT, Config.SERVER_IP, Config.SERVER_PORT, transport);
 
         peer.register("bob", "password123");
         peer.setStatus(Status.READY);
@@ -39,6 +39,14 @@ class ClientClientTest {
         client.register("alice", "hunter2");
     }
 
+    @AfterAll
+    static void tearDown() throws InterruptedException {
+        client.close();
+        peer.close();
+        server.close();
+        serverThread.join();
+    }
+
     @Test
     @Order(1)
     void testMessage() throws IOException {
@@ -51,4 +59,40 @@ class ClientClientTest {
         peer.sendMessage("Hi alice!");
         client.sendFile("src/messenger/Client.java", "/dev/null");
     }
+
+    @Test
+    @Order(2)
+    void testMessageBurst() {
+        var results = new ArrayList<CompletableFuture<Error>>();
+        for (var i = 0; i < 500; i++)
+            results.add(client.sendMessage("message " + i));
+        for (var result: results)
+            assertEquals(Error.OK, result.join());
+    }
+
+    @Test
+    @Order(3)
+    void testManySessions() throws IOException {
+        var callers = new ArrayList<Client>();
+        var results = new ArrayList<CompletableFuture<Error>>();
+        for (var i = 0; i < SESSIONS; i++) {
+            var caller = Client.open(PEER_PORT + 1 + i, Config.SERVER_IP, Config.SERVER_PORT, transport);
+            caller.register("caller" + i, "password");
+            assertNotNull(caller.connectToPeer(PEER_USERNAME));
+            results.add(caller.sendMessage("Hi from caller " + i));
+            callers.add(caller);
+        }
+        for (var result: results)
+            assertEquals(Error.OK, result.join());
+
+        // every caller has its own session, and the conversation with alice is still going
+        assertAll(
+                () -> assertTrue(peer.sessions.keySet().containsAll(
+                        callers.stream().map(caller -> caller.username).toList())),
+                () -> assertEquals("alice", peer.activeSession),
+                () -> assertEquals(Error.OK, peer.sendMessage("Still here, alice").join()),
+                () -> assertEquals(Error.OK, peer.sendMessage(peer.sessions.get("caller0"), "Hi caller0").join())
+        );
+        callers.forEach(Client::close);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package messenger;
+
+import java.nio.file.Path;
+
+/**
+ * Something that happened to a {@link Client} without it being asked, such as a message arriving.
+ * Events are published by {@link Client#events()}, in the order they happened.
+ */
+public sealed interface ClientEvent {
+    /**
+     * A chat message from a peer.
+     * @param from The peer's username, or its address if it has not introduced itself yet.
+     * @param offline Whether the message was left on the server while we were offline.
+     */
+    record Message(String from, String text, boolean offline) implements ClientEvent {}
+
+    /**
+     * A message to a group chat we are in, from any of its members.
+     */
+    record GroupMessage(String group, String from, String text) implements ClientEvent {}
+
+    /**
+     * A file a peer sent us, now complete on disk.
+     */
+    record FileReceived(String from, Path path) implements ClientEvent {}
+
+    /**
+     * Something worth telling the user that no call is waiting to hear about, such as a file that failed to
+     * download.
+     */
+    record Notice(String text) implements ClientEvent {}
+}
@@ -0,0 +1,123 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientEventsTest {
+    // the same ports as ServerTest and ClientTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final int CLIENT_PORT = 1234;
+
+    Transport transport;
+    Server server;
+    Client alice;
+    Client bob;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        transport = new MemoryTransport();
+        server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        alice = Client.open(CLIENT_PORT, Config.SERVER_IP, SERVER_PORT, transport);
+        bob = Client.open(CLIENT_PORT + 1, Config.SERVER_IP, SERVER_PORT, transport);
+        assertEquals(Error.OK, alice.registerAsync("events-alice", "password").join());
+        assertEquals(Error.OK, bob.registerAsync("events-bob", "password").join());
+    }
+
+    @AfterEach
+    void tearDown() {
+        alice.close();
+        bob.close();
+        server.close();
+    }
+
+    /**
+     * Requests events only when told to.
+     */
+    static class SlowSubscriber implements Flow.Subscriber<ClientEvent> {
+        final BlockingQueue<ClientEvent> received = new LinkedBlockingQueue<>();
+        final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.complete(subscription);
+        }
+
+        @Override
+        public void onNext(ClientEvent event) {
+            received.add(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {}
+
+        @Override
+        public void onComplete() {}
+    }
+
+    @Test
+    @DisplayName("A subscriber that falls behind holds up the peer, and misses nothing")
+    void backpressure() throws Exception {
+        var subscriber = new SlowSubscriber();
+        bob.events().subscribe(subscriber);
+        var subscription = subscriber.subscription.get(5, TimeUnit.SECONDS);
+        var session = alice.connectToPeerAsync("events-bob").get(5, TimeUnit.SECONDS);
+        assertNotNull(session);
+
+        var count = Config.CLIENT_EVENT_BUFFER + 4 * Config.MESSAGE_WINDOW;
+        var results = new ArrayList<CompletableFuture<Error>>();
+        for (var i = 0; i < count; i++)
+            results.add(alice.sendMessage(session, "message " + i));
+        Thread.sleep(500);
+        assertTrue(subscriber.received.isEmpty());
+        assertFalse(results.getLast().isDone(), "messages were delivered with nobody taking them");
+
+        subscription.request(Long.MAX_VALUE);
+        for (var result: results)
+            assertEquals(Error.OK, result.get(10, TimeUnit.SECONDS));
+        var texts = new ArrayList<String>();
+        while (texts.size() < count) {
+            var event = subscriber.received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event, "only %d messages arrived".formatted(texts.size()));
+            if (event instanceof ClientEvent.Message message)
+                texts.add(message.text());
+        }
+        for (var i = 0; i < count; i++)
+            assertEquals("message " + i, texts.get(i));
+    }
+
+    @Test
+    @DisplayName("Messages left while we were offline arrive as events once we log in")
+    void offlineMessages() throws Exception {
+        assertEquals(Error.OK, bob.logoutAsync().join());
+        assertEquals(Error.OK, alice.tellAsync("events-bob", "are you there?").join());
+
+        var events = new LinkedBlockingQueue<ClientEvent>();
+        bob.onEvent(events::add);
+        assertEquals(Error.OK, bob.loginAsync("events-bob", "password").get(5, TimeUnit.SECONDS));
+        assertEquals(new ClientEvent.Message("events-alice", "are you there?", true), events.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Failed calls complete their futures instead of throwing")
+    void failures() {
+        assertNull(alice.whoisAsync("nobody").join());
+        assertNull(alice.connectToPeerAsync("nobody").join());
+        assertEquals(Error.NO_SUCH_SESSION, alice.sendFileAsync(null, "README.md", "README.md").join());
+        var session = alice.connectToPeerAsync("events-bob").join();
+        var missing = alice.sendFileAsync(session, "no/such/file", "file");
+        var exception = assertThrows(CompletionException.class, missing::join);
+        assertInstanceOf(NoSuchFileException.class, exception.getCause());
+        assertEquals(List.of("events-bob"), List.copyOf(alice.sessions().keySet()));
+    }
+}
@@ -11,22 +11,26 @@ import static org.junit.jupiter.api.Assertions.*;
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 class ClientTest {
     static Client client;
+    static Server server;
     static Thread serverThread;
+    // the server port is shared with other tests, so each has a transport of its own
+    static final Transport transport = new MemoryTransport();
     static final int CLIENT_PORT = 1234;
 
     @BeforeAll
     static void setUp() throws IOException {
-        serverThread = new Thread(() -> {
-            try {
-                var server = new Server(Config.SERVER_PORT);
-                server.listenLoop();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        server = new Server(Config.SERVER_PORT, transport);
+        serverThread = new Thread(server::listenLoop);
         serverThread.start();
 
-        client = new Client(CLIENT_PORT, Config.SERVER_IP, Config.SERVER_PORT);
+        client = Client.open(CLIENT_PORT, Config.SERVER_IP, Config.SERVER_PORT, transport);
+    }
+
+    @AfterAll
+    static void tearDown() throws InterruptedException {
+        client.close();
+        server.close();
+        serverThread.join();
     }
 
     @Test
@@ -73,4 +77,27 @@ class ClientTest {
                 () -> assertEquals(Status.BUSY, client.whois("alice").status())
         );
     }
+
+    @Test
+    @Order(5)
+    void offlineMessages() throws IOException {
+        var bob = Client.open(CLIENT_PORT + 1, Config.SERVER_IP, Config.SERVER_PORT, transport);
+        try {
+            assertEquals(Error.OK, bob.register("bob", "password123"));
+            assertEquals(Error.OK, bob.logout());
+            assertNull(client.whois("bob"));
+            assertEquals(Error.OK, client.leaveMessage("bob", "are you there?"));
+            assertEquals(Error.OK, client.leaveMessage("bob", "call me"));
+            assertEquals(Error.NO_SUCH_USER, client.leaveMessage("nonexistantuser", "hi"));
+
+            var messages = bob.fetchOfflineMessages();
+            assertEquals(2, messages.size());
+            assertEquals("alice", messages.getFirst().headers().get("from"));
+            assertEquals("are you there?", messages.getFirst().content());
+            assertEquals("call me", messages.getLast().content());
+            assertTrue(bob.fetchOfflineMessages().isEmpty());
+        } finally {
+            bob.close();
+        }
+    }
 }
\ No newline at end of file
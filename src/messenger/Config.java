@@ -1,5 +1,7 @@
 package messenger; //package name for organizing classes in the messenger project
 
+import protocol.Multiplexer;
+
 //config class to store constant configuration values for server connection
 public class Config {
     //constant string for server ip address
@@ -9,4 +11,232 @@ public class Config {
     //constant integer for server port number
     //6789 is the port where the server listens for incoming client connections
     public static final int SERVER_PORT = 6789;
+
+    //whether connections to the server, between peers and for file transfers are encrypted with TLS
+    //every client and the server must agree on this
+    public static final boolean TLS = true;
+
+    //keystore holding the server's key pair, generated when the server first starts; it never leaves the server
+    //the server's certificate is written next to it; copy only that to every machine running a client
+    public static final String TLS_SERVER_KEYSTORE = "tls/server.p12";
+    public static final String TLS_SERVER_CERTIFICATE = "tls/server.crt";
+
+    //keystore holding the key pair clients on this machine present to their peers, generated on first use
+    public static final String TLS_CLIENT_KEYSTORE = "tls/client.p12";
+
+    //environment variable holding the password of the keystores
+    //if it is not set, each keystore gets a random password, kept next to it in a file only its owner can read
+    public static final String TLS_PASSWORD_VARIABLE = "MESSENGER_KEYSTORE_PASSWORD";
+
+    //how long a TLS session may be resumed after it was established, instead of starting over with a full handshake
+    public static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    //most connections that may wait to be accepted before new ones are refused
+    //a busy server falls this far behind when hundreds of clients connect at once
+    public static final int LISTEN_BACKLOG = 1024;
+
+    //how long connecting to the server, a peer or a file transfer may take before giving up
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    //how long the server waits for a connection to send its whole request, and a client for the response
+    //this bounds how long a client that connects and says nothing holds on to a connection
+    public static final long READ_TIMEOUT_MILLIS = 10_000;
+
+    //how long a single write to the server, a client or a peer may take before the connection is given up on
+    public static final long WRITE_TIMEOUT_MILLIS = 10_000;
+
+    //most bytes of content the server accepts in a request (1 MiB); larger ones are answered MALFORMED_REQUEST
+    public static final int MAX_REQUEST_CONTENT_LENGTH = 1 << 20;
+
+    //most connections the server serves at once; any more are answered SERVER_BUSY and closed straight away
+    public static final int MAX_SERVER_CONNECTIONS = 4096;
+
+    //a peer connection on which nothing arrives for this long is dropped, and redialled if we opened it
+    //quiet connections are pinged every third of this, so only peers that went away are dropped
+    public static final long IDLE_TIMEOUT_MILLIS = 60_000;
+
+    //what a peer session does once the peer has not read a full window of a stream for SLOW_PEER_TIMEOUT_MILLIS
+    //DROP refuses further packets on that stream, DISCONNECT drops the connection, and BLOCK waits forever
+    public static final Multiplexer.SlowConsumerPolicy SLOW_PEER_POLICY = Multiplexer.SlowConsumerPolicy.DISCONNECT;
+    public static final long SLOW_PEER_TIMEOUT_MILLIS = 30_000;
+
+    //bytes written to an in-memory connection and not read yet before further writes wait, as socket buffers would
+    public static final int MEMORY_PIPE_BYTES = 256 * 1024;
+
+    //whether connections to a server or peer on the same machine go over a Unix domain socket instead of TCP
+    //they skip TLS, since they never leave the machine and only processes of the same user can make them
+    public static final boolean LOCAL_SOCKETS = true;
+
+    //directory under which every process listening on this machine keeps a socket file named after its TCP port
+    public static final String LOCAL_SOCKET_DIRECTORY = System.getProperty("java.io.tmpdir");
+
+    //how often a client reports its status to the server over UDP, which also keeps it online
+    public static final long PRESENCE_INTERVAL_MILLIS = 1000;
+
+    //a client that reported its status over UDP and then went quiet for this long is logged out
+    public static final long PRESENCE_TIMEOUT_MILLIS = 10_000;
+
+    //most presence datagrams the server reads before applying them all at once
+    public static final int PRESENCE_BATCH = 1024;
+
+    //directory where files sent by peers are saved, under the name the sender gave them without any directories
+    public static final String DOWNLOAD_DIRECTORY = "downloads";
+
+    //number of parallel connections used to send a file
+    //0 means the number is chosen automatically from the size of the file
+    public static final int FILE_TRANSFER_STREAMS = 0;
+
+    //upper bound on the automatically chosen number of file transfer connections, and on those a peer may open
+    public static final int MAX_FILE_TRANSFER_STREAMS = 8;
+
+    //largest file a peer may send us (4 GiB); larger offers are answered MALFORMED_REQUEST
+    public static final long MAX_FILE_BYTES = 4L << 30;
+
+    //each automatically added connection should carry at least this many bytes (1 MiB)
+    public static final long FILE_TRANSFER_BYTES_PER_STREAM = 1 << 20;
+
+    //how long the receiver of a file waits for the sender to open all its connections before deleting the file
+    public static final long FILE_TRANSFER_ACCEPT_TIMEOUT_MILLIS = 30_000;
+
+    //number of file bytes carried by a single FILE chunk packet (48 KiB, 64 KiB once base64 encoded)
+    public static final int FILE_CHUNK_SIZE = 48 * 1024;
+
+    //size of the blocks compared when a file is sent again (4 KiB)
+    public static final int DELTA_BLOCK_SIZE = 4096;
+
+    //number of previously received files searched for blocks of a new file
+    public static final int DELTA_INDEX_FILES = 64;
+
+    //number of chat messages that may be sent before the first of them is acknowledged
+    public static final int MESSAGE_WINDOW = 64;
+
+    //a receiver acknowledges after this many messages even if more are already waiting to be read
+    public static final int MESSAGE_ACK_EVERY = 16;
+
+    //while a peer connection is busy, wait up to this long to batch more packets into a single write
+    //an idle connection always sends right away, so this adds no latency to a lone message
+    public static final long PEER_WRITE_LINGER_MICROS = 50;
+
+    //when a peer connection drops, the side that opened it redials this many times before giving up
+    //the first attempt is immediate, then the wait starts at RECONNECT_BACKOFF_MILLIS and doubles up to the maximum
+    public static final int RECONNECT_ATTEMPTS = 10;
+    public static final long RECONNECT_BACKOFF_MILLIS = 50;
+    public static final long RECONNECT_MAX_BACKOFF_MILLIS = 5000;
+
+    //how long a single redial may take to connect
+    public static final int RECONNECT_TIMEOUT_MILLIS = 2000;
+
+    //how long the side that accepted a dropped connection waits for the peer to redial
+    public static final long RESUME_TIMEOUT_MILLIS = 30_000;
+
+    //most chat messages queued per session while it waits to be resumed
+    public static final int RESUME_BUFFER = 1024;
+
+    //number of members each member passes a group chat message on to
+    //a group of n members takes about log(n) / log(GROUP_FANOUT) hops to reach everyone
+    public static final int GROUP_FANOUT = 4;
+
+    //how many times a member relaying a group message asks the server for the member list before giving up
+    //the wait between attempts starts at GROUP_LOOKUP_BACKOFF_MILLIS and doubles each time
+    public static final int GROUP_LOOKUP_ATTEMPTS = 5;
+    public static final long GROUP_LOOKUP_BACKOFF_MILLIS = 50;
+
+    //a member sends with the member list it last saw, refreshed when a relayed message carries a newer version
+    //or, for a member that hears from nobody, once it is this old
+    public static final long GROUP_MEMBERS_MAX_AGE_MILLIS = 10_000;
+
+    //directory where the server keeps messages for users who are offline, one subdirectory per user
+    public static final String OFFLINE_QUEUE_DIRECTORY = "offline";
+
+    //size at which the server starts a new segment file of a user's offline messages (8 MiB)
+    public static final long OFFLINE_SEGMENT_BYTES = 8 << 20;
+
+    //most bytes of offline messages the server keeps for a single user (64 MiB)
+    public static final long OFFLINE_QUOTA_BYTES = 64 << 20;
+
+    //offline messages nobody fetched are deleted after this many days
+    public static final int OFFLINE_RETENTION_DAYS = 30;
+
+    //how often the server looks for expired offline messages
+    public static final int OFFLINE_CLEANUP_MINUTES = 60;
+
+    //most offline messages (and bytes of them) handed out in response to a single FETCH
+    public static final int OFFLINE_FETCH_MESSAGES = 256;
+    public static final int OFFLINE_FETCH_BYTES = 1 << 20;
+
+    //users listed per DIRECTORY response, unless the client asks for fewer (or more, up to the maximum)
+    public static final int DIRECTORY_PAGE_SIZE = 50;
+    public static final int DIRECTORY_MAX_PAGE_SIZE = 1000;
+
+    //most contacts a user may keep in their roster on the server
+    public static final int MAX_CONTACTS = 1000;
+
+    //removed contacts the server remembers per roster, so clients that synced since then are only sent the changes
+    //a client that last synced before the oldest forgotten removal is sent the whole roster instead
+    public static final int ROSTER_REMOVED = 1000;
+
+    //key derivation function the server hashes passwords with, and the bytes of salt and hash it keeps per user
+    public static final String PASSWORD_ALGORITHM = "PBKDF2WithHmacSHA256";
+    public static final int PASSWORD_SALT_BYTES = 16;
+    public static final int PASSWORD_HASH_BYTES = 32;
+
+    //iterations of the key derivation function per hash; raising it rehashes each password when its user logs in
+    public static final int PASSWORD_ITERATIONS = 600_000;
+
+    //threads the server hashes passwords on, so logging in never takes every core from other requests
+    public static final int PASSWORD_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    //passwords waiting to be hashed before further requests that need one are answered SERVER_BUSY
+    public static final int PASSWORD_QUEUE = 16;
+
+    //directory where a client keeps its chat history, one subdirectory per user and conversation
+    public static final String HISTORY_DIRECTORY = "history";
+
+    //size at which a conversation's history starts a new segment file (4 MiB)
+    public static final long HISTORY_SEGMENT_BYTES = 4 << 20;
+
+    //every this many messages of a conversation are indexed by sequence number and timestamp
+    public static final int HISTORY_INDEX_INTERVAL = 64;
+
+    //directory where a client keeps the search index of its chat history, one subdirectory per user
+    public static final String SEARCH_DIRECTORY = "search";
+
+    //messages indexed in memory before they are written out as a new segment of the search index
+    public static final int SEARCH_FLUSH_DOCUMENTS = 16384;
+
+    //once this many of the newest search index segments are about the same size, they are merged into one
+    public static final int SEARCH_MERGE_FACTOR = 4;
+
+    //most results /search prints
+    public static final int SEARCH_RESULTS = 20;
+
+    //events a client buffers for each subscriber that is behind, before whatever publishes the next one waits
+    //a peer whose messages are not being handled is held up by its session's flow control in turn
+    public static final int CLIENT_EVENT_BUFFER = 256;
+
+    //fraction of /connects and server requests traced from hop to hop, from 0 to 1; /trace changes it while running
+    public static final double TRACE_SAMPLE_RATE = 0.01;
+
+    //latest spans of traced operations each process keeps for /trace to lay out
+    public static final int TRACE_BUFFER_SIZE = 4096;
+
+    //least severe log records that are written
+    //DEBUG logs every connection and request, INFO also the server starting, WARN and ERROR only what went wrong
+    public static final Log.Level LOG_LEVEL = Log.Level.INFO;
+
+    //file the server and clients log to, which is rotated once it grows past LOG_FILE_BYTES (16 MiB)
+    //LOG_FILES files are kept in all, the current one included
+    public static final String LOG_FILE = "logs/messenger.log";
+    public static final long LOG_FILE_BYTES = 16 << 20;
+    public static final int LOG_FILES = 5;
+
+    //log records waiting to be written before further ones are dropped, rather than holding up whoever logs them
+    //must be a power of two
+    public static final int LOG_BUFFER_SIZE = 8192;
+
+    //how often the log writer looks for new records once it has written all of them
+    public static final long LOG_FLUSH_MILLIS = 10;
+
+    //longest value of a log field written before it is cut short, e.g. a packet with a file chunk in it
+    public static final int LOG_VALUE_LENGTH = 1024;
 }
\ No newline at end of file
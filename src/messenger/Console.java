@@ -0,0 +1,339 @@
+package messenger;
+
+import commandline.Command;
+import commandline.CommandLineInterface;
+import commandline.Help;
+import protocol.Error;
+
+import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The text interface of a {@link Client}. Each line typed is either a command such as {@code /connect bob} or a
+ * chat message, and everything the client reports by itself arrives as a {@link ClientEvent} and is printed.
+ * Commands wait for the calls they make, so they take effect in the order they were typed.
+ */
+public class Console extends CommandLineInterface {
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private final Client client;
+    private boolean quit = false;
+
+    public Console(Client client) {
+        this.client = client;
+        client.onEvent(this::print);
+    }
+
+    public static void main(String[] args) throws IOException {
+        var client = Client.open(Integer.parseInt(args.length > 0 ? args[0] : String.valueOf(Config.SERVER_PORT)),
+                Config.SERVER_IP, Config.SERVER_PORT);
+        new Console(client).run(new BufferedReader(new InputStreamReader(System.in)));
+    }
+
+    /**
+     * Run commands and send chat messages, a line at a time, until the input ends or somebody types {@code /quit}.
+     */
+    public void run(BufferedReader input) throws IOException {
+        String line;
+        while (!quit && (line = input.readLine()) != null) {
+            if (line.isBlank())
+                continue;
+            try {
+                if (!runCommand(line))
+                    chat(line);
+            } catch (CompletionException | UncheckedIOException e) {
+                IO.println(e.getCause() instanceof NoSuchFileException ? "File not found!" : "An error has occurred!");
+            } catch (RuntimeException e) {
+                IO.println("Invalid command! Type /help for a list of commands.");
+            }
+        }
+    }
+
+    private void print(ClientEvent event) {
+        switch (event) {
+            case ClientEvent.Message message when message.offline() ->
+                    IO.println("(offline) %s>%s".formatted(message.from(), message.text()));
+            case ClientEvent.Message message -> IO.println(message.from() + ">" + message.text());
+            case ClientEvent.GroupMessage message ->
+                    IO.println("[%s] %s>%s".formatted(message.group(), message.from(), message.text()));
+            case ClientEvent.FileReceived file -> IO.println("Received file %s".formatted(file.path()));
+            case ClientEvent.Notice notice -> IO.println(notice.text());
+        }
+    }
+
+    /**
+     * Make a blocking call that has no asynchronous form, such as one to the chat history.
+     */
+    private static <T> T blocking(Call<T> call) {
+        try {
+            return call.call();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String[] words(String arguments) {
+        return arguments.isBlank() ? new String[0] : arguments.strip().split("\\s+");
+    }
+
+    /**
+     * Send a line that is not a command as a chat message: {@code #chess hello} goes to everyone in the group chess,
+     * {@code @bob hello} goes to bob without switching the active session, and anything else to the active session.
+     */
+    private void chat(String line) {
+        var split = line.strip().split("\\s+", 2);
+        if (line.startsWith("#") && split.length > 1) {
+            if (blocking(() -> client.groups().send(split[0].substring(1), split[1])) != Error.OK)
+                IO.println("No such group!");
+            return;
+        }
+        var session = client.session();
+        var message = line;
+        if (line.startsWith("@") && split.length > 1) {
+            session = client.sessions().get(split[0].substring(1));
+            message = split[1];
+        }
+        if (session == null) {
+            IO.println("Not connected to that user!");
+            return;
+        }
+        client.sendMessage(session, message).whenComplete((error, exception) -> {
+            if (exception != null || error != Error.OK)
+                IO.println("Message not delivered!");
+        });
+    }
+
+    @Command("/help")
+    @Help("/help: list the commands")
+    void help(String arguments) {
+        for (var text: new TreeMap<>(help()).values())
+            IO.println(text);
+    }
+
+    @Command("/server")
+    @Help("/server <address> [port]: send requests to another server")
+    void server(String arguments) {
+        var words = words(arguments);
+        client.setServer(words[0], words.length > 1 ? Integer.parseInt(words[1]) : Config.SERVER_PORT);
+    }
+
+    @Command("/register")
+    @Help("/register <username> <password>: create an account and log in")
+    void register(String arguments) {
+        var words = words(arguments);
+        var error = client.registerAsync(words[0], words[1]).join();
+        if (error != Error.OK)
+            IO.println("Could not register: %s".formatted(error));
+    }
+
+    @Command("/login")
+    @Help("/login <username> <password>: log in, and receive the messages left while you were away")
+    void login(String arguments) {
+        var words = words(arguments);
+        var error = client.loginAsync(words[0], words[1]).join();
+        if (error != Error.OK)
+            IO.println("Could not log in: %s".formatted(error));
+    }
+
+    @Command("/logout")
+    @Help("/logout: log out")
+    void logout(String arguments) {
+        client.logoutAsync().join();
+    }
+
+    @Command("/tell")
+    @Help("/tell <user> <message>: send a message, which waits on the server if the user is offline")
+    void tell(String arguments) {
+        var split = arguments.strip().split("\\s+", 2);
+        if (client.tellAsync(split[0], split.length > 1 ? split[1] : "").join() != Error.OK)
+            IO.println("Message not delivered!");
+    }
+
+    @Command("/history")
+    @Help("/history [user] [count]: show the latest messages of a conversation")
+    void history(String arguments) {
+        var words = words(arguments);
+        var conversation = words.length > 0 ? words[0] : client.activeSession();
+        var count = words.length > 1 ? Integer.parseInt(words[1]) : 20;
+        var history = blocking(client::history);
+        if (conversation == null || history == null) {
+            IO.println("No such conversation!");
+            return;
+        }
+        for (var entry: blocking(() -> history.last(conversation, count)))
+            IO.println("[%s] %s>%s".formatted(TIME_FORMAT.format(Instant.ofEpochMilli(entry.timestamp())),
+                    entry.from(), entry.text()));
+    }
+
+    @Command("/search")
+    @Help("/search <query>: search every conversation, e.g. /search hi from:bob")
+    void search(String arguments) {
+        var search = blocking(client::search);
+        if (arguments.isBlank() || search == null) {
+            IO.println("Nothing to search!");
+            return;
+        }
+        var history = blocking(client::history);
+        // let the history writer index the newest messages first
+        blocking(() -> {
+            history.flush();
+            return null;
+        });
+        var hits = blocking(() -> search.search(arguments.strip(), Config.SEARCH_RESULTS));
+        if (hits.isEmpty())
+            IO.println("No messages found.");
+        for (var hit: hits) {
+            var entry = blocking(() -> history.get(hit.conversation(), hit.seq()));
+            if (entry != null)
+                IO.println("[%s] %s: %s>%s".formatted(TIME_FORMAT.format(Instant.ofEpochMilli(entry.timestamp())),
+                        hit.conversation(), entry.from(), entry.text()));
+        }
+    }
+
+    @Command("/users")
+    @Help("/users [prefix] [status]: list the users whose names start with a prefix")
+    void users(String arguments) {
+        var words = words(arguments);
+        var prefix = words.length > 0 ? words[0] : "";
+        var status = words.length > 1 ? Status.valueOf(words[1].toUpperCase(Locale.ROOT)) : null;
+        String after = null;
+        do {
+            var page = client.directoryAsync(prefix, status, after).join();
+            if (page == null)
+                break;
+            for (var user: page.users())
+                IO.println(user.status() == null ? user.username() : "%s %s".formatted(user.username(), user.status()));
+            after = page.next();
+        } while (after != null);
+    }
+
+    @Command("/getstatus")
+    @Help("/getstatus <user>: show a user's status")
+    void getStatus(String arguments) {
+        var peer = client.whoisAsync(words(arguments)[0]).join();
+        if (peer == null)
+            IO.println("Invalid user!");
+        else
+            IO.println("User %s: %s".formatted(peer.username(), peer.status()));
+    }
+
+    @Command("/contacts")
+    @Help("/contacts: list your contacts and their statuses")
+    void contacts(String arguments) {
+        if (client.syncContactsAsync().join() != Error.OK)
+            IO.println("Could not update your contacts, showing them as they were.");
+        for (var contact: client.contacts())
+            IO.println(contact.status() == null ? contact.username()
+                    : "%s %s".formatted(contact.username(), contact.status()));
+    }
+
+    @Command("/add")
+    @Help("/add <user>: add a user to your contacts")
+    void addContact(String arguments) {
+        var error = client.addContactAsync(words(arguments)[0]).join();
+        if (error != Error.OK)
+            IO.println("Could not add contact: %s".formatted(error));
+    }
+
+    @Command("/remove")
+    @Help("/remove <user>: remove a user from your contacts")
+    void removeContact(String arguments) {
+        client.removeContactAsync(words(arguments)[0]).join();
+    }
+
+    @Command("/connect")
+    @Help("/connect <user>: start chatting with a user")
+    void connect(String arguments) {
+        if (client.connectToPeerAsync(words(arguments)[0]).join() == null)
+            IO.println("Invalid user!");
+    }
+
+    @Command("/disconnect")
+    @Help("/disconnect [user]: end a session, by default the active one")
+    void disconnect(String arguments) {
+        var words = words(arguments);
+        var session = words.length > 0 ? client.sessions().get(words[0]) : client.session();
+        if (session != null)
+            client.destroySession(session);
+    }
+
+    @Command("/switch")
+    @Help("/switch <user>: send messages to another session")
+    void switchSession(String arguments) {
+        if (!client.switchSession(words(arguments)[0]))
+            IO.println("No session with that user!");
+    }
+
+    @Command("/sessions")
+    @Help("/sessions: list the sessions, marking the active one")
+    void sessions(String arguments) {
+        var active = client.activeSession();
+        for (var name: client.sessions().keySet())
+            IO.println((name.equals(active) ? "* " : "  ") + name);
+    }
+
+    @Command("/join")
+    @Help("/join <group>: join a group chat, creating it if needed")
+    void join(String arguments) {
+        if (blocking(() -> client.groups().join(words(arguments)[0])) != Error.OK)
+            IO.println("Could not join group!");
+    }
+
+    @Command("/leave")
+    @Help("/leave <group>: leave a group chat")
+    void leave(String arguments) {
+        if (blocking(() -> client.groups().leave(words(arguments)[0])) != Error.OK)
+            IO.println("Could not leave group!");
+    }
+
+    @Command("/members")
+    @Help("/members <group>: list the members of a group chat")
+    void members(String arguments) {
+        var membership = blocking(() -> client.groups().members(words(arguments)[0]));
+        if (membership == null)
+            IO.println("No such group!");
+        else
+            IO.println(String.join(", ", membership.usernames()));
+    }
+
+    @Command("/sendfile")
+    @Help("/sendfile <path> <name> [connections]: send a file to the active session")
+    void sendFile(String arguments) {
+        var words = words(arguments);
+        var streams = words.length > 2 ? Integer.parseInt(words[2]) : 0;
+        var error = client.sendFileAsync(client.session(), words[0], words[1], streams).join();
+        IO.println(switch (error) {
+            case OK -> "File sent successfully!";
+            case NO_SUCH_SESSION -> "Not connected to a peer!";
+            default -> "Peer refused the file!";
+        });
+    }
+
+    @Command("/trace")
+    @Help("/trace [rate]: show the latest traces, or trace this fraction of operations from now on")
+    void trace(String arguments) {
+        if (!arguments.isBlank())
+            Trace.setSampleRate(Double.parseDouble(arguments.strip()));
+        else
+            IO.print(Trace.timeline());
+    }
+
+    @Command("/quit")
+    @Help("/quit: end every session and exit")
+    void quit(String arguments) {
+        client.close();
+        IO.println("Bye.");
+        quit = true;
+    }
+}
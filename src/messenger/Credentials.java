@@ -0,0 +1,186 @@
+package messenger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The password of every account, kept as a salted hash, and the threads that check passwords against the hashes.
+ * <p>Hashes are made with {@link Config#PASSWORD_ALGORITHM}, which is slow on purpose so that stolen hashes are
+ * expensive to guess passwords from: a single hash takes tens to hundreds of milliseconds. So that the server never
+ * waits for one with its lock held, hashing is done on {@link Config#PASSWORD_THREADS} threads of its own, with at
+ * most {@link Config#PASSWORD_QUEUE} passwords waiting for them. Any more are refused with a
+ * {@link RejectedExecutionException}, so a burst of logins can take no more than those threads from everything
+ * else, and never leaves anyone waiting longer than the queue takes to drain.</p>
+ * <p>Once a user's password has been checked, a keyed SHA-256 digest of it is remembered until they log out, and
+ * the requests they make in the meantime, such as {@code STATUS}, are checked against that in microseconds on the
+ * caller's thread. Logging in always checks the hash itself, and hashes the password again if the hash is weaker
+ * than the one {@link Credentials#iterations()} would make now, so raising the iterations upgrades each account
+ * the next time its user logs in.</p>
+ */
+public class Credentials {
+    /**
+     * A password as it is stored.
+     * @param iterations How many iterations of the algorithm it took to make.
+     */
+    public record Hash(String algorithm, int iterations, byte[] salt, byte[] hash) {}
+
+    // set up on first use, which takes long enough to hold up a server that is about to start listening
+    private static class Random {
+        static final SecureRandom random = new SecureRandom();
+    }
+
+    private final Map<String, Hash> hashes = new ConcurrentHashMap<>();
+    // keyed digests of the passwords that were checked since their users logged in
+    private final Map<String, byte[]> verified = new ConcurrentHashMap<>();
+    private SecretKeySpec key;
+    private final ThreadPoolExecutor pool;
+    private volatile int iterations = Config.PASSWORD_ITERATIONS;
+
+    public Credentials() {
+        this(Config.PASSWORD_THREADS, Config.PASSWORD_QUEUE);
+    }
+
+    /**
+     * @param threads How many passwords may be hashed at once.
+     * @param queue How many passwords may wait to be hashed, at least 1.
+     */
+    public Credentials(int threads, int queue) {
+        var count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), task -> {
+                    var thread = new Thread(task, "password-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public int iterations() {
+        return iterations;
+    }
+
+    /**
+     * Hash new passwords, and those of users as they log in, with this many iterations from now on.
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public boolean exists(String username) {
+        return hashes.containsKey(username);
+    }
+
+    Hash get(String username) {
+        return hashes.get(username);
+    }
+
+    /**
+     * Hash a password with a salt of its own, on the hashing threads.
+     * @throws RejectedExecutionException if {@link Config#PASSWORD_QUEUE} passwords are already waiting.
+     */
+    public CompletableFuture<Hash> hash(String password) {
+        return CompletableFuture.supplyAsync(() -> newHash(password), pool);
+    }
+
+    /**
+     * Create an account with a password hashed by {@link Credentials#hash(String)}, and log its user in.
+     * @return Whether the account is new.
+     */
+    public boolean add(String username, String password, Hash hash) {
+        if (hashes.putIfAbsent(username, hash) != null)
+            return false;
+        verified.put(username, digest(username, password));
+        return true;
+    }
+
+    /**
+     * Check a user's password.
+     * @param login Whether the user is logging in, which checks the password against its hash even if it was
+     *              checked since they last logged in, and upgrades the hash if it is weak.
+     * @return A future completed with whether the password is right, straight away unless the hash is checked.
+     * @throws RejectedExecutionException if the hash has to be checked and {@link Config#PASSWORD_QUEUE} passwords
+     * are already waiting.
+     */
+    public CompletableFuture<Boolean> verify(String username, String password, boolean login) {
+        var stored = hashes.get(username);
+        if (stored == null)
+            return CompletableFuture.completedFuture(false);
+        var digest = digest(username, password);
+        var known = verified.get(username);
+        if (!login && known != null && MessageDigest.isEqual(known, digest))
+            return CompletableFuture.completedFuture(true);
+        return CompletableFuture.supplyAsync(() -> check(username, password, stored, digest), pool);
+    }
+
+    /**
+     * Forget that a user's password was checked, once they log out.
+     */
+    public void forget(String username) {
+        verified.remove(username);
+    }
+
+    /**
+     * Stop the hashing threads once the passwords already waiting are hashed.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    private boolean check(String username, String password, Hash stored, byte[] digest) {
+        if (!MessageDigest.isEqual(stored.hash(), derive(stored.algorithm(), password, stored.salt(),
+                stored.iterations())))
+            return false;
+        verified.put(username, digest);
+        if (!stored.algorithm().equals(Config.PASSWORD_ALGORITHM) || stored.iterations() < iterations)
+            hashes.replace(username, stored, newHash(password));
+        return true;
+    }
+
+    private Hash newHash(String password) {
+        var salt = new byte[Config.PASSWORD_SALT_BYTES];
+        Random.random.nextBytes(salt);
+        var iterations = this.iterations;
+        return new Hash(Config.PASSWORD_ALGORITHM, iterations, salt,
+                derive(Config.PASSWORD_ALGORITHM, password, salt, iterations));
+    }
+
+    private static byte[] derive(String algorithm, String password, byte[] salt, int iterations) {
+        var spec = new PBEKeySpec(password.toCharArray(), salt, iterations, Config.PASSWORD_HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot hash passwords with " + algorithm, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private synchronized SecretKeySpec key() {
+        if (key == null) {
+            var bytes = new byte[32];
+            Random.random.nextBytes(bytes);
+            key = new SecretKeySpec(bytes, "HmacSHA256");
+        }
+        return key;
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(key());
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+import protocol.PacketMalformedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CredentialsTest {
+    // the same port as ServerTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    private Server server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null)
+            server.close();
+    }
+
+    static Credentials credentials(int iterations) {
+        var credentials = new Credentials();
+        credentials.setIterations(iterations);
+        return credentials;
+    }
+
+    @Test
+    @DisplayName("Passwords are kept salted and hashed, and only the right one is accepted")
+    void hashes() {
+        var credentials = credentials(1000);
+        assertTrue(credentials.add("alice", "hunter2", credentials.hash("hunter2").join()));
+        assertTrue(credentials.add("bob", "hunter2", credentials.hash("hunter2").join()));
+        assertFalse(credentials.add("alice", "other", credentials.hash("other").join()));
+
+        var alice = credentials.get("alice");
+        var bob = credentials.get("bob");
+        assertEquals(Config.PASSWORD_ALGORITHM, alice.algorithm());
+        assertEquals(1000, alice.iterations());
+        assertEquals(Config.PASSWORD_HASH_BYTES, alice.hash().length);
+        assertFalse(Arrays.equals(alice.salt(), bob.salt()));
+        assertFalse(Arrays.equals(alice.hash(), bob.hash()));
+
+        assertTrue(credentials.verify("alice", "hunter2", true).join());
+        assertFalse(credentials.verify("alice", "hunter3", true).join());
+        assertFalse(credentials.verify("alice", "hunter3", false).join());
+        assertFalse(credentials.verify("carol", "hunter2", true).join());
+        assertFalse(credentials.exists("carol"));
+    }
+
+    @Test
+    @DisplayName("A password checked since its user logged in is checked without hashing it")
+    void verified() {
+        var credentials = credentials(1000);
+        credentials.add("alice", "hunter2", credentials.hash("hunter2").join());
+        assertTrue(credentials.verify("alice", "hunter2", false).isDone());
+        // logging in always checks the hash
+        assertTrue(credentials.verify("alice", "hunter2", true).join());
+
+        credentials.forget("alice");
+        assertTrue(credentials.verify("alice", "hunter2", false).join());
+        assertTrue(credentials.verify("alice", "hunter2", false).isDone());
+    }
+
+    @Test
+    @DisplayName("Logging in rehashes a password hashed with fewer iterations than configured")
+    void upgrade() {
+        var credentials = credentials(1000);
+        credentials.add("alice", "hunter2", credentials.hash("hunter2").join());
+        var weak = credentials.get("alice");
+
+        credentials.setIterations(2000);
+        assertFalse(credentials.verify("alice", "wrong", true).join());
+        assertTrue(credentials.verify("alice", "hunter2", false).join());
+        assertSame(weak, credentials.get("alice"));
+
+        assertTrue(credentials.verify("alice", "hunter2", true).join());
+        var strong = credentials.get("alice");
+        assertEquals(2000, strong.iterations());
+        assertFalse(Arrays.equals(weak.salt(), strong.salt()));
+        assertTrue(credentials.verify("alice", "hunter2", true).join());
+        assertFalse(credentials.verify("alice", "hunter3", true).join());
+        assertSame(strong, credentials.get("alice"));
+    }
+
+    static Packet request(Transport transport, Packet request) throws IOException {
+        try (var socket = transport.connect(Config.SERVER_IP, SERVER_PORT)) {
+            Packet.sendPacket(socket, request);
+            return Packet.readPacket(socket);
+        } catch (PacketMalformedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Test
+    @DisplayName("A burst of logins is turned away once the hashing queue is full, and holds up no other requests")
+    void burst() throws Exception {
+        var transport = new MemoryTransport();
+        server = new Server(SERVER_PORT, transport);
+        server.credentials().setIterations(200_000);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        var login = new Packet(Method.LOGIN, Map.of("username", "burst-alice", "password", "hunter2",
+                "listenPort", "1"));
+        var whois = new Packet(Method.WHOIS, Map.of("username", "burst-alice"));
+        assertEquals(Error.OK, request(transport, new Packet(Method.REGISTER, Map.of("username", "burst-alice",
+                "password", "hunter2", "listenPort", "1"))).getError());
+        var start = System.nanoTime();
+        assertEquals(Error.OK, request(transport, login).getError());
+        var hashNanos = System.nanoTime() - start;
+
+        var logins = Config.PASSWORD_THREADS + Config.PASSWORD_QUEUE + 16;
+        var errors = new ConcurrentHashMap<Error, AtomicInteger>();
+        var go = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        for (var i = 0; i < logins; i++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    go.await();
+                    var error = request(transport, login).getError();
+                    errors.computeIfAbsent(error, _ -> new AtomicInteger()).incrementAndGet();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        go.countDown();
+        var slowest = 0L;
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            start = System.nanoTime();
+            assertEquals(Error.OK, request(transport, whois).getError());
+            slowest = Math.max(slowest, System.nanoTime() - start);
+        }
+        for (var thread: threads)
+            thread.join();
+        assertEquals(Set.of(Error.OK, Error.SERVER_BUSY), errors.keySet());
+        assertEquals(logins, errors.get(Error.OK).get() + errors.get(Error.SERVER_BUSY).get());
+        assertTrue(slowest < hashNanos, "WHOIS waited for a password to be hashed");
+    }
+}
@@ -0,0 +1,34 @@
+package messenger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A port small messages are sent from and received on one at a time, without a connection, such as
+ * {@link Presence} heartbeats. Like UDP, a datagram may be lost on the way, and nobody is told.
+ * Each {@link Transport} decides how datagrams travel; see {@link Transport#datagrams(int)}.
+ */
+public interface Datagrams extends Closeable {
+    /**
+     * @return The port datagrams are received on.
+     */
+    int port();
+
+    /**
+     * Send a datagram to whoever receives on an address, if anybody does.
+     * @param datagram Sent from its position to its limit.
+     */
+    void send(ByteBuffer datagram, InetSocketAddress address) throws IOException;
+
+    /**
+     * Receive the next datagram, waiting for one to arrive if there is none yet.
+     * A datagram longer than the room left in the buffer is cut short.
+     * @param timeoutMillis How long to wait, or 0 to only take one that has already arrived.
+     * @return Whether a datagram was received, in which case the buffer's position is moved past it.
+     */
+    boolean receive(ByteBuffer buffer, long timeoutMillis) throws IOException;
+
+    boolean isOpen();
+}
@@ -0,0 +1,329 @@
+package messenger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Deduplication of repeated file sends, in the style of rsync.
+ * Before sending a file, the sender offers its content hash and a signature of every block:
+ * <pre>
+ *     FILE\n
+ *     contentLength: ...\n
+ *     filename: notes.txt\n
+ *     sync: offer\n
+ *     length: 10000\n
+ *     blockSize: 4096\n
+ *     hash: (SHA-256 of the whole file)\n
+ *     \n
+ *     0badc0de (strong hash of block 0)\n
+ *     ...
+ * </pre>
+ * The receiver searches the files it has received before for blocks with the same rolling checksum
+ * (at any offset, not only at block boundaries) and confirms each candidate with the strong hash.
+ * It answers with a bitmap of the blocks it already has, or a {@code have: all} header if it already has the
+ * whole file. The sender then sends only the missing blocks in a {@code sync: delta} packet.
+ * <p>Only full-size blocks are ever matched, so a short final block is always sent.</p>
+ */
+public class DeltaSync {
+    /**
+     * The signature of a single block.
+     * @param weak The rolling checksum of the block.
+     * @param strong The (truncated) SHA-256 hash of the block.
+     * @param length The length of the block. Only the last block may be shorter than the block size.
+     */
+    public record Block(int weak, String strong, int length) {}
+
+    /**
+     * A block the receiver already has a copy of.
+     * @param path The previously received file containing the block.
+     * @param offset The position of the block within that file.
+     */
+    public record Source(Path path, int offset) {}
+
+    /**
+     * The rsync rolling checksum over a fixed-size window.
+     * Sliding the window one byte forward is O(1), so every offset of a file can be checked cheaply.
+     */
+    public static class RollingChecksum {
+        private final int length;
+        private int a = 0;
+        private int b = 0;
+
+        public RollingChecksum(byte[] data, int offset, int length) {
+            this.length = length;
+            for (var i = 0; i < length; i++) {
+                var value = data[offset + i] & 0xff;
+                a += value;
+                b += (length - i) * value;
+            }
+        }
+
+        /**
+         * Slide the window forward by one byte.
+         * @param out The byte leaving the window.
+         * @param in The byte entering the window.
+         */
+        public void roll(byte out, byte in) {
+            a += (in & 0xff) - (out & 0xff);
+            b += a - length * (out & 0xff);
+        }
+
+        public int value() {
+            return (a & 0xffff) | (b << 16);
+        }
+    }
+
+    public static String contentHash(byte[] data) {
+        return HexFormat.of().formatHex(sha256().digest(data));
+    }
+
+    public static String strongHash(byte[] data, int offset, int length) {
+        var digest = sha256();
+        digest.update(data, offset, length);
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Compute the signature of every block of a file.
+     */
+    public static List<Block> signature(byte[] data, int blockSize) {
+        var blocks = new ArrayList<Block>();
+        for (var offset = 0; offset < data.length; offset += blockSize) {
+            var length = Math.min(blockSize, data.length - offset);
+            blocks.add(new Block(
+                    new RollingChecksum(data, offset, length).value(),
+                    strongHash(data, offset, length),
+                    length
+            ));
+        }
+        return blocks;
+    }
+
+    /**
+     * Serialize a signature as one {@code weak strong} line per block, for the body of an offer packet.
+     */
+    public static String encodeSignature(List<Block> blocks) {
+        var builder = new StringBuilder();
+        for (var block: blocks)
+            builder.append("%08x %s\n".formatted(block.weak(), block.strong()));
+        return builder.toString();
+    }
+
+    /**
+     * Parse the body of an offer packet.
+     * @param length The length of the whole file, needed to recover the length of the last block.
+     */
+    public static List<Block> decodeSignature(String encoded, long length, int blockSize) {
+        var blocks = new ArrayList<Block>();
+        var lines = encoded.lines().toList();
+        if (lines.size() != blockCount(length, blockSize))
+            throw new IllegalArgumentException("Signature has %d blocks, expected %d."
+                    .formatted(lines.size(), blockCount(length, blockSize)));
+        for (var i = 0; i < lines.size(); i++) {
+            var split = lines.get(i).split(" ", 2);
+            blocks.add(new Block(Integer.parseUnsignedInt(split[0], 16), split[1],
+                    (int) Math.min(blockSize, length - (long) i * blockSize)));
+        }
+        return blocks;
+    }
+
+    /**
+     * Collect the blocks the receiver does not have, in order.
+     * @param have The blocks the receiver already has.
+     */
+    public static byte[] missingBlocks(byte[] data, int blockSize, BitSet have) {
+        var output = new ByteArrayOutputStream();
+        var blocks = blockCount(data.length, blockSize);
+        for (var i = 0; i < blocks; i++) {
+            if (have.get(i))
+                continue;
+            var offset = i * blockSize;
+            output.write(data, offset, Math.min(blockSize, data.length - offset));
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Rebuild a file from the blocks the receiver already has and the delta sent for the rest, writing it block
+     * by block, so that no more than a block of it is ever held in memory.
+     * @param target The file to write. It is replaced if it exists, and left half-written if this throws.
+     * @param sources The source of every block the receiver has, {@code null} for the missing ones.
+     * @param delta The missing blocks, in order.
+     * @return The {@link #contentHash(byte[])} of the file written.
+     * @throws IOException if a source file can no longer be read or the delta has the wrong size.
+     */
+    public static String assemble(Path target, long length, int blockSize, Source[] sources, byte[] delta)
+            throws IOException {
+        var digest = sha256();
+        var files = new HashMap<Path, FileChannel>();
+        var block = ByteBuffer.allocate(blockSize);
+        var deltaOffset = 0;
+        try (var output = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (var i = 0; i < sources.length; i++) {
+                var size = (int) Math.min(blockSize, length - (long) i * blockSize);
+                var source = sources[i];
+                block.clear().limit(size);
+                if (source != null) {
+                    var file = files.get(source.path());
+                    if (file == null) {
+                        file = FileChannel.open(source.path(), StandardOpenOption.READ);
+                        files.put(source.path(), file);
+                    }
+                    while (block.hasRemaining()) {
+                        if (file.read(block, source.offset() + block.position()) < 0)
+                            throw new IOException("File %s changed since it was indexed.".formatted(source.path()));
+                    }
+                } else {
+                    if (deltaOffset + size > delta.length)
+                        throw new IOException("Delta is shorter than the missing blocks.");
+                    block.put(delta, deltaOffset, size);
+                    deltaOffset += size;
+                }
+                block.flip();
+                digest.update(block.duplicate());
+                while (block.hasRemaining())
+                    output.write(block);
+            }
+        } finally {
+            for (var file: files.values())
+                file.close();
+        }
+        if (deltaOffset != delta.length)
+            throw new IOException("Delta is longer than the missing blocks.");
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * The files this client has received, most recent first.
+     * Only the paths and content hashes are kept in memory, the files themselves are read again when searched.
+     */
+    public static class Index {
+        private final LinkedHashMap<Path, String> files = new LinkedHashMap<>();
+
+        /**
+         * Remember a received file, forgetting the oldest one if the index is full.
+         */
+        public synchronized void add(Path path) {
+            if (!Files.isRegularFile(path))
+                return;
+            String hash;
+            try {
+                hash = contentHash(Files.readAllBytes(path));
+            } catch (IOException e) {
+                return;
+            }
+            var key = path.toAbsolutePath().normalize();
+            files.remove(key);
+            files.put(key, hash);
+            if (files.size() > Config.DELTA_INDEX_FILES)
+                files.remove(files.keySet().iterator().next());
+        }
+
+        private synchronized List<Path> mostRecentFirst() {
+            return files.keySet().stream().toList().reversed();
+        }
+
+        /**
+         * Find a received file with exactly this content.
+         * @return The path of the file, or {@code null} if there is none (or it changed since it was indexed).
+         */
+        public Path find(String hash) {
+            List<Path> candidates;
+            synchronized (this) {
+                candidates = files.entrySet().stream()
+                        .filter(entry -> entry.getValue().equals(hash))
+                        .map(Map.Entry::getKey)
+                        .toList();
+            }
+            for (var path: candidates) {
+                try {
+                    if (contentHash(Files.readAllBytes(path)).equals(hash))
+                        return path;
+                } catch (IOException ignored) {}
+            }
+            return null;
+        }
+
+        /**
+         * Search the received files for the blocks of a signature.
+         * Every offset of every file is checked with the rolling checksum, so blocks that moved because of
+         * an insertion or a deletion are still found.
+         * @return The source of every block that was found, {@code null} for the others.
+         */
+        public Source[] match(List<Block> blocks, int blockSize) {
+            var sources = new Source[blocks.size()];
+            var wanted = new HashMap<Integer, List<Integer>>();
+            for (var i = 0; i < blocks.size(); i++) {
+                if (blocks.get(i).length() == blockSize)
+                    wanted.computeIfAbsent(blocks.get(i).weak(), _ -> new ArrayList<>()).add(i);
+            }
+
+            for (var path: mostRecentFirst()) {
+                if (wanted.isEmpty())
+                    break;
+                byte[] data;
+                try {
+                    data = Files.readAllBytes(path);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (data.length < blockSize)
+                    continue;
+
+                var offset = 0;
+                var rolling = new RollingChecksum(data, offset, blockSize);
+                while (true) {
+                    var matched = false;
+                    var candidates = wanted.get(rolling.value());
+                    if (candidates != null) {
+                        var strong = strongHash(data, offset, blockSize);
+                        for (var iterator = candidates.iterator(); iterator.hasNext(); ) {
+                            var block = iterator.next();
+                            if (blocks.get(block).strong().equals(strong)) {
+                                sources[block] = new Source(path, offset);
+                                iterator.remove();
+                                matched = true;
+                            }
+                        }
+                        if (candidates.isEmpty())
+                            wanted.remove(rolling.value());
+                    }
+
+                    if (matched) {
+                        offset += blockSize;
+                        if (offset + blockSize > data.length)
+                            break;
+                        rolling = new RollingChecksum(data, offset, blockSize);
+                    } else {
+                        if (offset + blockSize >= data.length)
+                            break;
+                        rolling.roll(data[offset], data[offset + blockSize]);
+                        offset++;
+                    }
+                }
+            }
+            return sources;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+    static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    static byte[] randomBytes(int length, long seed) {
+        var bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void rollingChecksum() {
+        var data = randomBytes(4 * BLOCK_SIZE, 1);
+        var rolling = new DeltaSync.RollingChecksum(data, 0, BLOCK_SIZE);
+        for (var offset = 1; offset + BLOCK_SIZE <= data.length; offset++) {
+            rolling.roll(data[offset - 1], data[offset + BLOCK_SIZE - 1]);
+            assertEquals(new DeltaSync.RollingChecksum(data, offset, BLOCK_SIZE).value(), rolling.value());
+        }
+    }
+
+    @Test
+    void encodeSignature() {
+        var data = randomBytes(3 * BLOCK_SIZE + 100, 2);
+        var signature = DeltaSync.signature(data, BLOCK_SIZE);
+        assertEquals(signature, DeltaSync.decodeSignature(DeltaSync.encodeSignature(signature), data.length, BLOCK_SIZE));
+    }
+
+    @Test
+    void syncEditedFile() throws IOException {
+        var original = randomBytes(64 * BLOCK_SIZE, 3);
+        var old = directory.resolve("old.bin");
+        Files.write(old, original);
+        var index = new DeltaSync.Index();
+        index.add(old);
+
+        // insert a few bytes near the start, so every following block moves off its boundary
+        var edited = new byte[original.length + 10];
+        System.arraycopy(original, 0, edited, 0, 100);
+        System.arraycopy(original, 100, edited, 110, original.length - 100);
+
+        var signature = DeltaSync.signature(edited, BLOCK_SIZE);
+        var sources = index.match(signature, BLOCK_SIZE);
+        var have = new BitSet();
+        for (var i = 0; i < sources.length; i++)
+            have.set(i, sources[i] != null);
+        var delta = DeltaSync.missingBlocks(edited, BLOCK_SIZE, have);
+        var rebuilt = directory.resolve("rebuilt.bin");
+        var hash = DeltaSync.assemble(rebuilt, edited.length, BLOCK_SIZE, sources, delta);
+
+        assertAll(
+                () -> assertArrayEquals(edited, Files.readAllBytes(rebuilt)),
+                () -> assertEquals(DeltaSync.contentHash(edited), hash),
+                () -> assertTrue(delta.length <= 2 * BLOCK_SIZE + 10,
+                        "sent %d of %d bytes".formatted(delta.length, edited.length)),
+                () -> assertNull(index.find(DeltaSync.contentHash(edited))),
+                () -> assertEquals(old.toAbsolutePath(), index.find(DeltaSync.contentHash(original)))
+        );
+    }
+
+    @Test
+    void syncUnknownFile() throws IOException {
+        var data = randomBytes(10 * BLOCK_SIZE, 4);
+        var sources = new DeltaSync.Index().match(DeltaSync.signature(data, BLOCK_SIZE), BLOCK_SIZE);
+        assertTrue(Arrays.stream(sources).allMatch(source -> source == null));
+        var delta = DeltaSync.missingBlocks(data, BLOCK_SIZE, new BitSet());
+        var rebuilt = directory.resolve("rebuilt.bin");
+        assertEquals(DeltaSync.contentHash(data), DeltaSync.assemble(rebuilt, data.length, BLOCK_SIZE, sources, delta));
+        assertArrayEquals(data, Files.readAllBytes(rebuilt));
+    }
+
+    @Test
+    void wrongDelta() {
+        var data = randomBytes(10 * BLOCK_SIZE, 5);
+        var sources = new DeltaSync.Source[10];
+        var delta = DeltaSync.missingBlocks(data, BLOCK_SIZE, new BitSet());
+        var rebuilt = directory.resolve("rebuilt.bin");
+        assertAll(
+                () -> assertThrows(IOException.class, () -> DeltaSync.assemble(rebuilt, data.length, BLOCK_SIZE,
+                        sources, Arrays.copyOf(delta, delta.length - 1))),
+                () -> assertThrows(IOException.class, () -> DeltaSync.assemble(rebuilt, data.length, BLOCK_SIZE,
+                        sources, Arrays.copyOf(delta, delta.length + 1)))
+        );
+    }
+
+    @Test
+    void downloadNames() {
+        var downloads = Path.of(Config.DOWNLOAD_DIRECTORY);
+        assertAll(
+                () -> assertEquals(downloads.resolve("notes.txt"), Client.IncomingPacketHandler.download("notes.txt")),
+                () -> assertEquals(downloads.resolve("passwd"),
+                        Client.IncomingPacketHandler.download("../../etc/passwd")),
+                () -> assertEquals(downloads.resolve("null"), Client.IncomingPacketHandler.download("/dev/null")),
+                () -> assertThrows(IllegalArgumentException.class, () -> Client.IncomingPacketHandler.download("..")),
+                () -> assertThrows(IllegalArgumentException.class, () -> Client.IncomingPacketHandler.download("/")),
+                () -> assertThrows(IllegalArgumentException.class, () -> Client.IncomingPacketHandler.download(null))
+        );
+    }
+}
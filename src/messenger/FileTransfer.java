@@ -0,0 +1,279 @@
+package messenger;
+
+import protocol.Deadline;
+import protocol.Method;
+import protocol.Packet;
+import protocol.PacketMalformedException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer of a single file over several TCP connections at once.
+ * The sender splits the file into one contiguous range per connection and pushes each range as a series of
+ * {@link Method#FILE} chunk packets:
+ * <pre>
+ *     FILE\n
+ *     contentLength: 65536\n
+ *     offset: 1048576\n
+ *     \n
+ *     (base64 encoded file bytes)
+ * </pre>
+ * Chunks are not acknowledged individually. Once a connection has pushed its whole range it sends a final
+ * {@code FILE} packet with a {@code done} header, which the receiver answers with a {@code SUCCESS} packet
+ * giving the number of bytes it wrote in its {@code received} header.
+ * <p>The receiver preallocates the file and writes every chunk at its offset, so the ranges may arrive in any
+ * order. The transfer itself is negotiated on the chat session: see {@link Client#sendFileParallel(String, String, int)}.</p>
+ */
+public class FileTransfer {
+    /**
+     * Pick how many connections to use for a file.
+     * @param length The size of the file in bytes.
+     * @return {@link Config#FILE_TRANSFER_STREAMS} if set, otherwise one connection per
+     * {@link Config#FILE_TRANSFER_BYTES_PER_STREAM} bytes, capped at {@link Config#MAX_FILE_TRANSFER_STREAMS}.
+     */
+    public static int chooseStreams(long length) {
+        if (Config.FILE_TRANSFER_STREAMS > 0)
+            return Config.FILE_TRANSFER_STREAMS;
+        var streams = (length + Config.FILE_TRANSFER_BYTES_PER_STREAM - 1) / Config.FILE_TRANSFER_BYTES_PER_STREAM;
+        return Math.clamp(streams, 1, Config.MAX_FILE_TRANSFER_STREAMS);
+    }
+
+    public static long send(InetAddress address, int port, Path path, int streams) throws IOException {
+        return send(Transport.DEFAULT, address, port, null, path, streams);
+    }
+
+    /**
+     * Push a file to a waiting {@link Receiver}.
+     * @param transport The transport the receiver listens on.
+     * @param address The address of the receiver.
+     * @param port The port the receiver is accepting range connections on.
+     * @param certificate The fingerprint of the certificate the receiver has to present, as for
+     *                    {@link Transport#connect(InetSocketAddress, int, String)}.
+     * @param path The file to send.
+     * @param streams The number of connections to use. Must match the number the receiver was created with.
+     * @return The number of bytes sent.
+     * @throws IOException if any of the connections fail.
+     */
+    public static long send(Transport transport, InetAddress address, int port, String certificate, Path path,
+                            int streams) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var length = channel.size();
+            var rangeLength = (length + streams - 1) / streams;
+            var threads = new ArrayList<Thread>();
+            var failures = new ArrayList<IOException>();
+            for (var i = 0; i < streams; i++) {
+                var start = Math.min(length, i * rangeLength);
+                var end = Math.min(length, start + rangeLength);
+                var thread = new Thread(() -> {
+                    try {
+                        sendRange(transport, new InetSocketAddress(address, port), certificate, channel, start, end);
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (var thread: threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for file transfer.");
+                }
+            }
+            if (!failures.isEmpty()) {
+                var exception = new IOException("%d of %d file transfer streams failed.".formatted(failures.size(), streams));
+                failures.forEach(exception::addSuppressed);
+                throw exception;
+            }
+            return length;
+        }
+    }
+
+    private static void sendRange(Transport transport, InetSocketAddress address, String certificate,
+                                  FileChannel channel, long start, long end) throws IOException {
+        try (var socket = transport.connect(address, Config.CONNECT_TIMEOUT_MILLIS, certificate)) {
+            var output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            var input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            var buffer = ByteBuffer.allocate(Config.FILE_CHUNK_SIZE);
+            var encoder = Base64.getEncoder();
+            var offset = start;
+            while (offset < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0)
+                        throw new EOFException("File shrank during transfer.");
+                }
+                var chunk = new Packet(Method.FILE, Map.of("offset", String.valueOf(offset)),
+                        encoder.encodeToString(Arrays.copyOf(buffer.array(), buffer.limit())));
+                Packet.sendPacket(output, chunk);
+                offset += buffer.limit();
+            }
+            Packet.sendPacket(output, new Packet(Method.FILE, Map.of("done", "true")));
+            var response = Packet.readPacket(input, socket.getInetAddress());
+            if (response.method() != Method.SUCCESS
+                    || Long.parseLong(response.headers().get("received")) != end - start)
+                throw new IOException("Receiver did not acknowledge range %d-%d.".formatted(start, end));
+        }
+    }
+
+    /**
+     * The receiving half of a transfer.
+     * Preallocates the destination file and listens on an ephemeral port for the sender's range connections.
+     * {@link Receiver#run()} accepts the expected number of connections and returns once all of them are done.
+     * A sender that does not open all of them within {@link Config#FILE_TRANSFER_ACCEPT_TIMEOUT_MILLIS}, or goes
+     * quiet for {@link Config#READ_TIMEOUT_MILLIS} in the middle of a range, is given up on, and the partial file
+     * is deleted.
+     */
+    public static class Receiver implements Runnable, Closeable {
+        private final Path path;
+        private final Listener listener;
+        private final FileChannel channel;
+        private final int streams;
+        private final long length;
+        private final AtomicLong received = new AtomicLong();
+        private long acceptTimeoutMillis = Config.FILE_TRANSFER_ACCEPT_TIMEOUT_MILLIS;
+        private volatile boolean completed = false;
+
+        /**
+         * Prepare to receive a file over {@link Transport#DEFAULT}.
+         * @see Receiver#Receiver(Path, long, int, Transport)
+         */
+        public Receiver(Path path, long length, int streams) throws IOException {
+            this(path, length, streams, Transport.DEFAULT);
+        }
+
+        /**
+         * Prepare to receive a file.
+         * @param path Where to write the file.
+         * @param length The size of the file in bytes.
+         * @param streams The number of range connections to expect.
+         * @param transport The transport to listen on.
+         * @throws IOException if the file cannot be created or no port is available.
+         * @throws IllegalArgumentException if the length is negative or over {@link Config#MAX_FILE_BYTES}, or the
+         * number of streams is not between 1 and {@link Config#MAX_FILE_TRANSFER_STREAMS}, before anything is created.
+         */
+        public Receiver(Path path, long length, int streams, Transport transport) throws IOException {
+            if (length < 0 || length > Config.MAX_FILE_BYTES)
+                throw new IllegalArgumentException("Cannot receive a file of %d bytes.".formatted(length));
+            if (streams < 1 || streams > Config.MAX_FILE_TRANSFER_STREAMS)
+                throw new IllegalArgumentException("Cannot receive a file over %d streams.".formatted(streams));
+            this.path = path;
+            this.length = length;
+            this.streams = streams;
+            try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(length);
+            }
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            this.listener = transport.listen(0);
+        }
+
+        /**
+         * @return The port the sender should connect its range connections to.
+         */
+        public int port() {
+            return listener.port();
+        }
+
+        /**
+         * @param millis How long the sender may take to open all its range connections before we give up on it.
+         */
+        void setAcceptTimeout(long millis) {
+            this.acceptTimeoutMillis = millis;
+        }
+
+        /**
+         * @return Whether every byte of the file arrived, once {@link Receiver#run()} has returned.
+         */
+        public boolean completed() {
+            return completed;
+        }
+
+        @Override
+        public void run() {
+            var threads = new ArrayList<Thread>();
+            var connections = new ArrayList<Socket>();
+            try {
+                try (var _ = Deadline.after(listener, acceptTimeoutMillis)) {
+                    for (var i = 0; i < streams; i++) {
+                        var connection = listener.accept();
+                        connections.add(connection);
+                        var thread = new Thread(() -> {
+                            try (connection) {
+                                receiveRange(connection);
+                            } catch (IOException | PacketMalformedException | IllegalArgumentException e) {
+                                Log.warn("file.range.failed", "bytes", length, "error", e);
+                            }
+                        });
+                        thread.start();
+                        threads.add(thread);
+                    }
+                } catch (IOException e) {
+                    Log.warn("file.receive.failed", "bytes", length, "accepted", threads.size(), "error", e);
+                    // the ranges that did arrive are of no use without the rest
+                    for (var connection: connections)
+                        Deadline.abort(connection);
+                    threads.forEach(Thread::interrupt);
+                }
+                for (var thread: threads)
+                    thread.join();
+                completed = threads.size() == streams && received.get() == length;
+            } catch (InterruptedException e) {
+                Log.warn("file.receive.failed", "bytes", length, "error", e);
+            } finally {
+                close();
+                if (!completed) {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        Log.warn("file.delete.failed", "path", path, "error", e);
+                    }
+                }
+            }
+        }
+
+        private void receiveRange(Socket connection) throws IOException {
+            var input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            var output = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
+            var decoder = Base64.getDecoder();
+            long received = 0;
+            while (true) {
+                Packet chunk;
+                try (var _ = Deadline.after(connection, Config.READ_TIMEOUT_MILLIS)) {
+                    chunk = Packet.readPacket(input, connection.getInetAddress());
+                }
+                if (chunk.headers().containsKey("done"))
+                    break;
+                var offset = Long.parseLong(chunk.headers().get("offset"));
+                var buffer = ByteBuffer.wrap(decoder.decode(chunk.content()));
+                if (offset < 0 || offset + buffer.remaining() > length)
+                    throw new IOException("Chunk at offset %d lies outside the file.".formatted(offset));
+                while (buffer.hasRemaining())
+                    received += channel.write(buffer, offset + buffer.position());
+            }
+            this.received.addAndGet(received);
+            Packet.sendPacket(output, new Packet(Method.SUCCESS, Map.of("received", String.valueOf(received))));
+        }
+
+        @Override
+        public void close() {
+            try { listener.close(); } catch (IOException ignored) {}
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
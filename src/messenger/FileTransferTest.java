@@ -0,0 +1,143 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Error;
+import protocol.Method;
+import protocol.Multiplexer;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransferTest {
+    static final int FILE_SIZE = 16 * 1024 * 1024 + 123;
+    // the same port as ServerTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final Transport transport = new MemoryTransport();
+
+    @TempDir
+    static Path directory;
+    static Path source;
+    static Server server;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        var bytes = new byte[FILE_SIZE];
+        new Random(345).nextBytes(bytes);
+        source = directory.resolve("source.bin");
+        Files.write(source, bytes);
+
+        server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.close();
+    }
+
+    void transfer(int streams) throws IOException, InterruptedException {
+        var target = directory.resolve("target-%d.bin".formatted(streams));
+        var receiver = new FileTransfer.Receiver(target, FILE_SIZE, streams);
+        var receiverThread = new Thread(receiver);
+        receiverThread.start();
+        var sent = FileTransfer.send(InetAddress.getLoopbackAddress(), receiver.port(), source, streams);
+        receiverThread.join();
+
+        assertEquals(FILE_SIZE, sent);
+        assertTrue(receiver.completed());
+        assertEquals(-1, Files.mismatch(source, target));
+    }
+
+    @Test
+    void chooseStreams() {
+        assertAll(
+                () -> assertEquals(1, FileTransfer.chooseStreams(0)),
+                () -> assertEquals(1, FileTransfer.chooseStreams(1000)),
+                () -> assertEquals(3, FileTransfer.chooseStreams(2 * Config.FILE_TRANSFER_BYTES_PER_STREAM + 1)),
+                () -> assertEquals(Config.MAX_FILE_TRANSFER_STREAMS, FileTransfer.chooseStreams(Long.MAX_VALUE / 2))
+        );
+    }
+
+    @Test
+    void singleStream() throws IOException, InterruptedException {
+        transfer(1);
+    }
+
+    @Test
+    void parallelStreams() throws IOException, InterruptedException {
+        transfer(4);
+    }
+
+    @Test
+    void emptyFile() throws IOException, InterruptedException {
+        var empty = directory.resolve("empty.bin");
+        Files.createFile(empty);
+        var target = directory.resolve("empty-target.bin");
+        var receiver = new FileTransfer.Receiver(target, 0, 2);
+        var receiverThread = new Thread(receiver);
+        receiverThread.start();
+        assertEquals(0, FileTransfer.send(InetAddress.getLoopbackAddress(), receiver.port(), empty, 2));
+        receiverThread.join();
+        assertEquals(0, Files.size(target));
+    }
+
+    @Test
+    @DisplayName("A sender that opens too few connections is given up on, and the partial file deleted")
+    void abandoned() throws IOException, InterruptedException {
+        var target = directory.resolve("abandoned.bin");
+        var receiver = new FileTransfer.Receiver(target, FILE_SIZE, 2);
+        receiver.setAcceptTimeout(200);
+        var receiverThread = new Thread(receiver);
+        receiverThread.start();
+        try (var _ = Transport.DEFAULT.connect(InetAddress.getLoopbackAddress(), receiver.port())) {
+            receiverThread.join(5000);
+            assertFalse(receiverThread.isAlive());
+        }
+        assertFalse(receiver.completed());
+        assertFalse(Files.exists(target));
+        assertThrows(IOException.class, () -> Transport.DEFAULT.connect(InetAddress.getLoopbackAddress(),
+                receiver.port()).close());
+    }
+
+    @Test
+    @DisplayName("Offers of a negative or oversized length, or too few or too many streams, are refused")
+    void refusedOffers() throws IOException {
+        var alice = Client.open(22000, Config.SERVER_IP, SERVER_PORT, transport);
+        var bob = Client.open(22001, Config.SERVER_IP, SERVER_PORT, transport);
+        try {
+            assertEquals(Error.OK, alice.register("alice", "password"));
+            assertEquals(Error.OK, bob.register("bob", "password"));
+            var session = alice.connectToPeer("bob");
+            var offers = List.of(
+                    Map.of("length", "-1", "streams", "1"),
+                    Map.of("length", String.valueOf(Config.MAX_FILE_BYTES + 1), "streams", "1"),
+                    Map.of("length", "1000", "streams", "0"),
+                    Map.of("length", "1000", "streams", String.valueOf(Config.MAX_FILE_TRANSFER_STREAMS + 1))
+            );
+            for (var offer: offers) {
+                try (var stream = session.open(Multiplexer.Priority.BULK)) {
+                    var headers = new HashMap<>(offer);
+                    headers.put("filename", "refused.bin");
+                    stream.sendPacket(new Packet(Method.FILE, headers));
+                    assertEquals(Error.MALFORMED_REQUEST, stream.readPacket().getError(), offer.toString());
+                }
+            }
+            assertFalse(Files.exists(Client.IncomingPacketHandler.download("refused.bin")));
+        } finally {
+            alice.close();
+            bob.close();
+        }
+    }
+}
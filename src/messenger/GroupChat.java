@@ -0,0 +1,264 @@
+package messenger;
+
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Group chats. The server only keeps track of who is in a group; the messages themselves travel between peers.
+ * <p>Rather than uploading one copy per member, the sender hands a message to at most {@link Config#GROUP_FANOUT}
+ * members, each of which passes it on to the next few, and so on down a tree:
+ * <pre>
+ *     MESSAGE\n
+ *     contentLength: 3\n
+ *     group: chess\n
+ *     from: alice\n
+ *     version: 42\n
+ *     \n
+ *     hi!
+ * </pre>
+ * Every member computes the same tree from the member list, rotated so that the sender is the root, and the
+ * {@code version} of that list the sender used. Only members may ask the server for the list, and a message whose
+ * sender is not on it is dropped rather than delivered or relayed. A member at position {@code p} relays to positions
+ * {@code p * fanout + 1} through {@code p * fanout + fanout}. A member that cannot be reached is skipped by handing
+ * the message straight to its children instead, so a message is only accepted from a session with one of our
+ * ancestors in the tree; anybody else could have put any name in {@code from}.</p>
+ * <p>Members keep the last list they saw and send with it, asking the server again only once a relayed message
+ * carries a newer version, or the list is {@link Config#GROUP_MEMBERS_MAX_AGE_MILLIS} old.</p>
+ * <p>Each member encodes the packet once and queues the same bytes on every outgoing session. Group messages are
+ * not acknowledged, and a message sent while somebody joins or leaves may miss the members whose positions
+ * moved.</p>
+ */
+public class GroupChat {
+    /**
+     * A snapshot of the members of a group, as returned by the server.
+     * @param version Changes whenever somebody joins or leaves.
+     * @param members The members that are online, in the order they joined.
+     */
+    public record Membership(long version, List<Peer> members) {
+        public List<String> usernames() {
+            return members.stream().map(Peer::username).toList();
+        }
+    }
+
+    private record Cached(Membership membership, long fetchedNanos) {}
+
+    private final Client client;
+    private final Map<String, Cached> memberships = new ConcurrentHashMap<>();
+    private volatile Consumer<Packet> listener = null;
+
+    public GroupChat(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Join a group, creating it if nobody is in it yet.
+     */
+    public Error join(String group) throws IOException {
+        var response = client.makeServerRequest(new Packet(Method.JOIN, credentials(group)));
+        memberships.remove(group);
+        return response.getError();
+    }
+
+    public Error leave(String group) throws IOException {
+        var response = client.makeServerRequest(new Packet(Method.LEAVE, credentials(group)));
+        memberships.remove(group);
+        return response.getError();
+    }
+
+    private Map<String, String> credentials(String group) {
+        return Map.of(
+                "username", client.username,
+                "password", client.password,
+                "group", group
+        );
+    }
+
+    /**
+     * Ask the server who is in a group.
+     * @return The members, or {@code null} if there is no such group or we are not in it.
+     */
+    public Membership members(String group) throws IOException {
+        var response = client.makeServerRequest(new Packet(Method.MEMBERS, credentials(group)));
+        if (response.method() != Method.SUCCESS) {
+            memberships.remove(group);
+            return null;
+        }
+        var members = new ArrayList<Peer>();
+        for (var line: response.content().lines().toList()) {
+            var split = line.split(" ");
+            members.add(new Peer(split[0], InetAddress.getByName(split[1]), Integer.parseInt(split[2]), Status.READY,
+                    split.length > 3 ? split[3] : null));
+        }
+        var membership = new Membership(Long.parseLong(response.headers().get("version")), List.copyOf(members));
+        memberships.put(group, new Cached(membership, System.nanoTime()));
+        return membership;
+    }
+
+    /**
+     * Look up the members of a group, asking the server only if our copy is older than the version we need.
+     */
+    private Membership members(String group, long version) throws IOException {
+        var cached = memberships.get(group);
+        if (cached != null && cached.membership().version() >= version)
+            return cached.membership();
+        // every member of a new group asks at about the same time, so the server may turn some of us away
+        for (var attempt = 1; ; attempt++) {
+            try {
+                return members(group);
+            } catch (IOException e) {
+                if (attempt == Config.GROUP_LOOKUP_ATTEMPTS)
+                    throw e;
+            }
+            try {
+                Thread.sleep(Config.GROUP_LOOKUP_BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Call a function for every group message this client receives, before it is relayed, in addition to
+     * publishing it as a {@link ClientEvent.GroupMessage} afterwards.
+     */
+    public void onMessage(Consumer<Packet> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Send a message to every other member of a group.
+     * Returns once the message is queued on the sessions of our children in the relay tree.
+     * @return {@link Error#NO_SUCH_GROUP} if the group does not exist or we are not in it.
+     */
+    public Error send(String group, String text) throws IOException {
+        var cached = memberships.get(group);
+        var fresh = cached != null
+                && System.nanoTime() - cached.fetchedNanos() < Config.GROUP_MEMBERS_MAX_AGE_MILLIS * 1_000_000;
+        var membership = fresh ? cached.membership() : members(group);
+        if (membership == null)
+            return Error.NO_SUCH_GROUP;
+        var message = new Packet(Method.MESSAGE, Map.of(
+                "group", group,
+                "from", client.username,
+                "version", String.valueOf(membership.version())
+        ), text);
+        forward(membership, client.username, message.encode());
+        client.record("#" + group, client.username, text);
+        return Error.OK;
+    }
+
+    /**
+     * Deliver a group message from a peer and relay it to our children in the tree.
+     * Messages from anybody who is not a member of the group, as far as the server knows, are dropped, as are
+     * messages arriving on a session with anybody but one of our ancestors in the tree.
+     * @param session The session the message arrived on.
+     */
+    void receive(PeerSession session, Packet message) {
+        var group = message.headers().get("group");
+        var origin = message.headers().get("from");
+        Membership membership;
+        try {
+            membership = members(group, Long.parseLong(message.headers().get("version")));
+        } catch (IOException | NumberFormatException e) {
+            client.emit(new ClientEvent.Notice("Failed to check who sent a message to group %s!".formatted(group)));
+            return;
+        }
+        if (membership == null || !membership.usernames().contains(origin)) {
+            Log.warn("group.message.dropped", "group", group, "from", origin);
+            return;
+        }
+        if (!relayedBy(membership.usernames(), origin, client.username, Config.GROUP_FANOUT).contains(session.name())) {
+            Log.warn("group.message.forged", "group", group, "from", origin, "peer", session.name());
+            return;
+        }
+        client.record("#" + group, origin, message.content());
+        var listener = this.listener;
+        if (listener != null)
+            listener.accept(message);
+        forward(membership, origin, message.encode());
+        // published once relayed, so a subscriber that is behind does not hold up the rest of the tree
+        client.emit(new ClientEvent.GroupMessage(group, origin, message.content()));
+    }
+
+    private void forward(Membership membership, String origin, byte[] encoded) {
+        var ring = ring(membership.usernames(), origin);
+        var self = ring.indexOf(client.username);
+        if (self < 0)
+            return;
+        var peers = new HashMap<String, Peer>();
+        for (var peer: membership.members())
+            peers.put(peer.username(), peer);
+
+        var pending = new ArrayDeque<>(children(self, ring.size(), Config.GROUP_FANOUT));
+        while (!pending.isEmpty()) {
+            var child = pending.poll();
+            try {
+                client.sessionWith(peers.get(ring.get(child))).relay(encoded);
+            } catch (IOException e) {
+                // route around the unreachable member
+                pending.addAll(children(child, ring.size(), Config.GROUP_FANOUT));
+            }
+        }
+    }
+
+    /**
+     * Order the members so that the sender is at position 0, the root of the relay tree.
+     * The sender does not have to be a member.
+     */
+    private static List<String> ring(List<String> members, String origin) {
+        var ring = new ArrayList<>(members);
+        if (!ring.contains(origin))
+            ring.addFirst(origin);
+        Collections.rotate(ring, -ring.indexOf(origin));
+        return ring;
+    }
+
+    /**
+     * The positions a member relays to, in a tree of {@code size} members rooted at position 0.
+     */
+    public static List<Integer> children(int position, int size, int fanout) {
+        var children = new ArrayList<Integer>();
+        for (var child = (long) position * fanout + 1; child <= (long) position * fanout + fanout && child < size; child++)
+            children.add((int) child);
+        return children;
+    }
+
+    /**
+     * The members a member may be handed a message by: its parent in the tree, or any ancestor above it if the
+     * members in between could not be reached.
+     * @param members The members of the group.
+     * @param origin The sender of the message.
+     * @param self The receiving member.
+     */
+    public static List<String> relayedBy(List<String> members, String origin, String self, int fanout) {
+        var ring = ring(members, origin);
+        var ancestors = new ArrayList<String>();
+        for (var position = ring.indexOf(self); position > 0; ) {
+            position = (position - 1) / fanout;
+            ancestors.add(ring.get(position));
+        }
+        return ancestors;
+    }
+
+    /**
+     * The members a member relays a message to.
+     * @param members The members of the group.
+     * @param origin The sender of the message.
+     * @param self The relaying member.
+     */
+    public static List<String> relayTargets(List<String> members, String origin, String self, int fanout) {
+        var ring = ring(members, origin);
+        var position = ring.indexOf(self);
+        if (position < 0)
+            return List.of();
+        return children(position, ring.size(), fanout).stream().map(ring::get).toList();
+    }
+}
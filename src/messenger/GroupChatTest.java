@@ -0,0 +1,197 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupChatTest {
+    // the same port as ServerTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final Transport transport = new MemoryTransport();
+    static int nextPort = 20000;
+    static Server server;
+    static Thread serverThread;
+
+    @BeforeAll
+    static void setUp() throws IOException, InterruptedException {
+        server = new Server(SERVER_PORT, transport);
+        // a hundred members register, and how long their passwords take to hash is not what this is about
+        server.credentials().setIterations(1000);
+        serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void tearDown() throws InterruptedException {
+        server.close();
+        serverThread.join();
+    }
+
+    static long bytesSent(Client client) {
+        return client.sessions.values().stream().mapToLong(PeerSession::bytesSent).sum();
+    }
+
+    /**
+     * Send a message to a group of a given size, once with cold sessions and once with warm ones, and check it
+     * reaches everyone, the second time without the sender uploading more than its share of the tree.
+     */
+    void broadcast(int size) throws IOException, InterruptedException {
+        var group = "group" + size;
+        var members = new ArrayList<Client>();
+        var latch = new AtomicReference<CountDownLatch>();
+        for (var i = 0; i < size; i++) {
+            var port = nextPort++;
+            var member = Client.open(port, Config.SERVER_IP, SERVER_PORT, transport);
+            assertEquals(Error.OK, member.register("member" + port, "password"));
+            assertEquals(Error.OK, member.groups.join(group));
+            member.groups.onMessage(_ -> latch.get().countDown());
+            members.add(member);
+        }
+        var sender = members.getFirst();
+        var packetSize = new Packet(Method.MESSAGE, Map.of("group", group, "from", sender.username, "version", "0"),
+                "hello, group!").encode().length;
+
+        try {
+            for (var round: List.of("cold", "warm")) {
+                latch.set(new CountDownLatch(size - 1));
+                var senderBefore = bytesSent(sender);
+                assertEquals(Error.OK, sender.groups.send(group, "hello, group!"));
+                assertTrue(latch.get().await(120, TimeUnit.SECONDS), "message did not reach every member");
+                var senderBytes = bytesSent(sender) - senderBefore;
+                if (round.equals("warm"))
+                    assertTrue(senderBytes <= 2L * Config.GROUP_FANOUT * packetSize,
+                            "sender uploaded %d bytes".formatted(senderBytes));
+            }
+        } finally {
+            for (var member: members)
+                member.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Every member is in the relay tree exactly once")
+    void relayTree() {
+        for (var size = 1; size < 40; size++) {
+            var members = new ArrayList<String>();
+            for (var i = 0; i < size; i++)
+                members.add("member" + i);
+            for (var origin: List.of(members.getFirst(), members.getLast(), "outsider")) {
+                var reached = new ArrayList<String>();
+                for (var member: members)
+                    reached.addAll(GroupChat.relayTargets(members, origin, member, 3));
+                if (!members.contains(origin))
+                    reached.addAll(GroupChat.relayTargets(members, origin, origin, 3));
+                var expected = new HashSet<>(members);
+                expected.remove(origin);
+                assertEquals(expected.size(), reached.size());
+                assertEquals(expected, new HashSet<>(reached));
+            }
+        }
+    }
+
+    @Test
+    void membership() throws IOException {
+        var alice = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        var bob = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        try {
+            alice.register("alice", "hunter2");
+            bob.register("bob", "password123");
+            assertNull(alice.groups.members("chess"));
+            assertEquals(Error.OK, alice.groups.join("chess"));
+            assertEquals(Error.OK, bob.groups.join("chess"));
+            var before = alice.groups.members("chess");
+            assertEquals(List.of("alice", "bob"), before.usernames());
+            assertEquals(Error.OK, alice.groups.leave("chess"));
+            var after = bob.groups.members("chess");
+            assertEquals(List.of("bob"), after.usernames());
+            assertNotEquals(before.version(), after.version());
+            assertEquals(Error.OK, bob.groups.leave("chess"));
+            assertNull(bob.groups.members("chess"));
+            assertEquals(Error.NO_SUCH_GROUP, bob.groups.leave("chess"));
+        } finally {
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Only members may list a group, and messages from anybody else are dropped")
+    void outsiders() throws IOException {
+        var alice = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        var bob = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        var mallory = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        try {
+            assertEquals(Error.OK, alice.register("alice" + alice.port(), "hunter2"));
+            assertEquals(Error.OK, bob.register("bob" + bob.port(), "password123"));
+            assertEquals(Error.OK, mallory.register("mallory" + mallory.port(), "letmein"));
+            assertEquals(Error.OK, alice.groups.join("club"));
+            assertEquals(Error.OK, bob.groups.join("club"));
+            assertNull(mallory.groups.members("club"));
+            assertEquals(Error.NO_SUCH_GROUP, mallory.groups.send("club", "let me in"));
+            var version = String.valueOf(bob.groups.members("club").version());
+
+            var received = new ArrayList<String>();
+            bob.groups.onMessage(message -> received.add(message.headers().get("from")));
+            var fromAlice = bob.connectToPeer(alice.username);
+            for (var origin: List.of(mallory.username, "nobody", alice.username))
+                bob.groups.receive(fromAlice, new Packet(Method.MESSAGE,
+                        Map.of("group", "club", "from", origin, "version", version), "hi!"));
+            assertEquals(List.of(alice.username), received);
+        } finally {
+            alice.close();
+            bob.close();
+            mallory.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A message with somebody else's name in it, from a session with a non-member, is dropped")
+    void forged() throws IOException, InterruptedException {
+        var alice = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        var bob = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        var mallory = Client.open(nextPort++, Config.SERVER_IP, SERVER_PORT, transport);
+        try {
+            assertEquals(Error.OK, alice.register("alice" + alice.port(), "hunter2"));
+            assertEquals(Error.OK, bob.register("bob" + bob.port(), "password123"));
+            assertEquals(Error.OK, mallory.register("mallory" + mallory.port(), "letmein"));
+            assertEquals(Error.OK, alice.groups.join("forged"));
+            assertEquals(Error.OK, bob.groups.join("forged"));
+            var version = String.valueOf(bob.groups.members("forged").version());
+
+            var received = new LinkedBlockingQueue<String>();
+            bob.groups.onMessage(message -> received.add(message.content()));
+            mallory.connectToPeer(bob.username).relay(new Packet(Method.MESSAGE,
+                    Map.of("group", "forged", "from", alice.username, "version", version), "send me your password")
+                    .encode());
+            assertEquals(Error.OK, alice.groups.send("forged", "hi bob!"));
+            assertEquals("hi bob!", received.poll(30, TimeUnit.SECONDS));
+            assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            alice.close();
+            bob.close();
+            mallory.close();
+        }
+    }
+
+    @Test
+    void fanOut10() throws IOException, InterruptedException {
+        broadcast(10);
+    }
+
+    @Test
+    void fanOut100() throws IOException, InterruptedException {
+        broadcast(100);
+    }
+}
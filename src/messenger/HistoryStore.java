@@ -0,0 +1,456 @@
+package messenger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * The chat history of a client, kept on disk as one append-only log per conversation:
+ * <pre>
+ *     history/alice/bob/00000000000000000000.log    records: length (4 bytes), seq (8), timestamp (8),
+ *                                                    sender length (2), sender, text
+ *     history/alice/bob/00000000000000000000.idx    seq (8), timestamp (8), position (4) of every
+ *                                                    {@link Config#HISTORY_INDEX_INTERVAL}th record
+ *     history/alice/bob/00000000000000081920.log
+ *     history/alice/#chess/...
+ * </pre>
+ * Logs are read through memory mapped segments. Sequence numbers and timestamps only ever increase within a
+ * conversation, so both can be looked up by binary search over the sparse index, followed by a scan of at most
+ * {@link Config#HISTORY_INDEX_INTERVAL} records. Neither {@link HistoryStore#last(String, int)} nor
+ * {@link HistoryStore#since(String, long)} reads more of the log than it returns.
+ * <p>Appends are written by a background thread, so recording a message never waits for the disk.
+ * Reads wait for the appends queued before them.</p>
+ * @see SearchIndex
+ */
+public class HistoryStore implements Closeable {
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES + Short.BYTES;
+    private static final int INDEX_ENTRY_SIZE = 2 * Long.BYTES + Integer.BYTES;
+
+    /**
+     * A message in the history.
+     * @param seq The position of the message in its conversation, starting at 0.
+     * @param timestamp When the message was recorded, in milliseconds since the epoch.
+     * @param from The username of the sender.
+     */
+    public record Entry(long seq, long timestamp, String from, String text) {}
+
+    private record Append(String conversation, String from, String text, long timestamp) {}
+
+    private record IndexEntry(long seq, long timestamp, Segment segment, int position) {}
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private final ArrayDeque<Append> pending = new ArrayDeque<>();
+    private final Thread writer;
+    private long queued = 0;
+    private long written = 0;
+    private boolean closed = false;
+    private IOException failure = null;
+    private volatile BiConsumer<String, Entry> listener = null;
+
+    /**
+     * @param directory Where the conversations are kept. History already there is picked up again.
+     */
+    public HistoryStore(Path directory) throws IOException {
+        this(directory, Config.HISTORY_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes The size at which a conversation starts a new segment.
+     */
+    public HistoryStore(Path directory, long segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.writer = Thread.ofVirtual().name("history-writer").start(this::writeLoop);
+    }
+
+    /**
+     * Record a message, without waiting for it to be written.
+     * @param conversation The peer's username, or {@code #group} for a group chat.
+     */
+    public synchronized void append(String conversation, String from, String text) {
+        // the conversation becomes a directory name
+        if (!conversation.matches("#?[\\w-][\\w.-]*"))
+            throw new IllegalArgumentException("Invalid conversation '%s'".formatted(conversation));
+        if (closed)
+            return;
+        pending.add(new Append(conversation, from, text, System.currentTimeMillis()));
+        queued++;
+        notifyAll();
+    }
+
+    /**
+     * Wait until every message appended so far has been written.
+     * @throws IOException if writing failed.
+     */
+    public synchronized void flush() throws IOException {
+        var target = queued;
+        try {
+            while (written < target && failure == null)
+                wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Call a function for every message once it has been written, on the writer thread.
+     * The function is called in the order the messages were appended, and should be quick.
+     */
+    public void onWrite(BiConsumer<String, Entry> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The last {@code count} messages of a conversation, oldest first.
+     */
+    public List<Entry> last(String conversation, int count) throws IOException {
+        flush();
+        synchronized (conversations) {
+            var history = conversation(conversation);
+            return history.read(Math.max(0, history.nextSeq - count), Long.MIN_VALUE, count);
+        }
+    }
+
+    /**
+     * @return Up to {@code count} messages of a conversation, starting at sequence number {@code fromSeq}.
+     */
+    public List<Entry> range(String conversation, long fromSeq, int count) throws IOException {
+        flush();
+        synchronized (conversations) {
+            return conversation(conversation).read(Math.max(0, fromSeq), Long.MIN_VALUE, count);
+        }
+    }
+
+    /**
+     * @return A single message, or {@code null} if the conversation has no message with that sequence number.
+     */
+    public Entry get(String conversation, long seq) throws IOException {
+        var entries = range(conversation, seq, 1);
+        return entries.isEmpty() || entries.getFirst().seq() != seq ? null : entries.getFirst();
+    }
+
+    /**
+     * @return Every message of a conversation recorded at or after a point in time, oldest first.
+     */
+    public List<Entry> since(String conversation, long timestamp) throws IOException {
+        flush();
+        synchronized (conversations) {
+            var history = conversation(conversation);
+            return history.read(-1, timestamp, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return The number of messages in a conversation.
+     */
+    public long size(String conversation) throws IOException {
+        flush();
+        synchronized (conversations) {
+            return conversation(conversation).nextSeq;
+        }
+    }
+
+    /**
+     * @return The conversations that have any history, in no particular order.
+     */
+    public List<String> conversations() throws IOException {
+        flush();
+        try (var files = Files.list(directory)) {
+            return files.filter(Files::isDirectory).map(path -> path.getFileName().toString()).toList();
+        }
+    }
+
+    /**
+     * Write everything that is still queued and close the files.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ignored) {}
+        synchronized (conversations) {
+            for (var conversation: conversations.values())
+                conversation.close();
+        }
+    }
+
+    private void writeLoop() {
+        var batch = new ArrayList<Append>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !closed)
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.isEmpty())
+                    return;
+                batch.addAll(pending);
+                pending.clear();
+            }
+            // write without holding the lock append() needs
+            IOException error = null;
+            synchronized (conversations) {
+                try {
+                    var listener = this.listener;
+                    for (var append: batch) {
+                        var entry = conversation(append.conversation()).write(append);
+                        if (listener != null)
+                            listener.accept(append.conversation(), entry);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            synchronized (this) {
+                if (error != null && failure == null)
+                    failure = error;
+                written += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Must hold the lock on {@link HistoryStore#conversations}.
+     */
+    private Conversation conversation(String name) throws IOException {
+        var conversation = conversations.get(name);
+        if (conversation == null) {
+            conversation = new Conversation(Files.createDirectories(directory.resolve(name)));
+            conversations.put(name, conversation);
+        }
+        return conversation;
+    }
+
+    private class Conversation {
+        final Path directory;
+        final TreeMap<Long, Segment> segments = new TreeMap<>();
+        final ArrayList<IndexEntry> index = new ArrayList<>();
+        long nextSeq = 0;
+        long lastTimestamp = Long.MIN_VALUE;
+
+        Conversation(Path directory) throws IOException {
+            this.directory = directory;
+            try (var files = Files.list(directory)) {
+                for (var file: files.toList()) {
+                    var name = file.getFileName().toString();
+                    if (name.endsWith(".log")) {
+                        var segment = new Segment(directory, Long.parseLong(name.substring(0, name.length() - 4)));
+                        segments.put(segment.base, segment);
+                    }
+                }
+            }
+            for (var segment: segments.values())
+                recover(segment);
+        }
+
+        /**
+         * Load the index of a segment, then find its end by scanning from its last indexed record.
+         * A record that was only partly written is cut off.
+         */
+        private void recover(Segment segment) throws IOException {
+            var entries = segment.readIndex();
+            var seq = segment.base;
+            var position = 0;
+            if (!entries.isEmpty()) {
+                seq = entries.getLast()[0];
+                position = (int) entries.getLast()[2];
+            }
+            var data = segment.map();
+            while (position + RECORD_HEADER_SIZE <= data.limit()) {
+                var length = data.getInt(position);
+                if (length < RECORD_HEADER_SIZE || position + length > data.limit())
+                    break;
+                lastTimestamp = data.getLong(position + Integer.BYTES + Long.BYTES);
+                position += length;
+                seq++;
+            }
+            segment.truncate(position);
+            // drop the index entries of records that were cut off
+            while (!entries.isEmpty() && entries.getLast()[2] >= position)
+                entries.removeLast();
+            segment.truncateIndex(entries.size());
+            for (var entry: entries)
+                index.add(new IndexEntry(entry[0], entry[1], segment, (int) entry[2]));
+            segment.count = (int) (seq - segment.base);
+            nextSeq = seq;
+        }
+
+        Entry write(Append append) throws IOException {
+            var from = append.from().getBytes(StandardCharsets.UTF_8);
+            var text = append.text().getBytes(StandardCharsets.UTF_8);
+            var length = RECORD_HEADER_SIZE + from.length + text.length;
+            var timestamp = Math.max(append.timestamp(), lastTimestamp);
+
+            var segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (segment == null || (segment.size > 0 && segment.size + length > segmentBytes)) {
+                segment = new Segment(directory, nextSeq);
+                segments.put(segment.base, segment);
+            }
+            var record = ByteBuffer.allocate(length)
+                    .putInt(length)
+                    .putLong(nextSeq)
+                    .putLong(timestamp)
+                    .putShort((short) from.length)
+                    .put(from)
+                    .put(text)
+                    .flip();
+            var position = (int) segment.size;
+            segment.append(record);
+            // every segment starts with an index entry, so a lookup never has to cross into the previous one
+            if (segment.count % Config.HISTORY_INDEX_INTERVAL == 0) {
+                segment.appendIndex(nextSeq, timestamp, position);
+                index.add(new IndexEntry(nextSeq, timestamp, segment, position));
+            }
+            segment.count++;
+            lastTimestamp = timestamp;
+            return new Entry(nextSeq++, timestamp, append.from(), append.text());
+        }
+
+        /**
+         * Read the messages from a sequence number or a timestamp onwards, whichever is given.
+         * @param fromSeq The first sequence number to return, or -1 to go by timestamp.
+         * @param fromTimestamp The earliest timestamp to return.
+         * @param limit The most messages to return.
+         */
+        List<Entry> read(long fromSeq, long fromTimestamp, int limit) throws IOException {
+            var entries = new ArrayList<Entry>();
+            if (index.isEmpty() || limit <= 0)
+                return entries;
+            // the last index entry before the first message we want
+            int low = 0, high = index.size() - 1;
+            while (low < high) {
+                var middle = (low + high + 1) >>> 1;
+                var entry = index.get(middle);
+                var before = fromSeq >= 0 ? entry.seq() <= fromSeq : entry.timestamp() < fromTimestamp;
+                if (before)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+            var start = index.get(low);
+            var seq = start.seq();
+            var position = start.position();
+            for (var segment: segments.tailMap(start.segment().base, true).values()) {
+                if (entries.size() >= limit)
+                    break;
+                var data = segment.map();
+                while (position < segment.size && entries.size() < limit) {
+                    var length = data.getInt(position);
+                    var timestamp = data.getLong(position + Integer.BYTES + Long.BYTES);
+                    if (fromSeq >= 0 ? seq >= fromSeq : timestamp >= fromTimestamp) {
+                        var fromLength = data.getShort(position + Integer.BYTES + 2 * Long.BYTES);
+                        var bytes = new byte[length - RECORD_HEADER_SIZE];
+                        data.get(position + RECORD_HEADER_SIZE, bytes);
+                        entries.add(new Entry(seq, timestamp,
+                                new String(bytes, 0, fromLength, StandardCharsets.UTF_8),
+                                new String(bytes, fromLength, bytes.length - fromLength, StandardCharsets.UTF_8)));
+                    }
+                    position += length;
+                    seq++;
+                }
+                position = 0;
+            }
+            return entries;
+        }
+
+        void close() {
+            for (var segment: segments.values())
+                segment.close();
+        }
+    }
+
+    private static class Segment {
+        final long base;
+        final Path log;
+        final Path indexPath;
+        FileChannel channel;
+        FileChannel indexChannel;
+        MappedByteBuffer mapped;
+        long size;
+        int count = 0;
+
+        Segment(Path directory, long base) throws IOException {
+            this.base = base;
+            this.log = directory.resolve("%020d.log".formatted(base));
+            this.indexPath = directory.resolve("%020d.idx".formatted(base));
+            this.channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        /**
+         * @return The segment mapped into memory, up to its current size.
+         */
+        ByteBuffer map() throws IOException {
+            if (mapped == null || mapped.capacity() < size)
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapped;
+        }
+
+        List<long[]> readIndex() throws IOException {
+            var entries = new ArrayList<long[]>();
+            var buffer = ByteBuffer.allocate((int) (indexChannel.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE));
+            indexChannel.read(buffer, 0);
+            buffer.flip();
+            while (buffer.remaining() >= INDEX_ENTRY_SIZE) {
+                var entry = new long[] {buffer.getLong(), buffer.getLong(), buffer.getInt()};
+                // an index entry written just before a crash may point past the end of the log
+                if (entry[2] >= size)
+                    break;
+                entries.add(entry);
+            }
+            return entries;
+        }
+
+        void truncateIndex(int entries) throws IOException {
+            indexChannel.truncate((long) entries * INDEX_ENTRY_SIZE);
+        }
+
+        void truncate(long size) throws IOException {
+            channel.truncate(size);
+            this.size = size;
+            mapped = null;
+        }
+
+        void append(ByteBuffer record) throws IOException {
+            channel.write(record, size);
+            size += record.limit();
+        }
+
+        void appendIndex(long seq, long timestamp, int position) throws IOException {
+            var entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).putLong(seq).putLong(timestamp).putInt(position).flip();
+            indexChannel.write(entry, indexChannel.size());
+        }
+
+        void close() {
+            try {
+                channel.close();
+                indexChannel.close();
+            } catch (IOException ignored) {}
+            mapped = null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    @DisplayName("Last N messages, across segments")
+    void last() throws IOException {
+        try (var history = new HistoryStore(directory, 1024)) {
+            for (var i = 0; i < 1000; i++)
+                history.append("bob", i % 2 == 0 ? "alice" : "bob", "message " + i);
+            assertEquals(1000, history.size("bob"));
+            var last = history.last("bob", 150);
+            assertEquals(150, last.size());
+            assertEquals(850, last.getFirst().seq());
+            assertEquals("message 850", last.getFirst().text());
+            assertEquals("alice", last.getFirst().from());
+            assertEquals("message 999", last.getLast().text());
+            assertEquals(1000, history.last("bob", 5000).size());
+            assertTrue(history.last("carol", 10).isEmpty());
+        }
+        try (var segments = Files.list(directory.resolve("bob"))) {
+            assertTrue(segments.count() > 20, "should have rolled over to new segments");
+        }
+    }
+
+    @Test
+    @DisplayName("Messages since a point in time")
+    void since() throws IOException, InterruptedException {
+        try (var history = new HistoryStore(directory, 4096)) {
+            for (var i = 0; i < 500; i++)
+                history.append("#chess", "alice", "before " + i);
+            history.flush();
+            Thread.sleep(5);
+            var middle = System.currentTimeMillis();
+            for (var i = 0; i < 300; i++)
+                history.append("#chess", "bob", "after " + i);
+            var since = history.since("#chess", middle);
+            assertEquals(300, since.size());
+            assertEquals("after 0", since.getFirst().text());
+            assertEquals(500, since.getFirst().seq());
+            assertTrue(history.since("#chess", System.currentTimeMillis() + 1000).isEmpty());
+            assertEquals(800, history.since("#chess", 0).size());
+        }
+    }
+
+    @Test
+    @DisplayName("History survives a restart, even after a partly written message")
+    void recover() throws IOException {
+        try (var history = new HistoryStore(directory, 1024)) {
+            for (var i = 0; i < 100; i++)
+                history.append("bob", "alice", "message " + i);
+        }
+        try (var segments = Files.list(directory.resolve("bob"))) {
+            var newest = segments.filter(path -> path.toString().endsWith(".log")).sorted().toList().getLast();
+            Files.write(newest, new byte[] {0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+        }
+        try (var history = new HistoryStore(directory, 1024)) {
+            assertEquals(100, history.size("bob"));
+            history.append("bob", "bob", "hello again");
+            var last = history.last("bob", 2);
+            assertEquals("message 99", last.getFirst().text());
+            assertEquals(100, last.getLast().seq());
+            assertEquals("hello again", last.getLast().text());
+        }
+    }
+
+    @Test
+    void unicode() throws IOException {
+        try (var history = new HistoryStore(directory)) {
+            history.append("bob", "zoë", "héllo 👋");
+            var entry = history.last("bob", 1).getFirst();
+            assertEquals("zoë", entry.from());
+            assertEquals("héllo 👋", entry.text());
+        }
+    }
+
+    @Test
+    @DisplayName("Lookups at the end and in the middle of a long history")
+    void longHistory() throws IOException {
+        var count = 100_000;
+        try (var history = new HistoryStore(directory)) {
+            for (var i = 0; i < count; i++)
+                history.append("bob", "alice", "message number " + i);
+            var last = history.last("bob", 20);
+            assertEquals(20, last.size());
+            assertEquals(count - 20, last.getFirst().seq());
+            assertEquals("message number " + (count / 2), history.get("bob", count / 2).text());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package messenger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Accepts connections from any number of sources, such as a TCP port and the {@link LocalSocket} file for that
+ * port, handing them all out through a single {@link Listener#accept()}. Each {@link Transport} decides which
+ * sources listening on a port takes.
+ */
+public class Listener implements Closeable {
+    /**
+     * A single source of connections, closed along with the listener.
+     */
+    public interface Acceptor extends Closeable {
+        Socket accept() throws IOException;
+    }
+
+    // a connection, or the IOException accepting one failed with
+    private final BlockingQueue<Object> accepted = new LinkedBlockingQueue<>();
+    private final int port;
+    private final List<Acceptor> acceptors;
+    private volatile boolean closed = false;
+
+    /**
+     * Start accepting connections from every source, each on a virtual thread of its own.
+     * @param port The port the sources listen on.
+     */
+    public Listener(int port, Acceptor... acceptors) {
+        this.port = port;
+        this.acceptors = List.of(acceptors);
+        for (var acceptor: this.acceptors)
+            Thread.ofVirtual().name("listener").start(() -> acceptLoop(acceptor));
+    }
+
+    private void acceptLoop(Acceptor acceptor) {
+        while (!closed) {
+            try {
+                accepted.add(acceptor.accept());
+            } catch (IOException e) {
+                if (!closed)
+                    accepted.add(e);
+            }
+            if (closed)
+                drain();
+        }
+    }
+
+    /**
+     * Close the connections nobody accepted, and wake up whoever is still waiting for one.
+     */
+    private void drain() {
+        Object next;
+        while ((next = accepted.poll()) != null) {
+            if (next instanceof Socket connection) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        accepted.add(new SocketException("Listener is closed"));
+    }
+
+    /**
+     * @return The port we listen on.
+     */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * Wait for the next connection, whichever way it arrives.
+     */
+    public Socket accept() throws IOException {
+        if (closed)
+            throw new SocketException("Listener is closed");
+        try {
+            var next = accepted.take();
+            if (next instanceof IOException e) {
+                if (closed)
+                    accepted.add(e);
+                throw e;
+            }
+            return (Socket) next;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while accepting a connection.");
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOException failure = null;
+        for (var acceptor: acceptors) {
+            try {
+                acceptor.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        drain();
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,233 @@
+package messenger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection to another process on the same machine over a Unix domain socket, dressed up as a {@link Socket}
+ * so that packets, multiplexers and file transfers work over it unchanged.
+ * <p>Every process that listens on a TCP port also listens on a socket file named after that port, in a directory
+ * only its owner may enter. {@link Tls#connect(InetSocketAddress, int)} dials that file instead whenever the address
+ * is a loopback address and the file exists, and falls back to TCP if it cannot. This skips the loopback TCP stack,
+ * and TLS as well: the bytes never leave the machine, and only processes of the same user can reach the file.
+ * The address of the other end is reported as the loopback address, just as it would be over TCP.</p>
+ */
+public class LocalSocket extends Socket {
+    // the other end of an accepted connection has no port, so accepted connections are numbered instead
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static Path directory = null;
+
+    private final SocketChannel channel;
+    private final int port;
+    private final InputStream input = new Input();
+    private final OutputStream output = new Output();
+
+    private LocalSocket(SocketChannel channel, int port) {
+        this.channel = channel;
+        this.port = port;
+    }
+
+    /**
+     * @return The directory holding the socket files, created if need be, or {@code null} if local sockets are
+     *         turned off or the directory cannot be used safely.
+     */
+    private static synchronized Path directory() {
+        if (directory != null || !Config.LOCAL_SOCKETS)
+            return directory;
+        var path = Path.of(Config.LOCAL_SOCKET_DIRECTORY, "messenger-" + System.getProperty("user.name"));
+        try {
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                var ownerOnly = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+                        PosixFilePermission.OWNER_EXECUTE);
+                if (!Files.isDirectory(path))
+                    Files.createDirectories(path, PosixFilePermissions.asFileAttribute(ownerOnly));
+                // somebody else may have made it first, so check it is really ours
+                if (!Files.getPosixFilePermissions(path).equals(ownerOnly)
+                        || !Files.getOwner(path).getName().equals(System.getProperty("user.name")))
+                    return null;
+            } else {
+                Files.createDirectories(path);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return directory = path;
+    }
+
+    static Path path(int port) {
+        var directory = directory();
+        return directory == null ? null : directory.resolve(port + ".sock");
+    }
+
+    /**
+     * Connect to the process listening on a loopback address, if it can be reached locally.
+     * @return The connection, or {@code null} if the address is not local or nobody listens on its socket file,
+     *         in which case the caller should connect over TCP.
+     */
+    public static Socket connect(InetSocketAddress address) {
+        if (address.getAddress() == null || !address.getAddress().isLoopbackAddress())
+            return null;
+        var path = path(address.getPort());
+        if (path == null || !Files.exists(path))
+            return null;
+        try {
+            return new LocalSocket(SocketChannel.open(UnixDomainSocketAddress.of(path)), address.getPort());
+        } catch (IOException e) {
+            // e.g. a stale file left behind by a process that crashed
+            return null;
+        }
+    }
+
+    /**
+     * Listen on the socket file for a TCP port. The caller must own the TCP port, since any file already there is
+     * taken to be stale and replaced.
+     * @return The listening channel, or {@code null} if local sockets cannot be used here.
+     */
+    static ServerSocketChannel listen(int port) {
+        var path = path(port);
+        if (path == null)
+            return null;
+        try {
+            Files.deleteIfExists(path);
+            var channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.bind(UnixDomainSocketAddress.of(path), Config.LISTEN_BACKLOG);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stop listening on a socket file from {@link LocalSocket#listen(int)} and remove it.
+     */
+    static void unlisten(ServerSocketChannel channel) {
+        try (channel) {
+            if (channel.getLocalAddress() instanceof UnixDomainSocketAddress address)
+                Files.deleteIfExists(address.getPath());
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Wait for the next connection to a socket file from {@link LocalSocket#listen(int)}.
+     */
+    static Socket accept(ServerSocketChannel listener) throws IOException {
+        return new LocalSocket(listener.accept(), nextId.getAndIncrement());
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * @return The TCP port of the process we connected to, or the number of a connection we accepted.
+     */
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // there is no Nagle's algorithm to turn off
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            super.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LocalSocket[port=%d]".formatted(port);
+    }
+
+    private class Input extends InputStream {
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            LocalSocket.this.close();
+        }
+    }
+
+    private class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            var buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            LocalSocket.this.close();
+        }
+    }
+}
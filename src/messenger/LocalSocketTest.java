@@ -0,0 +1,100 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Multiplexer;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalSocketTest {
+    static int serverPort;
+    static final int REQUESTS = 10;
+    static Server server;
+
+    @BeforeAll
+    static void setUp() throws IOException, InterruptedException {
+        server = new Server(0);
+        serverPort = server.port();
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Requests to a server on the same machine skip TCP and TLS")
+    void server() throws IOException {
+        var whois = new Packet(Method.WHOIS, Map.of("username", "nobody"));
+        for (var i = 0; i < REQUESTS; i++) {
+            try (var socket = Tls.connect(Config.SERVER_IP, serverPort)) {
+                assertInstanceOf(LocalSocket.class, socket);
+                Packet.sendPacket(socket, whois);
+                assertEquals(Error.NO_SUCH_USER, Packet.readPacket(socket).getError());
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Peers on the same machine chat over local sockets")
+    void peers() throws Exception {
+        var alice = Client.open(0, Config.SERVER_IP, serverPort);
+        var bob = Client.open(0, Config.SERVER_IP, serverPort);
+        try {
+            assertEquals(Error.OK, alice.register("alice" + alice.port, "password"));
+            assertEquals(Error.OK, bob.register("bob" + bob.port, "password"));
+            var session = alice.connectToPeer(bob.username);
+            assertInstanceOf(LocalSocket.class, session.open(Multiplexer.Priority.NORMAL).multiplexer().socket());
+            var results = new ArrayList<CompletableFuture<Error>>();
+            for (var i = 0; i < 1000; i++)
+                results.add(alice.sendMessage(session, "message " + i));
+            for (var result: results)
+                assertEquals(Error.OK, result.get(30, TimeUnit.SECONDS));
+        } finally {
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A socket file nobody listens on falls back to TCP")
+    void stale() throws IOException {
+        try (var tcp = new ServerSocket(0)) {
+            var address = new InetSocketAddress(Config.SERVER_IP, tcp.getLocalPort());
+            var path = LocalSocket.path(tcp.getLocalPort());
+            Files.deleteIfExists(path);
+            Files.createFile(path);
+            try (var socket = Tls.connect(address, 1000)) {
+                assertFalse(socket instanceof LocalSocket);
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Closing a listener removes its socket file")
+    void close() throws IOException {
+        var listener = Transport.DEFAULT.listen(0);
+        var path = LocalSocket.path(listener.port());
+        assertTrue(Files.exists(path));
+        listener.close();
+        assertFalse(Files.exists(path));
+        assertThrows(IOException.class, listener::accept);
+    }
+}
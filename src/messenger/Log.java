@@ -0,0 +1,410 @@
+package messenger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured logging that stays off the threads doing the work. A record is an event name and up to three fields:
+ * <pre>{@code
+ *     Log.debug("request", "from", connection.getInetAddress(), "packet", request);
+ * }</pre>
+ * <p>Logging a record copies its references into a slot of a ring buffer of {@link Config#LOG_BUFFER_SIZE} records,
+ * and that is all the caller pays for: a background thread turns it into a line of text, such as
+ * {@code 2024-04-20T14:02:31.337Z DEBUG request from=127.0.0.1 packet="Packet[...]"}, and writes it to
+ * {@link Config#LOG_FILE}, which is rotated every {@link Config#LOG_FILE_BYTES}. A record below the level
+ * costs a comparison, so values are never formatted unless they are written. Fields hold onto their values until the
+ * record is written, so only values that do not change afterwards, such as packets, should be logged.</p>
+ * <p>Slots are claimed without locks, so threads logging at once do not wait for each other, and never for the disk.
+ * If the writer falls a whole buffer behind, records are dropped rather than holding up the caller, and how many
+ * were dropped is logged once the writer catches up. Any field whose value is a {@link Throwable} has its stack
+ * trace written after the line.</p>
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /**
+     * A record waiting for the writer. Whoever claimed the slot fills it in, then publishes it by setting the
+     * sequence one past the position it was claimed at. The writer empties it and sets the sequence to the position
+     * that will claim it next, one buffer later.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long time;
+        String event;
+        String key1, key2, key3;
+        Object value1, value2, value3;
+
+        void clear() {
+            event = key1 = key2 = key3 = null;
+            value1 = value2 = value3 = null;
+        }
+    }
+
+    private record Output(Path file, long fileBytes, int files) {}
+
+    private static final Slot[] slots = new Slot[Config.LOG_BUFFER_SIZE];
+    private static final int mask = Config.LOG_BUFFER_SIZE - 1;
+    // the position the next record is claimed at
+    private static final AtomicLong head = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    // every record before this position is written and flushed
+    private static volatile long flushed = 0;
+    private static volatile int threshold = Config.LOG_LEVEL.ordinal();
+    private static volatile Output output =
+            new Output(Path.of(Config.LOG_FILE), Config.LOG_FILE_BYTES, Config.LOG_FILES);
+    private static final Thread writer;
+
+    static {
+        if (Integer.bitCount(Config.LOG_BUFFER_SIZE) != 1)
+            throw new IllegalStateException("LOG_BUFFER_SIZE must be a power of two");
+        for (var i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // write whatever is still buffered when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log() {}
+
+    public static boolean enabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Log records of this level and above from now on.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Write the records logged from now on to another file, rotating it every {@link Config#LOG_FILE_BYTES} and
+     * keeping {@link Config#LOG_FILES} of them. Records already logged go to the file they were logged for.
+     */
+    public static void setOutput(Path file) {
+        setOutput(file, Config.LOG_FILE_BYTES, Config.LOG_FILES);
+    }
+
+    static void setOutput(Path file, long fileBytes, int files) {
+        flush();
+        output = new Output(file, fileBytes, files);
+    }
+
+    /**
+     * Wait until every record logged so far is written to the file.
+     */
+    public static void flush() {
+        var target = head.get();
+        while (flushed < target) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    public static void debug(String event) {
+        if (enabled(Level.DEBUG))
+            log(Level.DEBUG, event, null, null, null, null, null, null);
+    }
+
+    public static void debug(String event, String key, Object value) {
+        if (enabled(Level.DEBUG))
+            log(Level.DEBUG, event, key, value, null, null, null, null);
+    }
+
+    public static void debug(String event, String key1, Object value1, String key2, Object value2) {
+        if (enabled(Level.DEBUG))
+            log(Level.DEBUG, event, key1, value1, key2, value2, null, null);
+    }
+
+    public static void debug(String event, String key1, Object value1, String key2, Object value2,
+                             String key3, Object value3) {
+        if (enabled(Level.DEBUG))
+            log(Level.DEBUG, event, key1, value1, key2, value2, key3, value3);
+    }
+
+    public static void info(String event) {
+        if (enabled(Level.INFO))
+            log(Level.INFO, event, null, null, null, null, null, null);
+    }
+
+    public static void info(String event, String key, Object value) {
+        if (enabled(Level.INFO))
+            log(Level.INFO, event, key, value, null, null, null, null);
+    }
+
+    public static void info(String event, String key1, Object value1, String key2, Object value2) {
+        if (enabled(Level.INFO))
+            log(Level.INFO, event, key1, value1, key2, value2, null, null);
+    }
+
+    public static void info(String event, String key1, Object value1, String key2, Object value2,
+                            String key3, Object value3) {
+        if (enabled(Level.INFO))
+            log(Level.INFO, event, key1, value1, key2, value2, key3, value3);
+    }
+
+    public static void warn(String event) {
+        if (enabled(Level.WARN))
+            log(Level.WARN, event, null, null, null, null, null, null);
+    }
+
+    public static void warn(String event, String key, Object value) {
+        if (enabled(Level.WARN))
+            log(Level.WARN, event, key, value, null, null, null, null);
+    }
+
+    public static void warn(String event, String key1, Object value1, String key2, Object value2) {
+        if (enabled(Level.WARN))
+            log(Level.WARN, event, key1, value1, key2, value2, null, null);
+    }
+
+    public static void warn(String event, String key1, Object value1, String key2, Object value2,
+                            String key3, Object value3) {
+        if (enabled(Level.WARN))
+            log(Level.WARN, event, key1, value1, key2, value2, key3, value3);
+    }
+
+    public static void error(String event) {
+        if (enabled(Level.ERROR))
+            log(Level.ERROR, event, null, null, null, null, null, null);
+    }
+
+    public static void error(String event, String key, Object value) {
+        if (enabled(Level.ERROR))
+            log(Level.ERROR, event, key, value, null, null, null, null);
+    }
+
+    public static void error(String event, String key1, Object value1, String key2, Object value2) {
+        if (enabled(Level.ERROR))
+            log(Level.ERROR, event, key1, value1, key2, value2, null, null);
+    }
+
+    public static void error(String event, String key1, Object value1, String key2, Object value2,
+                             String key3, Object value3) {
+        if (enabled(Level.ERROR))
+            log(Level.ERROR, event, key1, value1, key2, value2, key3, value3);
+    }
+
+    private static void log(Level level, String event, String key1, Object value1, String key2, Object value2,
+                            String key3, Object value3) {
+        long position;
+        Slot slot;
+        while (true) {
+            position = head.get();
+            slot = slots[(int) (position & mask)];
+            var sequence = slot.sequence;
+            if (sequence == position) {
+                if (head.compareAndSet(position, position + 1))
+                    break;
+            } else if (sequence < position) {
+                // the writer has not emptied this slot since the last time around
+                dropped.increment();
+                return;
+            }
+            // otherwise another thread claimed the position first
+        }
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.event = event;
+        slot.key1 = key1;
+        slot.value1 = value1;
+        slot.key2 = key2;
+        slot.value2 = value2;
+        slot.key3 = key3;
+        slot.value3 = value3;
+        slot.sequence = position + 1;
+    }
+
+    /**
+     * Write records as they are published, waking up every {@link Config#LOG_FLUSH_MILLIS} once there are none.
+     */
+    private static void drain() {
+        var line = new StringBuilder();
+        var file = new RotatingFile(output);
+        var position = 0L;
+        while (true) {
+            var slot = slots[(int) (position & mask)];
+            if (slot.sequence != position + 1) {
+                var lost = dropped.sumThenReset();
+                if (lost > 0) {
+                    format(line, Level.WARN, System.currentTimeMillis(), "log.dropped", "records", lost,
+                            null, null, null, null);
+                    file.write(line);
+                    line.setLength(0);
+                }
+                file.flush();
+                flushed = position;
+                LockSupport.parkNanos(Config.LOG_FLUSH_MILLIS * 1_000_000);
+                continue;
+            }
+            // read only once the record is published, so it goes to the file that was current when it was logged
+            if (file.output != output) {
+                file.close();
+                file = new RotatingFile(output);
+            }
+            try {
+                format(line, slot.level, slot.time, slot.event, slot.key1, slot.value1, slot.key2, slot.value2,
+                        slot.key3, slot.value3);
+            } catch (RuntimeException e) {
+                // a value whose toString() throws must not take the writer down with it
+                line.setLength(0);
+                format(line, Level.WARN, slot.time, "log.unformattable", "event", slot.event, "error", e,
+                        null, null);
+            }
+            slot.clear();
+            slot.sequence = position + slots.length;
+            position++;
+            file.write(line);
+            line.setLength(0);
+        }
+    }
+
+    private static void format(StringBuilder line, Level level, long time, String event, String key1, Object value1,
+                               String key2, Object value2, String key3, Object value3) {
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(time), line);
+        line.append(' ').append(level).append(' ').append(event);
+        field(line, key1, value1);
+        field(line, key2, value2);
+        field(line, key3, value3);
+        line.append('\n');
+        for (var value: new Object[] {value1, value2, value3}) {
+            if (value instanceof Throwable throwable) {
+                var trace = new StringWriter();
+                throwable.printStackTrace(new PrintWriter(trace));
+                trace.toString().lines().skip(1).forEach(frame -> line.append(frame).append('\n'));
+            }
+        }
+    }
+
+    /**
+     * Append {@code key=value}, quoting the value if it is empty or has spaces, quotes or equals signs in it, and
+     * cutting it short after {@link Config#LOG_VALUE_LENGTH} characters.
+     */
+    private static void field(StringBuilder line, String key, Object value) {
+        if (key == null)
+            return;
+        line.append(' ').append(key).append('=');
+        var text = String.valueOf(value);
+        var length = Math.min(text.length(), Config.LOG_VALUE_LENGTH);
+        var quote = text.isEmpty();
+        for (var i = 0; i < length && !quote; i++) {
+            var c = text.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            line.append(text, 0, length);
+        } else {
+            line.append('"');
+            for (var i = 0; i < length; i++) {
+                var c = text.charAt(i);
+                switch (c) {
+                    case '"' -> line.append("\\\"");
+                    case '\\' -> line.append("\\\\");
+                    case '\n' -> line.append("\\n");
+                    case '\r' -> line.append("\\r");
+                    case '\t' -> line.append("\\t");
+                    default -> line.append(c);
+                }
+            }
+            line.append('"');
+        }
+        if (length < text.length())
+            line.append("...");
+    }
+
+    /**
+     * A log file that is renamed to {@code name.1} once it grows past its size, {@code name.1} to {@code name.2} and
+     * so on, dropping the oldest. Lines that cannot be written go to standard error instead.
+     */
+    private static class RotatingFile {
+        final Output output;
+        private BufferedWriter writer;
+        private long bytes;
+
+        RotatingFile(Output output) {
+            this.output = output;
+            open();
+        }
+
+        private void open() {
+            try {
+                var parent = output.file().toAbsolutePath().getParent();
+                if (parent != null)
+                    Files.createDirectories(parent);
+                writer = Files.newBufferedWriter(output.file(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                bytes = Files.size(output.file());
+            } catch (IOException e) {
+                System.err.println("Cannot write the log to %s: %s".formatted(output.file(), e));
+                writer = null;
+            }
+        }
+
+        private Path rotated(int index) {
+            return output.file().resolveSibling(output.file().getFileName() + "." + index);
+        }
+
+        private void rotate() throws IOException {
+            writer.close();
+            Files.deleteIfExists(rotated(output.files() - 1));
+            for (var i = output.files() - 2; i >= 1; i--) {
+                if (Files.exists(rotated(i)))
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (output.files() > 1)
+                Files.move(output.file(), rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.delete(output.file());
+            open();
+        }
+
+        void write(CharSequence line) {
+            try {
+                if (writer != null && bytes >= output.fileBytes())
+                    rotate();
+                if (writer != null) {
+                    writer.append(line);
+                    // close enough to the bytes for deciding when to rotate, without encoding twice
+                    bytes += line.length();
+                    return;
+                }
+            } catch (IOException e) {
+                writer = null;
+            }
+            System.err.print(line);
+        }
+
+        void flush() {
+            try {
+                if (writer != null)
+                    writer.flush();
+            } catch (IOException e) {
+                writer = null;
+            }
+        }
+
+        void close() {
+            try {
+                if (writer != null)
+                    writer.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
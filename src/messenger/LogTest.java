@@ -0,0 +1,120 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogTest {
+    @TempDir
+    Path directory;
+    Path file;
+
+    @BeforeEach
+    void setUp() {
+        file = directory.resolve("test.log");
+        Log.setOutput(file);
+        Log.setLevel(Log.Level.DEBUG);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Log.setLevel(Config.LOG_LEVEL);
+        Log.setOutput(Path.of(Config.LOG_FILE));
+    }
+
+    List<String> lines() throws IOException {
+        Log.flush();
+        return Files.exists(file) ? Files.readAllLines(file) : List.of();
+    }
+
+    @Test
+    @DisplayName("A line per record, with its fields quoted where needed and stack traces after it")
+    void fields() throws IOException {
+        Log.info("server.listening", "port", 6789);
+        Log.warn("request.malformed", "error", "bad \"header\"\nline", "empty", "");
+        Log.error("failed", "error", new IOException("disk full"));
+        var lines = lines();
+        assertTrue(lines.get(0).endsWith(" INFO server.listening port=6789"), lines.get(0));
+        assertTrue(lines.get(1).endsWith(" WARN request.malformed error=\"bad \\\"header\\\"\\nline\" empty=\"\""),
+                lines.get(1));
+        assertTrue(lines.get(2).endsWith(" ERROR failed error=\"java.io.IOException: disk full\""), lines.get(2));
+        assertTrue(lines.get(3).strip().startsWith("at messenger.LogTest.fields"), lines.get(3));
+    }
+
+    @Test
+    @DisplayName("Records below the level are not formatted, and records above it are formatted by the writer")
+    void disabled() throws IOException {
+        var formatted = new AtomicInteger();
+        var threads = new ArrayList<String>();
+        var value = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                threads.add(Thread.currentThread().getName());
+                return "value";
+            }
+        };
+        Log.setLevel(Log.Level.WARN);
+        Log.debug("quiet", "value", value);
+        Log.info("quiet", "value", value);
+        assertFalse(Log.enabled(Log.Level.INFO));
+        assertEquals(List.of(), lines());
+        assertEquals(0, formatted.get());
+
+        Log.warn("loud", "value", value);
+        assertEquals(1, lines().size());
+        assertEquals(1, formatted.get());
+        assertEquals(List.of("log-writer"), threads);
+    }
+
+    @Test
+    @DisplayName("A full file is rotated, keeping the configured number of files")
+    void rotation() throws IOException {
+        Log.setOutput(file, 1000, 3);
+        for (var i = 0; i < 100; i++)
+            Log.info("record", "index", i);
+        var lines = lines();
+        var rotated = new ArrayList<String>();
+        for (var index = 2; index >= 1; index--)
+            rotated.addAll(Files.readAllLines(file.resolveSibling("test.log." + index)));
+        rotated.addAll(lines);
+        assertFalse(Files.exists(file.resolveSibling("test.log.3")));
+        assertTrue(Files.size(file.resolveSibling("test.log.1")) < 1100);
+        // the oldest records were rotated away, and the rest are in order
+        assertTrue(rotated.getFirst().endsWith(" index=" + (100 - rotated.size())), rotated.getFirst());
+        assertTrue(rotated.getLast().endsWith(" index=99"), rotated.getLast());
+    }
+
+    @Test
+    @DisplayName("Threads logging at once lose nothing while the buffer has room")
+    void concurrent() throws Exception {
+        var threads = 8;
+        var records = Config.LOG_BUFFER_SIZE / threads;
+        var loggers = new ArrayList<Thread>();
+        for (var t = 0; t < threads; t++) {
+            var thread = t;
+            loggers.add(Thread.ofVirtual().start(() -> {
+                for (var i = 0; i < records; i++)
+                    Log.info("record", "thread", thread, "index", i);
+            }));
+        }
+        for (var logger: loggers)
+            logger.join();
+        var next = new int[threads];
+        for (var line: lines()) {
+            var fields = line.split(" ");
+            var thread = Integer.parseInt(fields[3].substring("thread=".length()));
+            assertEquals("index=" + next[thread]++, fields[4]);
+        }
+        for (var count: next)
+            assertEquals(records, count);
+    }
+}
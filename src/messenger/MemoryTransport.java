@@ -0,0 +1,577 @@
+package messenger;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects clients and servers in the same JVM through in-memory pipes, so that tests and simulations need no
+ * ports on the machine and cannot collide with each other: each transport has ports of its own, which only
+ * connections made through it can reach. The other end of every connection appears to be the loopback address.
+ * <p>Each direction of a connection is a link that delivers what was written to it {@link #setLatency(Duration)}
+ * later, no faster than {@link #setBandwidth(long)} allows. Writes block once {@link Config#MEMORY_PIPE_BYTES}
+ * are waiting to be read, as they would once the socket buffers fill up. Changes to these take effect on every
+ * connection straight away.</p>
+ * <p>Faults are injected at random with {@link #setFaultRate(Fault, double)}. They are rolled for each connection
+ * and each write, which is a single packet for {@link protocol.Packet#sendPacket(Socket, protocol.Packet)} and a
+ * batch of frames for a {@link protocol.Multiplexer}. The dice come from a seeded generator, so a simulation that
+ * connects and writes in the same order fails in the same places every time.</p>
+ * <p>{@link #datagrams(int)} ports are in-memory queues too, in a port space of their own. Datagrams arrive after
+ * the same latency as connections, are not limited by the bandwidth, and may be dropped or corrupted like writes.
+ * A datagram sent to a port nobody is receiving on, or whose queue already holds
+ * {@link Config#MEMORY_PIPE_BYTES}, is lost.</p>
+ */
+public class MemoryTransport implements Transport {
+    public enum Fault {
+        /**
+         * Nobody is listening: connecting fails.
+         */
+        REFUSE,
+        /**
+         * The connection breaks: the write and every read and write after it on either end fail.
+         */
+        RESET,
+        /**
+         * The write is lost, as if the link went quiet, and the reader waits for it forever.
+         */
+        DROP,
+        /**
+         * One byte of the write is flipped on the way.
+         */
+        CORRUPT
+    }
+
+    // ports handed out for port 0, counting up from the start of the usual ephemeral range
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+    private final Map<Integer, Port> ports = new HashMap<>();
+    private int nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+    private final Map<Integer, DatagramPort> datagramPorts = new HashMap<>();
+    private int nextDatagramPort = FIRST_EPHEMERAL_PORT;
+    private final Random random;
+    private final Map<Fault, Double> faultRates = new EnumMap<>(Fault.class);
+    private volatile long latencyNanos = 0;
+    private volatile long bandwidth = 0;
+
+    public MemoryTransport() {
+        this(0);
+    }
+
+    /**
+     * @param seed The seed faults are rolled from.
+     */
+    public MemoryTransport(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param latency How long bytes written to a connection take to reach the other end.
+     */
+    public void setLatency(Duration latency) {
+        if (latency.isNegative())
+            throw new IllegalArgumentException("Latency cannot be negative");
+        latencyNanos = latency.toNanos();
+    }
+
+    /**
+     * @param bytesPerSecond How fast each direction of a connection delivers bytes, or 0 for no limit.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Bandwidth cannot be negative");
+        bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * @param rate The fraction of connections ({@link Fault#REFUSE}) or writes (the others) the fault happens to,
+     *             from 0 for none to 1 for all.
+     */
+    public synchronized void setFaultRate(Fault fault, double rate) {
+        if (!(rate >= 0 && rate <= 1))
+            throw new IllegalArgumentException("Fault rate must be between 0 and 1");
+        faultRates.put(fault, rate);
+    }
+
+    /**
+     * Roll for each fault in turn.
+     * @return The first fault that happens, or {@code null} if none does.
+     */
+    private synchronized Fault roll(Fault... faults) {
+        for (var fault: faults) {
+            var rate = faultRates.getOrDefault(fault, 0.0);
+            if (rate > 0 && random.nextDouble() < rate)
+                return fault;
+        }
+        return null;
+    }
+
+    private synchronized int flip() {
+        return 1 << random.nextInt(8);
+    }
+
+    private synchronized int position(int length) {
+        return random.nextInt(length);
+    }
+
+    @Override
+    public Socket connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+        Port port;
+        synchronized (this) {
+            port = ports.get(address.getPort());
+        }
+        if (port == null || roll(Fault.REFUSE) != null)
+            throw new ConnectException("Connection refused");
+        var toServer = new Pipe();
+        var toClient = new Pipe();
+        toServer.reverse = toClient;
+        toClient.reverse = toServer;
+        if (!port.offer(toServer, toClient))
+            throw new ConnectException("Connection refused");
+        return new MemorySocket(toClient, toServer, address.getPort());
+    }
+
+    @Override
+    public synchronized Listener listen(int port) throws IOException {
+        if (port == 0) {
+            while (ports.containsKey(nextEphemeralPort))
+                nextEphemeralPort = nextEphemeralPort == 65535 ? FIRST_EPHEMERAL_PORT : nextEphemeralPort + 1;
+            port = nextEphemeralPort;
+        } else if (ports.containsKey(port)) {
+            throw new BindException("Address already in use");
+        }
+        var listening = new Port(port);
+        ports.put(port, listening);
+        return new Listener(port, listening);
+    }
+
+    @Override
+    public synchronized Datagrams datagrams(int port) throws IOException {
+        if (port == 0) {
+            while (datagramPorts.containsKey(nextDatagramPort))
+                nextDatagramPort = nextDatagramPort == 65535 ? FIRST_EPHEMERAL_PORT : nextDatagramPort + 1;
+            port = nextDatagramPort;
+        } else if (datagramPorts.containsKey(port)) {
+            throw new BindException("Address already in use");
+        }
+        var datagrams = new DatagramPort(port);
+        datagramPorts.put(port, datagrams);
+        return datagrams;
+    }
+
+    /**
+     * The datagrams waiting to be received on a port.
+     */
+    private class DatagramPort implements Datagrams {
+        private final int number;
+        private final ArrayDeque<Segment> queue = new ArrayDeque<>();
+        private int queued = 0;
+        private boolean closed = false;
+
+        DatagramPort(int number) {
+            this.number = number;
+        }
+
+        @Override
+        public int port() {
+            return number;
+        }
+
+        @Override
+        public void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+            var bytes = new byte[datagram.remaining()];
+            datagram.get(bytes);
+            synchronized (this) {
+                if (closed)
+                    throw new SocketException("Socket is closed");
+            }
+            DatagramPort target;
+            synchronized (MemoryTransport.this) {
+                target = datagramPorts.get(address.getPort());
+            }
+            var fault = roll(Fault.DROP, Fault.CORRUPT);
+            if (target == null || fault == Fault.DROP)
+                return;
+            if (fault == Fault.CORRUPT && bytes.length > 0)
+                bytes[position(bytes.length)] ^= (byte) flip();
+            target.offer(new Segment(bytes, System.nanoTime() + latencyNanos));
+        }
+
+        private synchronized void offer(Segment datagram) {
+            if (closed || queued + datagram.bytes.length > Config.MEMORY_PIPE_BYTES)
+                return;
+            queue.add(datagram);
+            queued += datagram.bytes.length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized boolean receive(ByteBuffer buffer, long timeoutMillis) throws IOException {
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (true) {
+                    if (closed)
+                        return false;
+                    var head = queue.peek();
+                    var now = System.nanoTime();
+                    if (head != null && head.deliverAt <= now)
+                        break;
+                    if (now >= deadline)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this,
+                            (head == null ? deadline : Math.min(deadline, head.deliverAt)) - now);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while receiving.");
+            }
+            var head = queue.poll();
+            queued -= head.bytes.length;
+            buffer.put(head.bytes, 0, Math.min(head.bytes.length, buffer.remaining()));
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            synchronized (MemoryTransport.this) {
+                datagramPorts.remove(number, this);
+            }
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+                queued = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The connections waiting to be accepted on a port.
+     */
+    private class Port implements Listener.Acceptor {
+        private final int number;
+        private final ArrayDeque<Socket> backlog = new ArrayDeque<>();
+        // the other end of an accepted connection has no port, so accepted connections are numbered instead
+        private int nextId = 1;
+        private boolean closed = false;
+
+        Port(int number) {
+            this.number = number;
+        }
+
+        /**
+         * Queue up the server end of a new connection.
+         * @return Whether there was room for it.
+         */
+        synchronized boolean offer(Pipe incoming, Pipe outgoing) {
+            if (closed || backlog.size() >= Config.LISTEN_BACKLOG)
+                return false;
+            backlog.add(new MemorySocket(incoming, outgoing, nextId++));
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized Socket accept() throws IOException {
+            try {
+                while (backlog.isEmpty() && !closed)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while accepting a connection.");
+            }
+            if (closed)
+                throw new SocketException("Socket is closed");
+            return backlog.poll();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (MemoryTransport.this) {
+                ports.remove(number, this);
+            }
+            synchronized (this) {
+                closed = true;
+                for (var connection: backlog)
+                    connection.close();
+                backlog.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Bytes written to a link, and when they reach the other end.
+     */
+    private static class Segment {
+        final byte[] bytes;
+        final long deliverAt;
+        int position = 0;
+
+        Segment(byte[] bytes, long deliverAt) {
+            this.bytes = bytes;
+            this.deliverAt = deliverAt;
+        }
+    }
+
+    /**
+     * One direction of a connection.
+     */
+    private class Pipe {
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        // the other direction of the same connection
+        Pipe reverse;
+        // bytes written and not read yet
+        private int buffered = 0;
+        // when the link is done sending everything written to it so far, as System.nanoTime()
+        private long linkFree = 0;
+        // the writer is done, and reads end once the rest has arrived
+        private boolean shutdown = false;
+        // the reader is gone, and writes fail
+        private boolean abandoned = false;
+        private IOException broken = null;
+
+        void write(byte[] b, int off, int len) throws IOException {
+            var fault = roll(Fault.RESET, Fault.DROP, Fault.CORRUPT);
+            if (fault == Fault.RESET) {
+                reset();
+                reverse.reset();
+            }
+            append(b, off, len, fault);
+        }
+
+        private synchronized void append(byte[] b, int off, int len, Fault fault) throws IOException {
+            try {
+                while (buffered >= Config.MEMORY_PIPE_BYTES && broken == null && !abandoned && !shutdown)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while writing.");
+            }
+            if (broken != null)
+                throw broken;
+            if (shutdown)
+                throw new SocketException("Socket output is shut down");
+            if (abandoned)
+                throw new SocketException("Broken pipe");
+            if (fault == Fault.DROP)
+                return;
+            var bytes = Arrays.copyOfRange(b, off, off + len);
+            if (fault == Fault.CORRUPT && len > 0)
+                bytes[position(len)] ^= (byte) flip();
+            var now = System.nanoTime();
+            var bandwidth = MemoryTransport.this.bandwidth;
+            linkFree = Math.max(now, linkFree) + (bandwidth == 0 ? 0 : len * 1_000_000_000L / bandwidth);
+            segments.add(new Segment(bytes, linkFree + latencyNanos));
+            buffered += len;
+            notifyAll();
+        }
+
+        /**
+         * @return The number of bytes read, or -1 once the writer is done and everything has been read or the
+         *         reader is gone.
+         */
+        synchronized int read(byte[] b, int off, int len, int timeoutMillis) throws IOException {
+            var deadline = timeoutMillis == 0 ? Long.MAX_VALUE
+                    : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (true) {
+                    if (broken != null)
+                        throw broken;
+                    if (abandoned)
+                        return -1;
+                    var head = segments.peek();
+                    if (head == null && shutdown)
+                        return -1;
+                    var now = System.nanoTime();
+                    if (head != null && head.deliverAt <= now)
+                        break;
+                    if (now >= deadline)
+                        throw new SocketTimeoutException("Read timed out");
+                    var until = head == null ? deadline : Math.min(deadline, head.deliverAt);
+                    if (until == Long.MAX_VALUE)
+                        wait();
+                    else
+                        TimeUnit.NANOSECONDS.timedWait(this, until - now);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading.");
+            }
+            var head = segments.peek();
+            var count = Math.min(len, head.bytes.length - head.position);
+            System.arraycopy(head.bytes, head.position, b, off, count);
+            head.position += count;
+            if (head.position == head.bytes.length)
+                segments.poll();
+            buffered -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void shutdown() {
+            shutdown = true;
+            notifyAll();
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            segments.clear();
+            buffered = 0;
+            notifyAll();
+        }
+
+        synchronized void reset() {
+            if (broken == null)
+                broken = new SocketException("Connection reset");
+            notifyAll();
+        }
+    }
+
+    /**
+     * One end of an in-memory connection.
+     */
+    private static class MemorySocket extends Socket {
+        private final Pipe incoming;
+        private final Pipe outgoing;
+        private final int port;
+        private final InputStream input = new Input();
+        private final OutputStream output = new Output();
+        private volatile int timeoutMillis = 0;
+        private volatile boolean closed = false;
+
+        MemorySocket(Pipe incoming, Pipe outgoing, int port) {
+            this.incoming = incoming;
+            this.outgoing = outgoing;
+            this.port = port;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (closed)
+                throw new SocketException("Socket is closed");
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (closed)
+                throw new SocketException("Socket is closed");
+            return output;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        /**
+         * @return The port we connected to, or the number of a connection we accepted.
+         */
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // every write is sent as soon as it is made anyway
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+            if (timeout < 0)
+                throw new IllegalArgumentException("timeout < 0");
+            timeoutMillis = timeout;
+        }
+
+        @Override
+        public int getSoTimeout() {
+            return timeoutMillis;
+        }
+
+        @Override
+        public void shutdownInput() {
+            incoming.abandon();
+        }
+
+        @Override
+        public void shutdownOutput() {
+            outgoing.shutdown();
+        }
+
+        /**
+         * Close both directions: the other end reads what we wrote and then the end of the stream, and its writes
+         * fail from now on.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            outgoing.shutdown();
+            incoming.abandon();
+            super.close();
+        }
+
+        @Override
+        public String toString() {
+            return "MemorySocket[port=%d]".formatted(port);
+        }
+
+        private class Input extends InputStream {
+            @Override
+            public int read() throws IOException {
+                var b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                Objects.checkFromIndexSize(off, len, b.length);
+                if (len == 0)
+                    return 0;
+                var count = incoming.read(b, off, len, timeoutMillis);
+                if (count < 0 && closed)
+                    throw new SocketException("Socket closed");
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                MemorySocket.this.close();
+            }
+        }
+
+        private class Output extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Objects.checkFromIndexSize(off, len, b.length);
+                if (closed)
+                    throw new SocketException("Socket closed");
+                outgoing.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                MemorySocket.this.close();
+            }
+        }
+    }
+}
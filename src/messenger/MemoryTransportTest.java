@@ -0,0 +1,238 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryTransportTest {
+    // the same ports as ServerTest and ClientTest, which nothing here collides with
+    static final int SERVER_PORT = 6789;
+    static final int CLIENT_PORT = 1234;
+
+    /**
+     * Answer every connection with what it sent.
+     */
+    static Listener echo(Transport transport) throws IOException {
+        var listener = transport.listen(0);
+        Thread.ofVirtual().start(() -> {
+            while (true) {
+                try {
+                    var connection = listener.accept();
+                    Thread.ofVirtual().start(() -> {
+                        try (connection) {
+                            var request = Packet.readPacket(connection);
+                            Packet.sendPacket(connection, request);
+                        } catch (Exception _) {}
+                    });
+                } catch (IOException _) {
+                    return;
+                }
+            }
+        });
+        return listener;
+    }
+
+    static Packet roundTrip(Transport transport, int port, Packet request) throws Exception {
+        try (var socket = transport.connect(Config.SERVER_IP, port)) {
+            // a corrupted packet may never end
+            socket.setSoTimeout(5000);
+            Packet.sendPacket(socket, request);
+            return Packet.readPacket(socket);
+        }
+    }
+
+    @Test
+    @DisplayName("Clients and a server talk over a transport of their own")
+    void session() throws Exception {
+        var transport = new MemoryTransport();
+        var server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        var alice = Client.open(CLIENT_PORT, Config.SERVER_IP, SERVER_PORT, transport);
+        var bob = Client.open(CLIENT_PORT + 1, Config.SERVER_IP, SERVER_PORT, transport);
+        try {
+            assertEquals(Error.OK, alice.register("memory-alice", "password"));
+            assertEquals(Error.OK, bob.register("memory-bob", "password"));
+            var session = alice.connectToPeer("memory-bob");
+            assertNotNull(session);
+            assertEquals(Error.OK, alice.sendMessage(session, "hi bob!").get());
+            // nothing else can reach these ports
+            assertThrows(ConnectException.class, () -> new MemoryTransport().connect(Config.SERVER_IP, SERVER_PORT));
+        } finally {
+            alice.close();
+            bob.close();
+            server.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Bytes take the latency to arrive, and no less time than the bandwidth allows")
+    void latencyAndBandwidth() throws Exception {
+        var transport = new MemoryTransport();
+        try (var listener = echo(transport)) {
+            transport.setLatency(Duration.ofMillis(50));
+            var start = System.nanoTime();
+            roundTrip(transport, listener.port(), new Packet(Method.WHOIS, "alice"));
+            var millis = (System.nanoTime() - start) / 1e6;
+            assertTrue(millis >= 100, "round trip took %.1f ms".formatted(millis));
+
+            transport.setLatency(Duration.ZERO);
+            transport.setBandwidth(1_000_000);
+            var content = "x".repeat(200_000);
+            start = System.nanoTime();
+            assertEquals(content, roundTrip(transport, listener.port(), new Packet(Method.MESSAGE, content)).content());
+            millis = (System.nanoTime() - start) / 1e6;
+            // 200 kB each way at 1 MB/s
+            assertTrue(millis >= 400, "round trip took %.1f ms".formatted(millis));
+        }
+    }
+
+    @Test
+    @DisplayName("Closing one end ends the stream at the other, and the port can be listened on again")
+    void close() throws Exception {
+        var transport = new MemoryTransport();
+        var listener = transport.listen(SERVER_PORT);
+        assertThrows(IOException.class, () -> transport.listen(SERVER_PORT));
+        var client = transport.connect(Config.SERVER_IP, SERVER_PORT);
+        var server = listener.accept();
+        client.getOutputStream().write(new byte[] {1, 2, 3});
+        client.close();
+        var input = server.getInputStream();
+        assertAll(
+                () -> assertArrayEquals(new byte[] {1, 2, 3}, input.readNBytes(3)),
+                () -> assertEquals(-1, input.read()),
+                () -> assertThrows(SocketException.class, () -> server.getOutputStream().write(4))
+        );
+        server.close();
+        listener.close();
+        assertThrows(ConnectException.class, () -> transport.connect(Config.SERVER_IP, SERVER_PORT));
+        transport.listen(SERVER_PORT).close();
+    }
+
+    @Test
+    @DisplayName("Reads give up after the socket timeout")
+    void timeout() throws Exception {
+        var transport = new MemoryTransport();
+        try (var listener = transport.listen(0); var client = transport.connect(Config.SERVER_IP, listener.port())) {
+            client.setSoTimeout(50);
+            assertThrows(SocketTimeoutException.class, () -> client.getInputStream().read());
+        }
+    }
+
+    @Test
+    @DisplayName("Injected faults refuse connections, reset them and corrupt packets")
+    void faults() throws Exception {
+        var transport = new MemoryTransport();
+        try (var listener = echo(transport)) {
+            var request = new Packet(Method.WHOIS, Map.of("username", "alice"));
+
+            transport.setFaultRate(MemoryTransport.Fault.REFUSE, 1);
+            assertThrows(ConnectException.class, () -> roundTrip(transport, listener.port(), request));
+            transport.setFaultRate(MemoryTransport.Fault.REFUSE, 0);
+
+            transport.setFaultRate(MemoryTransport.Fault.RESET, 1);
+            try (var socket = transport.connect(Config.SERVER_IP, listener.port())) {
+                assertThrows(SocketException.class, () -> Packet.sendPacket(socket, request));
+                assertThrows(SocketException.class, () -> socket.getInputStream().read());
+            }
+            transport.setFaultRate(MemoryTransport.Fault.RESET, 0);
+
+            transport.setFaultRate(MemoryTransport.Fault.CORRUPT, 1);
+            Packet response = null;
+            try {
+                response = roundTrip(transport, listener.port(), request);
+            } catch (Exception _) {
+                // the corruption may leave nothing we can read
+            }
+            assertNotEquals(request, response);
+        }
+    }
+
+    /**
+     * Connect and write a packet this many times, noting which attempts failed.
+     */
+    static List<Integer> failures(MemoryTransport transport, int attempts) throws IOException {
+        var failures = new ArrayList<Integer>();
+        try (var listener = transport.listen(0)) {
+            for (var i = 0; i < attempts; i++) {
+                try (Socket socket = transport.connect(Config.SERVER_IP, listener.port())) {
+                    Packet.sendPacket(socket, new Packet(Method.WHOIS, "alice"));
+                } catch (IOException e) {
+                    failures.add(i);
+                }
+            }
+        }
+        return failures;
+    }
+
+    @Test
+    @DisplayName("The same seed injects the same faults")
+    void seed() throws IOException {
+        var first = new MemoryTransport(345);
+        var second = new MemoryTransport(345);
+        for (var transport: List.of(first, second)) {
+            transport.setFaultRate(MemoryTransport.Fault.REFUSE, 0.2);
+            transport.setFaultRate(MemoryTransport.Fault.RESET, 0.2);
+        }
+        var failures = failures(first, 100);
+        assertAll(
+                () -> assertFalse(failures.isEmpty()),
+                () -> assertTrue(failures.size() < 100),
+                () -> assertEquals(failures, failures(second, 100))
+        );
+    }
+
+    @Test
+    @DisplayName("Datagrams reach the port they are sent to, after the latency, unless they are dropped")
+    void datagrams() throws Exception {
+        var transport = new MemoryTransport(42);
+        transport.setLatency(Duration.ofMillis(50));
+        try (var receiver = transport.datagrams(0);
+             var sender = transport.datagrams(0)) {
+            assertNotEquals(receiver.port(), sender.port());
+            assertThrows(BindException.class, () -> transport.datagrams(receiver.port()));
+            var address = new InetSocketAddress(Config.SERVER_IP, receiver.port());
+            var buffer = ByteBuffer.allocate(16);
+
+            var start = System.nanoTime();
+            sender.send(ByteBuffer.wrap(new byte[] {1, 2, 3}), address);
+            assertFalse(receiver.receive(buffer, 0));
+            assertTrue(receiver.receive(buffer, 5000));
+            assertTrue(System.nanoTime() - start >= 50_000_000);
+            assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(buffer.flip().array(), buffer.limit()));
+            assertFalse(sender.receive(buffer.clear(), 100), "datagrams only reach the port they were sent to");
+
+            transport.setFaultRate(MemoryTransport.Fault.DROP, 1);
+            sender.send(ByteBuffer.wrap(new byte[] {4}), address);
+            assertFalse(receiver.receive(buffer.clear(), 200));
+        }
+    }
+
+    @Test
+    @DisplayName("Plain TCP through socket channels carries packets too")
+    void nio() throws Exception {
+        var transport = new PlainTcpTransport();
+        try (var listener = echo(transport)) {
+            var request = new Packet(Method.MESSAGE, "hi bob!");
+            assertEquals(request, roundTrip(transport, listener.port(), request));
+        }
+    }
+}
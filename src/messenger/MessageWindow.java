@@ -0,0 +1,216 @@
+package messenger;
+
+import protocol.Error;
+import protocol.Method;
+import protocol.Multiplexer;
+import protocol.Packet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the chat messages of a session without waiting for each one to be acknowledged.
+ * Every {@link Method#MESSAGE} carries a sequence number in its {@code seq} header:
+ * <pre>
+ *     MESSAGE\n
+ *     contentLength: 3\n
+ *     seq: 42\n
+ *     \n
+ *     hi!
+ * </pre>
+ * Up to {@link Config#MESSAGE_WINDOW} messages may be in flight at once. The peer acknowledges them
+ * cumulatively with a {@code SUCCESS} packet whose {@code ack} header is the highest sequence number it has
+ * received, so a burst of messages costs a handful of acknowledgements instead of one round trip each.
+ * <p>{@link MessageWindow#send(String)} never waits for the network. Messages beyond the window are queued and
+ * sent by a background thread as acknowledgements slide the window forward.</p>
+ * <p>If the stream breaks, the window is suspended rather than failed: messages keep being queued, up to
+ * {@link Config#RESUME_BUFFER} of them, until {@link MessageWindow#resume(Multiplexer.Stream, long)} hands it the
+ * chat stream of a new connection. Every message the peer had not received by then is sent again with its
+ * original sequence number, so the peer can drop any it already has.</p>
+ */
+public class MessageWindow implements Closeable {
+    private record Pending(long seq, Packet packet, CompletableFuture<Error> result) {}
+
+    private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+    private final ArrayDeque<Pending> unacknowledged = new ArrayDeque<>();
+    private Thread sender;
+    private Multiplexer.Stream stream = null;
+    private long nextSeq = 1;
+    private boolean closing = false;
+    private IOException failure = null;
+
+    private MessageWindow() {}
+
+    /**
+     * Start a window sending on a stream.
+     * @param stream The chat stream. The window takes over both reading and writing it until it is closed.
+     */
+    public static MessageWindow open(Multiplexer.Stream stream) {
+        var window = suspended();
+        window.resume(stream, 0);
+        return window;
+    }
+
+    /**
+     * Start a suspended window, which queues messages until it is given a stream to send them on.
+     */
+    public static MessageWindow suspended() {
+        var window = new MessageWindow();
+        window.sender = Thread.ofVirtual().name("message-sender").start(window::sendLoop);
+        return window;
+    }
+
+    /**
+     * Carry on sending on a new chat stream, after the previous one broke.
+     * @param acknowledged The highest sequence number the peer has received. Those messages are considered
+     *                     acknowledged, and the ones after them are sent again, in order.
+     */
+    public void resume(Multiplexer.Stream stream, long acknowledged) {
+        var completed = new ArrayDeque<Pending>();
+        synchronized (this) {
+            if (failure != null)
+                return;
+            while (!unacknowledged.isEmpty() && unacknowledged.peek().seq() <= acknowledged)
+                completed.add(unacknowledged.poll());
+            while (!unacknowledged.isEmpty())
+                backlog.addFirst(unacknowledged.pollLast());
+            this.stream = stream;
+            notifyAll();
+        }
+        Thread.ofVirtual().name("message-acknowledgements").start(() -> receiveLoop(stream));
+        for (var pending: completed)
+            pending.result().complete(Error.OK);
+    }
+
+    /**
+     * @return Whether the window is waiting for a new stream.
+     */
+    public synchronized boolean isSuspended() {
+        return stream == null && failure == null;
+    }
+
+    /**
+     * Queue a chat message.
+     * @return A future completed with {@link Error#OK} once the peer acknowledges the message, with the peer's
+     * error if it rejects it, or exceptionally if the session ends first.
+     */
+    public synchronized CompletableFuture<Error> send(String text) {
+        var result = new CompletableFuture<Error>();
+        if (failure != null || closing) {
+            result.completeExceptionally(failure != null ? failure : new IOException("Session is closed."));
+            return result;
+        }
+        if (stream == null && backlog.size() + unacknowledged.size() >= Config.RESUME_BUFFER) {
+            result.completeExceptionally(new IOException("Too many messages are waiting for the peer to return."));
+            return result;
+        }
+        var seq = nextSeq++;
+        backlog.add(new Pending(seq, new Packet(Method.MESSAGE, Map.of("seq", String.valueOf(seq)), text), result));
+        notifyAll();
+        return result;
+    }
+
+    /**
+     * @return The number of messages sent but not yet acknowledged.
+     */
+    public synchronized int inFlight() {
+        return unacknowledged.size();
+    }
+
+    /**
+     * Stop accepting messages, and return once everything already queued has been written to the stream.
+     * Messages still waiting for an acknowledgement are not waited for. A suspended window is not waited for
+     * either.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            sender.join();
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                Pending next;
+                Multiplexer.Stream stream;
+                synchronized (this) {
+                    while (failure == null && !finished() && (this.stream == null || backlog.isEmpty()
+                            || unacknowledged.size() >= Config.MESSAGE_WINDOW))
+                        wait();
+                    if (failure != null || finished())
+                        return;
+                    next = backlog.poll();
+                    unacknowledged.add(next);
+                    stream = this.stream;
+                }
+                try {
+                    stream.sendPacket(next.packet());
+                } catch (IOException e) {
+                    // sent again once the window is resumed
+                    suspend(stream);
+                }
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void receiveLoop(Multiplexer.Stream stream) {
+        try {
+            while (true) {
+                var response = stream.readPacket();
+                var completed = new ArrayDeque<Pending>();
+                synchronized (this) {
+                    if (response.method() == Method.SUCCESS && response.headers().containsKey("ack")) {
+                        var ack = Long.parseLong(response.headers().get("ack"));
+                        while (!unacknowledged.isEmpty() && unacknowledged.peek().seq() <= ack)
+                            completed.add(unacknowledged.poll());
+                    } else if (response.method() == Method.FAILURE && !unacknowledged.isEmpty()) {
+                        completed.add(unacknowledged.poll());
+                    }
+                    notifyAll();
+                }
+                for (var pending: completed)
+                    pending.result().complete(response.getError());
+            }
+        } catch (IOException | RuntimeException e) {
+            suspend(stream);
+        }
+    }
+
+    private boolean finished() {
+        return closing && (backlog.isEmpty() || stream == null);
+    }
+
+    private synchronized void suspend(Multiplexer.Stream broken) {
+        if (stream == broken) {
+            stream = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Give up on the session: every message still queued or waiting for an acknowledgement fails with the
+     * exception, and so does every message sent from now on.
+     */
+    public void fail(IOException e) {
+        var abandoned = new ArrayDeque<Pending>();
+        synchronized (this) {
+            if (failure == null)
+                failure = e;
+            abandoned.addAll(unacknowledged);
+            abandoned.addAll(backlog);
+            unacknowledged.clear();
+            backlog.clear();
+            notifyAll();
+        }
+        for (var pending: abandoned)
+            pending.result().completeExceptionally(e);
+    }
+}
@@ -0,0 +1,389 @@
+package messenger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Durable per-recipient queues of messages left on the server for users who are offline.
+ * <p>Each recipient has a directory of append-only segments, named after the offset of their first message:
+ * <pre>
+ *     offline/bob/00000000000000000000.log    records: length (4 bytes), timestamp (8 bytes), message
+ *     offline/bob/00000000000000000000.idx    position of every record in the .log file (4 bytes each)
+ *     offline/bob/00000000000000051234.log
+ *     offline/bob/00000000000000051234.idx
+ *     offline/bob/consumed                    offset of the first message not yet fetched (8 bytes)
+ * </pre>
+ * Enqueueing appends to the newest segment and its index, so it costs the same however many messages are
+ * queued. A fetch finds the segment with a binary search over the base offsets and the record with a single
+ * index lookup. Segments are deleted whole, once every message in them has been fetched or has expired.</p>
+ * <p>Only the segment boundaries are kept in memory, and only a bounded number of segment files are kept open.</p>
+ * <p>Enqueueing and acknowledging only write to the operating system's cache, so they survive the server stopping
+ * but not the machine. {@link OfflineQueue#sync()} forces everything written so far to disk, and the server calls
+ * it before answering a request that queued or acknowledged a message, so a message the sender was told is queued
+ * survives a power cut. Whoever calls it while another sync is under way waits for that one and then syncs
+ * everything written in the meantime at once: concurrent senders share one round of fsyncs instead of queueing
+ * up for one each, and nobody waits longer than two of them.</p>
+ */
+public class OfflineQueue implements Closeable {
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int INDEX_ENTRY_SIZE = Integer.BYTES;
+    private static final int MAX_OPEN_SEGMENTS = 64;
+
+    /**
+     * A batch of queued messages.
+     * @param next The offset to fetch from next time. Passing it back acknowledges this batch.
+     * @param remaining The number of messages still queued after this batch.
+     */
+    public record Batch(long next, long remaining, List<byte[]> messages) {}
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long quotaBytes;
+    private final Duration retention;
+    private final Map<String, UserQueue> queues = new HashMap<>();
+    // files and directories written to since they were last synced, and how many writes there have been in all
+    private final Set<Path> unsynced = new LinkedHashSet<>();
+    private long writes = 0;
+    private final Object syncLock = new Object();
+    // guarded by syncLock
+    private long synced = 0;
+    private final LinkedHashMap<Segment, Segment> openSegments = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Segment, Segment> eldest) {
+            if (size() <= MAX_OPEN_SEGMENTS)
+                return false;
+            eldest.getKey().closeFiles();
+            return true;
+        }
+    };
+
+    /**
+     * @param directory Where the queues are kept. Queues already there are picked up again.
+     * @param segmentBytes The size at which a new segment is started.
+     * @param quotaBytes The most bytes of messages that may be queued for a single user.
+     * @param retention How long a message is kept before it is deleted unread.
+     */
+    public OfflineQueue(Path directory, long segmentBytes, long quotaBytes, Duration retention) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.quotaBytes = quotaBytes;
+        this.retention = retention;
+    }
+
+    /**
+     * Queue a message for a user.
+     * @return The offset of the message, or -1 if the user's quota is used up.
+     */
+    public synchronized long enqueue(String recipient, byte[] message) throws IOException {
+        var queue = queue(recipient);
+        if (queue.bytes + RECORD_HEADER_SIZE + message.length > quotaBytes)
+            return -1;
+        var segment = queue.segments.lastEntry().getValue();
+        if (segment.size > 0 && segment.size + RECORD_HEADER_SIZE + message.length > segmentBytes) {
+            segment = new Segment(queue.directory, segment.base + segment.count);
+            queue.segments.put(segment.base, segment);
+            unsynced.add(queue.directory);
+        }
+        var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + message.length)
+                .putInt(message.length)
+                .putLong(System.currentTimeMillis())
+                .put(message)
+                .flip();
+        var entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).putInt((int) segment.size).flip();
+        open(segment);
+        segment.log.write(record, segment.size);
+        segment.index.write(entry, (long) segment.count * INDEX_ENTRY_SIZE);
+        segment.size += record.limit();
+        queue.bytes += record.limit();
+        unsynced.add(segment.logPath());
+        unsynced.add(segment.indexPath());
+        writes++;
+        return segment.base + segment.count++;
+    }
+
+    /**
+     * Fetch the next messages queued for a user, oldest first.
+     * @param after Acknowledges every message before this offset, which are then deleted.
+     *              -1 fetches from the last acknowledged offset.
+     * @param limit The most messages to return.
+     * @param limitBytes The most message bytes to return, although at least one message is returned if any is queued.
+     */
+    public synchronized Batch fetch(String recipient, long after, int limit, int limitBytes) throws IOException {
+        var queue = queue(recipient);
+        if (after >= 0)
+            acknowledge(queue, after);
+        var next = Math.max(queue.consumed, queue.first());
+        var messages = new ArrayList<byte[]>();
+        var bytes = 0;
+        while (messages.size() < limit && next < queue.end()) {
+            var segment = queue.segments.floorEntry(next).getValue();
+            open(segment);
+            var entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            segment.index.read(entry, (next - segment.base) * INDEX_ENTRY_SIZE);
+            var position = entry.flip().getInt();
+            // read the rest of the segment sequentially from here
+            while (messages.size() < limit && next < segment.base + segment.count) {
+                var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                segment.log.read(header, position);
+                var length = header.flip().getInt();
+                if (!messages.isEmpty() && bytes + length > limitBytes)
+                    return new Batch(next, queue.end() - next, messages);
+                var message = ByteBuffer.allocate(length);
+                segment.log.read(message, position + RECORD_HEADER_SIZE);
+                messages.add(message.array());
+                bytes += length;
+                position += RECORD_HEADER_SIZE + length;
+                next++;
+            }
+        }
+        return new Batch(next, queue.end() - next, messages);
+    }
+
+    /**
+     * @return The number of messages queued for a user and not yet acknowledged.
+     */
+    public synchronized long size(String recipient) throws IOException {
+        var queue = queue(recipient);
+        return queue.end() - Math.max(queue.consumed, queue.first());
+    }
+
+    /**
+     * Delete every segment whose newest message is older than the retention period, read or not.
+     */
+    public synchronized void cleanup() throws IOException {
+        var cutoff = System.currentTimeMillis() - retention.toMillis();
+        try (var users = Files.list(directory)) {
+            for (var user: users.filter(Files::isDirectory).toList()) {
+                var queue = queue(user.getFileName().toString());
+                for (var segment: List.copyOf(queue.segments.values())) {
+                    if (segment.count > 0 && Files.getLastModifiedTime(segment.logPath()).toMillis() < cutoff) {
+                        // start a fresh segment before deleting the newest one, so offsets keep increasing
+                        if (segment == queue.segments.lastEntry().getValue()) {
+                            var end = segment.base + segment.count;
+                            queue.segments.put(end, new Segment(queue.directory, end));
+                        }
+                        delete(queue, segment);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Force every message enqueued and acknowledged so far to disk.
+     * @throws IOException if it could not be; whatever was not synced is tried again next time.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = writes;
+        }
+        synchronized (syncLock) {
+            // somebody else synced our writes while we waited
+            if (synced >= target)
+                return;
+            List<Path> paths;
+            long upTo;
+            synchronized (this) {
+                paths = List.copyOf(unsynced);
+                unsynced.clear();
+                upTo = writes;
+            }
+            try {
+                for (var path: paths)
+                    force(path);
+            } catch (IOException e) {
+                synchronized (this) {
+                    unsynced.addAll(paths);
+                }
+                throw e;
+            }
+            synced = upTo;
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            // so that new files are still there after a crash; not every platform lets a directory be opened
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException ignored) {}
+            return;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            // deleted since it was written, so there is nothing to keep
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (var segment: openSegments.keySet())
+            segment.closeFiles();
+        openSegments.clear();
+    }
+
+    private UserQueue queue(String recipient) throws IOException {
+        // the username becomes a directory name
+        if (!recipient.matches("[\\w-][\\w.-]*"))
+            throw new IllegalArgumentException("Invalid recipient '%s'".formatted(recipient));
+        var queue = queues.get(recipient);
+        if (queue == null) {
+            queue = new UserQueue(directory.resolve(recipient));
+            queues.put(recipient, queue);
+            unsynced.add(directory);
+            unsynced.add(queue.directory);
+        }
+        return queue;
+    }
+
+    private void open(Segment segment) throws IOException {
+        if (segment.log == null) {
+            segment.log = FileChannel.open(segment.logPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            segment.index = FileChannel.open(segment.indexPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        openSegments.put(segment, segment);
+    }
+
+    private void acknowledge(UserQueue queue, long offset) throws IOException {
+        offset = Math.min(offset, queue.end());
+        if (offset <= queue.consumed)
+            return;
+        queue.consumed = offset;
+        // overwritten in place, so that a crash leaves either the old offset or the new one
+        var consumed = queue.directory.resolve("consumed");
+        try (var file = FileChannel.open(consumed, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.allocate(Long.BYTES).putLong(offset).flip(), 0);
+        }
+        unsynced.add(consumed);
+        writes++;
+        // delete the segments that have been read completely, but always keep the newest one to append to
+        for (var segment: List.copyOf(queue.segments.headMap(offset, true).values())) {
+            if (segment != queue.segments.lastEntry().getValue() && segment.base + segment.count <= offset)
+                delete(queue, segment);
+        }
+    }
+
+    private void delete(UserQueue queue, Segment segment) throws IOException {
+        segment.closeFiles();
+        openSegments.remove(segment);
+        queue.segments.remove(segment.base);
+        queue.bytes -= segment.size;
+        Files.deleteIfExists(segment.logPath());
+        Files.deleteIfExists(segment.indexPath());
+    }
+
+    /**
+     * The segments of a single recipient.
+     */
+    private static class UserQueue {
+        final Path directory;
+        final TreeMap<Long, Segment> segments = new TreeMap<>();
+        long consumed = 0;
+        long bytes = 0;
+
+        UserQueue(Path directory) throws IOException {
+            this.directory = Files.createDirectories(directory);
+            var consumedFile = directory.resolve("consumed");
+            if (Files.exists(consumedFile))
+                consumed = ByteBuffer.wrap(Files.readAllBytes(consumedFile)).getLong();
+            try (var files = Files.list(directory)) {
+                for (var file: files.toList()) {
+                    var name = file.getFileName().toString();
+                    if (!name.endsWith(".log"))
+                        continue;
+                    var segment = Segment.recover(directory, Long.parseLong(name.substring(0, name.length() - 4)));
+                    segments.put(segment.base, segment);
+                    bytes += segment.size;
+                }
+            }
+            if (segments.isEmpty())
+                segments.put(consumed, new Segment(directory, consumed));
+        }
+
+        long first() {
+            return segments.firstKey();
+        }
+
+        long end() {
+            var last = segments.lastEntry().getValue();
+            return last.base + last.count;
+        }
+    }
+
+    private static class Segment {
+        final Path directory;
+        final long base;
+        int count = 0;
+        long size = 0;
+        FileChannel log;
+        FileChannel index;
+
+        Segment(Path directory, long base) {
+            this.directory = directory;
+            this.base = base;
+        }
+
+        /**
+         * Pick up a segment left by an earlier run.
+         * A record that was only partly written when the server stopped is cut off.
+         */
+        static Segment recover(Path directory, long base) throws IOException {
+            var segment = new Segment(directory, base);
+            if (!Files.exists(segment.indexPath()))
+                return segment;
+            try (var log = FileChannel.open(segment.logPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 var index = FileChannel.open(segment.indexPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var count = (int) (index.size() / INDEX_ENTRY_SIZE);
+                while (count > 0) {
+                    var entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                    index.read(entry, (long) (count - 1) * INDEX_ENTRY_SIZE);
+                    var position = entry.flip().getInt();
+                    var header = ByteBuffer.allocate(Integer.BYTES);
+                    if (log.read(header, position) == Integer.BYTES) {
+                        var end = position + RECORD_HEADER_SIZE + (long) header.flip().getInt();
+                        if (end <= log.size()) {
+                            segment.size = end;
+                            break;
+                        }
+                    }
+                    count--;
+                }
+                segment.count = count;
+                index.truncate((long) count * INDEX_ENTRY_SIZE);
+                log.truncate(segment.size);
+            }
+            return segment;
+        }
+
+        Path logPath() {
+            return directory.resolve("%020d.log".formatted(base));
+        }
+
+        Path indexPath() {
+            return directory.resolve("%020d.idx".formatted(base));
+        }
+
+        void closeFiles() {
+            try {
+                if (log != null)
+                    log.close();
+                if (index != null)
+                    index.close();
+            } catch (IOException ignored) {}
+            log = null;
+            index = null;
+        }
+    }
+}
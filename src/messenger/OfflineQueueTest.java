@@ -0,0 +1,216 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OfflineQueueTest {
+    static final Transport transport = new MemoryTransport();
+
+    @TempDir
+    Path directory;
+    private Server server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null)
+            server.close();
+    }
+
+    static byte[] message(int i) {
+        return ("message " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static long files(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    static List<String> drain(OfflineQueue queue, String recipient, int limit) throws IOException {
+        var received = new ArrayList<String>();
+        var after = -1L;
+        while (true) {
+            var batch = queue.fetch(recipient, after, limit, Integer.MAX_VALUE);
+            if (batch.messages().isEmpty())
+                return received;
+            for (var message: batch.messages())
+                received.add(new String(message, StandardCharsets.UTF_8));
+            after = batch.next();
+        }
+    }
+
+    @Test
+    @DisplayName("Messages come out in order, across segments, and read segments are deleted")
+    void enqueueAndFetch() throws IOException {
+        try (var queue = new OfflineQueue(directory, 256, 1 << 20, Duration.ofDays(1))) {
+            var expected = new ArrayList<String>();
+            for (var i = 0; i < 100; i++) {
+                assertEquals(i, queue.enqueue("bob", message(i)));
+                expected.add("message " + i);
+            }
+            assertTrue(files(directory.resolve("bob")) > 10, "should have rolled over to new segments");
+            assertEquals(100, queue.size("bob"));
+            assertEquals(expected, drain(queue, "bob", 7));
+            assertEquals(0, queue.size("bob"));
+            // only the newest segment and the consumed offset are left
+            assertEquals(3, files(directory.resolve("bob")));
+            assertEquals(100, queue.enqueue("bob", message(100)));
+            assertEquals(List.of("message 100"), drain(queue, "bob", 7));
+        }
+    }
+
+    @Test
+    @DisplayName("Queues survive a restart, even after a partly written message")
+    void recover() throws IOException {
+        try (var queue = new OfflineQueue(directory, 1 << 20, 1 << 20, Duration.ofDays(1))) {
+            for (var i = 0; i < 10; i++)
+                queue.enqueue("bob", message(i));
+            queue.fetch("bob", -1, 3, Integer.MAX_VALUE);
+            queue.fetch("bob", 3, 3, Integer.MAX_VALUE);
+        }
+        // a message whose index entry never made it to disk
+        Files.write(directory.resolve("bob").resolve("%020d.log".formatted(0)), new byte[] {0, 0, 0, 42, 1, 2},
+                StandardOpenOption.APPEND);
+
+        try (var queue = new OfflineQueue(directory, 1 << 20, 1 << 20, Duration.ofDays(1))) {
+            assertEquals(7, queue.size("bob"));
+            assertEquals(10, queue.enqueue("bob", message(10)));
+            var received = drain(queue, "bob", 100);
+            assertEquals(8, received.size());
+            assertEquals("message 3", received.getFirst());
+            assertEquals("message 10", received.getLast());
+        }
+    }
+
+    @Test
+    @DisplayName("Messages are synced to disk, with senders that sync at the same time sharing the fsyncs")
+    void sync() throws Exception {
+        var perThread = 200;
+        var total = 0;
+        try (var queue = new OfflineQueue(directory, 4096, 1 << 20, Duration.ofDays(1))) {
+            for (var threads: List.of(1, 16)) {
+                var workers = new ArrayList<Thread>();
+                for (var t = 0; t < threads; t++) {
+                    workers.add(Thread.ofVirtual().start(() -> {
+                        try {
+                            for (var i = 0; i < perThread; i++) {
+                                queue.enqueue("bob", message(i));
+                                queue.sync();
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }));
+                }
+                for (var worker: workers)
+                    worker.join();
+                total += threads * perThread;
+            }
+            queue.fetch("bob", 10, 1, Integer.MAX_VALUE);
+            queue.sync();
+        }
+        try (var queue = new OfflineQueue(directory, 4096, 1 << 20, Duration.ofDays(1))) {
+            assertEquals(total - 10, queue.size("bob"));
+        }
+    }
+
+    @Test
+    void quota() throws IOException {
+        try (var queue = new OfflineQueue(directory, 128, 1024, Duration.ofDays(1))) {
+            var accepted = 0;
+            while (queue.enqueue("bob", message(accepted)) >= 0)
+                accepted++;
+            assertTrue(accepted > 10 && accepted < 100);
+            assertEquals(0, queue.enqueue("alice", message(0)), "quotas are per user");
+            assertEquals(accepted, drain(queue, "bob", 10).size());
+            assertTrue(queue.enqueue("bob", message(0)) >= 0, "fetched messages no longer count");
+        }
+    }
+
+    @Test
+    void retention() throws IOException {
+        try (var queue = new OfflineQueue(directory, 128, 1 << 20, Duration.ofDays(1))) {
+            for (var i = 0; i < 20; i++)
+                queue.enqueue("bob", message(i));
+            try (var files = Files.list(directory.resolve("bob"))) {
+                for (var file: files.toList())
+                    Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofDays(2))));
+            }
+            queue.cleanup();
+            assertEquals(0, queue.size("bob"));
+            assertEquals(20, queue.enqueue("bob", message(20)));
+            assertEquals(List.of("message 20"), drain(queue, "bob", 10));
+        }
+    }
+
+    @Test
+    @DisplayName("Many users' queues filling at once, across segments, stay apart and in order")
+    void manyQueues() throws IOException {
+        var count = 10_000;
+        try (var queue = new OfflineQueue(directory, 16 << 10, Long.MAX_VALUE, Duration.ofDays(1))) {
+            for (var i = 0; i < count; i++)
+                queue.enqueue("user" + i % 10, message(i));
+            assertEquals(count / 10, queue.size("user0"));
+            var fetched = queue.fetch("user3", count / 20, 10, Integer.MAX_VALUE);
+            assertEquals(10, fetched.messages().size());
+            assertEquals(count / 20 + 10, fetched.next());
+            assertEquals("message " + (3 + count / 20 * 10), new String(fetched.messages().getFirst(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @DisplayName("Messages for a user who logged out are handed out when they fetch")
+    void server() throws IOException {
+        server = new Server(0, directory, transport);
+        var address = InetAddress.getLoopbackAddress();
+        var alice = Map.of("username", "alice", "password", "hunter2");
+        var bob = Map.of("username", "bob", "password", "password123");
+        for (var user: List.of(alice, bob)) {
+            var register = new HashMap<>(user);
+            register.put("listenPort", "1234");
+            assertEquals(Error.OK, server.runRequestHandler(new Packet(Method.REGISTER, register, "", address)).getError());
+        }
+        assertEquals(Error.OK, server.runRequestHandler(new Packet(Method.LOGOUT, bob)).getError());
+        assertEquals(Error.USER_NOT_ONLINE,
+                server.runRequestHandler(new Packet(Method.WHOIS, Map.of("username", "bob"))).getError());
+
+        var message = new HashMap<>(alice);
+        message.put("to", "bob");
+        for (var text: List.of("are you there?", "call me"))
+            assertEquals(Error.OK, server.runRequestHandler(new Packet(Method.MESSAGE, message, text)).getError());
+        message.put("to", "carol");
+        assertEquals(Error.NO_SUCH_USER, server.runRequestHandler(new Packet(Method.MESSAGE, message, "hi")).getError());
+
+        var response = server.runRequestHandler(new Packet(Method.FETCH, bob));
+        assertEquals(Method.SUCCESS, response.method());
+        assertEquals("2", response.headers().get("next"));
+        assertEquals("0", response.headers().get("remaining"));
+        assertTrue(response.content().startsWith("MESSAGE\n"));
+        assertTrue(response.content().contains("from: alice\n"));
+        assertTrue(response.content().endsWith("call me"));
+
+        var fetch = new HashMap<>(bob);
+        fetch.put("after", "2");
+        assertEquals("", server.runRequestHandler(new Packet(Method.FETCH, fetch)).content());
+    }
+}
@@ -2,4 +2,13 @@ package messenger;
 
 import java.net.InetAddress;
 
-public record Peer(String username, InetAddress address, int port, Status status) {}
+/**
+ * A user as the server describes them.
+ * @param certificate The fingerprint of the certificate the user presents to peers, which a connection to them is
+ *                    pinned to, or {@code null} if their transport has none.
+ */
+public record Peer(String username, InetAddress address, int port, Status status, String certificate) {
+    public Peer(String username, InetAddress address, int port, Status status) {
+        this(username, address, port, status, null);
+    }
+}
@@ -0,0 +1,380 @@
+package messenger;
+
+import protocol.Method;
+import protocol.Multiplexer;
+import protocol.Packet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * One conversation with a peer: a multiplexed connection, its chat stream and the virtual thread serving the
+ * streams the peer opens.
+ * A {@link Client} keeps any number of these in its session table, keyed by the peer's username.
+ * <p>Sessions we accept are first known by the peer's address, until the peer introduces itself with a
+ * {@link Method#HELLO} packet carrying its {@code username}. The name is only believed if the server has that user
+ * online at the address the connection came from, and we have no other live session with them.</p>
+ * <p>The introduction also carries a random resume token. If the connection drops without a {@code GOODBYE},
+ * the side that opened it looks the peer up again with {@link Method#WHOIS}, in case it moved, and redials
+ * with exponential backoff. The new connection starts with a {@link Method#RESUME} packet carrying the token
+ * and the sequence number of the last message received, and the other side hands it back its own. Both then
+ * send again whatever the other is missing (see {@link MessageWindow}), so a short outage loses no messages.
+ * The side that accepted the connection waits up to {@link Config#RESUME_TIMEOUT_MILLIS} to be resumed.
+ * Either way, the session stays in the client's table and keeps queueing messages until it gives up.</p>
+ */
+public class PeerSession implements Closeable {
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Client client;
+    private volatile String name;
+    // the fingerprint the server vouched for on the peer's behalf, once we know who the peer is
+    private volatile String certificate = null;
+    private final boolean initiator;
+    private final MessageWindow messages = MessageWindow.suspended();
+    private Multiplexer connection;
+    private Multiplexer.Stream chatStream;
+    private Multiplexer.Stream groupStream = null;
+    private String token = null;
+    private long received = 0;
+    private boolean ended = false;
+    private boolean closed = false;
+    // set once another session with the same peer takes over our connection
+    private volatile PeerSession resumedBy = null;
+
+    /**
+     * Start multiplexing a new peer connection.
+     * The session does nothing until {@link PeerSession#start()} is called.
+     * @param name The peer's username, or a placeholder until it introduces itself.
+     * @param initiator Whether we opened the connection.
+     */
+    public PeerSession(Client client, String name, Socket socket, boolean initiator) throws IOException {
+        this.client = client;
+        this.name = name;
+        this.initiator = initiator;
+        attach(new Multiplexer(socket, initiator, Config.PEER_WRITE_LINGER_MICROS * 1000), 0);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    void rename(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The fingerprint of the certificate the peer has to present on any connection we make to it, or
+     * {@code null} if the server vouched for none.
+     */
+    public String certificate() {
+        return certificate;
+    }
+
+    void pin(String certificate) {
+        this.certificate = certificate;
+    }
+
+    public Client client() {
+        return client;
+    }
+
+    public synchronized InetAddress address() {
+        return connection.socket().getInetAddress();
+    }
+
+    public MessageWindow messages() {
+        return messages;
+    }
+
+    /**
+     * @return The number of bytes sent to the peer so far, on the current connection.
+     */
+    public synchronized long bytesSent() {
+        return connection.bytesSent();
+    }
+
+    /**
+     * @return Whether the session has ended for good. A session waiting to be resumed is not closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return Whether the session is between connections, waiting to be resumed.
+     */
+    public synchronized boolean isSuspended() {
+        return !closed && connection.isClosed();
+    }
+
+    /**
+     * Record that the peer's chat message with this sequence number arrived.
+     * @return Whether it is new, rather than one sent again after the session was resumed.
+     */
+    synchronized boolean receive(long seq) {
+        if (seq <= received)
+            return false;
+        received = seq;
+        return true;
+    }
+
+    /**
+     * @return The sequence number of the last chat message received from the peer.
+     */
+    synchronized long received() {
+        return received;
+    }
+
+    /**
+     * Open a stream for a single exchange with the peer, such as a file transfer.
+     */
+    public Multiplexer.Stream open(Multiplexer.Priority priority) throws IOException {
+        Multiplexer connection;
+        synchronized (this) {
+            connection = this.connection;
+        }
+        return connection.open(priority);
+    }
+
+    /**
+     * Send an encoded group chat message.
+     * Group messages share a single stream per session and are not acknowledged.
+     * @see GroupChat
+     */
+    public void relay(byte[] encoded) throws IOException {
+        Multiplexer.Stream stream;
+        synchronized (this) {
+            if (groupStream == null)
+                groupStream = connection.open(Multiplexer.Priority.INTERACTIVE);
+            stream = groupStream;
+        }
+        stream.send(encoded);
+    }
+
+    /**
+     * Serve the streams the peer opens, each on its own virtual thread, and drop the session from the client's
+     * table once the connection closes for good.
+     */
+    public void start() {
+        Multiplexer connection;
+        synchronized (this) {
+            connection = this.connection;
+        }
+        serve(connection);
+    }
+
+    private void serve(Multiplexer connection) {
+        Thread.ofVirtual().name("peer-session-" + name).start(() -> {
+            try {
+                Multiplexer.Stream stream;
+                while ((stream = connection.accept()) != null)
+                    Thread.ofVirtual().start(new Client.IncomingPacketHandler(stream, owner()));
+            } catch (InterruptedException ignored) {
+                connection.close();
+            } finally {
+                owner().disconnected(connection);
+            }
+        });
+    }
+
+    private PeerSession owner() {
+        var owner = resumedBy;
+        return owner == null ? this : owner;
+    }
+
+    /**
+     * Make a connection the current one, and carry on sending chat messages on it.
+     * @param acknowledged The sequence number of the last of our messages the peer has received.
+     */
+    private void attach(Multiplexer connection, long acknowledged) throws IOException {
+        connection.setTimeouts(Config.WRITE_TIMEOUT_MILLIS, Config.IDLE_TIMEOUT_MILLIS);
+        connection.setSlowConsumerPolicy(Config.SLOW_PEER_POLICY, Config.SLOW_PEER_TIMEOUT_MILLIS);
+        var chatStream = connection.open(Multiplexer.Priority.INTERACTIVE);
+        synchronized (this) {
+            this.connection = connection;
+            this.chatStream = chatStream;
+            this.groupStream = null;
+            notifyAll();
+        }
+        messages.resume(chatStream, acknowledged);
+    }
+
+    /**
+     * Introduce ourselves to the peer, so it can file the session under our username.
+     * @return Whether the peer accepted the introduction.
+     */
+    public boolean hello(String username) throws IOException {
+        var bytes = new byte[16];
+        random.nextBytes(bytes);
+        var token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        try (var _ = Trace.child("hello");
+             var stream = open(Multiplexer.Priority.INTERACTIVE)) {
+            stream.sendPacket(Trace.inject(new Packet(Method.HELLO, Map.of("username", username, "token", token))));
+            if (stream.readPacket().method() != Method.SUCCESS)
+                return false;
+        }
+        synchronized (this) {
+            this.token = token;
+        }
+        return true;
+    }
+
+    /**
+     * Remember the resume token the peer introduced itself with.
+     */
+    synchronized void introduced(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Take over the connection of a session the peer opened to resume this one.
+     * @param acknowledged The sequence number of the last of our messages the peer has received.
+     * @return Whether the token matches, in which case the other session is done with.
+     */
+    boolean resume(PeerSession other, String token, long acknowledged) throws IOException {
+        Multiplexer previous;
+        synchronized (this) {
+            if (closed || ended || this.token == null || !this.token.equals(token))
+                return false;
+            previous = connection;
+        }
+        // the peer noticed the outage first, so the old connection may not have timed out on our side yet
+        previous.close();
+        Multiplexer connection;
+        Multiplexer.Stream unused;
+        synchronized (other) {
+            other.closed = true;
+            other.resumedBy = this;
+            connection = other.connection;
+            unused = other.chatStream;
+        }
+        other.messages.fail(new IOException("Session was resumed."));
+        unused.close();
+        attach(connection, acknowledged);
+        return true;
+    }
+
+    /**
+     * Called whenever a connection of ours closes. Unless the session has ended, try to get it back.
+     */
+    private void disconnected(Multiplexer connection) {
+        boolean resumable;
+        synchronized (this) {
+            if (closed || connection != this.connection)
+                return;
+            resumable = !ended && token != null && client.username != null;
+        }
+        try {
+            if (resumable && (initiator ? reconnect() : awaitResume(connection)))
+                return;
+        } catch (InterruptedException ignored) {}
+        synchronized (this) {
+            closed = true;
+        }
+        messages.fail(new IOException("Session ended before all messages were acknowledged."));
+        client.removeSession(this);
+    }
+
+    private synchronized boolean awaitResume(Multiplexer lost) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + Config.RESUME_TIMEOUT_MILLIS;
+        while (connection == lost && !closed && !ended) {
+            var remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return connection != lost;
+    }
+
+    /**
+     * Find the peer again and resume the session on a new connection.
+     * @return Whether the session was resumed, or has ended in the meantime.
+     */
+    private boolean reconnect() throws InterruptedException {
+        var backoff = Config.RECONNECT_BACKOFF_MILLIS;
+        for (var attempt = 0; attempt < Config.RECONNECT_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, Config.RECONNECT_MAX_BACKOFF_MILLIS);
+            }
+            String token;
+            synchronized (this) {
+                if (ended || closed)
+                    return true;
+                token = this.token;
+            }
+            Multiplexer connection = null;
+            try {
+                var peer = client.whois(name);
+                if (peer == null)
+                    continue;
+                pin(peer.certificate());
+                var socket = client.transport.connect(new InetSocketAddress(peer.address(), peer.port()),
+                        Config.RECONNECT_TIMEOUT_MILLIS, peer.certificate());
+                connection = new Multiplexer(socket, true, Config.PEER_WRITE_LINGER_MICROS * 1000);
+                Packet response;
+                try (var stream = connection.open(Multiplexer.Priority.INTERACTIVE)) {
+                    stream.sendPacket(new Packet(Method.RESUME, Map.of(
+                            "username", client.username,
+                            "token", token,
+                            "received", String.valueOf(received())
+                    )));
+                    response = stream.readPacket();
+                }
+                if (response.method() != Method.SUCCESS) {
+                    // the peer no longer knows the session, e.g. because it restarted
+                    connection.close();
+                    return false;
+                }
+                attach(connection, Long.parseLong(response.headers().get("received")));
+                serve(connection);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                if (connection != null)
+                    connection.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The peer said {@code GOODBYE}: close the connection without trying to resume the session.
+     */
+    void end() {
+        Multiplexer connection;
+        synchronized (this) {
+            ended = true;
+            connection = this.connection;
+            notifyAll();
+        }
+        connection.close();
+    }
+
+    /**
+     * Politely end the session: flush queued messages, say {@code GOODBYE} and close the connection.
+     */
+    @Override
+    public void close() {
+        Multiplexer connection;
+        Multiplexer.Stream chatStream;
+        synchronized (this) {
+            if (ended || closed)
+                return;
+            ended = true;
+            connection = this.connection;
+            chatStream = this.chatStream;
+            notifyAll();
+        }
+        messages.close();
+        try {
+            chatStream.sendPacket(new Packet(Method.GOODBYE));
+        } catch (IOException ignored) {}
+        connection.close();
+    }
+}
@@ -0,0 +1,153 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Multiplexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerSessionTest {
+    // the same port as ServerTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final Transport transport = new MemoryTransport();
+    static int nextPort = 21000;
+    static Server server;
+
+    @BeforeAll
+    static void setUp() throws IOException, InterruptedException {
+        server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.close();
+    }
+
+    static Client client(String name) throws IOException {
+        var port = nextPort++;
+        var client = Client.open(port, Config.SERVER_IP, SERVER_PORT, transport);
+        assertEquals(Error.OK, client.register(name + port, "password"));
+        return client;
+    }
+
+    /**
+     * Break the connection under a session, as a network outage would.
+     */
+    static void drop(PeerSession session) throws IOException {
+        session.open(Multiplexer.Priority.NORMAL).multiplexer().socket().close();
+    }
+
+    static List<String> received(Client client, String from) throws IOException {
+        var history = client.history();
+        history.flush();
+        return history.last(from, Integer.MAX_VALUE).stream()
+                .filter(entry -> entry.from().equals(from))
+                .map(HistoryStore.Entry::text)
+                .toList();
+    }
+
+    static List<String> messages(int count) {
+        var messages = new ArrayList<String>();
+        for (var i = 0; i < count; i++)
+            messages.add("message " + i);
+        return messages;
+    }
+
+    static void send(Client client, PeerSession session, List<CompletableFuture<Error>> results, int from, int to) {
+        for (var i = from; i < to; i++)
+            results.add(client.sendMessage(session, "message " + i));
+    }
+
+    static void await(List<CompletableFuture<Error>> results) throws Exception {
+        for (var result: results)
+            assertEquals(Error.OK, result.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Messages sent around an outage arrive once each, in order, on either side of it")
+    void resume() throws Exception {
+        var alice = client("alice");
+        var bob = client("bob");
+        try {
+            var toBob = alice.connectToPeer(bob.username);
+            var fromAlice = new ArrayList<CompletableFuture<Error>>();
+            send(alice, toBob, fromAlice, 0, 100);
+            await(fromAlice);
+            var toAlice = bob.sessions.get(alice.username);
+            var fromBob = new ArrayList<CompletableFuture<Error>>();
+
+            // first the side that dialed notices, then the side that accepted
+            for (var session: List.of(toBob, toAlice)) {
+                drop(session);
+                send(alice, toBob, fromAlice, fromAlice.size(), fromAlice.size() + 100);
+                send(bob, toAlice, fromBob, fromBob.size(), fromBob.size() + 100);
+                await(fromAlice);
+                await(fromBob);
+            }
+
+            assertSame(toBob, alice.sessions.get(bob.username));
+            assertSame(toAlice, bob.sessions.get(alice.username));
+            assertFalse(toBob.isClosed());
+            assertEquals(messages(fromAlice.size()), received(bob, alice.username));
+            assertEquals(messages(fromBob.size()), received(alice, bob.username));
+        } finally {
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A session ended with GOODBYE is not resumed")
+    void goodbye() throws Exception {
+        var alice = client("alice");
+        var bob = client("bob");
+        try {
+            var toBob = alice.connectToPeer(bob.username);
+            assertEquals(Error.OK, alice.sendMessage(toBob, "bye").get(30, TimeUnit.SECONDS));
+            bob.sessions.get(alice.username).close();
+            var deadline = System.currentTimeMillis() + 5000;
+            while (!toBob.isClosed() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(toBob.isClosed());
+            assertNull(alice.sessions.get(bob.username));
+            assertThrows(Exception.class, () -> alice.sendMessage(toBob, "anyone there?").join());
+        } finally {
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A peer is not filed under a name that is not online where it connected from, or already taken")
+    void hello() throws Exception {
+        var alice = client("alice");
+        var bob = client("bob");
+        var mallory = client("mallory");
+        try {
+            alice.connectToPeer(bob.username);
+            var toAlice = bob.sessions.get(alice.username);
+            var toBob = mallory.connectToPeer(bob.username);
+            assertFalse(toBob.hello("nobody"));
+            assertFalse(toBob.hello(alice.username));
+            assertNull(bob.sessions.get("nobody"));
+            assertSame(toAlice, bob.sessions.get(alice.username));
+            assertEquals(Error.OK, mallory.sendMessage(toBob, "it's me, alice").get(30, TimeUnit.SECONDS));
+            assertEquals(List.of(), received(bob, "nobody"));
+            assertEquals(List.of("it's me, alice"), received(bob, mallory.username));
+        } finally {
+            alice.close();
+            bob.close();
+            mallory.close();
+        }
+    }
+}
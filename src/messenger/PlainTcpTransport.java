@@ -0,0 +1,53 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects over plain TCP through socket channels, with neither TLS nor {@link LocalSocket}s: every connection
+ * goes through the network stack and nothing is encrypted. Useful for measuring the protocol without the cost of
+ * encryption, and on networks that are trusted.
+ */
+public class PlainTcpTransport implements Transport {
+    @Override
+    public Socket connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+        var channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, timeoutMillis);
+            // requests and handshake messages are small, and delayed acknowledgements would hold each one up
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    @Override
+    public Listener listen(int port) throws IOException {
+        var channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port), Config.LISTEN_BACKLOG);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Listener(channel.socket().getLocalPort(), new Listener.Acceptor() {
+            @Override
+            public Socket accept() throws IOException {
+                var connection = channel.accept();
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                return connection.socket();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,279 @@
+package messenger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A datagram side channel for the most frequent and least valuable traffic: heartbeats.
+ * <p>Over TCP (and TLS), each of these would cost a connection, a handshake and a request. Instead, a client
+ * that has logged in asks the server for a {@link Ticket} with {@link protocol.Method#PRESENCE}, and from then on
+ * reports that it is still there, and its status, in a single small datagram every
+ * {@link Config#PRESENCE_INTERVAL_MILLIS}:</p>
+ * <pre>
+ *     ticket id (4 bytes) | counter (8 bytes) | status (1 byte) | MAC (16 bytes)
+ * </pre>
+ * The MAC is HMAC-SHA256 over the rest of the datagram, keyed with the ticket's secret key and truncated to
+ * 16 bytes, so nobody without the key can change somebody's status. The counter increases with every datagram
+ * and the server drops any whose counter is not higher than the last one it accepted, so a datagram cannot be
+ * replayed either. A lost datagram is not resent: the next heartbeat carries the same status.
+ * <p>A client changing its status still tells the server with a {@link protocol.Method#STATUS} request, so that
+ * it knows the change was applied. The request carries the counter of the last heartbeat sent before the change,
+ * and the server ignores the status of any heartbeat up to that counter that arrives after it.</p>
+ * <p>Datagrams travel over the {@link Transport}'s {@link Datagrams}: UDP, or in-memory queues for a
+ * {@link MemoryTransport}.</p>
+ * <p>The server drains whatever datagrams are waiting in one go, verifies them, keeps the latest per user and
+ * hands the whole batch over at once, so a burst of heartbeats costs one trip through the server's lock.</p>
+ */
+public class Presence {
+    /** The size of every presence datagram. */
+    public static final int DATAGRAM_SIZE = 4 + 8 + 1 + 16;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 16;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * What a client needs to send presence datagrams for a user.
+     * @param id Identifies the ticket, and with it the user, in every datagram.
+     * @param key The secret the datagrams are authenticated with.
+     * @param port The server's UDP port.
+     */
+    public record Ticket(int id, byte[] key, int port) {}
+
+    /**
+     * A verified status report.
+     * @param counter The counter of the datagram that carried it.
+     */
+    public record Update(String username, Status status, long counter) {}
+
+    static Mac mac(byte[] key) {
+        try {
+            var mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encode a datagram into a buffer, ready to be sent.
+     */
+    static void encode(ByteBuffer buffer, Mac mac, int id, long counter, Status status) {
+        buffer.clear();
+        buffer.putInt(id).putLong(counter).put((byte) status.ordinal());
+        mac.update(buffer.array(), 0, buffer.position());
+        buffer.put(mac.doFinal(), 0, MAC_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * The server's end: hands out tickets and receives the datagrams sent with them.
+     */
+    public static class Receiver implements Closeable {
+        private static class Holder {
+            final String username;
+            final Mac mac;
+            long counter = 0;
+
+            Holder(String username, byte[] key) {
+                this.username = username;
+                this.mac = mac(key);
+            }
+        }
+
+        private final Datagrams datagrams;
+        private final Consumer<List<Update>> listener;
+        private final Map<Integer, Holder> tickets = new HashMap<>();
+        private final Map<String, Integer> ticketIds = new HashMap<>();
+
+        private Receiver(Datagrams datagrams, Consumer<List<Update>> listener) {
+            this.datagrams = datagrams;
+            this.listener = listener;
+        }
+
+        /**
+         * Start receiving datagrams.
+         * @param datagrams The port to receive them on, which is closed along with the receiver.
+         * @param listener Called from the receiving thread with every batch of verified updates, at most one per
+         *                 user and in the order they arrived. It is called with an empty batch whenever nothing
+         *                 arrived for {@link Config#PRESENCE_INTERVAL_MILLIS}, so it can notice who went quiet.
+         */
+        public static Receiver start(Datagrams datagrams, Consumer<List<Update>> listener) {
+            var receiver = new Receiver(datagrams, listener);
+            var thread = new Thread(receiver::receiveLoop, "presence-receiver");
+            thread.setDaemon(true);
+            thread.start();
+            return receiver;
+        }
+
+        public int port() {
+            return datagrams.port();
+        }
+
+        /**
+         * Issue a new ticket for a user, revoking any previous one.
+         */
+        public synchronized Ticket issue(String username) {
+            revoke(username);
+            var key = new byte[32];
+            random.nextBytes(key);
+            int id;
+            do {
+                id = random.nextInt();
+            } while (tickets.containsKey(id));
+            tickets.put(id, new Holder(username, key));
+            ticketIds.put(username, id);
+            return new Ticket(id, key, port());
+        }
+
+        /**
+         * Stop accepting datagrams for a user, e.g. once they log out.
+         */
+        public synchronized void revoke(String username) {
+            var id = ticketIds.remove(username);
+            if (id != null)
+                tickets.remove(id);
+        }
+
+        /**
+         * Check a datagram's MAC and counter.
+         * @return The update it carries, or {@code null} if it is forged, replayed or malformed.
+         */
+        synchronized Update verify(ByteBuffer datagram) {
+            if (datagram.remaining() != DATAGRAM_SIZE)
+                return null;
+            var holder = tickets.get(datagram.getInt(0));
+            if (holder == null)
+                return null;
+            holder.mac.update(datagram.array(), 0, DATAGRAM_SIZE - MAC_SIZE);
+            var expected = Arrays.copyOf(holder.mac.doFinal(), MAC_SIZE);
+            var actual = Arrays.copyOfRange(datagram.array(), DATAGRAM_SIZE - MAC_SIZE, DATAGRAM_SIZE);
+            if (!MessageDigest.isEqual(expected, actual))
+                return null;
+            var counter = datagram.getLong(4);
+            var statuses = Status.values();
+            var status = datagram.get(12);
+            if (counter <= holder.counter || status < 0 || status >= statuses.length)
+                return null;
+            holder.counter = counter;
+            return new Update(holder.username, statuses[status], counter);
+        }
+
+        private void receiveLoop() {
+            var buffer = ByteBuffer.allocate(DATAGRAM_SIZE + 1);
+            var batch = new LinkedHashMap<String, Update>();
+            try {
+                while (datagrams.isOpen()) {
+                    if (!datagrams.receive(buffer.clear(), Config.PRESENCE_INTERVAL_MILLIS)) {
+                        if (datagrams.isOpen())
+                            listener.accept(List.of());
+                        continue;
+                    }
+                    // drain everything that arrived while we were busy, up to a batch
+                    var read = 1;
+                    do {
+                        var update = verify(buffer.flip());
+                        if (update != null) {
+                            batch.remove(update.username());
+                            batch.put(update.username(), update);
+                        }
+                    } while (read++ < Config.PRESENCE_BATCH && datagrams.receive(buffer.clear(), 0));
+                    listener.accept(List.copyOf(batch.values()));
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (datagrams.isOpen())
+                    Log.error("presence.stopped", "error", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            datagrams.close();
+        }
+    }
+
+    /**
+     * The client's end: reports our status to the server, now and every
+     * {@link Config#PRESENCE_INTERVAL_MILLIS} until closed.
+     */
+    public static class Sender implements Closeable {
+        private final Datagrams datagrams;
+        private final InetSocketAddress server;
+        private final Ticket ticket;
+        private final Mac mac;
+        private final ByteBuffer buffer = ByteBuffer.allocate(DATAGRAM_SIZE);
+        private Thread thread;
+        private long counter = 0;
+        private Status status;
+
+        private Sender(Datagrams datagrams, String host, Ticket ticket, Status status) {
+            this.datagrams = datagrams;
+            this.server = new InetSocketAddress(host, ticket.port());
+            this.ticket = ticket;
+            this.mac = mac(ticket.key());
+            this.status = status;
+        }
+
+        /**
+         * Start sending heartbeats.
+         * @param datagrams The port to send them from, which is closed along with the sender.
+         * @param host The server's address.
+         * @param status Our current status.
+         */
+        public static Sender start(Datagrams datagrams, String host, Ticket ticket, Status status) {
+            var sender = new Sender(datagrams, host, ticket, status);
+            sender.thread = Thread.ofVirtual().name("presence-sender").start(sender::heartbeatLoop);
+            return sender;
+        }
+
+        /**
+         * Carry a new status in the heartbeats from now on, without sending one.
+         * @return The counter of the last heartbeat sent with the old status.
+         */
+        public synchronized long change(Status status) {
+            this.status = status;
+            return counter;
+        }
+
+        /**
+         * Send a heartbeat straight away, with a new status.
+         */
+        public synchronized void send(Status status) throws IOException {
+            this.status = status;
+            encode(buffer, mac, ticket.id(), ++counter, status);
+            datagrams.send(buffer, server);
+        }
+
+        private void heartbeatLoop() {
+            try {
+                while (datagrams.isOpen()) {
+                    try {
+                        synchronized (this) {
+                            send(status);
+                        }
+                    } catch (IOException e) {
+                        // e.g. the server is restarting; the next heartbeat will try again
+                    }
+                    Thread.sleep(Config.PRESENCE_INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException ignored) {}
+        }
+
+        @Override
+        public void close() throws IOException {
+            thread.interrupt();
+            datagrams.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceTest {
+    // the same port as ServerTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final Transport transport = new MemoryTransport();
+    static int nextPort = 22000;
+    static Server server;
+
+    @BeforeAll
+    static void setUp() throws IOException, InterruptedException {
+        server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.close();
+    }
+
+    static Client client(String name) throws IOException {
+        var port = nextPort++;
+        var client = Client.open(port, Config.SERVER_IP, SERVER_PORT, transport);
+        assertEquals(Error.OK, client.register(name + port, "password"));
+        return client;
+    }
+
+    static Status statusOf(Client client, String username, Status expected) throws Exception {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            var peer = client.whois(username);
+            var status = peer == null ? null : peer.status();
+            if (status == expected || System.currentTimeMillis() > deadline)
+                return status;
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    @DisplayName("Only datagrams with the right key and a new counter are accepted")
+    void authenticated() throws Exception {
+        var batches = new LinkedBlockingQueue<List<Presence.Update>>();
+        try (var receiver = Presence.Receiver.start(new UdpDatagrams(0), batch -> {
+                if (!batch.isEmpty())
+                    batches.add(batch);
+            });
+             var channel = DatagramChannel.open().connect(new InetSocketAddress("127.0.0.1", receiver.port()))) {
+            var ticket = receiver.issue("alice");
+            var mac = Presence.mac(ticket.key());
+            var forger = Presence.mac(new byte[32]);
+            var buffer = ByteBuffer.allocate(Presence.DATAGRAM_SIZE);
+
+            Presence.encode(buffer, mac, ticket.id(), 1, Status.BUSY);
+            channel.write(buffer);
+            assertEquals(List.of(new Presence.Update("alice", Status.BUSY, 1)), batches.poll(5, TimeUnit.SECONDS));
+
+            // replayed, forged, and for somebody else's ticket
+            Presence.encode(buffer, mac, ticket.id(), 1, Status.READY);
+            channel.write(buffer);
+            Presence.encode(buffer, forger, ticket.id(), 2, Status.READY);
+            channel.write(buffer);
+            Presence.encode(buffer, mac, ticket.id() + 1, 2, Status.READY);
+            channel.write(buffer);
+            channel.write(ByteBuffer.wrap(new byte[3]));
+            Presence.encode(buffer, mac, ticket.id(), 2, Status.CHATTING);
+            channel.write(buffer);
+            assertEquals(List.of(new Presence.Update("alice", Status.CHATTING, 2)), batches.poll(5, TimeUnit.SECONDS));
+
+            // a revoked ticket is no good anymore
+            receiver.revoke("alice");
+            Presence.encode(buffer, mac, ticket.id(), 3, Status.READY);
+            channel.write(buffer);
+            assertNull(batches.poll(Config.PRESENCE_INTERVAL_MILLIS * 2, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    static Packet request(Packet request) throws Exception {
+        try (var socket = transport.connect(Config.SERVER_IP, SERVER_PORT)) {
+            Packet.sendPacket(socket, request);
+            return Packet.readPacket(socket);
+        }
+    }
+
+    static Presence.Ticket ticket(Map<String, String> credentials) throws Exception {
+        var response = request(new Packet(Method.PRESENCE, credentials));
+        return new Presence.Ticket(Integer.parseInt(response.headers().get("id")),
+                Base64.getDecoder().decode(response.headers().get("key")),
+                Integer.parseInt(response.headers().get("port")));
+    }
+
+    @Test
+    @DisplayName("Heartbeats carry the status, but one sent before a status change does not undo it")
+    void status() throws Exception {
+        var credentials = Map.of("username", "alice", "password", "password");
+        var register = new HashMap<>(credentials);
+        register.put("listenPort", "1");
+        assertEquals(Error.OK, request(new Packet(Method.REGISTER, register)).getError());
+        var ticket = ticket(credentials);
+        var mac = Presence.mac(ticket.key());
+        var buffer = ByteBuffer.allocate(Presence.DATAGRAM_SIZE);
+        var whois = new Packet(Method.WHOIS, Map.of("username", "alice"));
+        try (var datagrams = transport.datagrams(0)) {
+            var server = new InetSocketAddress(Config.SERVER_IP, ticket.port());
+            Presence.encode(buffer, mac, ticket.id(), 1, Status.CHATTING);
+            datagrams.send(buffer, server);
+            var deadline = System.currentTimeMillis() + 5000;
+            while (!request(whois).headers().get("status").equals("CHATTING"))
+                assertTrue(System.currentTimeMillis() < deadline, "heartbeat did not change the status");
+
+            var status = new HashMap<>(credentials);
+            status.put("status", "BUSY");
+            status.put("presence", "2");
+            assertEquals(Error.OK, request(new Packet(Method.STATUS, status)).getError());
+            // sent before the change, but arrives after it
+            Presence.encode(buffer, mac, ticket.id(), 2, Status.CHATTING);
+            datagrams.send(buffer, server);
+            Thread.sleep(Config.PRESENCE_INTERVAL_MILLIS);
+            assertEquals("BUSY", request(whois).headers().get("status"));
+
+            Presence.encode(buffer, mac, ticket.id(), 3, Status.READY);
+            datagrams.send(buffer, server);
+            while (!request(whois).headers().get("status").equals("READY"))
+                assertTrue(System.currentTimeMillis() < deadline, "heartbeat did not change the status");
+        }
+    }
+
+    @Test
+    @DisplayName("A client that stops sending heartbeats goes offline")
+    void timeout() throws Exception {
+        var alice = client("alice");
+        var bob = client("bob");
+        try {
+            // wait for the first heartbeat to arrive
+            alice.setStatus(Status.BUSY);
+            assertEquals(Status.BUSY, statusOf(bob, alice.username, Status.BUSY));
+            alice.close();
+            Thread.sleep(Config.PRESENCE_TIMEOUT_MILLIS + 2 * Config.PRESENCE_INTERVAL_MILLIS);
+            assertNull(bob.whois(alice.username));
+        } finally {
+            bob.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A client that timed out cannot change its status")
+    void statusAfterTimeout() throws Exception {
+        var credentials = Map.of("username", "carol", "password", "password");
+        var register = new HashMap<>(credentials);
+        register.put("listenPort", "1");
+        assertEquals(Error.OK, request(new Packet(Method.REGISTER, register)).getError());
+        var ticket = ticket(credentials);
+        var buffer = ByteBuffer.allocate(Presence.DATAGRAM_SIZE);
+        var whois = new Packet(Method.WHOIS, Map.of("username", "carol"));
+        try (var datagrams = transport.datagrams(0)) {
+            Presence.encode(buffer, Presence.mac(ticket.key()), ticket.id(), 1, Status.BUSY);
+            datagrams.send(buffer, new InetSocketAddress(Config.SERVER_IP, ticket.port()));
+            var deadline = System.currentTimeMillis() + 5000;
+            while (!"BUSY".equals(request(whois).headers().get("status")))
+                assertTrue(System.currentTimeMillis() < deadline, "heartbeat did not change the status");
+        }
+        Thread.sleep(Config.PRESENCE_TIMEOUT_MILLIS + 2 * Config.PRESENCE_INTERVAL_MILLIS);
+        assertEquals(Error.USER_NOT_ONLINE, request(whois).getError());
+
+        var status = new HashMap<>(credentials);
+        status.put("status", "READY");
+        assertEquals(Error.USER_NOT_ONLINE, request(new Packet(Method.STATUS, status)).getError());
+        assertEquals(Error.USER_NOT_ONLINE, request(whois).getError());
+    }
+
+    @Test
+    @DisplayName("A batch keeps the latest update of each user")
+    void batches() throws Exception {
+        var batches = new LinkedBlockingQueue<List<Presence.Update>>();
+        try (var receiver = Presence.Receiver.start(new UdpDatagrams(0), batch -> {
+                if (!batch.isEmpty())
+                    batches.add(batch);
+            })) {
+            var senders = new ArrayList<Presence.Sender>();
+            for (var i = 0; i < 100; i++)
+                senders.add(Presence.Sender.start(new UdpDatagrams(0), "127.0.0.1", receiver.issue("user" + i),
+                        Status.READY));
+            for (var round = 0; round < 10; round++)
+                for (var sender: senders)
+                    sender.send(Status.BUSY);
+            var seen = new HashMap<String, Status>();
+            while (seen.size() < 100 || seen.containsValue(Status.READY)) {
+                var batch = batches.poll(5, TimeUnit.SECONDS);
+                assertNotNull(batch);
+                assertEquals(batch.size(), batch.stream().map(Presence.Update::username).distinct().count());
+                for (var update: batch)
+                    seen.put(update.username(), update.status());
+            }
+            for (var sender: senders)
+                sender.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package messenger;
+
+import java.util.*;
+
+/**
+ * Every user's contacts, as kept by the server, and what changed in each roster since any version a client saw.
+ * <p>A roster changes when its owner adds or removes a contact, and when one of the contacts comes online, changes
+ * status or goes offline. Every change takes the next version from a counter shared by all rosters, so a roster's
+ * version only ever goes up. Each roster keeps just the latest change of every contact, ordered by version, which
+ * makes what changed since a version a range query: finding where it starts costs O(log n), and every change after
+ * that costs O(1), so a client that reconnects is sent the changes it missed and nothing else, however many contacts
+ * it has.</p>
+ * <p>A removed contact is remembered until {@link Config#ROSTER_REMOVED} more have been removed after it. A client
+ * that last synced before a removal that was forgotten, or with a server that has restarted since, is sent the whole
+ * roster instead.</p>
+ */
+public class Roster {
+    /**
+     * @param status The contact's status, or {@code null} if they are offline.
+     */
+    public record Entry(String username, Status status) {}
+
+    /**
+     * @param version The version to ask for changes since next time.
+     * @param full Whether {@code changed} is the whole roster, replacing any copy the client has.
+     * @param changed The contacts that were added or changed status, oldest change first.
+     * @param removed The contacts that were removed, which is always empty if the roster is full.
+     */
+    public record Delta(long version, boolean full, List<Entry> changed, List<String> removed) {}
+
+    private static class Contacts {
+        // the version each contact, or removed contact, last changed at
+        final Map<String, Long> versions = new HashMap<>();
+        // the contact that changed at each version, for only the latest change of each
+        final TreeMap<Long, String> changes = new TreeMap<>();
+        // the contacts that were removed and are still remembered, least recently removed first
+        final LinkedHashSet<String> removed = new LinkedHashSet<>();
+        long version;
+        // changes since a version before this one may have been forgotten
+        long floor;
+
+        Contacts(long version) {
+            this.version = version;
+            this.floor = version;
+        }
+
+        int size() {
+            return versions.size() - removed.size();
+        }
+
+        boolean contains(String contact) {
+            return versions.containsKey(contact) && !removed.contains(contact);
+        }
+    }
+
+    private final Map<String, Contacts> rosters = new HashMap<>();
+    // the owners of the rosters each user is a contact in
+    private final Map<String, Set<String>> watchers = new HashMap<>();
+    private final Map<String, Status> statuses = new HashMap<>();
+    // starts from the clock, a million changes a second, so versions keep going up when the server restarts
+    private long counter = System.currentTimeMillis() * 1000;
+
+    private Contacts contacts(String owner) {
+        return rosters.computeIfAbsent(owner, _ -> new Contacts(counter));
+    }
+
+    private void touch(Contacts contacts, String contact) {
+        var version = ++counter;
+        var previous = contacts.versions.put(contact, version);
+        if (previous != null)
+            contacts.changes.remove(previous);
+        contacts.changes.put(version, contact);
+        contacts.version = version;
+    }
+
+    /**
+     * Add a contact to a user's roster, if they are not in it already.
+     * @return The roster's new version, or -1 if it already has {@link Config#MAX_CONTACTS} contacts.
+     */
+    public synchronized long add(String owner, String contact) {
+        var contacts = contacts(owner);
+        if (contacts.contains(contact))
+            return contacts.version;
+        if (contacts.size() >= Config.MAX_CONTACTS)
+            return -1;
+        contacts.removed.remove(contact);
+        watchers.computeIfAbsent(contact, _ -> new HashSet<>()).add(owner);
+        touch(contacts, contact);
+        return contacts.version;
+    }
+
+    /**
+     * Remove a contact from a user's roster, if they are in it.
+     * @return The roster's new version.
+     */
+    public synchronized long remove(String owner, String contact) {
+        var contacts = contacts(owner);
+        if (!contacts.contains(contact))
+            return contacts.version;
+        var owners = watchers.get(contact);
+        owners.remove(owner);
+        if (owners.isEmpty())
+            watchers.remove(contact);
+        contacts.removed.add(contact);
+        touch(contacts, contact);
+        if (contacts.removed.size() > Config.ROSTER_REMOVED) {
+            var forgotten = contacts.versions.remove(contacts.removed.removeFirst());
+            contacts.changes.remove(forgotten);
+            contacts.floor = Math.max(contacts.floor, forgotten);
+        }
+        return contacts.version;
+    }
+
+    /**
+     * Note a user's new status in the roster of everybody who has them as a contact.
+     * Reporting the status a user already has changes nothing.
+     * @param status The user's new status, or {@code null} once they log out.
+     */
+    public synchronized void setStatus(String username, Status status) {
+        var previous = status == null ? statuses.remove(username) : statuses.put(username, status);
+        if (previous == status)
+            return;
+        for (var owner: watchers.getOrDefault(username, Set.of()))
+            touch(rosters.get(owner), username);
+    }
+
+    public synchronized long version(String owner) {
+        return contacts(owner).version;
+    }
+
+    /**
+     * What changed in a user's roster after a version, or the whole roster if the changes since then are not all
+     * known, such as when the version is 0.
+     */
+    public synchronized Delta since(String owner, long version) {
+        var contacts = contacts(owner);
+        var changed = new ArrayList<Entry>();
+        var removed = new ArrayList<String>();
+        var full = version < contacts.floor || version > contacts.version;
+        for (var contact: (full ? contacts.changes : contacts.changes.tailMap(version, false)).values()) {
+            if (contacts.removed.contains(contact)) {
+                if (!full)
+                    removed.add(contact);
+            } else {
+                changed.add(new Entry(contact, statuses.get(contact)));
+            }
+        }
+        return new Delta(contacts.version, full, changed, removed);
+    }
+}
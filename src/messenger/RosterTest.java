@@ -0,0 +1,142 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RosterTest {
+    // the same ports as ServerTest and ClientTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final int CLIENT_PORT = 1234;
+
+    @Test
+    @DisplayName("Only the adds, removes and status changes since a version")
+    void delta() {
+        var roster = new Roster();
+        var start = roster.since("alice", 0);
+        assertTrue(start.full());
+        assertEquals(List.of(), start.changed());
+
+        roster.setStatus("bob", Status.READY);
+        roster.add("alice", "bob");
+        roster.add("alice", "carol");
+        var first = roster.since("alice", start.version());
+        assertFalse(first.full());
+        assertEquals(List.of(new Roster.Entry("bob", Status.READY), new Roster.Entry("carol", null)), first.changed());
+
+        roster.setStatus("carol", Status.BUSY);
+        // heartbeats repeat the status a user already has
+        roster.setStatus("bob", Status.READY);
+        roster.setStatus("dave", Status.BUSY);
+        roster.remove("alice", "bob");
+        var second = roster.since("alice", first.version());
+        assertTrue(second.version() > first.version());
+        assertEquals(List.of(new Roster.Entry("carol", Status.BUSY)), second.changed());
+        assertEquals(List.of("bob"), second.removed());
+        // bob no longer shows up in alice's roster when he goes offline
+        roster.setStatus("bob", null);
+        assertEquals(second.version(), roster.since("alice", second.version()).version());
+        assertEquals(List.of(), roster.since("alice", second.version()).changed());
+
+        // nothing changed since a client that is up to date last synced
+        var again = roster.since("alice", second.version());
+        assertEquals(new Roster.Delta(second.version(), false, List.of(), List.of()), again);
+        assertEquals(List.of(new Roster.Entry("carol", Status.BUSY)), roster.since("alice", 0).changed());
+    }
+
+    @Test
+    @DisplayName("The whole roster once removals were forgotten, or for a version from another server")
+    void full() {
+        var roster = new Roster();
+        roster.add("alice", "bob");
+        var version = roster.since("alice", 0).version();
+        for (var i = 0; i <= Config.ROSTER_REMOVED; i++) {
+            roster.add("alice", "user" + i);
+            roster.remove("alice", "user" + i);
+        }
+        var delta = roster.since("alice", version);
+        assertTrue(delta.full());
+        assertEquals(List.of(new Roster.Entry("bob", null)), delta.changed());
+        assertEquals(List.of(), delta.removed());
+
+        var recent = roster.since("alice", delta.version() - 1);
+        assertFalse(recent.full());
+        assertEquals(List.of("user" + Config.ROSTER_REMOVED), recent.removed());
+        assertTrue(roster.since("alice", delta.version() + 1).full());
+    }
+
+    @Test
+    @DisplayName("A roster holds at most MAX_CONTACTS contacts")
+    void limit() {
+        var roster = new Roster();
+        for (var i = 0; i < Config.MAX_CONTACTS; i++)
+            assertTrue(roster.add("alice", "user" + i) > 0);
+        assertEquals(-1, roster.add("alice", "bob"));
+        assertTrue(roster.add("alice", "user0") > 0);
+        roster.remove("alice", "user0");
+        assertTrue(roster.add("alice", "bob") > 0);
+    }
+
+    @Test
+    @DisplayName("Catching up after each change is sent that change alone, however many contacts there are")
+    void catchUp() {
+        for (var size: List.of(10, Config.MAX_CONTACTS)) {
+            var roster = new Roster();
+            for (var i = 0; i < size; i++)
+                roster.add("alice", "user" + i);
+            for (var i = 0; i < 2 * size; i++) {
+                var version = roster.version("alice");
+                // every round of the contacts gives each of them another status
+                var status = Status.values()[i / size % Status.values().length];
+                roster.setStatus("user" + i % size, status);
+                assertEquals(List.of(new Roster.Entry("user" + i % size, status)),
+                        roster.since("alice", version).changed());
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("A client logging in again is sent only what changed while it was away")
+    void client() throws IOException {
+        var transport = new MemoryTransport();
+        var server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        var alice = Client.open(CLIENT_PORT, Config.SERVER_IP, SERVER_PORT, transport);
+        var bob = Client.open(CLIENT_PORT + 1, Config.SERVER_IP, SERVER_PORT, transport);
+        var carol = Client.open(CLIENT_PORT + 2, Config.SERVER_IP, SERVER_PORT, transport);
+        try {
+            assertEquals(Error.OK, alice.register("roster-alice", "password"));
+            assertEquals(Error.OK, bob.register("roster-bob", "password"));
+            assertEquals(Error.OK, carol.register("roster-carol", "password"));
+            assertEquals(Error.NO_SUCH_USER, alice.addContact("nobody"));
+            assertEquals(Error.OK, alice.addContact("roster-bob"));
+            assertEquals(Error.OK, alice.addContact("roster-carol"));
+            assertEquals(List.of(new Roster.Entry("roster-bob", Status.READY),
+                    new Roster.Entry("roster-carol", Status.READY)), alice.contacts());
+
+            assertEquals(Error.OK, alice.logout());
+            assertEquals(Error.OK, bob.logout());
+            assertEquals(Error.OK, alice.login("roster-alice", "password"));
+            assertEquals(List.of(new Roster.Entry("roster-bob", null),
+                    new Roster.Entry("roster-carol", Status.READY)), alice.contacts());
+
+            assertEquals(Error.OK, alice.removeContact("roster-carol"));
+            assertEquals(List.of(new Roster.Entry("roster-bob", null)), alice.contacts());
+
+            // a client that never synced, such as one just started, gets the whole roster
+            assertEquals(Error.OK, carol.login("roster-alice", "password"));
+            assertEquals(alice.contacts(), carol.contacts());
+        } finally {
+            alice.close();
+            bob.close();
+            carol.close();
+            server.close();
+        }
+    }
+}
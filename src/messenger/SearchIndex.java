@@ -0,0 +1,583 @@
+package messenger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A full-text index over the chat history of a client, for finding old messages without reading the history.
+ * <p>Every message is a document, numbered in the order it was indexed. Its terms are the lowercased words of
+ * its text, {@code from:<sender>} and {@code in:<conversation>}. The index maps each term to the sorted list of
+ * documents containing it, its postings.</p>
+ * <p>New documents are indexed in memory until there are {@link Config#SEARCH_FLUSH_DOCUMENTS} of them, then
+ * written out as an immutable segment, named after the range of documents it holds:
+ * <pre>
+ *     search/alice/00000000000000000000-00000000000000016384.seg
+ *     search/alice/00000000000000016384-00000000000000032768.seg
+ * </pre>
+ * A segment file holds, in order:
+ * <pre>
+ *     first document (4 bytes), document count (4)
+ *     conversation count (4), then for each: name, sequence number after its last indexed message (8)
+ *     for each document: conversation (4), sequence number of the message (8)
+ *     term count (4), then for each term, sorted: term, document count (4), size of its postings (4)
+ *     postings: for each term, the gaps between its documents as variable length integers
+ * </pre>
+ * The gaps between the documents of a common term are small, so most of them take a single byte.
+ * Whenever {@link Config#SEARCH_MERGE_FACTOR} adjacent segments are about the same size, a background thread
+ * merges them into one, so the number of segments only grows with the logarithm of the number of messages.</p>
+ * <p>A query is the intersection of the postings of its terms. Segments are searched newest first, and the
+ * search stops as soon as it has enough hits.</p>
+ */
+public class SearchIndex implements Closeable {
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * A message that matched a query.
+     * @see HistoryStore#get(String, long)
+     */
+    public record Hit(String conversation, long seq) {}
+
+    private final Path directory;
+    private final int flushDocuments;
+    private final int mergeFactor;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final Map<String, Long> indexed = new HashMap<>();
+    private Memory memory;
+    private Thread merger = null;
+    private boolean closed = false;
+
+    /**
+     * @param directory Where the index is kept. An index already there is picked up again.
+     */
+    public SearchIndex(Path directory) throws IOException {
+        this(directory, Config.SEARCH_FLUSH_DOCUMENTS, Config.SEARCH_MERGE_FACTOR);
+    }
+
+    /**
+     * @param flushDocuments The number of documents indexed in memory before they are written out.
+     * @param mergeFactor The number of segments of about the same size that are merged into one.
+     */
+    public SearchIndex(Path directory, int flushDocuments, int mergeFactor) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.flushDocuments = flushDocuments;
+        this.mergeFactor = mergeFactor;
+        var found = new ArrayList<Segment>();
+        try (var files = Files.list(directory)) {
+            for (var file: files.toList()) {
+                var name = file.getFileName().toString();
+                if (name.endsWith(".tmp"))
+                    Files.delete(file);
+                else if (name.endsWith(".seg"))
+                    found.add(Segment.open(file));
+            }
+        }
+        // a merge that was interrupted may have left its inputs behind, inside the range of its output
+        found.sort(Comparator.comparingInt((Segment segment) -> segment.base)
+                .thenComparing(segment -> -segment.documents));
+        var end = 0;
+        for (var segment: found) {
+            if (segment.base < end) {
+                Files.delete(segment.path);
+                continue;
+            }
+            segments.add(segment);
+            end = segment.end();
+            segment.nextSeq.forEach((conversation, seq) -> indexed.merge(conversation, seq, Math::max));
+        }
+        memory = new Memory(end);
+        startMerging();
+    }
+
+    /**
+     * Index every message of a history that is not in the index yet,
+     * for instance because the client stopped before they were written out.
+     */
+    public void catchUp(HistoryStore history) throws IOException {
+        for (var conversation: history.conversations()) {
+            while (true) {
+                long next;
+                synchronized (this) {
+                    next = indexed.getOrDefault(conversation, 0L);
+                }
+                var entries = history.range(conversation, next, flushDocuments);
+                if (entries.isEmpty())
+                    break;
+                for (var entry: entries)
+                    add(conversation, entry);
+            }
+        }
+    }
+
+    /**
+     * Index a message. Messages already in the index are ignored.
+     * @see HistoryStore#onWrite(java.util.function.BiConsumer)
+     */
+    public synchronized void add(String conversation, HistoryStore.Entry entry) throws IOException {
+        if (entry.seq() < indexed.getOrDefault(conversation, 0L))
+            return;
+        indexed.put(conversation, entry.seq() + 1);
+        var terms = new LinkedHashSet<String>();
+        terms.add("in:" + conversation);
+        terms.add("from:" + entry.from());
+        terms.addAll(words(entry.text()));
+        memory.add(new Hit(conversation, entry.seq()), terms);
+        if (memory.documents.size() >= flushDocuments)
+            flush();
+    }
+
+    /**
+     * Find the messages that contain every word of a query.
+     * Words may be combined with {@code from:<username>} and {@code in:<username or #group>}.
+     * @return Up to {@code limit} hits, newest first.
+     */
+    public List<Hit> search(String query, int limit) {
+        var terms = new LinkedHashSet<String>();
+        for (var token: query.trim().split("\\s+")) {
+            if (token.startsWith("from:") || token.startsWith("in:"))
+                terms.add(token);
+            else
+                terms.addAll(words(token));
+        }
+        var hits = new ArrayList<Hit>();
+        if (terms.isEmpty())
+            return hits;
+        List<Segment> snapshot;
+        synchronized (this) {
+            search(memory, terms, limit, hits);
+            snapshot = List.copyOf(segments);
+        }
+        // segments are immutable, so they can be searched without holding the lock
+        for (var i = snapshot.size() - 1; i >= 0 && hits.size() < limit; i--)
+            search(snapshot.get(i), terms, limit, hits);
+        return hits;
+    }
+
+    /**
+     * Write the documents indexed in memory out to a new segment.
+     */
+    public synchronized void flush() throws IOException {
+        if (memory.documents.isEmpty())
+            return;
+        var writer = new SegmentWriter(memory.base, memory.documents.size());
+        for (var i = 0; i < memory.documents.size(); i++)
+            writer.document(memory.documents.get(i));
+        var terms = memory.postings.keySet().toArray(String[]::new);
+        Arrays.sort(terms);
+        for (var term: terms) {
+            var postings = memory.postings.get(term);
+            writer.term(term, postings.values, postings.size);
+        }
+        segments.add(writer.finish(directory));
+        memory = new Memory(memory.base + memory.documents.size());
+        startMerging();
+    }
+
+    /**
+     * @return The number of segments on disk.
+     */
+    synchronized int segments() {
+        return segments.size();
+    }
+
+    /**
+     * Wait for the background merges to finish.
+     */
+    synchronized void awaitMerges() throws InterruptedException {
+        while (merger != null)
+            wait();
+    }
+
+    /**
+     * Finish the merge in progress, if any, and write out the documents indexed in memory.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        try {
+            awaitMerges();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        flush();
+    }
+
+    private static List<String> words(String text) {
+        var words = new ArrayList<String>();
+        var matcher = WORD.matcher(text.toLowerCase(Locale.ROOT));
+        while (matcher.find()) {
+            if (matcher.end() - matcher.start() <= MAX_TERM_LENGTH)
+                words.add(matcher.group());
+        }
+        return words;
+    }
+
+    /**
+     * Add the hits of one part of the index to {@code hits}, newest first, until there are {@code limit}.
+     */
+    private static void search(Part part, Collection<String> terms, int limit, List<Hit> hits) {
+        var lists = new ArrayList<int[]>();
+        for (var term: terms) {
+            var postings = part.postings(term);
+            if (postings == null)
+                return;
+            lists.add(postings);
+        }
+        // start from the rarest term, so the candidates only get fewer
+        lists.sort(Comparator.comparingInt(postings -> postings.length));
+        var matches = lists.getFirst();
+        var count = matches.length;
+        for (var i = 1; i < lists.size() && count > 0; i++)
+            count = intersect(matches, count, lists.get(i));
+        for (var i = count - 1; i >= 0 && hits.size() < limit; i--)
+            hits.add(part.hit(matches[i]));
+    }
+
+    /**
+     * Keep the first {@code count} documents of {@code matches} that are also in {@code other}.
+     * @return The number of documents kept.
+     */
+    private static int intersect(int[] matches, int count, int[] other) {
+        var kept = 0;
+        var j = 0;
+        for (var i = 0; i < count && j < other.length; i++) {
+            while (j < other.length && other[j] < matches[i])
+                j++;
+            if (j < other.length && other[j] == matches[i])
+                matches[kept++] = matches[i];
+        }
+        return kept;
+    }
+
+    private synchronized void startMerging() {
+        if (merger == null && !closed && pickMerge() != null)
+            merger = Thread.ofVirtual().name("search-merger").start(this::mergeLoop);
+    }
+
+    /**
+     * Find the oldest run of adjacent segments of about the same size. Must hold the lock.
+     * Merging the oldest run first keeps segments ordered from largest to smallest, so that segments written
+     * while a merge is running are merged with each other later, rather than being left behind.
+     * @return The segments to merge next, or {@code null} if there is nothing to merge.
+     */
+    private List<Segment> pickMerge() {
+        for (var start = 0; start + mergeFactor <= segments.size(); start++) {
+            var run = segments.subList(start, start + mergeFactor);
+            var level = level(run.getFirst());
+            var i = 1;
+            while (i < run.size() && level(run.get(i)) == level && run.get(i).base == run.get(i - 1).end())
+                i++;
+            if (i == run.size())
+                return List.copyOf(run);
+        }
+        return null;
+    }
+
+    /**
+     * @return Roughly the number of merges that went into a segment.
+     */
+    private int level(Segment segment) {
+        var level = 0;
+        for (var size = (long) flushDocuments * mergeFactor; segment.documents >= size; size *= mergeFactor)
+            level++;
+        return level;
+    }
+
+    private void mergeLoop() {
+        while (true) {
+            List<Segment> inputs;
+            synchronized (this) {
+                inputs = closed ? null : pickMerge();
+                if (inputs == null) {
+                    merger = null;
+                    notifyAll();
+                    return;
+                }
+            }
+            try {
+                var merged = merge(inputs);
+                synchronized (this) {
+                    var first = segments.indexOf(inputs.getFirst());
+                    segments.subList(first, first + inputs.size()).clear();
+                    segments.add(first, merged);
+                }
+                for (var input: inputs)
+                    Files.deleteIfExists(input.path);
+            } catch (IOException e) {
+                Log.warn("search.merge.failed", "error", e);
+                synchronized (this) {
+                    merger = null;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merge adjacent segments into one, visiting each of their terms in order.
+     */
+    private Segment merge(List<Segment> inputs) throws IOException {
+        var first = inputs.getFirst();
+        var writer = new SegmentWriter(first.base, inputs.getLast().end() - first.base);
+        for (var input: inputs) {
+            for (var document = 0; document < input.documents; document++)
+                writer.document(input.hit(document));
+        }
+        var cursors = new int[inputs.size()];
+        var postings = new int[0];
+        while (true) {
+            String term = null;
+            for (var i = 0; i < inputs.size(); i++) {
+                var terms = inputs.get(i).terms;
+                if (cursors[i] < terms.length && (term == null || terms[cursors[i]].compareTo(term) < 0))
+                    term = terms[cursors[i]];
+            }
+            if (term == null)
+                break;
+            var count = 0;
+            for (var i = 0; i < inputs.size(); i++) {
+                var input = inputs.get(i);
+                if (cursors[i] >= input.terms.length || !input.terms[cursors[i]].equals(term))
+                    continue;
+                var documents = input.decode(cursors[i]++);
+                if (postings.length < count + documents.length)
+                    postings = Arrays.copyOf(postings, Math.max(2 * postings.length, count + documents.length));
+                var offset = input.base - first.base;
+                for (var document: documents)
+                    postings[count++] = document + offset;
+            }
+            writer.term(term, postings, count);
+        }
+        return writer.finish(directory);
+    }
+
+    /**
+     * A part of the index that can be searched: the documents in memory, or a segment.
+     */
+    private interface Part {
+        /**
+         * @return The documents containing a term, sorted, or {@code null} if there are none.
+         */
+        int[] postings(String term);
+
+        Hit hit(int document);
+    }
+
+    private static class Memory implements Part {
+        final int base;
+        final ArrayList<Hit> documents = new ArrayList<>();
+        final HashMap<String, Postings> postings = new HashMap<>();
+
+        Memory(int base) {
+            this.base = base;
+        }
+
+        void add(Hit hit, Collection<String> terms) {
+            var document = documents.size();
+            documents.add(hit);
+            for (var term: terms)
+                postings.computeIfAbsent(term, _ -> new Postings()).add(document);
+        }
+
+        @Override
+        public int[] postings(String term) {
+            var postings = this.postings.get(term);
+            return postings == null ? null : Arrays.copyOf(postings.values, postings.size);
+        }
+
+        @Override
+        public Hit hit(int document) {
+            return documents.get(document);
+        }
+    }
+
+    private static class Postings {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int document) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, 2 * size);
+            values[size++] = document;
+        }
+    }
+
+    private static class Segment implements Part {
+        private static final int DOCUMENT_SIZE = Integer.BYTES + Long.BYTES;
+
+        final Path path;
+        final ByteBuffer data;
+        final int base;
+        final int documents;
+        final String[] conversations;
+        final Map<String, Long> nextSeq = new HashMap<>();
+        final int documentsStart;
+        final String[] terms;
+        final int[] frequencies;
+        final int[] starts;
+
+        private Segment(Path path, ByteBuffer data) {
+            this.path = path;
+            this.data = data;
+            var buffer = data.duplicate();
+            base = buffer.getInt();
+            documents = buffer.getInt();
+            conversations = new String[buffer.getInt()];
+            for (var i = 0; i < conversations.length; i++) {
+                conversations[i] = readString(buffer);
+                nextSeq.put(conversations[i], buffer.getLong());
+            }
+            documentsStart = buffer.position();
+            buffer.position(documentsStart + documents * DOCUMENT_SIZE);
+            terms = new String[buffer.getInt()];
+            frequencies = new int[terms.length];
+            var sizes = new int[terms.length];
+            for (var i = 0; i < terms.length; i++) {
+                terms[i] = readString(buffer);
+                frequencies[i] = buffer.getInt();
+                sizes[i] = buffer.getInt();
+            }
+            starts = new int[terms.length];
+            var position = buffer.position();
+            for (var i = 0; i < terms.length; i++) {
+                starts[i] = position;
+                position += sizes[i];
+            }
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        int end() {
+            return base + documents;
+        }
+
+        @Override
+        public int[] postings(String term) {
+            var i = Arrays.binarySearch(terms, term);
+            return i < 0 ? null : decode(i);
+        }
+
+        int[] decode(int term) {
+            var documents = new int[frequencies[term]];
+            var position = starts[term];
+            var previous = 0;
+            for (var i = 0; i < documents.length; i++) {
+                var gap = 0;
+                for (var shift = 0; ; shift += 7) {
+                    var b = data.get(position++);
+                    gap |= (b & 0x7f) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                previous += gap;
+                documents[i] = previous;
+            }
+            return documents;
+        }
+
+        @Override
+        public Hit hit(int document) {
+            var position = documentsStart + document * DOCUMENT_SIZE;
+            return new Hit(conversations[data.getInt(position)], data.getLong(position + Integer.BYTES));
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            var bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Builds a segment file: documents first, in order, then terms in sorted order.
+     */
+    private static class SegmentWriter {
+        final int base;
+        final int documents;
+        final List<String> conversations = new ArrayList<>();
+        final Map<String, Integer> conversationNumbers = new HashMap<>();
+        final Map<String, Long> nextSeq = new HashMap<>();
+        final ByteArrayOutputStream documentTable = new ByteArrayOutputStream();
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        final ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        int terms = 0;
+
+        SegmentWriter(int base, int documents) {
+            this.base = base;
+            this.documents = documents;
+        }
+
+        void document(Hit hit) {
+            var number = conversationNumbers.get(hit.conversation());
+            if (number == null) {
+                number = conversations.size();
+                conversations.add(hit.conversation());
+                conversationNumbers.put(hit.conversation(), number);
+            }
+            nextSeq.merge(hit.conversation(), hit.seq() + 1, Math::max);
+            documentTable.writeBytes(ByteBuffer.allocate(Segment.DOCUMENT_SIZE).putInt(number).putLong(hit.seq())
+                    .array());
+        }
+
+        void term(String term, int[] documents, int count) throws IOException {
+            var start = postings.size();
+            var previous = 0;
+            for (var i = 0; i < count; i++) {
+                var gap = documents[i] - previous;
+                previous = documents[i];
+                while ((gap & ~0x7f) != 0) {
+                    postings.write((gap & 0x7f) | 0x80);
+                    gap >>>= 7;
+                }
+                postings.write(gap);
+            }
+            var out = new DataOutputStream(dictionary);
+            writeString(out, term);
+            out.writeInt(count);
+            out.writeInt(postings.size() - start);
+            terms++;
+        }
+
+        /**
+         * Write the segment to a temporary file first, so a crash never leaves half a segment behind.
+         */
+        Segment finish(Path directory) throws IOException {
+            var path = directory.resolve("%020d-%020d.seg".formatted(base, base + documents));
+            var temporary = directory.resolve(path.getFileName() + ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(base);
+                out.writeInt(documents);
+                out.writeInt(conversations.size());
+                for (var conversation: conversations) {
+                    writeString(out, conversation);
+                    out.writeLong(nextSeq.get(conversation));
+                }
+                documentTable.writeTo(out);
+                out.writeInt(terms);
+                dictionary.writeTo(out);
+                postings.writeTo(out);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            return Segment.open(path);
+        }
+
+        private static void writeString(DataOutputStream out, String string) throws IOException {
+            var bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+    @TempDir
+    Path directory;
+
+    static void add(SearchIndex index, String conversation, long seq, String from, String text) throws IOException {
+        index.add(conversation, new HistoryStore.Entry(seq, seq, from, text));
+    }
+
+    static List<Long> seqs(List<SearchIndex.Hit> hits) {
+        return hits.stream().map(SearchIndex.Hit::seq).toList();
+    }
+
+    @Test
+    @DisplayName("Every word has to match, in any case, newest first")
+    void keywords() throws IOException {
+        try (var index = new SearchIndex(directory.resolve("search"))) {
+            add(index, "bob", 0, "alice", "Are you coming to the party?");
+            add(index, "bob", 1, "bob", "which party?");
+            add(index, "bob", 2, "alice", "the PARTY at Carol's, are you coming");
+            add(index, "bob", 3, "bob", "oh, that one");
+            assertEquals(List.of(2L, 1L, 0L), seqs(index.search("party", 10)));
+            assertEquals(List.of(2L, 0L), seqs(index.search("coming party", 10)));
+            assertEquals(List.of(2L), seqs(index.search("coming party", 1)));
+            assertEquals(List.of(), seqs(index.search("party tomorrow", 10)));
+            assertEquals(List.of(), seqs(index.search("  ", 10)));
+        }
+    }
+
+    @Test
+    @DisplayName("Searching by peer and by conversation")
+    void peers() throws IOException {
+        try (var index = new SearchIndex(directory.resolve("search"))) {
+            add(index, "bob", 0, "alice", "hi bob");
+            add(index, "carol", 0, "carol", "hi alice");
+            add(index, "#chess", 0, "bob", "hi everyone");
+            add(index, "#chess", 1, "carol", "hi bob");
+            assertEquals(List.of(new SearchIndex.Hit("#chess", 1), new SearchIndex.Hit("carol", 0)),
+                    index.search("from:carol", 10));
+            assertEquals(List.of(new SearchIndex.Hit("#chess", 1), new SearchIndex.Hit("bob", 0)),
+                    index.search("hi bob", 10));
+            assertEquals(List.of(new SearchIndex.Hit("#chess", 1)), index.search("in:#chess bob", 10));
+        }
+    }
+
+    @Test
+    @DisplayName("Segments are written out, merged and picked up again")
+    void segments() throws IOException, InterruptedException {
+        var path = directory.resolve("search");
+        List<SearchIndex.Hit> before;
+        try (var index = new SearchIndex(path, 100, 4)) {
+            for (var i = 0; i < 10_000; i++)
+                add(index, "bob", i, "alice", "message %d %s".formatted(i, i % 7 == 0 ? "lucky" : "plain"));
+            index.awaitMerges();
+            // 100 segments of 100 messages merged down to a handful
+            assertTrue(index.segments() < 10, "%d segments".formatted(index.segments()));
+            before = index.search("lucky message", 5000);
+            assertEquals(1429, before.size());
+            assertEquals(9996, before.getFirst().seq());
+            assertEquals(0, before.getLast().seq());
+            assertEquals(List.of(1234L), seqs(index.search("1234", 10)));
+        }
+        try (var files = Files.list(path)) {
+            assertTrue(files.allMatch(file -> file.toString().endsWith(".seg")));
+        }
+        try (var index = new SearchIndex(path, 100, 4)) {
+            assertEquals(before, index.search("lucky message", 5000));
+            // already indexed
+            add(index, "bob", 9999, "alice", "lucky");
+            assertEquals(1429, index.search("lucky", 5000).size());
+        }
+    }
+
+    @Test
+    @DisplayName("Messages in the history but not in the index are indexed when it is opened")
+    void catchUp() throws IOException {
+        try (var history = new HistoryStore(directory.resolve("history"))) {
+            for (var i = 0; i < 300; i++)
+                history.append(i % 2 == 0 ? "bob" : "#chess", "alice", "message " + i);
+            try (var index = new SearchIndex(directory.resolve("search"), 100, 4)) {
+                index.catchUp(history);
+                history.onWrite((conversation, entry) -> {
+                    try {
+                        index.add(conversation, entry);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                history.append("bob", "bob", "message 300");
+                history.flush();
+                assertEquals(301, index.search("message", 1000).size());
+                var hit = index.search("299", 10).getFirst();
+                assertEquals("message 299", history.get(hit.conversation(), hit.seq()).text());
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Connects over TLS, unless {@link Config#TLS} is turned off, and to processes on the same machine over their
+ * {@link LocalSocket}. Listening on a port takes both the TCP port and the socket file named after it.
+ * @see Tls
+ */
+public class SecureTransport implements Transport {
+    @Override
+    public Socket connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+        return Tls.connect(address, timeoutMillis);
+    }
+
+    @Override
+    public Socket connect(InetSocketAddress address, int timeoutMillis, String certificate) throws IOException {
+        return Tls.connect(address, timeoutMillis, certificate);
+    }
+
+    @Override
+    public Listener listen(int port) throws IOException {
+        return listen(Tls.listen(port));
+    }
+
+    @Override
+    public Listener serve(int port) throws IOException {
+        return listen(Tls.serve(port));
+    }
+
+    @Override
+    public String fingerprint() throws IOException {
+        return Config.TLS ? Tls.fingerprint() : null;
+    }
+
+    private static Listener listen(ServerSocket socket) throws IOException {
+        var local = LocalSocket.listen(socket.getLocalPort());
+        Listener.Acceptor tcp = new Listener.Acceptor() {
+            @Override
+            public Socket accept() throws IOException {
+                return Tls.accept(socket);
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+        if (local == null)
+            return new Listener(socket.getLocalPort(), tcp);
+        return new Listener(socket.getLocalPort(), tcp, new Listener.Acceptor() {
+            @Override
+            public Socket accept() throws IOException {
+                return LocalSocket.accept(local);
+            }
+
+            @Override
+            public void close() {
+                LocalSocket.unlisten(local);
+            }
+        });
+    }
+}
@@ -1,14 +1,21 @@
 package messenger;
 
+import protocol.Deadline;
 import protocol.Error;
 import protocol.Method;
 import protocol.Packet;
+import protocol.PacketMalformedException;
 import server.HandlesMethod;
 import server.PacketHandler;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server extends PacketHandler {
     private static class UserSession {
@@ -16,51 +23,253 @@ public class Server extends PacketHandler {
         public InetAddress address;
         public int port;
         public Status status = Status.READY;
+        // fingerprint of the certificate the user presents to peers, if their transport has one
+        public String certificate;
+        // counter of the last presence heartbeat sent before the user's latest STATUS request
+        public long statusCounter = 0;
 
-        public UserSession(String username, InetAddress address, int port) {
+        public UserSession(String username, InetAddress address, int port, String certificate) {
             this.username = username;
             this.address = address;
             this.port = port;
+            this.certificate = certificate;
         }
     }
 
+    /**
+     * The members of a group chat, in the order they joined.
+     * The version changes whenever somebody joins or leaves, so clients can tell when their copy is stale.
+     */
+    private static class Group {
+        public final Set<String> members = new LinkedHashSet<>();
+        public long version;
+    }
+
+    /**
+     * What checking a request's password came to, worked out before the request is handled since it takes far
+     * longer than handling it.
+     * @param hash For {@code REGISTER}, the new password's hash.
+     */
+    private record Checked(Packet request, boolean authenticated, Credentials.Hash hash) {}
+
     private int port;
-    private ServerSocket socket;
-    private final Map<String, String> userPasswords = new HashMap<>();
+    private Listener socket;
+    private final Credentials credentials = new Credentials();
+    // the request being handled, if its password was checked before taking the lock
+    private Checked checked;
     private final Map<String, UserSession> userSessions = new HashMap<>();
+    private final UserDirectory directory = new UserDirectory();
+    private final Roster roster = new Roster();
+    private final Map<String, Group> groups = new HashMap<>();
+    private long groupVersion = 0;
+    private final OfflineQueue offlineQueue;
+    private long nextCleanup = 0;
+    private final Presence.Receiver presence;
+    // when each user who reports their status over UDP was last heard from, least recently heard from first
+    private final LinkedHashMap<String, Long> heartbeats = new LinkedHashMap<>();
+    // connections being served right now, including any we are turning away
+    private final AtomicInteger connections = new AtomicInteger();
+    private long readTimeoutMillis = Config.READ_TIMEOUT_MILLIS;
 
     public Server(int port) throws IOException {
+        this(port, Path.of(Config.OFFLINE_QUEUE_DIRECTORY));
+    }
+
+    public Server(int port, Transport transport) throws IOException {
+        this(port, Path.of(Config.OFFLINE_QUEUE_DIRECTORY), transport);
+    }
+
+    /**
+     * @param offlineDirectory Where messages for offline users are kept.
+     */
+    public Server(int port, Path offlineDirectory) throws IOException {
+        this(port, offlineDirectory, Transport.DEFAULT);
+    }
+
+    /**
+     * @param offlineDirectory Where messages for offline users are kept.
+     * @param transport How clients reach us.
+     */
+    public Server(int port, Path offlineDirectory, Transport transport) throws IOException {
         this.port = port;
-        this.socket = new ServerSocket(port);
+        this.socket = transport.serve(port);
+        this.offlineQueue = new OfflineQueue(offlineDirectory, Config.OFFLINE_SEGMENT_BYTES,
+                Config.OFFLINE_QUOTA_BYTES, Duration.ofDays(Config.OFFLINE_RETENTION_DAYS));
+        // the same port number as TCP, unless we were given any free one, or ports that are not the machine's
+        this.presence = Presence.Receiver.start(transport.datagrams(port == 0 ? 0 : this.socket.port()),
+                this::onPresence);
+    }
+
+    /**
+     * @return The port clients reach us on, which is any free one if we were given 0.
+     */
+    public int port() {
+        return socket.port();
     }
 
+    /**
+     * @param millis How long a connection may take to send its request before we give up on it.
+     */
+    void setReadTimeout(long millis) {
+        this.readTimeoutMillis = millis;
+    }
+
+    /**
+     * Accept the next connection, and serve it on a virtual thread of its own so that its TLS handshake, or a
+     * client slow to send its request, does not hold up everybody else. Requests are still handled one at a time.
+     * A connection that sends no request within the read timeout, or one larger than
+     * {@link Config#MAX_REQUEST_CONTENT_LENGTH}, is dropped, and connections beyond
+     * {@link Config#MAX_SERVER_CONNECTIONS} are turned away with {@link Error#SERVER_BUSY}.
+     */
     public void listen() throws IOException {
-        try (var connection = socket.accept()) {
-            IO.println("Received connection from %s:%d".formatted(connection.getInetAddress(), connection.getPort()));
-            var request = Packet.readPacket(connection);
-            IO.println("\t" + request);
-            Packet response;
-            try {
-                response = this.runRequestHandler(request);
-            } catch (IllegalArgumentException _) {
-                response = new Packet(Error.UNSUPPORTED_METHOD);
+        var connection = socket.accept();
+        Thread.ofVirtual().name("server-connection").start(() -> serve(connection));
+    }
+
+    private void serve(Socket connection) {
+        var inFlight = connections.incrementAndGet();
+        try (connection) {
+            if (inFlight > Config.MAX_SERVER_CONNECTIONS) {
+                // answering takes far less than reading and handling a request would
+                respond(connection, new Packet(Error.SERVER_BUSY));
+                Log.warn("server.busy", "from", connection.getInetAddress(), "connections", inFlight);
+                return;
             }
+            Packet request;
+            try (var deadline = Deadline.after(connection, readTimeoutMillis)) {
+                try {
+                    request = Packet.readPacket(connection, Config.MAX_REQUEST_CONTENT_LENGTH);
+                } catch (IOException e) {
+                    if (!deadline.expired())
+                        throw e;
+                    Log.warn("request.timeout", "from", connection.getInetAddress(), "millis", readTimeoutMillis);
+                    return;
+                }
+            } catch (PacketMalformedException e) {
+                Log.warn("request.malformed", "from", connection.getInetAddress(), "error", e.getMessage());
+                respond(connection, new Packet(Error.MALFORMED_REQUEST));
+                return;
+            }
+            // the headers but for the password, which has no business in a log file
+            Log.debug("request", "from", connection.getInetAddress(), "method", request.method(),
+                    "username", request.headers().get("username"));
+            try (var _ = Trace.join(request, "server " + request.method())) {
+                Checked checked;
+                try (var _ = Trace.child("check password")) {
+                    checked = check(request);
+                } catch (RejectedExecutionException _) {
+                    Log.warn("password.busy", "from", connection.getInetAddress(), "method", request.method());
+                    respond(connection, new Packet(Error.SERVER_BUSY));
+                    return;
+                }
+                Packet response;
+                synchronized (this) {
+                    this.checked = checked;
+                    // the rest of the server span is spent waiting for the lock and sending the response
+                    try (var _ = Trace.child("handle " + request.method())) {
+                        response = this.runRequestHandler(request);
+                    } catch (IllegalArgumentException _) {
+                        response = new Packet(Error.UNSUPPORTED_METHOD);
+                    } finally {
+                        this.checked = null;
+                    }
+                }
+                if (request.method() == Method.MESSAGE || request.method() == Method.FETCH)
+                    response = synced(request, response);
+                respond(connection, response);
+            }
+        } catch (IOException | PacketMalformedException e) {
+            Log.warn("connection.failed", "from", connection.getInetAddress(), "error", e);
+        } finally {
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Check the password of a request that has one, or hash it for {@code REGISTER}, on the threads of
+     * {@link Credentials}.
+     * @return {@code null} if the request has no password, or is registering a username that is taken.
+     * @throws RejectedExecutionException if too many passwords are waiting to be hashed already.
+     */
+    private Checked check(Packet request) {
+        var username = request.headers().get("username");
+        var password = request.headers().get("password");
+        if (username == null || password == null)
+            return null;
+        if (request.method() == Method.REGISTER)
+            return credentials.exists(username) ? null
+                    : new Checked(request, false, credentials.hash(password).join());
+        return new Checked(request, credentials.verify(username, password, request.method() == Method.LOGIN).join(),
+                null);
+    }
+
+    /**
+     * Wait for whatever a request queued or acknowledged to be on disk, without holding the lock, before answering.
+     * @return The response, or {@link Error#SERVER_ERROR} if a message that was queued could not be synced.
+     */
+    private Packet synced(Packet request, Packet response) {
+        try (var _ = Trace.child("sync offline queue")) {
+            offlineQueue.sync();
+            return response;
+        } catch (IOException e) {
+            Log.error("offline.sync.failed", "method", request.method(), "error", e);
+            // a batch that was fetched is still good, it may just be handed out again
+            return request.method() == Method.MESSAGE ? new Packet(Error.SERVER_ERROR) : response;
+        }
+    }
+
+    /**
+     * The accounts' passwords, whose hashing can be tuned while the server runs.
+     */
+    public Credentials credentials() {
+        return credentials;
+    }
+
+    /**
+     * Send a response, giving up on a client that does not read it within {@link Config#WRITE_TIMEOUT_MILLIS}.
+     */
+    private static void respond(Socket connection, Packet response) throws IOException {
+        try (var _ = Deadline.after(connection, Config.WRITE_TIMEOUT_MILLIS)) {
             Packet.sendPacket(connection, response);
         }
     }
 
     public void listenLoop() {
-        IO.println("Listening on port %d".formatted(port));
+        Log.info("server.listening", "port", port);
         while (true) {
             try {
+                if (System.currentTimeMillis() >= nextCleanup) {
+                    offlineQueue.cleanup();
+                    nextCleanup = System.currentTimeMillis() + Duration.ofMinutes(Config.OFFLINE_CLEANUP_MINUTES).toMillis();
+                }
                 listen();
             } catch (Exception e) {
-                e.printStackTrace();
+                if (!socket.isClosed())
+                    Log.error("server.stopped", "port", port, "error", e);
                 return;
             }
         }
     }
 
+    /**
+     * Stop accepting connections and heartbeats, stop the password hashing threads and close the offline queue.
+     * {@link Server#listenLoop()} returns once this is called.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("server.close.failed", "port", port, "error", e);
+        }
+        try {
+            presence.close();
+        } catch (IOException e) {
+            Log.warn("presence.close.failed", "error", e);
+        }
+        credentials.close();
+        offlineQueue.close();
+    }
+
     static void main() throws IOException {
         var server = new Server(Config.SERVER_PORT);
         server.listenLoop();
@@ -70,47 +279,147 @@ public class Server extends PacketHandler {
     public Packet onRequestREGISTER(Packet request) {
         var username = request.headers().get("username");
         var password = request.headers().get("password");
-        if (userPasswords.containsKey(username))
+        if (username == null || password == null)
+            return new Packet(Error.MALFORMED_REQUEST);
+        if (credentials.exists(username))
             return new Packet(Error.USER_ALREADY_EXISTS);
-        userPasswords.put(username, password);
+        var hash = checked != null && checked.request() == request ? checked.hash()
+                : credentials.hash(password).join();
+        credentials.add(username, password, hash);
         var session = new UserSession(username, request.address(),
-                Integer.parseInt(request.headers().get("listenPort")));
+                Integer.parseInt(request.headers().get("listenPort")), request.headers().get("certificate"));
         userSessions.put(username, session);
+        directory.add(username);
+        setStatus(username, session.status);
         return new Packet(Method.SUCCESS);
     }
 
+    /**
+     * Log a user in. With a {@code since} header, the response is also what changed in their roster since that
+     * version, as {@link #onRequestROSTER(Packet)} would answer it, so a client reconnecting needs no more requests
+     * to bring its contacts up to date.
+     */
     @HandlesMethod(Method.LOGIN)
     public Packet onRequestLOGIN(Packet request) {
         var username = request.headers().get("username");
         var password = request.headers().get("password");
         if (username == null || password == null)
             return new Packet(Error.MALFORMED_REQUEST);
-        var target = userPasswords.get(username);
-        if (!password.equals(target))
+        if (!authenticated(request))
             return new Packet(Error.WRONG_CREDENTIALS);
+        long since;
+        try {
+            since = Long.parseLong(request.headers().getOrDefault("since", "-1"));
+        } catch (NumberFormatException _) {
+            return new Packet(Error.MALFORMED_REQUEST);
+        }
         var session = new UserSession(username, request.address(),
-                Integer.parseInt(request.headers().get("listenPort")));
+                Integer.parseInt(request.headers().get("listenPort")), request.headers().get("certificate"));
         userSessions.put(username, session);
+        setStatus(username, session.status);
+        // a client starting over has to ask for a new ticket
+        heartbeats.remove(username);
+        presence.revoke(username);
+        if (since < 0)
+            return new Packet(Method.SUCCESS);
+        return rosterResponse(roster.since(username, since));
+    }
+
+    @HandlesMethod(Method.LOGOUT)
+    public Packet onRequestLOGOUT(Packet request) {
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        logOut(request.headers().get("username"));
         return new Packet(Method.SUCCESS);
     }
 
+    /**
+     * @param status The user's new status, or {@code null} once they log out.
+     */
+    private void setStatus(String username, Status status) {
+        directory.setStatus(username, status);
+        roster.setStatus(username, status);
+    }
+
+    private void logOut(String username) {
+        userSessions.remove(username);
+        setStatus(username, null);
+        heartbeats.remove(username);
+        presence.revoke(username);
+        credentials.forget(username);
+    }
+
+    /**
+     * Issue a ticket for reporting the user's status over UDP, revoking any previous one.
+     * The response's {@code id}, {@code key} (base64) and {@code port} headers make up the {@link Presence.Ticket}.
+     * Once the first datagram arrives, the user stays online only as long as datagrams keep coming.
+     */
+    @HandlesMethod(Method.PRESENCE)
+    public Packet onRequestPRESENCE(Packet request) {
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        var username = request.headers().get("username");
+        if (!userSessions.containsKey(username))
+            return new Packet(Error.USER_NOT_ONLINE);
+        var ticket = presence.issue(username);
+        return new Packet(Method.SUCCESS, Map.of(
+                "id", String.valueOf(ticket.id()),
+                "key", Base64.getEncoder().encodeToString(ticket.key()),
+                "port", String.valueOf(ticket.port())
+        ));
+    }
+
+    /**
+     * Apply a batch of status reports from {@link Presence}, and log out whoever stopped sending them.
+     */
+    private synchronized void onPresence(List<Presence.Update> updates) {
+        var now = System.currentTimeMillis();
+        for (var update: updates) {
+            var session = userSessions.get(update.username());
+            if (session == null)
+                continue;
+            // a heartbeat that was on its way when the status changed carries the old one
+            if (update.counter() > session.statusCounter) {
+                session.status = update.status();
+                setStatus(update.username(), update.status());
+            }
+            heartbeats.remove(update.username());
+            heartbeats.put(update.username(), now);
+        }
+        var oldest = heartbeats.entrySet().iterator();
+        while (oldest.hasNext()) {
+            var heartbeat = oldest.next();
+            if (now - heartbeat.getValue() < Config.PRESENCE_TIMEOUT_MILLIS)
+                break;
+            oldest.remove();
+            logOut(heartbeat.getKey());
+        }
+    }
+
     @HandlesMethod(Method.WHOIS)
     public Packet onRequestWHOIS(Packet request) {
         var username = request.headers().get("username");
         if (username == null)
             return new Packet(Error.MALFORMED_REQUEST);
-        if (!userPasswords.containsKey(username))
+        if (!credentials.exists(username))
             return new Packet(Error.NO_SUCH_USER);
         var session = userSessions.get(username);
         if (session == null)
             return new Packet(Error.USER_NOT_ONLINE);
-        return new Packet(Method.SUCCESS, Map.of(
+        var headers = new HashMap<>(Map.of(
                 "address", session.address.getHostAddress(),
                 "port", String.valueOf(session.port),
                 "status", session.status.toString()
         ));
+        if (session.certificate != null)
+            headers.put("certificate", session.certificate);
+        return new Packet(Method.SUCCESS, headers);
     }
 
+    /**
+     * Change a user's status. The {@code presence} header, if any, is the counter of the last heartbeat the client
+     * sent with its old status, and heartbeats up to it that are still on their way no longer change it back.
+     */
     @HandlesMethod(Method.STATUS)
     public Packet onRequestSTATUS(Packet request) {
         var username = request.headers().get("username");
@@ -118,11 +427,229 @@ public class Server extends PacketHandler {
         var status = request.headers().get("status");
         if (username == null || password == null || status == null)
             return new Packet(Error.MALFORMED_REQUEST);
-        var target = userPasswords.get(username);
-        if (!password.equals(target))
+        if (!authenticated(request))
             return new Packet(Error.WRONG_CREDENTIALS);
+        long counter;
+        try {
+            counter = Long.parseLong(request.headers().getOrDefault("presence", "0"));
+        } catch (NumberFormatException _) {
+            return new Packet(Error.MALFORMED_REQUEST);
+        }
         var session = userSessions.get(username);
+        // logged out, or timed out without heartbeats
+        if (session == null)
+            return new Packet(Error.USER_NOT_ONLINE);
         session.status = Status.valueOf(status);
+        session.statusCounter = Math.max(session.statusCounter, counter);
+        setStatus(username, session.status);
+        return new Packet(Method.SUCCESS);
+    }
+
+    /**
+     * List the users whose username starts with the {@code prefix} header, one {@code username} or
+     * {@code username status} line per user, in alphabetical order.
+     * Users who are offline are listed without a status. With a {@code status} header, only users who are online
+     * with that status are listed. The response has a {@code next} header if there are more users, which
+     * continues the listing when sent back as {@code after}.
+     */
+    @HandlesMethod(Method.DIRECTORY)
+    public Packet onRequestDIRECTORY(Packet request) {
+        var prefix = request.headers().getOrDefault("prefix", "");
+        var after = request.headers().get("after");
+        var statusHeader = request.headers().get("status");
+        var limitHeader = request.headers().get("limit");
+        Status status;
+        int limit;
+        try {
+            status = statusHeader == null ? null : Status.valueOf(statusHeader);
+            limit = limitHeader == null ? Config.DIRECTORY_PAGE_SIZE : Integer.parseInt(limitHeader);
+        } catch (IllegalArgumentException _) {
+            return new Packet(Error.MALFORMED_REQUEST);
+        }
+        var page = directory.search(prefix, status, after, Math.clamp(limit, 1, Config.DIRECTORY_MAX_PAGE_SIZE));
+        var content = new StringBuilder();
+        for (var user: page.users()) {
+            content.append(user.username());
+            if (user.status() != null)
+                content.append(' ').append(user.status());
+            content.append('\n');
+        }
+        var headers = page.next() == null ? Map.<String, String>of() : Map.of("next", page.next());
+        return new Packet(Method.SUCCESS, headers, content.toString());
+    }
+
+    /**
+     * Add the user in the {@code add} header to the roster, or remove the one in the {@code remove} header, and
+     * answer with the roster's {@code version}. With a {@code since} header, the response also lists what changed
+     * in the roster after that version, one line per contact: {@code username} or
+     * {@code username status} for a contact who was added or changed status, as {@code DIRECTORY} lists them, and
+     * {@code -username} for one who was removed. If the changes since then are not all known, the response has a
+     * {@code full} header and lists the whole roster instead, which replaces the client's copy.
+     */
+    @HandlesMethod(Method.ROSTER)
+    public Packet onRequestROSTER(Packet request) {
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        var username = request.headers().get("username");
+        var add = request.headers().get("add");
+        var remove = request.headers().get("remove");
+        long since;
+        try {
+            since = Long.parseLong(request.headers().getOrDefault("since", "-1"));
+        } catch (NumberFormatException _) {
+            return new Packet(Error.MALFORMED_REQUEST);
+        }
+        if (add != null) {
+            if (!credentials.exists(add))
+                return new Packet(Error.NO_SUCH_USER);
+            if (roster.add(username, add) < 0)
+                return new Packet(Error.QUOTA_EXCEEDED);
+        }
+        if (remove != null)
+            roster.remove(username, remove);
+        if (since < 0)
+            return new Packet(Method.SUCCESS, Map.of("version", String.valueOf(roster.version(username))));
+        return rosterResponse(roster.since(username, since));
+    }
+
+    private static Packet rosterResponse(Roster.Delta delta) {
+        var content = new StringBuilder();
+        for (var contact: delta.changed()) {
+            content.append(contact.username());
+            if (contact.status() != null)
+                content.append(' ').append(contact.status());
+            content.append('\n');
+        }
+        for (var contact: delta.removed())
+            content.append('-').append(contact).append('\n');
+        var headers = new HashMap<>(Map.of("version", String.valueOf(delta.version())));
+        if (delta.full())
+            headers.put("full", "true");
+        return new Packet(Method.SUCCESS, headers, content.toString());
+    }
+
+    private boolean authenticated(Packet request) {
+        var username = request.headers().get("username");
+        var password = request.headers().get("password");
+        if (username == null || password == null)
+            return false;
+        if (checked != null && checked.request() == request)
+            return checked.authenticated();
+        // handled without going through serve(), as tests and benchmarks do
+        return credentials.verify(username, password, request.method() == Method.LOGIN).join();
+    }
+
+    @HandlesMethod(Method.JOIN)
+    public Packet onRequestJOIN(Packet request) {
+        var group = request.headers().get("group");
+        if (group == null)
+            return new Packet(Error.MALFORMED_REQUEST);
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        var target = groups.computeIfAbsent(group, _ -> new Group());
+        if (target.members.add(request.headers().get("username")))
+            target.version = ++groupVersion;
+        return new Packet(Method.SUCCESS, Map.of("version", String.valueOf(target.version)));
+    }
+
+    @HandlesMethod(Method.LEAVE)
+    public Packet onRequestLEAVE(Packet request) {
+        var group = request.headers().get("group");
+        if (group == null)
+            return new Packet(Error.MALFORMED_REQUEST);
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        var target = groups.get(group);
+        if (target == null)
+            return new Packet(Error.NO_SUCH_GROUP);
+        if (target.members.remove(request.headers().get("username")))
+            target.version = ++groupVersion;
+        if (target.members.isEmpty())
+            groups.remove(group);
+        return new Packet(Method.SUCCESS);
+    }
+
+    /**
+     * List the members of a group, one {@code username address port} line each, in the order they joined, followed
+     * by the fingerprint of the member's certificate if they have one.
+     * Members that are not online are left out. Only members may ask; anybody else is told there is no such group.
+     */
+    @HandlesMethod(Method.MEMBERS)
+    public Packet onRequestMEMBERS(Packet request) {
+        var group = request.headers().get("group");
+        if (group == null)
+            return new Packet(Error.MALFORMED_REQUEST);
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        var target = groups.get(group);
+        if (target == null || !target.members.contains(request.headers().get("username")))
+            return new Packet(Error.NO_SUCH_GROUP);
+        var content = new StringBuilder();
+        for (var member: target.members) {
+            var session = userSessions.get(member);
+            if (session == null)
+                continue;
+            content.append("%s %s %d".formatted(member, session.address.getHostAddress(), session.port));
+            if (session.certificate != null)
+                content.append(' ').append(session.certificate);
+            content.append('\n');
+        }
+        return new Packet(Method.SUCCESS, Map.of("version", String.valueOf(target.version)), content.toString());
+    }
+
+    /**
+     * Leave a message for a user to fetch later, typically because they are offline.
+     * The message is stored with {@code from} and {@code timestamp} headers added.
+     */
+    @HandlesMethod(Method.MESSAGE)
+    public Packet onRequestMESSAGE(Packet request) {
+        var recipient = request.headers().get("to");
+        if (recipient == null)
+            return new Packet(Error.MALFORMED_REQUEST);
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        if (!credentials.exists(recipient))
+            return new Packet(Error.NO_SUCH_USER);
+        var message = new Packet(Method.MESSAGE, Map.of(
+                "from", request.headers().get("username"),
+                "timestamp", String.valueOf(System.currentTimeMillis())
+        ), request.content());
+        try {
+            if (offlineQueue.enqueue(recipient, message.encode()) < 0)
+                return new Packet(Error.QUOTA_EXCEEDED);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("offline.enqueue.failed", "to", recipient, "error", e);
+            return new Packet(Error.SERVER_ERROR);
+        }
         return new Packet(Method.SUCCESS);
     }
+
+    /**
+     * Hand out the next batch of messages left for a user, as consecutive {@code MESSAGE} packets in the content.
+     * The {@code after} header acknowledges the previous batch: pass the {@code next} header of the last response.
+     * Without it, the batch starts at the last acknowledged message.
+     */
+    @HandlesMethod(Method.FETCH)
+    public Packet onRequestFETCH(Packet request) {
+        if (!authenticated(request))
+            return new Packet(Error.WRONG_CREDENTIALS);
+        OfflineQueue.Batch batch;
+        try {
+            batch = offlineQueue.fetch(request.headers().get("username"),
+                    Long.parseLong(request.headers().getOrDefault("after", "-1")),
+                    Config.OFFLINE_FETCH_MESSAGES, Config.OFFLINE_FETCH_BYTES);
+        } catch (NumberFormatException e) {
+            return new Packet(Error.MALFORMED_REQUEST);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("offline.fetch.failed", "username", request.headers().get("username"), "error", e);
+            return new Packet(Error.SERVER_ERROR);
+        }
+        var content = new StringBuilder();
+        for (var message: batch.messages())
+            content.append(new String(message, StandardCharsets.UTF_8));
+        return new Packet(Method.SUCCESS, Map.of(
+                "next", String.valueOf(batch.next()),
+                "remaining", String.valueOf(batch.remaining())
+        ), content.toString());
+    }
 }
\ No newline at end of file
@@ -20,17 +20,21 @@ class ServerTest {
     static final int USER_PORT = 1234;
     //server object shared across tests
     static Server server;
+    //in-memory transport so the server port cannot collide with other tests running at the same time
+    static final Transport transport = new MemoryTransport();
 
     //method that runs once before all tests
     @BeforeAll
     static void setUp() throws IOException {
         //create server object bound to server port
-        server = new Server(SERVER_PORT);
+        server = new Server(SERVER_PORT, transport);
     }
 
     //method that runs once after all tests (cleanup if needed)
     @AfterAll
-    static void tearDown() {}
+    static void tearDown() {
+        server.close();
+    }
 
     //test method for registering a new user
     @Test
@@ -123,4 +127,33 @@ class ServerTest {
         //assert that response matches expected packet
         assertEquals(target, response);
     }
+
+    //test method for connections that send nothing, or far too much
+    @Test
+    @Order(5) //run fifth
+    void testHostileConnections() throws Exception {
+        //serve connections on a background thread, giving up quickly on silent ones
+        server.setReadTimeout(200);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        //open a connection and say nothing on it
+        try (var silent = transport.connect(Config.SERVER_IP, SERVER_PORT)) {
+            //a client sending a request meanwhile is still answered
+            try (var socket = transport.connect(Config.SERVER_IP, SERVER_PORT)) {
+                Packet.sendPacket(socket, new Packet(Method.WHOIS, Map.of("username", "nobody")));
+                assertEquals(new Packet(Error.NO_SUCH_USER), Packet.readPacket(socket));
+            }
+            //assert that the silent connection is closed once the read timeout passes
+            silent.setSoTimeout(5000);
+            assertThrows(IOException.class, () -> Packet.readPacket(silent));
+        }
+        //send a request larger than the server accepts
+        try (var socket = transport.connect(Config.SERVER_IP, SERVER_PORT)) {
+            var content = "x".repeat(Config.MAX_REQUEST_CONTENT_LENGTH + 1);
+            Packet.sendPacket(socket, new Packet(Method.MESSAGE, content));
+            //assert that it is refused without the server reading all of it
+            assertEquals(new Packet(Error.MALFORMED_REQUEST), Packet.readPacket(socket));
+        }
+    }
 }
\ No newline at end of file
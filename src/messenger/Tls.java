@@ -0,0 +1,424 @@
+package messenger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Opens every connection the messenger makes over {@link Transport#DEFAULT}: requests to the server, peer sessions
+ * and file transfers. Unless {@link Config#TLS} is turned off, they are all TLS 1.3 connections.
+ * <p>Each end of a connection presents a key pair of its own. The server's is in
+ * {@link Config#TLS_SERVER_KEYSTORE}, generated with {@code keytool} the first time the server starts, together
+ * with its certificate in {@link Config#TLS_SERVER_CERTIFICATE}. Copy only the certificate to every machine that
+ * runs a client; the keystore never leaves the server. Clients generate a key pair of their own in
+ * {@link Config#TLS_CLIENT_KEYSTORE}, one per machine, which they present to peers that connect to them.</p>
+ * <p>Clients trust the server's certificate and nothing else, except that they tell the server the fingerprint of
+ * their own certificate when they log in, and the server hands it out with their address. A client connecting to
+ * a peer pins that connection to the fingerprint the server gave for that peer, and accepts no other certificate
+ * on it, not even one the server vouched for on behalf of somebody else. A resumed session is held to the same
+ * pin, since resuming skips the certificates.</p>
+ * <p>Keystore passwords are taken from the {@link Config#TLS_PASSWORD_VARIABLE} environment variable. Without
+ * it, each keystore gets a random password of its own, kept next to it in a file only its owner can read.</p>
+ * <p>Every connection is made from one of two {@link SSLContext}s, the server's or the clients', loaded the first
+ * time they are needed. Besides saving the cost of reading the keys each time, sharing the context is what makes
+ * session resumption work: the client side of a context caches the sessions it established, and the server side
+ * encrypts its session tickets with a key that lives in the context. Connecting again to a server or peer we
+ * talked to recently resumes the previous session, skipping the certificates and their signatures. This matters
+ * because {@link Client#makeServerRequest(protocol.Packet)} opens a new connection for every request.</p>
+ * <p>Connections to other processes on the same machine go over a {@link LocalSocket} instead, where there is
+ * one, and are not encrypted.</p>
+ */
+public class Tls {
+    private static final String KEYTOOL_PASSWORD_VARIABLE = "MESSENGER_KEYTOOL_STOREPASS";
+
+    private static SSLContext context = null;
+    private static SSLContext serverContext = null;
+    private static String fingerprint = null;
+    // the fingerprint each connection to a peer was pinned to, until the connection is collected
+    private static final Map<Socket, String> pins = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @return The context clients make every connection from and listen for peers with, loaded on first use.
+     */
+    public static synchronized SSLContext context() throws IOException {
+        if (context == null) {
+            var keystore = Path.of(Config.TLS_CLIENT_KEYSTORE);
+            var password = password(keystore);
+            var keys = load(keystore, password);
+            fingerprint = fingerprint(certificate(keys));
+            context = context(keys, password,
+                    new TrustManager[] {new PinnedTrustManager(Path.of(Config.TLS_SERVER_CERTIFICATE))});
+        }
+        return context;
+    }
+
+    /**
+     * @return The context the server listens with, loaded on first use.
+     */
+    public static synchronized SSLContext serverContext() throws IOException {
+        if (serverContext == null) {
+            var keystore = Path.of(Config.TLS_SERVER_KEYSTORE);
+            var password = password(keystore);
+            var keys = load(keystore, password);
+            export(certificate(keys), Path.of(Config.TLS_SERVER_CERTIFICATE));
+            serverContext = context(keys, password, null);
+        }
+        return serverContext;
+    }
+
+    /**
+     * @return The fingerprint of the certificate this machine's clients present to peers.
+     */
+    public static synchronized String fingerprint() throws IOException {
+        context();
+        return fingerprint;
+    }
+
+    /**
+     * Load a keystore, generating it first if it does not exist.
+     */
+    public static KeyStore load(Path keystore, char[] password) throws IOException {
+        if (!Files.exists(keystore))
+            generate(keystore, password);
+        try (var input = Files.newInputStream(keystore)) {
+            var keys = KeyStore.getInstance("PKCS12");
+            keys.load(input, password);
+            return keys;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load keystore %s.".formatted(keystore), e);
+        }
+    }
+
+    /**
+     * Create a context which presents the key pair in a keystore.
+     * @param trustManagers Who to trust, or {@code null} for a context that only accepts connections.
+     */
+    public static SSLContext context(KeyStore keys, char[] password, TrustManager[] trustManagers)
+            throws IOException {
+        try {
+            var keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, password);
+            var context = SSLContext.getInstance("TLSv1.3");
+            context.init(keyManagers.getKeyManagers(), trustManagers, null);
+            context.getClientSessionContext().setSessionTimeout(Config.TLS_SESSION_TIMEOUT_SECONDS);
+            context.getServerSessionContext().setSessionTimeout(Config.TLS_SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS.", e);
+        }
+    }
+
+    /**
+     * The password of a keystore: the {@link Config#TLS_PASSWORD_VARIABLE} environment variable if it is set, or a
+     * random one kept in a file next to the keystore, generated the first time.
+     */
+    static char[] password(Path keystore) throws IOException {
+        var variable = System.getenv(Config.TLS_PASSWORD_VARIABLE);
+        if (variable != null && !variable.isEmpty())
+            return variable.toCharArray();
+        var file = keystore.resolveSibling(keystore.getFileName() + ".password");
+        if (!Files.exists(file)) {
+            var bytes = new byte[24];
+            new SecureRandom().nextBytes(bytes);
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            var temporary = file.resolveSibling("%s.%d.tmp".formatted(file.getFileName(),
+                    ProcessHandle.current().pid()));
+            Files.deleteIfExists(temporary);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+                Files.createFile(temporary, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rw-------")));
+            Files.writeString(temporary, Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+            try {
+                Files.move(temporary, file);
+            } catch (FileAlreadyExistsException e) {
+                // another process made one at the same time, and the keystore will be made with theirs
+                Files.delete(temporary);
+            }
+        }
+        return Files.readString(file).strip().toCharArray();
+    }
+
+    private static X509Certificate certificate(KeyStore keys) throws IOException {
+        try {
+            return (X509Certificate) keys.getCertificate(keys.aliases().nextElement());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return The SHA-256 digest of a certificate, which is what the server vouches for.
+     */
+    static String fingerprint(Certificate certificate) throws IOException {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Write a certificate out in PEM form, unless the file already holds it.
+     */
+    private static void export(Certificate certificate, Path file) throws IOException {
+        String pem;
+        try {
+            pem = "-----BEGIN CERTIFICATE-----\n%s\n-----END CERTIFICATE-----\n".formatted(
+                    Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII))
+                            .encodeToString(certificate.getEncoded()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        if (Files.exists(file)) {
+            if (Files.readString(file).equals(pem))
+                return;
+            // left from a keystore that has since been replaced
+            Files.delete(file);
+        }
+        var temporary = file.resolveSibling("%s.%d.tmp".formatted(file.getFileName(), ProcessHandle.current().pid()));
+        Files.writeString(temporary, pem);
+        try {
+            Files.move(temporary, file);
+        } catch (FileAlreadyExistsException e) {
+            // another server process exported it at the same time, which is only fine if it was the same one
+            Files.delete(temporary);
+            if (!Files.readString(file).equals(pem))
+                throw new IOException("Certificate %s was replaced by another server's.".formatted(file));
+        }
+    }
+
+    /**
+     * Trusts the server's certificate, read the first time it is needed, on connections to the server, and on a
+     * connection to a peer only the certificate it was pinned to. Only a client connecting to somebody asks it,
+     * since nobody asks clients for a certificate.
+     */
+    private static class PinnedTrustManager extends X509ExtendedTrustManager {
+        private final Path serverCertificate;
+        private String server = null;
+
+        PinnedTrustManager(Path serverCertificate) {
+            this.serverCertificate = serverCertificate;
+        }
+
+        private synchronized String server() throws CertificateException {
+            if (server == null) {
+                try (var input = Files.newInputStream(serverCertificate)) {
+                    server = fingerprint(CertificateFactory.getInstance("X.509").generateCertificate(input));
+                } catch (IOException e) {
+                    throw new CertificateException("Cannot read the server's certificate %s; copy it from the server."
+                            .formatted(serverCertificate), e);
+                }
+            }
+            return server;
+        }
+
+        /**
+         * @return The fingerprint a connection has to present: the one it was pinned to, or the server's.
+         */
+        private String expected(Socket socket) throws CertificateException {
+            var pin = pins.get(socket);
+            return pin != null ? pin : server();
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            String fingerprint;
+            try {
+                fingerprint = fingerprint(chain[0]);
+            } catch (IOException e) {
+                throw new CertificateException(e);
+            }
+            var expected = expected(socket);
+            if (!fingerprint.equals(expected))
+                throw new CertificateException("Certificate %s is not the expected %s."
+                        .formatted(fingerprint, expected));
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            throw new CertificateException("Connections are only made from sockets.");
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("Connections are only made from sockets.");
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("Clients are not asked for certificates.");
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    /**
+     * Generate a keystore holding a new key pair and a self-signed certificate for it.
+     */
+    private static void generate(Path keystore, char[] password) throws IOException {
+        var directory = keystore.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        // keytool refuses to overwrite a file, so give it a name that does not exist yet
+        var temporary = directory.resolve("%s.%d.tmp".formatted(keystore.getFileName(),
+                ProcessHandle.current().pid()));
+        Files.deleteIfExists(temporary);
+        var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        // handed over in keytool's environment, where other users cannot read it as they can its command line
+        var builder = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "messenger",
+                "-keyalg", "EC",
+                "-groupname", "secp256r1",
+                "-dname", "CN=messenger",
+                "-validity", "3650",
+                "-storetype", "PKCS12",
+                "-keystore", temporary.toString(),
+                "-storepass:env", KEYTOOL_PASSWORD_VARIABLE
+        ).redirectErrorStream(true);
+        builder.environment().put(KEYTOOL_PASSWORD_VARIABLE, new String(password));
+        var process = builder.start();
+        var output = new String(process.getInputStream().readAllBytes());
+        try {
+            if (process.waitFor() != 0)
+                throw new IOException("keytool failed: " + output.trim());
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw new IOException("Interrupted while generating a keystore.", e);
+        }
+        try {
+            Files.move(temporary, keystore);
+        } catch (FileAlreadyExistsException e) {
+            // another process generated one at the same time, and the keystore it wrote is the one loaded
+            Files.delete(temporary);
+        }
+    }
+
+    public static Socket connect(String host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), 0);
+    }
+
+    public static Socket connect(InetAddress address, int port) throws IOException {
+        return connect(new InetSocketAddress(address, port), 0);
+    }
+
+    /**
+     * Connect to the server, or to a process on the same machine over its {@link LocalSocket} if it has one.
+     * @param timeoutMillis How long connecting may take, or 0 to wait as long as the operating system does.
+     */
+    public static Socket connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+        return connect(address, timeoutMillis, null);
+    }
+
+    /**
+     * Connect to a process on the same machine over its {@link LocalSocket} if it has one, and over TLS otherwise.
+     * @param timeoutMillis How long connecting may take, or 0 to wait as long as the operating system does.
+     * @param certificate The fingerprint of the certificate the server vouched for on behalf of the peer we are
+     *                    connecting to, or {@code null} if we are connecting to the server.
+     * @throws SSLPeerUnverifiedException if the other end presents any other certificate.
+     */
+    public static Socket connect(InetSocketAddress address, int timeoutMillis, String certificate)
+            throws IOException {
+        var local = LocalSocket.connect(address);
+        if (local != null)
+            return local;
+        var socket = Config.TLS ? context().getSocketFactory().createSocket() : new Socket();
+        try {
+            socket.connect(address, timeoutMillis);
+            // requests and handshake messages are small, and delayed acknowledgements would hold each one up
+            socket.setTcpNoDelay(true);
+            if (socket instanceof SSLSocket secure && certificate != null)
+                handshake(secure, certificate, timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Shake hands with a peer before anything is sent to it, holding it to the certificate it is pinned to whether
+     * or not the session was resumed without one being presented.
+     * Connections to the server shake hands when they are first used, since the trust manager holds them to the
+     * server's certificate and the sessions they resume were only ever established with the server.
+     * @param timeoutMillis How long the handshake may take, or 0 to wait as long as it takes.
+     */
+    private static void handshake(SSLSocket socket, String certificate, int timeoutMillis) throws IOException {
+        pins.put(socket, certificate);
+        socket.setSoTimeout(timeoutMillis);
+        socket.startHandshake();
+        socket.setSoTimeout(0);
+        var presented = fingerprint(socket.getSession().getPeerCertificates()[0]);
+        if (!presented.equals(certificate))
+            throw new SSLPeerUnverifiedException("Certificate %s is not the expected %s."
+                    .formatted(presented, certificate));
+    }
+
+    /**
+     * Wait for the next TCP connection to a socket from {@link Tls#listen(int)}.
+     */
+    public static Socket accept(ServerSocket listener) throws IOException {
+        var socket = listener.accept();
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Listen for TCP connections from peers on a port, 0 for any free one.
+     * @see SecureTransport
+     */
+    public static ServerSocket listen(int port) throws IOException {
+        if (!Config.TLS)
+            return new ServerSocket(port, Config.LISTEN_BACKLOG);
+        return context().getServerSocketFactory().createServerSocket(port, Config.LISTEN_BACKLOG);
+    }
+
+    /**
+     * Listen for TCP connections from clients on a port as the server, 0 for any free one.
+     */
+    public static ServerSocket serve(int port) throws IOException {
+        if (!Config.TLS)
+            return new ServerSocket(port, Config.LISTEN_BACKLOG);
+        return serverContext().getServerSocketFactory().createServerSocket(port, Config.LISTEN_BACKLOG);
+    }
+}
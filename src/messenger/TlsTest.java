@@ -0,0 +1,169 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TlsTest {
+    static int serverPort;
+    static final int REQUESTS = 200;
+    static Server server;
+
+    @BeforeAll
+    static void setUp() throws IOException, InterruptedException {
+        server = new Server(0);
+        serverPort = server.port();
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Make a request to the server on a new TLS connection, as {@link Client#makeServerRequest(Packet)} does for a
+     * server on another machine.
+     * @param resume Whether the TLS session may be resumed by the next request.
+     * @return When the TLS session was first established.
+     */
+    static long request(Packet request, boolean resume) throws IOException {
+        // not with Tls.connect, which would take the server's local socket
+        try (var socket = (SSLSocket) Tls.context().getSocketFactory().createSocket(Config.SERVER_IP, serverPort)) {
+            socket.setTcpNoDelay(true);
+            Packet.sendPacket(socket, request);
+            assertEquals(Method.FAILURE, Packet.readPacket(socket).method());
+            var session = socket.getSession();
+            if (!resume)
+                session.invalidate();
+            return session.getCreationTime();
+        }
+    }
+
+    @Test
+    @DisplayName("The server's session is resumed instead of starting over")
+    void resumption() throws IOException {
+        var whois = new Packet(Method.WHOIS, Map.of("username", "nobody"));
+        for (var resume: new boolean[] {false, true, false, true}) {
+            var sessions = new HashSet<Long>();
+            for (var i = 0; i < REQUESTS; i++)
+                sessions.add(request(whois, resume));
+            // resumed sessions keep the creation time of the session they resume
+            if (resume)
+                assertTrue(sessions.size() <= 2, "%d full handshakes".formatted(sessions.size()));
+            else
+                assertTrue(sessions.size() > REQUESTS / 2, "%d full handshakes".formatted(sessions.size()));
+        }
+    }
+
+    static void pump(Socket from, Socket to, ByteArrayOutputStream copy) {
+        try (from; to) {
+            var input = from.getInputStream();
+            var buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                if (copy != null) {
+                    synchronized (copy) {
+                        copy.write(buffer, 0, read);
+                    }
+                }
+                to.getOutputStream().write(buffer, 0, read);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    @Test
+    @DisplayName("Passwords no longer cross the network in cleartext")
+    void encrypted() throws IOException {
+        // relay the client's connections to the server, keeping a copy of every byte the client sends
+        var wire = new ByteArrayOutputStream();
+        try (var relay = new ServerSocket(0)) {
+            Thread.ofVirtual().start(() -> {
+                while (true) {
+                    try {
+                        var from = relay.accept();
+                        var to = new Socket(Config.SERVER_IP, serverPort);
+                        Thread.ofVirtual().start(() -> pump(to, from, null));
+                        Thread.ofVirtual().start(() -> pump(from, to, wire));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            var client = Client.open(0, Config.SERVER_IP, relay.getLocalPort());
+            try {
+                assertEquals(Error.OK, client.register("tls" + ProcessHandle.current().pid(), "hunter2"));
+                assertEquals(Error.OK, client.setStatus(Status.BUSY));
+            } finally {
+                client.close();
+            }
+        }
+        synchronized (wire) {
+            assertTrue(wire.size() > 0);
+            assertFalse(wire.toString(StandardCharsets.ISO_8859_1).contains("hunter2"));
+        }
+    }
+
+    @Test
+    @DisplayName("Clients trust the server's certificate, and on a connection to a peer only the one it is pinned to")
+    void trust(@TempDir Path directory) throws Exception {
+        var server = Tls.load(Path.of(Config.TLS_SERVER_KEYSTORE), Tls.password(Path.of(Config.TLS_SERVER_KEYSTORE)));
+        assertNotEquals(Tls.fingerprint(server.getCertificate("messenger")), Tls.fingerprint());
+        assertFalse(Files.readString(Path.of(Config.TLS_SERVER_CERTIFICATE)).contains("PRIVATE KEY"));
+
+        var keystore = directory.resolve("stranger.p12");
+        var password = "stranger".toCharArray();
+        var stranger = Tls.load(keystore, password);
+        var context = Tls.context(stranger, password, null);
+        try (var listener = context.getServerSocketFactory().createServerSocket(0)) {
+            Thread.ofVirtual().start(() -> {
+                while (true) {
+                    try (var socket = (SSLSocket) listener.accept()) {
+                        socket.startHandshake();
+                        socket.getOutputStream().write(1);
+                    } catch (IOException e) {
+                        if (listener.isClosed())
+                            return;
+                    }
+                }
+            });
+            var address = new InetSocketAddress(Config.SERVER_IP, listener.getLocalPort());
+            var pinned = Tls.fingerprint(stranger.getCertificate("messenger"));
+            assertThrows(SSLHandshakeException.class, () -> handshake(address, null));
+            // vouched for, but on behalf of somebody else
+            assertThrows(SSLHandshakeException.class, () -> handshake(address, Tls.fingerprint()));
+            handshake(address, pinned);
+            // the session is resumed this time, without the certificate being checked again by the handshake
+            assertThrows(SSLPeerUnverifiedException.class, () -> handshake(address, Tls.fingerprint()));
+            handshake(address, pinned);
+        }
+    }
+
+    static void handshake(InetSocketAddress address, String certificate) throws IOException {
+        try (var socket = Tls.connect(address, 1000, certificate)) {
+            assertEquals(1, socket.getInputStream().read());
+        }
+    }
+}
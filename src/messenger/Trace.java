@@ -0,0 +1,189 @@
+package messenger;
+
+import protocol.Packet;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Follows a sampled operation, such as a {@code /connect}, across every hop it makes: the client's requests to the
+ * server, the server handling them, and the peer handling our packets. Each hop is a span, timed from when it is
+ * started until it is closed:
+ * <pre>{@code
+ *     try (var _ = Trace.start("connect " + username)) {
+ *         // requests sent from here carry the trace, and their spans become children of this one
+ *     }
+ * }</pre>
+ * <p>A span started while another is open on the same thread is its child. Packets passed through
+ * {@link Trace#inject(Packet)} carry the {@code trace} and {@code span} headers to the other end, which continues
+ * the trace with {@link Trace#join(Packet, String)}. Only root spans decide whether to sample, at
+ * {@link Trace#sampleRate()}, so an operation is traced on every hop or on none, and one that is not traced costs
+ * no more than the dice roll.</p>
+ * <p>Finished spans go into a ring buffer of the latest {@link Config#TRACE_BUFFER_SIZE} in this process, which
+ * {@link Trace#timeline()} lays out trace by trace.</p>
+ */
+public final class Trace implements AutoCloseable {
+    public static final String TRACE_HEADER = "trace";
+    public static final String SPAN_HEADER = "span";
+
+    /**
+     * A finished hop.
+     * @param parent The ID of the span this one is a child of, which may be in another process, or {@code null}.
+     * @param start When the span started, in microseconds since the epoch so spans from other processes on the
+     *              same machine line up.
+     */
+    public record Span(String trace, String id, String parent, String name, long start, long nanos) {}
+
+    private static final AtomicReferenceArray<Span> spans = new AtomicReferenceArray<>(Config.TRACE_BUFFER_SIZE);
+    private static final AtomicLong recorded = new AtomicLong();
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+    private static volatile double sampleRate = Config.TRACE_SAMPLE_RATE;
+
+    private final String trace;
+    private final String id = newId();
+    private final String parent;
+    private final String name;
+    private final long start = currentMicros();
+    private final long startNanos = System.nanoTime();
+    private final Trace previous = current.get();
+
+    private Trace(String trace, String parent, String name) {
+        this.trace = trace;
+        this.parent = parent;
+        this.name = name;
+        current.set(this);
+    }
+
+    private static String newId() {
+        return HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextLong());
+    }
+
+    private static long currentMicros() {
+        var now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+    }
+
+    /**
+     * Start a span, as a child of the one open on this thread if there is one, or else as the root of a new trace
+     * if it is sampled.
+     * @return The span, to be closed on this thread when the hop is done, or {@code null} if nothing is traced.
+     */
+    public static Trace start(String name) {
+        var parent = current.get();
+        if (parent != null)
+            return new Trace(parent.trace, parent.id, name);
+        var rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate))
+            return null;
+        return new Trace(newId(), null, name);
+    }
+
+    /**
+     * Start a span as a child of the one open on this thread, if there is one.
+     * @return The span, to be closed on this thread when the hop is done, or {@code null} if nothing is traced.
+     */
+    public static Trace child(String name) {
+        var parent = current.get();
+        return parent == null ? null : new Trace(parent.trace, parent.id, name);
+    }
+
+    /**
+     * Start a span continuing the trace a request from another process carries, if it carries one.
+     * @return The span, to be closed on this thread when the request is handled, or {@code null} if the request is
+     *         not traced.
+     */
+    public static Trace join(Packet request, String name) {
+        var trace = request.headers().get(TRACE_HEADER);
+        if (trace == null)
+            return null;
+        return new Trace(trace, request.headers().get(SPAN_HEADER), name);
+    }
+
+    /**
+     * @return The request with headers carrying the span open on this thread, if there is one.
+     */
+    public static Packet inject(Packet request) {
+        var trace = current.get();
+        if (trace == null)
+            return request;
+        return request.withHeader(TRACE_HEADER, trace.trace).withHeader(SPAN_HEADER, trace.id);
+    }
+
+    public static double sampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param rate The fraction of new operations to trace, from 0 for none to 1 for all.
+     */
+    public static void setSampleRate(double rate) {
+        if (!(rate >= 0 && rate <= 1))
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        sampleRate = rate;
+    }
+
+    public String traceId() {
+        return trace;
+    }
+
+    /**
+     * Finish the span and record it.
+     */
+    @Override
+    public void close() {
+        var span = new Span(trace, id, parent, name, start, System.nanoTime() - startNanos);
+        spans.set((int) (recorded.getAndIncrement() % spans.length()), span);
+        if (previous == null)
+            current.remove();
+        else
+            current.set(previous);
+    }
+
+    /**
+     * @return The spans in the buffer, oldest first.
+     */
+    public static List<Span> spans() {
+        var result = new ArrayList<Span>(spans.length());
+        for (var i = 0; i < spans.length(); i++) {
+            var span = spans.get(i);
+            if (span != null)
+                result.add(span);
+        }
+        result.sort(Comparator.comparingLong(Span::start));
+        return result;
+    }
+
+    /**
+     * Lay out the spans in the buffer, one trace after another, each span on a line with when it started
+     * relative to the first one of its trace, how long it took, and its name indented under its parent's:
+     * <pre>
+     *     trace 5f3a0c9e41d2b7a8
+     *         +0.000 ms     12.410 ms  connect bob
+     *         +0.152 ms      3.877 ms    request WHOIS
+     *         +1.034 ms      0.214 ms      server WHOIS
+     * </pre>
+     * Spans whose parent was recorded in another process are indented as if it were the first span of the trace.
+     */
+    public static String timeline() {
+        var traces = new LinkedHashMap<String, List<Span>>();
+        for (var span: spans())
+            traces.computeIfAbsent(span.trace(), _ -> new ArrayList<>()).add(span);
+        var builder = new StringBuilder();
+        for (var trace: traces.entrySet()) {
+            builder.append("trace ").append(trace.getKey()).append('\n');
+            var first = trace.getValue().getFirst().start();
+            var depths = new HashMap<String, Integer>();
+            for (var span: trace.getValue()) {
+                var parentDepth = span.parent() == null ? -1 : depths.getOrDefault(span.parent(), 0);
+                var depth = parentDepth + 1;
+                depths.put(span.id(), depth);
+                builder.append("    %+10.3f ms %10.3f ms  %s%s\n".formatted((span.start() - first) / 1e3,
+                        span.nanos() / 1e6, "  ".repeat(depth), span.name()));
+            }
+        }
+        return builder.toString();
+    }
+}
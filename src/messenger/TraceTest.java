@@ -0,0 +1,131 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceTest {
+    // the same port as ServerTest, on a transport of our own
+    static final int SERVER_PORT = 6789;
+    static final Transport transport = new MemoryTransport();
+    static int nextPort = 24000;
+    static Server server;
+
+    @BeforeAll
+    static void setUp() throws IOException, InterruptedException {
+        server = new Server(SERVER_PORT, transport);
+        var serverThread = new Thread(server::listenLoop);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.close();
+    }
+
+    @AfterEach
+    void resetSampleRate() {
+        Trace.setSampleRate(Config.TRACE_SAMPLE_RATE);
+    }
+
+    static Client client(String name) throws IOException {
+        var port = nextPort++;
+        var client = Client.open(port, Config.SERVER_IP, SERVER_PORT, transport);
+        assertEquals(Error.OK, client.register(name + port, "password"));
+        return client;
+    }
+
+    static List<Trace.Span> spans(String trace) {
+        return Trace.spans().stream().filter(span -> span.trace().equals(trace)).toList();
+    }
+
+    static Trace.Span span(List<Trace.Span> spans, String name) {
+        return spans.stream().filter(span -> span.name().equals(name)).findFirst()
+                .orElseThrow(() -> new AssertionError("no span %s in %s".formatted(name, spans)));
+    }
+
+    @Test
+    @DisplayName("Nothing is traced when nothing is sampled")
+    void unsampled() {
+        Trace.setSampleRate(0);
+        var request = new Packet(Method.WHOIS, Map.of("username", "alice"));
+        try (var trace = Trace.start("root")) {
+            assertNull(trace);
+            assertNull(Trace.child("child"));
+            assertSame(request, Trace.inject(request));
+            assertNull(Trace.join(request, "server"));
+        }
+    }
+
+    @Test
+    @DisplayName("Spans started while another is open are its children, and requests carry the trace")
+    void children() {
+        Trace.setSampleRate(1);
+        String trace;
+        Packet request;
+        try (var root = Trace.start("root")) {
+            trace = root.traceId();
+            try (var _ = Trace.start("child")) {
+                request = Trace.inject(new Packet(Method.WHOIS, Map.of("username", "alice")));
+            }
+        }
+        // as the other end of the request would
+        try (var _ = Trace.join(request, "server"); var _ = Trace.child("handle")) {
+            assertEquals(trace, request.headers().get(Trace.TRACE_HEADER));
+        }
+        var spans = spans(trace);
+        var root = span(spans, "root");
+        var child = span(spans, "child");
+        var server = span(spans, "server");
+        assertAll(
+                () -> assertNull(root.parent()),
+                () -> assertEquals(root.id(), child.parent()),
+                () -> assertEquals(child.id(), request.headers().get(Trace.SPAN_HEADER)),
+                () -> assertEquals(child.id(), server.parent()),
+                () -> assertEquals(server.id(), span(spans, "handle").parent()),
+                () -> assertTrue(root.nanos() >= child.nanos())
+        );
+        var timeline = Trace.timeline();
+        assertTrue(timeline.contains("trace " + trace + "\n"), timeline);
+        assertTrue(timeline.matches("(?s).* ms  root\n.* ms    child\n.* ms      server\n.* ms        handle\n.*"),
+                timeline);
+    }
+
+    @Test
+    @DisplayName("A traced /connect records the client, server and peer hops")
+    void connect() throws IOException, InterruptedException {
+        var alice = client("alice");
+        var bob = client("bob");
+        Trace.setSampleRate(1);
+        assertNotNull(alice.connectToPeer(bob.username));
+        var trace = Trace.spans().stream()
+                .filter(span -> span.name().equals("connect " + bob.username))
+                .findFirst().orElseThrow().trace();
+        // the peer records its span once it has answered, which may be after we read the answer
+        for (var i = 0; i < 50 && spans(trace).stream().noneMatch(span -> span.name().equals("peer HELLO")); i++)
+            Thread.sleep(20);
+        var spans = spans(trace);
+        var connect = span(spans, "connect " + bob.username);
+        var whois = span(spans, "request WHOIS");
+        var hello = span(spans, "hello");
+        assertAll(
+                () -> assertEquals(connect.id(), whois.parent()),
+                () -> assertEquals(whois.id(), span(spans, "server WHOIS").parent()),
+                () -> assertEquals(span(spans, "server WHOIS").id(), span(spans, "handle WHOIS").parent()),
+                () -> assertEquals(connect.id(), span(spans, "dial " + bob.username).parent()),
+                () -> assertEquals(connect.id(), hello.parent()),
+                () -> assertEquals(hello.id(), span(spans, "peer HELLO").parent())
+        );
+        alice.close();
+        bob.close();
+    }
+}
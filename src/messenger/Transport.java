@@ -0,0 +1,103 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Carries the bytes of every connection the messenger makes: requests to the server, peer sessions and file
+ * transfers. Connections are {@link Socket}s whichever transport made them, so packets, multiplexers and file
+ * transfers work over all of them unchanged.
+ * <ul>
+ *     <li>{@link Transport#DEFAULT}, a {@link SecureTransport}, connects over TLS, or over a {@link LocalSocket} to
+ *     processes on the same machine.</li>
+ *     <li>{@link PlainTcpTransport} connects over plain TCP through socket channels.</li>
+ *     <li>{@link MemoryTransport} connects clients and servers in the same JVM through in-memory pipes, which may
+ *     be given latency, a bandwidth limit and faults.</li>
+ * </ul>
+ * A {@link Server} and its {@link Client}s must use the same transport to reach each other.
+ */
+public interface Transport {
+    Transport DEFAULT = new SecureTransport();
+
+    /**
+     * Connect to whoever listens on an address.
+     * @param timeoutMillis How long connecting may take, or 0 to wait as long as the transport does.
+     */
+    Socket connect(InetSocketAddress address, int timeoutMillis) throws IOException;
+
+    /**
+     * Connect to a peer, which has to present the certificate the server vouched for on its behalf, if the transport
+     * authenticates peers.
+     * @param certificate The fingerprint of that certificate, or {@code null} to expect the server's.
+     */
+    default Socket connect(InetSocketAddress address, int timeoutMillis, String certificate) throws IOException {
+        return connect(address, timeoutMillis);
+    }
+
+    /**
+     * Connect to a peer, giving up after {@link Config#CONNECT_TIMEOUT_MILLIS}.
+     * @see Transport#connect(InetSocketAddress, int, String)
+     */
+    default Socket connect(Peer peer) throws IOException {
+        return connect(new InetSocketAddress(peer.address(), peer.port()), Config.CONNECT_TIMEOUT_MILLIS,
+                peer.certificate());
+    }
+
+    /**
+     * Connect to whoever listens on a port, giving up after {@link Config#CONNECT_TIMEOUT_MILLIS}.
+     */
+    default Socket connect(String host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), Config.CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Connect to whoever listens on a port, giving up after {@link Config#CONNECT_TIMEOUT_MILLIS}.
+     */
+    default Socket connect(InetAddress address, int port) throws IOException {
+        return connect(new InetSocketAddress(address, port), Config.CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Listen for connections on a port, 0 for any free one.
+     */
+    Listener listen(int port) throws IOException;
+
+    /**
+     * Listen for the clients of a {@link Server} on a port, 0 for any free one.
+     * Unlike a client listening for its peers, the server may present credentials of its own.
+     */
+    default Listener serve(int port) throws IOException {
+        return listen(port);
+    }
+
+    /**
+     * Bind a port to send and receive datagrams on, 0 for any free one. Datagram ports are separate from the ports
+     * connections are listened for on, as UDP ports are from TCP ones.
+     */
+    default Datagrams datagrams(int port) throws IOException {
+        return new UdpDatagrams(port);
+    }
+
+    /**
+     * @return The fingerprint of the certificate this end presents to the peers that connect to it, for the server
+     * to hand out to them, or {@code null} if the transport does not authenticate peers.
+     */
+    default String fingerprint() throws IOException {
+        return null;
+    }
+
+    /**
+     * @param name {@code secure}, {@code tcp} or {@code memory}. Every call for {@code memory} makes a new
+     *             transport, whose ports only it can reach.
+     */
+    static Transport byName(String name) {
+        return switch (name) {
+            case "secure" -> DEFAULT;
+            case "tcp" -> new PlainTcpTransport();
+            case "memory" -> new MemoryTransport();
+            default -> throw new IllegalArgumentException("Unknown transport '%s'".formatted(name));
+        };
+    }
+}
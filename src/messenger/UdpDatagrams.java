@@ -0,0 +1,71 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Sends and receives datagrams over UDP, through a non-blocking {@link DatagramChannel} and a {@link Selector} to
+ * wait for them on.
+ */
+public class UdpDatagrams implements Datagrams {
+    private final DatagramChannel channel;
+    private final Selector selector;
+
+    /**
+     * @param port The UDP port to bind, 0 for any free one.
+     */
+    public UdpDatagrams(int port) throws IOException {
+        this.channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+        try {
+            this.channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int port() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+        channel.send(datagram, address);
+    }
+
+    @Override
+    public boolean receive(ByteBuffer buffer, long timeoutMillis) throws IOException {
+        if (channel.receive(buffer) != null)
+            return true;
+        if (timeoutMillis == 0)
+            return false;
+        try {
+            selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            // closed while we waited
+            return false;
+        }
+        return channel.isOpen() && channel.receive(buffer) != null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        // wakes up a receiver waiting on it
+        selector.close();
+    }
+}
@@ -0,0 +1,71 @@
+package messenger;
+
+import java.util.*;
+
+/**
+ * The usernames of every account, for listing the users whose username starts with a prefix.
+ * <p>Usernames are kept sorted in a balanced search tree, together with one tree per {@link Status} holding
+ * the users who are online with that status. A page of results is a range query on one of the trees: finding
+ * where the prefix starts costs O(log n), and every result after that costs O(1), so a page takes about as long
+ * with a million accounts as with a hundred. Filtering by status searches that status's tree, so it never
+ * skips over users with another status.</p>
+ * <p>Pages are continued from the last username of the previous page rather than from an offset, so a page
+ * never repeats or skips a user because somebody registered in the meantime.</p>
+ */
+public class UserDirectory {
+    /**
+     * @param status The status of the user, or {@code null} if they are offline.
+     */
+    public record Entry(String username, Status status) {}
+
+    /**
+     * @param next The username to continue after, or {@code null} if this is the last page.
+     */
+    public record Page(List<Entry> users, String next) {}
+
+    private final TreeSet<String> usernames = new TreeSet<>();
+    private final Map<Status, TreeSet<String>> online = new EnumMap<>(Status.class);
+    private final Map<String, Status> statuses = new HashMap<>();
+
+    public UserDirectory() {
+        for (var status: Status.values())
+            online.put(status, new TreeSet<>());
+    }
+
+    public synchronized void add(String username) {
+        usernames.add(username);
+    }
+
+    /**
+     * @param status The user's new status, or {@code null} once they log out.
+     */
+    public synchronized void setStatus(String username, Status status) {
+        var previous = status == null ? statuses.remove(username) : statuses.put(username, status);
+        if (previous != null)
+            online.get(previous).remove(username);
+        if (status != null)
+            online.get(status).add(username);
+    }
+
+    /**
+     * List the users whose username starts with a prefix, in alphabetical order.
+     * @param status Only list users who are online with this status, or {@code null} to list everyone.
+     * @param after The {@link Page#next()} of the previous page, or {@code null} for the first page.
+     * @param limit The most users to return.
+     */
+    public synchronized Page search(String prefix, Status status, String after, int limit) {
+        var tree = status == null ? usernames : online.get(status);
+        var candidates = after != null && after.compareTo(prefix) >= 0
+                ? tree.tailSet(after, false)
+                : tree.tailSet(prefix, true);
+        var users = new ArrayList<Entry>();
+        for (var username: candidates) {
+            if (!username.startsWith(prefix))
+                return new Page(users, null);
+            if (users.size() == limit)
+                return new Page(users, users.getLast().username());
+            users.add(new Entry(username, statuses.get(username)));
+        }
+        return new Page(users, null);
+    }
+}
@@ -0,0 +1,109 @@
+package messenger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Error;
+import protocol.Method;
+import protocol.Packet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserDirectoryTest {
+    private Server server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null)
+            server.close();
+    }
+
+    static List<String> usernames(UserDirectory.Page page) {
+        return page.users().stream().map(UserDirectory.Entry::username).toList();
+    }
+
+    static List<String> all(UserDirectory directory, String prefix, Status status, int limit) {
+        var usernames = new ArrayList<String>();
+        String after = null;
+        do {
+            var page = directory.search(prefix, status, after, limit);
+            assertTrue(page.users().size() <= limit);
+            usernames.addAll(usernames(page));
+            after = page.next();
+        } while (after != null);
+        return usernames;
+    }
+
+    @Test
+    @DisplayName("Users starting with a prefix, a page at a time")
+    void pages() {
+        var directory = new UserDirectory();
+        for (var username: List.of("bob", "alice", "bobby", "bo", "carol", "bob2", "b"))
+            directory.add(username);
+        assertEquals(List.of("bo", "bob", "bob2", "bobby"), all(directory, "bo", null, 100));
+        assertEquals(List.of("bo", "bob", "bob2", "bobby"), all(directory, "bo", null, 1));
+        assertEquals(List.of("b", "bo", "bob", "bob2", "bobby"), all(directory, "b", null, 2));
+        assertEquals(7, all(directory, "", null, 3).size());
+        assertEquals(List.of(), all(directory, "dave", null, 3));
+
+        var first = directory.search("bo", null, null, 2);
+        assertEquals(List.of("bo", "bob"), usernames(first));
+        assertEquals("bob", first.next());
+        // somebody registering in between does not shift the next page
+        directory.add("boa");
+        assertEquals(List.of("bob2", "bobby"), usernames(directory.search("bo", null, first.next(), 2)));
+        assertNull(directory.search("bo", null, first.next(), 2).next());
+    }
+
+    @Test
+    @DisplayName("Only users who are online with a status")
+    void status() {
+        var directory = new UserDirectory();
+        for (var i = 0; i < 100; i++) {
+            directory.add("user" + i);
+            directory.setStatus("user" + i, i % 3 == 0 ? Status.BUSY : Status.READY);
+        }
+        assertEquals(34, all(directory, "user", Status.BUSY, 5).size());
+        assertEquals(List.of("user1", "user10"), usernames(directory.search("user1", Status.READY, null, 2)));
+        directory.setStatus("user1", null);
+        directory.setStatus("user10", Status.CHATTING);
+        assertEquals(List.of("user11", "user13"), usernames(directory.search("user1", Status.READY, null, 2)));
+        var everyone = directory.search("user1", null, null, 2).users();
+        assertEquals(new UserDirectory.Entry("user1", null), everyone.getFirst());
+        assertEquals(new UserDirectory.Entry("user10", Status.CHATTING), everyone.getLast());
+        assertEquals(List.of("user10"), all(directory, "user1", Status.CHATTING, 5));
+    }
+
+    @Test
+    void server(@TempDir Path offline) throws IOException {
+        server = new Server(0, offline, new MemoryTransport());
+        var address = InetAddress.getLoopbackAddress();
+        for (var username: List.of("alice", "albert", "alfred", "bob")) {
+            var register = Map.of("username", username, "password", "hunter2", "listenPort", "1234");
+            var response = server.runRequestHandler(new Packet(Method.REGISTER, register, "", address));
+            assertEquals(Error.OK, response.getError());
+        }
+        var status = Map.of("username", "albert", "password", "hunter2", "status", "BUSY");
+        assertEquals(Error.OK, server.runRequestHandler(new Packet(Method.STATUS, status)).getError());
+        var logout = Map.of("username", "alfred", "password", "hunter2");
+        assertEquals(Error.OK, server.runRequestHandler(new Packet(Method.LOGOUT, logout)).getError());
+
+        var response = server.runRequestHandler(new Packet(Method.DIRECTORY, Map.of("prefix", "al", "limit", "2")));
+        assertEquals(Method.SUCCESS, response.method());
+        assertEquals("albert BUSY\nalfred\n", response.content());
+        assertEquals("alfred", response.headers().get("next"));
+        response = server.runRequestHandler(new Packet(Method.DIRECTORY, Map.of("prefix", "al", "after", "alfred")));
+        assertEquals("alice READY\n", response.content());
+        assertNull(response.headers().get("next"));
+        response = server.runRequestHandler(new Packet(Method.DIRECTORY, Map.of("status", "READY")));
+        assertEquals("alice READY\nbob READY\n", response.content());
+        assertEquals(Error.MALFORMED_REQUEST,
+                server.runRequestHandler(new Packet(Method.DIRECTORY, Map.of("status", "ASLEEP"))).getError());
+    }
+}
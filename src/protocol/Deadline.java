@@ -0,0 +1,84 @@
+package protocol;
+
+import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes a connection that is still in use when its time is up.
+ * Blocking reads and writes cannot be interrupted, and not every socket we use honours
+ * {@link java.net.Socket#setSoTimeout(int)}, but all of them give up once the socket is closed from another thread:
+ * <pre>{@code
+ *     try (var deadline = Deadline.after(socket, Config.READ_TIMEOUT_MILLIS)) {
+ *         var request = Packet.readPacket(socket);
+ *     }
+ * }</pre>
+ * <p>Every deadline in the process is kept by a single timer thread, so arming one costs a heap insertion rather
+ * than a thread.</p>
+ */
+public final class Deadline implements AutoCloseable {
+    static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+        var thread = new Thread(task, "deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // deadlines are nearly always cancelled, and should not pile up in the queue until they would have expired
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final Deadline NONE = new Deadline();
+
+    private ScheduledFuture<?> expiry = null;
+    private volatile boolean expired = false;
+
+    /**
+     * Close a connection unless the deadline is closed within a time.
+     * @param millis How long the connection may be used, or 0 for no limit.
+     */
+    public static Deadline after(Closeable connection, long millis) {
+        if (millis <= 0)
+            return NONE;
+        var deadline = new Deadline();
+        deadline.expiry = timer.schedule(() -> {
+            deadline.expired = true;
+            abort(connection);
+        }, millis, TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    /**
+     * Close a connection straight away, even while another thread is stuck writing to it.
+     * Closing a TLS socket normally sends a {@code close_notify} first, which waits for the write in progress, so
+     * those are closed without it.
+     */
+    public static void abort(Closeable connection) {
+        try {
+            if (connection instanceof SSLSocket socket)
+                socket.setSoLinger(true, 0);
+        } catch (IOException ignored) {}
+        try {
+            connection.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * @return Whether time ran out and the connection was closed.
+     */
+    public boolean expired() {
+        return expired;
+    }
+
+    /**
+     * Call off the deadline. The connection is left open.
+     */
+    @Override
+    public void close() {
+        if (expiry != null)
+            expiry.cancel(false);
+    }
+}
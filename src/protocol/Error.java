@@ -7,5 +7,10 @@ public enum Error {
     WRONG_CREDENTIALS,
     USER_ALREADY_EXISTS,
     NO_SUCH_USER,
-    USER_NOT_ONLINE
+    USER_NOT_ONLINE,
+    NO_SUCH_GROUP,
+    QUOTA_EXCEEDED,
+    NO_SUCH_SESSION,
+    SERVER_ERROR,
+    SERVER_BUSY
 }
@@ -15,15 +15,32 @@ public enum Method {
     LOGOUT,
     /** Look up the IP address and port of another user. */
     WHOIS,
+    /** List the users whose username starts with a prefix, a page at a time. */
+    DIRECTORY,
     /** Change your status with the server (available, busy, away, etc.) */
     STATUS,
+    /** Join a group chat, creating the group if it does not exist yet. */
+    JOIN,
+    /** Leave a group chat. */
+    LEAVE,
+    /** Look up the members of a group chat, with their addresses and ports. */
+    MEMBERS,
+    /** Fetch the messages that were left on the server while you were offline. */
+    FETCH,
+    /** Get a key for reporting your status and staying online over UDP. */
+    PRESENCE,
+    /** Add a contact to your roster or remove one, and get what changed in it since the version you last saw. */
+    ROSTER,
 
     /* Client Request Methods */
     /** Request to initialize a chat session. */
     HELLO,
+    /** Carry on a chat session whose connection dropped, on a new connection. */
+    RESUME,
     /** Politely end a chat session. */
     GOODBYE,
-    /** Send a message in a chat session. */
+    /** Send a message in a chat session, or to a group chat when it has a {@code group} header.
+     * Sent to the server with a {@code to} header, leaves a message for a user who is offline. */
     MESSAGE,
     /** Initiate file transfer. */
     FILE,
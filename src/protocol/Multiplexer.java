@@ -0,0 +1,659 @@
+package protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries many logical streams over a single TCP connection, so a large transfer on one stream does not hold up
+ * the packets of another.
+ * Each stream behaves like a small socket of its own: packets are written to and read from it with
+ * {@link Stream#sendPacket(Packet)} and {@link Stream#readPacket()}.
+ * <p>On the wire, the bytes of every stream are cut into frames of at most {@link Multiplexer#MAX_FRAME_SIZE} bytes:</p>
+ * <pre>
+ *     type (1 byte) | stream id (4 bytes) | priority (1 byte) | length or window increment (4 bytes) | payload
+ * </pre>
+ * <ul>
+ *     <li>{@code DATA} frames carry the bytes of a stream. The first frame of an unknown stream opens it, so
+ *     {@link Multiplexer#open(Priority)} sends an empty one straight away: stream ids must arrive in increasing
+ *     order, even when a later stream is written to first.</li>
+ *     <li>{@code WINDOW_UPDATE} frames grant the other side credit to send more bytes on a stream.</li>
+ *     <li>{@code FIN} frames mark the end of one direction of a stream, like a TCP half close.</li>
+ *     <li>{@code PING} frames carry nothing, and keep a quiet connection from looking dead.</li>
+ * </ul>
+ * Frames of different streams are interleaved. Whenever the connection is free, the writer picks the next frame
+ * from the most urgent {@link Priority} that has both data and credit, taking turns between streams of equal
+ * priority.
+ * <p>Flow control is credit based. Each direction of a stream starts with {@link Multiplexer#INITIAL_WINDOW} bytes
+ * of credit, and the receiver hands credit back as the application reads. A stream whose reader falls behind
+ * therefore stalls only itself, never the connection.</p>
+ * <p>Frames are queued per connection and a single writer thread drains everything that is ready into one buffer
+ * before flushing it, so a burst of small packets costs one write instead of one each. Since we coalesce writes
+ * ourselves, Nagle's algorithm is turned off. Optionally the writer lingers for a few microseconds to collect
+ * more frames, but only while the connection is busy: the first frame after an idle period is always flushed
+ * straight away.</p>
+ * <p>Streams opened by the side that initiated the connection have odd ids, the others even ids.</p>
+ * <p>Nothing waits forever on a misbehaving peer once {@link Multiplexer#setTimeouts(long, long)} and
+ * {@link Multiplexer#setSlowConsumerPolicy(SlowConsumerPolicy, long)} say how long to wait: a write the network
+ * does not take, a connection on which nothing arrives and a stream the peer stopped reading are all given up on.
+ * Neither side may have more than {@link Multiplexer#MAX_STREAMS} streams open at once, so the memory a connection
+ * holds stays bounded by its windows.</p>
+ */
+public class Multiplexer implements Closeable {
+    /** The largest number of payload bytes in a single frame. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024;
+    /** The number of bytes either side may send on a new stream before it is granted more credit. */
+    public static final int INITIAL_WINDOW = 256 * 1024;
+    /** The most bytes the writer collects before flushing them. */
+    public static final int MAX_BATCH_SIZE = 64 * 1024;
+    /** How long {@link Multiplexer#close()} waits for queued frames to be sent. */
+    public static final long CLOSE_TIMEOUT_MILLIS = 1000;
+    /** The most streams either side may have open on a connection at once. */
+    public static final int MAX_STREAMS = 1024;
+
+    private static final byte DATA = 0;
+    private static final byte WINDOW_UPDATE = 1;
+    private static final byte FIN = 2;
+    private static final byte PING = 3;
+    private static final int FRAME_HEADER_SIZE = 10;
+
+    /**
+     * How urgently the frames of a stream are sent, most urgent first.
+     */
+    public enum Priority {
+        /** Chat messages and other traffic a user is waiting on. */
+        INTERACTIVE,
+        NORMAL,
+        /** File transfers. */
+        BULK
+    }
+
+    /**
+     * What a stream does once the other side has stopped taking its data and its whole window is queued.
+     */
+    public enum SlowConsumerPolicy {
+        /** Wait as long as it takes. */
+        BLOCK,
+        /** Refuse the packet with a {@link SlowConsumerException}, and keep the connection. */
+        DROP,
+        /** Close the connection. */
+        DISCONNECT
+    }
+
+    private record Frame(byte type, int stream, Priority priority, int value, byte[] payload) {}
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final Map<Integer, Stream> streams = new LinkedHashMap<>();
+    private final ArrayDeque<Stream> accepted = new ArrayDeque<>();
+    private final ArrayDeque<Frame> control = new ArrayDeque<>();
+    private final boolean initiator;
+    private int nextStreamId;
+    private int lastRemoteStreamId = 0;
+    private boolean closed = false;
+    private boolean writing = false;
+    private final long lingerNanos;
+    private long framesSent = 0;
+    private long flushes = 0;
+    private long bytesSent = 0;
+    private volatile long writeTimeoutMillis = 0;
+    private long idleTimeoutMillis = 0;
+    private ScheduledFuture<?> idleCheck = null;
+    private volatile long lastReceived = System.nanoTime();
+    private volatile long lastSent = System.nanoTime();
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.BLOCK;
+    private long slowConsumerMillis = 0;
+
+    /**
+     * Start multiplexing a connection, flushing as soon as frames are ready.
+     * @see Multiplexer#Multiplexer(Socket, boolean, long)
+     */
+    public Multiplexer(Socket socket, boolean initiator) throws IOException {
+        this(socket, initiator, 0);
+    }
+
+    /**
+     * Start multiplexing a connection.
+     * @param socket The connection. It belongs to the multiplexer from now on and is closed along with it.
+     * @param initiator Whether this side opened the connection. The two sides must pass different values.
+     * @param lingerNanos How long the writer may wait for more frames before flushing while the connection is
+     *                    busy. 0 disables lingering.
+     * @throws IOException if the socket's streams cannot be opened.
+     */
+    public Multiplexer(Socket socket, boolean initiator, long lingerNanos) throws IOException {
+        socket.setTcpNoDelay(true);
+        this.socket = socket;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                MAX_BATCH_SIZE + MAX_FRAME_SIZE + FRAME_HEADER_SIZE));
+        this.lingerNanos = lingerNanos;
+        this.initiator = initiator;
+        this.nextStreamId = initiator ? 1 : 2;
+        // virtual threads, so a process can hold hundreds of connections
+        Thread.ofVirtual().name("multiplexer-reader").start(this::readLoop);
+        Thread.ofVirtual().name("multiplexer-writer").start(this::writeLoop);
+    }
+
+    public Socket socket() {
+        return socket;
+    }
+
+    /**
+     * @return The number of frames written so far.
+     */
+    public synchronized long framesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return The number of bytes written so far, including frame headers.
+     */
+    public synchronized long bytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of times the writer has flushed, i.e. roughly the number of write system calls.
+     */
+    public synchronized long flushes() {
+        return flushes;
+    }
+
+    /**
+     * Give up on the connection when the network stops taking our writes, or when nothing arrives from the other
+     * side for a while. While the idle timeout is on, we send a {@code PING} whenever we have sent nothing for a
+     * third of it, so a connection that is quiet but alive stays up as long as both sides set the same timeout.
+     * @param writeMillis How long a single write may take, or 0 for as long as it takes.
+     * @param idleMillis How long the connection may go without receiving anything, or 0 for as long as it likes.
+     */
+    public synchronized void setTimeouts(long writeMillis, long idleMillis) {
+        this.writeTimeoutMillis = writeMillis;
+        this.idleTimeoutMillis = idleMillis;
+        if (idleCheck != null)
+            idleCheck.cancel(false);
+        idleCheck = null;
+        if (idleMillis > 0 && !closed) {
+            lastReceived = System.nanoTime();
+            var period = Math.max(1, idleMillis / 3);
+            idleCheck = Deadline.timer.scheduleAtFixedRate(this::checkIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param policy What a stream does once the other side stops reading it.
+     * @param millis How long a stream waits for the other side to read before the policy applies.
+     */
+    public synchronized void setSlowConsumerPolicy(SlowConsumerPolicy policy, long millis) {
+        this.slowConsumerPolicy = policy;
+        this.slowConsumerMillis = millis;
+    }
+
+    /**
+     * Drop the connection if nothing has arrived for the idle timeout, and ping the other side if we have been
+     * quiet for a third of it.
+     */
+    private void checkIdle() {
+        long idleNanos;
+        synchronized (this) {
+            idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        }
+        var now = System.nanoTime();
+        if (now - lastReceived > idleNanos) {
+            abort();
+            return;
+        }
+        if (now - lastSent >= idleNanos / 3) {
+            synchronized (this) {
+                control.add(new Frame(PING, 0, Priority.INTERACTIVE, 0, null));
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Open a new stream to the other side.
+     */
+    public synchronized Stream open(Priority priority) throws IOException {
+        if (closed)
+            throw new IOException("Connection is closed.");
+        if (streams.size() >= MAX_STREAMS)
+            throw new IOException("Too many streams are open.");
+        var stream = new Stream(nextStreamId, priority);
+        nextStreamId += 2;
+        streams.put(stream.id, stream);
+        control.add(new Frame(DATA, stream.id, priority, 0, new byte[0]));
+        notifyAll();
+        return stream;
+    }
+
+    /**
+     * Wait for the other side to open a stream.
+     * @return The new stream, or {@code null} once the connection is closed.
+     */
+    public synchronized Stream accept() throws InterruptedException {
+        while (accepted.isEmpty() && !closed)
+            wait();
+        return accepted.poll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the connection and every stream on it.
+     * Frames that are already queued, such as a final {@code GOODBYE}, are given up to
+     * {@link Multiplexer#CLOSE_TIMEOUT_MILLIS} to go out first.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            var deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+            try {
+                while (!closed && (writing || hasPendingFrames()) && System.currentTimeMillis() < deadline)
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ignored) {}
+        }
+        abort();
+    }
+
+    /**
+     * Close the connection immediately, dropping anything not yet sent.
+     */
+    private void abort() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (idleCheck != null)
+                idleCheck.cancel(false);
+            notifyAll();
+        }
+        Deadline.abort(socket);
+    }
+
+    private boolean hasPendingFrames() {
+        return !control.isEmpty() || streams.values().stream().anyMatch(Stream::canSend);
+    }
+
+    private boolean isRemote(int id) {
+        return (id % 2 == 1) != initiator;
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                var type = input.readByte();
+                var id = input.readInt();
+                var priority = Priority.values()[input.readByte()];
+                var value = input.readInt();
+                if (type == DATA && value > MAX_FRAME_SIZE)
+                    throw new IOException("Frame of %d bytes is larger than the maximum.".formatted(value));
+                var payload = type == DATA ? input.readNBytes(value) : null;
+                if (payload != null && payload.length < value)
+                    throw new EOFException();
+                lastReceived = System.nanoTime();
+                if (type == PING)
+                    continue;
+                synchronized (this) {
+                    var stream = streams.get(id);
+                    if (stream == null) {
+                        // a stream we have never heard of can only be opened by the other side
+                        if (type == WINDOW_UPDATE || !isRemote(id) || id <= lastRemoteStreamId)
+                            continue;
+                        if (streams.size() >= MAX_STREAMS)
+                            throw new IOException("The other side opened too many streams.");
+                        lastRemoteStreamId = id;
+                        stream = new Stream(id, priority);
+                        streams.put(id, stream);
+                        accepted.add(stream);
+                    }
+                    switch (type) {
+                        case DATA -> {
+                            stream.received += value;
+                            if (stream.received > stream.receiveLimit)
+                                throw new IOException("Stream %d sent more than its window.".formatted(id));
+                            if (value > 0)
+                                stream.inbound.add(ByteBuffer.wrap(payload));
+                        }
+                        case WINDOW_UPDATE -> stream.credit += value;
+                        case FIN -> {
+                            stream.remoteFinished = true;
+                            stream.removeIfDone();
+                        }
+                        default -> throw new IOException("Unknown frame type %d.".formatted(type));
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            abort();
+        }
+    }
+
+    private void writeLoop() {
+        var batch = new ArrayList<Frame>();
+        var lastFlush = System.nanoTime() - lingerNanos;
+        try {
+            while (true) {
+                synchronized (this) {
+                    writing = false;
+                    notifyAll();
+                    Frame frame;
+                    while ((frame = nextFrame()) == null && !closed)
+                        wait();
+                    if (closed)
+                        return;
+                    writing = true;
+                    batch.add(frame);
+                    collectBatch(batch);
+                }
+                // only linger while busy, so an isolated message after an idle period goes out immediately
+                if (lingerNanos > 0 && System.nanoTime() - lastFlush < lingerNanos && batchSize(batch) < MAX_BATCH_SIZE) {
+                    LockSupport.parkNanos(lingerNanos);
+                    synchronized (this) {
+                        collectBatch(batch);
+                    }
+                }
+                // a peer that stops reading fills up the network's buffers, and would hold this write up forever
+                try (var _ = Deadline.after(socket, writeTimeoutMillis)) {
+                    for (var frame: batch) {
+                        output.writeByte(frame.type());
+                        output.writeInt(frame.stream());
+                        output.writeByte(frame.priority().ordinal());
+                        output.writeInt(frame.value());
+                        if (frame.payload() != null)
+                            output.write(frame.payload());
+                    }
+                    output.flush();
+                }
+                lastFlush = System.nanoTime();
+                lastSent = lastFlush;
+                synchronized (this) {
+                    framesSent += batch.size();
+                    bytesSent += batchSize(batch);
+                    flushes++;
+                }
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Add every frame that is ready to the batch, up to {@link Multiplexer#MAX_BATCH_SIZE}. Must hold the lock.
+     */
+    private void collectBatch(List<Frame> batch) {
+        var size = batchSize(batch);
+        Frame frame;
+        while (size < MAX_BATCH_SIZE && (frame = nextFrame()) != null) {
+            batch.add(frame);
+            size += FRAME_HEADER_SIZE + (frame.payload() == null ? 0 : frame.payload().length);
+        }
+    }
+
+    private static int batchSize(List<Frame> batch) {
+        var size = 0;
+        for (var frame: batch)
+            size += FRAME_HEADER_SIZE + (frame.payload() == null ? 0 : frame.payload().length);
+        return size;
+    }
+
+    /**
+     * Pick the next frame to send. Must hold the lock.
+     * @return The frame, or {@code null} if nothing can be sent right now.
+     */
+    private Frame nextFrame() {
+        if (!control.isEmpty())
+            return control.poll();
+        Stream next = null;
+        for (var stream: streams.values()) {
+            if (!stream.canSend())
+                continue;
+            if (next == null || stream.priority.ordinal() < next.priority.ordinal())
+                next = stream;
+        }
+        if (next == null)
+            return null;
+        // move the stream to the back so streams of equal priority take turns
+        streams.remove(next.id);
+        streams.put(next.id, next);
+        notifyAll();
+        return next.takeFrame();
+    }
+
+    /**
+     * A single logical stream. Closing a stream only ends our direction of it; the other side may keep sending
+     * until it closes its end too.
+     */
+    public class Stream implements Closeable {
+        private final int id;
+        private final Priority priority;
+        private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private int outboundBytes = 0;
+        private long credit = INITIAL_WINDOW;
+        private long received = 0;
+        private long receiveLimit = INITIAL_WINDOW;
+        private int consumed = 0;
+        private boolean finishing = false;
+        private boolean finished = false;
+        private boolean remoteFinished = false;
+        private final InputStream inputStream = new StreamInput();
+        private final OutputStream outputStream = new StreamOutput();
+        private BufferedReader reader;
+
+        private Stream(int id, Priority priority) {
+            this.id = id;
+            this.priority = priority;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public Priority priority() {
+            return priority;
+        }
+
+        public Multiplexer multiplexer() {
+            return Multiplexer.this;
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        /**
+         * Send a packet on this stream.
+         * @see Packet#encode()
+         */
+        public void sendPacket(Packet packet) throws IOException {
+            send(packet.encode());
+        }
+
+        /**
+         * Send a packet that has already been encoded, without copying it.
+         * The same array may be sent on any number of streams, as long as nobody modifies it afterwards.
+         * Packets sent by different threads are never interleaved.
+         * @see Packet#encode()
+         */
+        public synchronized void send(byte[] encoded) throws IOException {
+            enqueue(encoded, 0, encoded.length, false);
+        }
+
+        /**
+         * Read the next packet on this stream.
+         * @throws EOFException if the other side has closed its end of the stream.
+         * @see Packet#readPacket(BufferedReader, java.net.InetAddress)
+         */
+        public Packet readPacket() throws IOException {
+            if (reader == null)
+                reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            return Packet.readPacket(reader, socket.getInetAddress());
+        }
+
+        /**
+         * @return Whether more data has already arrived on this stream, so the next read would not have to wait.
+         */
+        public boolean hasBufferedInput() throws IOException {
+            return reader != null ? reader.ready() : inputStream.available() > 0;
+        }
+
+        @Override
+        public void close() {
+            synchronized (Multiplexer.this) {
+                finishing = true;
+                Multiplexer.this.notifyAll();
+            }
+        }
+
+        private boolean canSend() {
+            return !finished && ((outboundBytes > 0 && credit > 0) || (finishing && outboundBytes == 0));
+        }
+
+        private Frame takeFrame() {
+            if (outboundBytes == 0) {
+                finished = true;
+                removeIfDone();
+                return new Frame(FIN, id, priority, 0, null);
+            }
+            var payload = new byte[(int) Math.min(MAX_FRAME_SIZE, Math.min(credit, outboundBytes))];
+            var position = 0;
+            while (position < payload.length) {
+                var head = outbound.peek();
+                var count = Math.min(head.remaining(), payload.length - position);
+                head.get(payload, position, count);
+                position += count;
+                if (!head.hasRemaining())
+                    outbound.poll();
+            }
+            outboundBytes -= payload.length;
+            credit -= payload.length;
+            return new Frame(DATA, id, priority, payload.length, payload);
+        }
+
+        /**
+         * Queue bytes for the writer, waiting while the stream already has a full window buffered.
+         * @param copy Whether to copy the bytes, or to keep a reference to the caller's array.
+         */
+        private void enqueue(byte[] buffer, int offset, int length, boolean copy) throws IOException {
+            synchronized (Multiplexer.this) {
+                var queued = false;
+                while (length > 0) {
+                    try {
+                        // don't buffer more than the other side could accept right now
+                        var waiting = slowConsumerPolicy != SlowConsumerPolicy.BLOCK && slowConsumerMillis > 0;
+                        var deadline = System.currentTimeMillis() + slowConsumerMillis;
+                        // a packet that may be dropped is queued whole or not at all
+                        var needed = slowConsumerPolicy == SlowConsumerPolicy.DROP && !queued
+                                ? Math.min(length, INITIAL_WINDOW) : 1;
+                        while (INITIAL_WINDOW - outboundBytes < needed && !closed) {
+                            if (!waiting) {
+                                Multiplexer.this.wait();
+                                continue;
+                            }
+                            var remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                if (slowConsumerPolicy == SlowConsumerPolicy.DROP && !queued)
+                                    throw new SlowConsumerException("Stream %d is not being read.".formatted(id));
+                                abort();
+                                throw new IOException("Connection closed, since stream %d is not being read."
+                                        .formatted(id));
+                            }
+                            Multiplexer.this.wait(remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    if (closed || finishing)
+                        throw new IOException("Stream is closed.");
+                    var count = Math.min(length, INITIAL_WINDOW - outboundBytes);
+                    outbound.add(copy
+                            ? ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset + count))
+                            : ByteBuffer.wrap(buffer, offset, count));
+                    outboundBytes += count;
+                    offset += count;
+                    length -= count;
+                    queued = true;
+                    Multiplexer.this.notifyAll();
+                }
+            }
+        }
+
+        private void removeIfDone() {
+            if (finished && remoteFinished)
+                streams.remove(id);
+        }
+
+        private class StreamInput extends InputStream {
+            @Override
+            public int read() throws IOException {
+                var buffer = new byte[1];
+                return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0)
+                    return 0;
+                synchronized (Multiplexer.this) {
+                    try {
+                        while (inbound.isEmpty() && !remoteFinished && !closed)
+                            Multiplexer.this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    if (inbound.isEmpty()) {
+                        if (remoteFinished)
+                            return -1;
+                        throw new IOException("Connection is closed.");
+                    }
+                    var head = inbound.peek();
+                    var count = Math.min(head.remaining(), length);
+                    head.get(buffer, offset, count);
+                    if (!head.hasRemaining())
+                        inbound.poll();
+                    consumed += count;
+                    if (consumed >= INITIAL_WINDOW / 2 && !remoteFinished) {
+                        control.add(new Frame(WINDOW_UPDATE, id, priority, consumed, null));
+                        receiveLimit += consumed;
+                        consumed = 0;
+                        Multiplexer.this.notifyAll();
+                    }
+                    return count;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (Multiplexer.this) {
+                    return inbound.stream().mapToInt(ByteBuffer::remaining).sum();
+                }
+            }
+        }
+
+        private class StreamOutput extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                enqueue(buffer, offset, length, true);
+            }
+        }
+    }
+}
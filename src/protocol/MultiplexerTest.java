@@ -0,0 +1,188 @@
+package protocol;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiplexerTest {
+    Multiplexer client;
+    Multiplexer server;
+
+    void connect(long lingerNanos) throws IOException {
+        try (var listener = new ServerSocket(0)) {
+            var socket = new Socket("127.0.0.1", listener.getLocalPort());
+            client = new Multiplexer(socket, true, lingerNanos);
+            server = new Multiplexer(listener.accept(), false);
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        connect(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Request and response on a stream")
+    void requestResponse() throws IOException, InterruptedException {
+        var request = new Packet(Method.MESSAGE, Map.of("header1", "value1"), "Hello world!");
+        var stream = client.open(Multiplexer.Priority.INTERACTIVE);
+        stream.sendPacket(request);
+
+        var accepted = server.accept();
+        assertEquals(stream.id(), accepted.id());
+        assertEquals(Multiplexer.Priority.INTERACTIVE, accepted.priority());
+        assertEquals(request, accepted.readPacket());
+        accepted.sendPacket(new Packet(Method.SUCCESS));
+        accepted.close();
+
+        assertEquals(new Packet(Method.SUCCESS), stream.readPacket());
+        stream.close();
+        assertThrows(IOException.class, accepted::readPacket);
+    }
+
+    @Test
+    @DisplayName("Chat is not blocked behind a stalled file transfer")
+    void noHeadOfLineBlocking() throws IOException, InterruptedException {
+        var bulk = client.open(Multiplexer.Priority.BULK);
+        var chat = client.open(Multiplexer.Priority.INTERACTIVE);
+        // far larger than the window, and nobody reads it on the other side
+        var file = new Packet(Method.FILE, Map.of("filename", "big.txt"), "x".repeat(4 * Multiplexer.INITIAL_WINDOW));
+        var bulkSender = new Thread(() -> {
+            try {
+                bulk.sendPacket(file);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        bulkSender.start();
+
+        var bulkReceived = server.accept();
+        for (var i = 0; i < 10; i++)
+            chat.sendPacket(new Packet(Method.MESSAGE, "message " + i));
+        var chatReceived = server.accept();
+        for (var i = 0; i < 10; i++)
+            assertEquals("message " + i, chatReceived.readPacket().content());
+        assertTrue(bulkSender.isAlive(), "file transfer should be waiting for credit");
+
+        assertEquals(file, bulkReceived.readPacket());
+        bulkSender.join();
+    }
+
+    @Test
+    @DisplayName("A burst of packets is flushed in a few batches")
+    void coalesceWrites() throws IOException, InterruptedException {
+        tearDown();
+        connect(100_000);
+        var stream = client.open(Multiplexer.Priority.INTERACTIVE);
+        var count = 2000;
+        var receiver = new Thread(() -> {
+            try {
+                var accepted = server.accept();
+                for (var i = 0; i < count; i++)
+                    assertEquals("message " + i, accepted.readPacket().content());
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        receiver.start();
+        for (var i = 0; i < count; i++)
+            stream.sendPacket(new Packet(Method.MESSAGE, Map.of("seq", String.valueOf(i)), "message " + i));
+        receiver.join();
+        assertTrue(client.flushes() < count / 4, "%d flushes for %d packets".formatted(client.flushes(), count));
+    }
+
+    /**
+     * Send packets on a stream nobody reads until sending fails.
+     * @return Why sending failed.
+     */
+    static IOException flood(Multiplexer.Stream stream) {
+        var packet = new Packet(Method.FILE, Map.of("filename", "big.txt"), "x".repeat(10_000));
+        for (var i = 0; i < 1000; i++) {
+            try {
+                stream.sendPacket(packet);
+            } catch (IOException e) {
+                return e;
+            }
+        }
+        return fail("sending never failed");
+    }
+
+    @Test
+    @DisplayName("A packet for a stream nobody reads is dropped, and the connection is kept")
+    void slowConsumerDrop() throws IOException, InterruptedException {
+        client.setSlowConsumerPolicy(Multiplexer.SlowConsumerPolicy.DROP, 100);
+        var bulk = client.open(Multiplexer.Priority.BULK);
+        assertInstanceOf(SlowConsumerException.class, flood(bulk));
+        assertFalse(client.isClosed());
+
+        var chat = client.open(Multiplexer.Priority.INTERACTIVE);
+        chat.sendPacket(new Packet(Method.MESSAGE, "still here"));
+        server.accept();
+        assertEquals("still here", server.accept().readPacket().content());
+    }
+
+    @Test
+    @DisplayName("A connection with a stream nobody reads is closed")
+    void slowConsumerDisconnect() throws IOException {
+        client.setSlowConsumerPolicy(Multiplexer.SlowConsumerPolicy.DISCONNECT, 100);
+        var exception = flood(client.open(Multiplexer.Priority.BULK));
+        assertFalse(exception instanceof SlowConsumerException);
+        assertTrue(client.isClosed());
+    }
+
+    /**
+     * Wait a while for a connection to be closed.
+     */
+    static boolean closesWithin(Multiplexer multiplexer, long millis) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + millis;
+        while (!multiplexer.isClosed() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        return multiplexer.isClosed();
+    }
+
+    @Test
+    @DisplayName("A connection on which nothing arrives is closed, and one that is merely quiet is kept")
+    void idleTimeout() throws IOException, InterruptedException {
+        client.setTimeouts(1000, 300);
+        server.setTimeouts(1000, 300);
+        assertFalse(closesWithin(client, 1000));
+        assertFalse(server.isClosed());
+
+        // the other end connects and never sends anything
+        try (var listener = new ServerSocket(0); var _ = new Socket("127.0.0.1", listener.getLocalPort())) {
+            var multiplexer = new Multiplexer(listener.accept(), false);
+            multiplexer.setTimeouts(1000, 300);
+            assertTrue(closesWithin(multiplexer, 2000));
+        }
+    }
+
+    @Test
+    void encode() {
+        var packet = new Packet(Method.MESSAGE, Map.of("header1", "value1"), "Hello world!");
+        assertEquals("""
+                MESSAGE
+                contentLength: 12
+                header1: value1
+
+                Hello world!""", new String(packet.encode(), java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void closeConnection() throws InterruptedException {
+        client.close();
+        assertNull(server.accept());
+        assertTrue(server.isClosed());
+        assertThrows(IOException.class, () -> client.open(Multiplexer.Priority.NORMAL));
+    }
+}
@@ -3,6 +3,8 @@ package protocol;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -32,12 +34,23 @@ import java.util.Map;
  * Note that the blank line separating the headers from the body is still required. This is how we know when we are
  * done reading the headers.
  *
+ * <p>While reading, the method line and headers together may take up at most {@link Packet#MAX_HEADER_LENGTH}
+ * characters, and the reader may set a limit on the body, so a sender cannot make us buffer more than we expect.
+ * A body is allocated as it arrives rather than all at once from its {@code contentLength}.</p>
+ *
  * @param method Somewhat like HTTP, describes what the packet is intended to do (send a message, log in, etc.)
  * @param headers A Map of header names to values.
  * @param content The (possibly empty) message body of the packet.
  * @param address The IP address of the sender. May be blank in the case of a response packet.
  */
 public record Packet(Method method, Map<String, String> headers, String content, InetAddress address) {
+    /** The most characters the method line and headers of a packet may take up, newlines included. */
+    public static final int MAX_HEADER_LENGTH = 64 * 1024;
+    // bodies longer than this grow as their characters arrive, instead of being allocated up front
+    private static final int BODY_ALLOCATION = 64 * 1024;
+    // characters of the headers scanned at once, well within a BufferedReader's default buffer
+    private static final int LINE_CHUNK = 128;
+
     /**
      * Instantiate a packet.
      * @param method The packet method.
@@ -107,13 +120,46 @@ public record Packet(Method method, Map<String, String> headers, String content,
         };
     }
 
+    /**
+     * @return A copy of this packet with a header added, or replaced if it already has one by that name.
+     */
+    public Packet withHeader(String name, String value) {
+        var modifiedHeaders = new HashMap<>(headers);
+        modifiedHeaders.put(name, value);
+        return new Packet(method, modifiedHeaders, content, address);
+    }
+
     /**
      * Send a packet over a TCP socket.
      * @param socket The socket to use.
      * @throws IOException if the transfer fails.
      */
     public static void sendPacket(Socket socket, Packet packet) throws IOException {
-        var output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        var output = socket.getOutputStream();
+        output.write(packet.encode());
+        output.flush();
+    }
+
+    /**
+     * Serialize the packet in its wire format, so it can be handed to the network in a single write.
+     * @return The UTF-8 encoded packet, exactly as {@link Packet#sendPacket(Writer, Packet)} would write it.
+     */
+    public byte[] encode() {
+        var builder = new StringBuilder(content().length() + 64 * (headers().size() + 1));
+        builder.append(method()).append('\n');
+        for (var header: headers().entrySet())
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append('\n');
+        builder.append('\n').append(content());
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send a packet over an already open character stream.
+     * Unlike {@link Packet#sendPacket(Socket, Packet)}, the same writer may be reused for many packets.
+     * @param output The writer to use. It is flushed once the packet has been written.
+     * @throws IOException if the transfer fails.
+     */
+    public static void sendPacket(Writer output, Packet packet) throws IOException {
         output.write(packet.method() + "\n");
         for (var header: packet.headers().entrySet())
             output.write("%s: %s\n".formatted(header.getKey(), header.getValue()));
@@ -131,10 +177,51 @@ public record Packet(Method method, Map<String, String> headers, String content,
      */
     public static Packet readPacket(Socket socket)
             throws IOException, PacketMalformedException {
-        var input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        return readPacket(socket, Integer.MAX_VALUE);
+    }
 
+    /**
+     * Read a packet from a TCP socket, refusing a body longer than a limit.
+     * @param maxContentLength The most characters the body may have.
+     * @see Packet#readPacket(BufferedReader, InetAddress, int)
+     */
+    public static Packet readPacket(Socket socket, int maxContentLength)
+            throws IOException, PacketMalformedException {
+        var input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        return readPacket(input, socket.getInetAddress(), maxContentLength);
+    }
+
+    /**
+     * Read a packet from an already open character stream.
+     * When several packets are sent back to back the same reader must be reused, since a fresh reader may buffer
+     * past the end of the current packet.
+     * @param input The reader to read from.
+     * @param address The address of the sender, attached to the resulting packet.
+     * @return A single packet read from the stream.
+     * @throws EOFException if the stream ends before a new packet begins.
+     * @throws PacketMalformedException if the packet is malformed (wrong {@code contentLength} header,
+     * invalid {@code method}, etc.)
+     */
+    public static Packet readPacket(BufferedReader input, InetAddress address)
+            throws IOException, PacketMalformedException {
+        return readPacket(input, address, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read a packet from an already open character stream, refusing a body longer than a limit.
+     * @param maxContentLength The most characters the body may have.
+     * @throws PacketMalformedException if the packet is malformed, its headers are longer than
+     * {@link Packet#MAX_HEADER_LENGTH} or its body is longer than the limit. The rest of the packet is left unread,
+     * so the stream should not be read from again.
+     * @see Packet#readPacket(BufferedReader, InetAddress)
+     */
+    public static Packet readPacket(BufferedReader input, InetAddress address, int maxContentLength)
+            throws IOException, PacketMalformedException {
         Method method;
-        var methodLine = input.readLine();
+        var lines = new HeaderReader(input);
+        var methodLine = lines.readLine();
+        if (methodLine == null)
+            throw new EOFException("Stream ended before the start of a packet.");
         try {
             method = Method.valueOf(methodLine);
         } catch (IllegalArgumentException _) {
@@ -144,25 +231,112 @@ public record Packet(Method method, Map<String, String> headers, String content,
         var headers = new HashMap<String, String>();
         String line;
         while (true) {
-            line = input.readLine();
+            line = lines.readLine();
             if (line == null || line.isEmpty())
                 break;
             var split = line.split(": ", 2);
+            if (split.length < 2)
+                throw new PacketMalformedException("Header '%s' has no value.".formatted(split[0]));
             headers.put(split[0], split[1]);
         }
+        lines.finish();
 
         var content = "";
         if (headers.containsKey("contentLength")) {
-            var length = Integer.parseInt(headers.get("contentLength"));
+            int length;
+            try {
+                length = Integer.parseInt(headers.get("contentLength"));
+            } catch (NumberFormatException _) {
+                throw new PacketMalformedException("The contentLength header must be a number.");
+            }
             if (length < 0)
                 throw new PacketMalformedException("The contentLength header cannot not be negative.");
-            var buffer = new char[length];
-            var read = input.read(buffer);
-            if (read < length)
-                throw new PacketMalformedException("Stream ended before we could finish reading packet body.");
+            if (length > maxContentLength)
+                throw new PacketMalformedException(
+                        "The body is longer than %d characters.".formatted(maxContentLength));
+            var buffer = new char[Math.min(length, BODY_ALLOCATION)];
+            var read = 0;
+            while (read < length) {
+                if (read == buffer.length)
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(length, 2L * buffer.length));
+                var count = input.read(buffer, read, buffer.length - read);
+                if (count < 0)
+                    throw new PacketMalformedException("Stream ended before we could finish reading packet body.");
+                read += count;
+            }
             content = String.valueOf(buffer);
         }
-        return new Packet(method, Collections.unmodifiableMap(headers), content, socket.getInetAddress());
+        return new Packet(method, Collections.unmodifiableMap(headers), content, address);
+    }
+
+    /**
+     * Reads the method line and headers of a packet a chunk at a time, then puts back whatever followed them with
+     * {@link BufferedReader#reset()}. Unlike {@link BufferedReader#readLine()}, a line that never ends cannot make
+     * us buffer without bound, and a whole header usually takes a single read.
+     */
+    private static final class HeaderReader {
+        private final BufferedReader input;
+        private final char[] chunk = new char[LINE_CHUNK];
+        private int position = 0;
+        private int count = 0;
+        private int remaining = MAX_HEADER_LENGTH;
+
+        HeaderReader(BufferedReader input) {
+            this.input = input;
+        }
+
+        /**
+         * @return The next line, without the newline, or {@code null} if the stream ended before it began.
+         * @throws PacketMalformedException if the lines read so far are longer than {@link Packet#MAX_HEADER_LENGTH}.
+         */
+        String readLine() throws IOException, PacketMalformedException {
+            StringBuilder line = null;
+            while (true) {
+                if (position == count) {
+                    input.mark(chunk.length);
+                    position = 0;
+                    count = Math.max(0, input.read(chunk, 0, chunk.length));
+                    if (count == 0)
+                        return line == null ? null : line.toString();
+                }
+                var end = position;
+                while (end < count && chunk[end] != '\n')
+                    end++;
+                var length = (line == null ? 0 : line.length()) + end - position;
+                if (length > remaining)
+                    throw new PacketMalformedException(
+                            "Headers are longer than %d characters.".formatted(MAX_HEADER_LENGTH));
+                if (end == count) {
+                    if (line == null)
+                        line = new StringBuilder();
+                    line.append(chunk, position, end - position);
+                    position = end;
+                    continue;
+                }
+                remaining -= length + 1;
+                var start = position;
+                position = end + 1;
+                // as readLine() does, accept the line endings of senders that end them with \r\n
+                if (line == null) {
+                    var trimmed = end > start && chunk[end - 1] == '\r' ? end - 1 : end;
+                    return new String(chunk, start, trimmed - start);
+                }
+                line.append(chunk, start, end - start);
+                if (!line.isEmpty() && line.charAt(line.length() - 1) == '\r')
+                    line.setLength(line.length() - 1);
+                return line.toString();
+            }
+        }
+
+        /**
+         * Put back whatever was read past the last line.
+         */
+        void finish() throws IOException {
+            if (position < count) {
+                input.reset();
+                input.skip(position);
+            }
+        }
     }
 
     /**
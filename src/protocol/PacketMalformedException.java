@@ -4,6 +4,8 @@ package protocol;
  * Indicates the reading of a packet failed because it was malformed.
  */
 public class PacketMalformedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public PacketMalformedException(String message) {
         super(message);
     }
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Test;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -149,4 +150,36 @@ class PacketTest {
             assertEquals(messagePacket, received);
         }
     }
+
+    static Packet parse(String packet, int maxContentLength) throws IOException {
+        return Packet.readPacket(new BufferedReader(new StringReader(packet)), null, maxContentLength);
+    }
+
+    @Test
+    @DisplayName("Receive packets within the limits, with either line ending")
+    void withinLimits() throws IOException {
+        var expected = new Packet(Method.MESSAGE, Map.of("to", "bob"), "Hello world!");
+        assertAll(
+                () -> assertEquals(expected, parse("MESSAGE\nto: bob\ncontentLength: 12\n\nHello world!", 12)),
+                () -> assertEquals(expected, parse("MESSAGE\r\nto: bob\r\ncontentLength: 12\r\n\r\nHello world!", 12))
+        );
+    }
+
+    @Test
+    @DisplayName("Refuse packets over the limits, and malformed ones, without reading them whole")
+    void overLimits() {
+        var longHeader = "MESSAGE\nto: " + "b".repeat(Packet.MAX_HEADER_LENGTH) + "\n\n";
+        var manyHeaders = "MESSAGE\n" + "to: bob\n".repeat(Packet.MAX_HEADER_LENGTH / 8) + "\n";
+        assertAll(
+                () -> assertThrows(PacketMalformedException.class, () -> parse(longHeader, 0)),
+                () -> assertThrows(PacketMalformedException.class, () -> parse(manyHeaders, 0)),
+                () -> assertThrows(PacketMalformedException.class,
+                        () -> parse("MESSAGE\ncontentLength: 13\n\nHello world!!", 12)),
+                () -> assertThrows(PacketMalformedException.class, () -> parse("MESSAGE\ncontentLength: many\n\n", 12)),
+                () -> assertThrows(PacketMalformedException.class, () -> parse("MESSAGE\nto\n\n", 12)),
+                // a huge length the sender never sends is not allocated
+                () -> assertThrows(PacketMalformedException.class,
+                        () -> parse("MESSAGE\ncontentLength: 2000000000\n\nHello", Integer.MAX_VALUE))
+        );
+    }
 }
\ No newline at end of file
@@ -0,0 +1,16 @@
+package protocol;
+
+import java.io.IOException;
+
+/**
+ * Indicates a packet was refused because the other side has stopped reading, and its stream already holds as much
+ * as it may. The connection is still open.
+ * @see Multiplexer.SlowConsumerPolicy#DROP
+ */
+public class SlowConsumerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public SlowConsumerException(String message) {
+        super(message);
+    }
+}
@@ -4,6 +4,8 @@ import protocol.Packet;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,26 +18,75 @@ import java.util.Map;
  *     @HandlesMethod(Method.LOGIN)
  *     public Packet onRequestLogin(Packet request) { /* ... *\/ }
  * }</pre>
- * These handlers are discovered automatically at runtime, and can be executed
+ * These handlers are discovered automatically, and can be executed
  * on a packet using {@link PacketHandler#runRequestHandler(Packet)}.
  * Note that each handler must take a packet and return a packet.
+ * <p>When the sources are compiled with {@code processor.IndexProcessor}, the handlers of each class are found at
+ * compile time: handlers with the wrong signature fail the build, and the processor generates a table of
+ * {@link RequestHandler}s that calls them directly. Classes compiled without it have their handlers discovered by
+ * reflection instead. Either way this happens once per class, not once per instance.</p>
  * @see PacketHandler#runRequestHandler(Packet)
  */
 public abstract class PacketHandler {
-    private final Map<protocol.Method, Method> requestHandlers;
+    private static final ClassValue<Map<protocol.Method, RequestHandler>> handlersByClass = new ClassValue<>() {
+        @Override
+        protected Map<protocol.Method, RequestHandler> computeValue(Class<?> type) {
+            var generated = generatedRequestHandlers(type);
+            return generated != null ? generated : reflectiveRequestHandlers(type.asSubclass(PacketHandler.class));
+        }
+    };
+
+    private final Map<protocol.Method, RequestHandler> requestHandlers;
 
     /**
      * Instantiate the server.
-     * Performs discovery of handlers.
+     * Performs discovery of handlers, unless another instance of the same class already did.
      * @throws IllegalArgumentException if we discover a handler with an incorrect type signature.
      * @see PacketHandler#enumerateRequestHandlers(Class)
      */
     public PacketHandler() {
-        this.requestHandlers = PacketHandler.enumerateRequestHandlers(this.getClass());
+        this.requestHandlers = handlersByClass.get(this.getClass());
+    }
+
+    /**
+     * @return The name of the class the annotation processor generates for the handlers of a class, e.g.
+     *         {@code messenger.Server_RequestHandlers}.
+     */
+    public static String generatedClassName(Class<?> kind) {
+        return kind.getName().replace('$', '_') + "_RequestHandlers";
+    }
+
+    /**
+     * @return The handlers the annotation processor found in a class, or {@code null} if it was compiled without it.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<protocol.Method, RequestHandler> generatedRequestHandlers(Class<?> kind) {
+        try {
+            var generated = Class.forName(generatedClassName(kind), true, kind.getClassLoader());
+            return (Map<protocol.Method, RequestHandler>) generated.getField("HANDLERS").get(null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Generated handlers for %s are unusable".formatted(kind), e);
+        }
+    }
+
+    private static Map<protocol.Method, RequestHandler> reflectiveRequestHandlers(
+            Class<? extends PacketHandler> kind) {
+        var handlers = new EnumMap<protocol.Method, RequestHandler>(protocol.Method.class);
+        PacketHandler.enumerateRequestHandlers(kind).forEach((method, handler) ->
+                handlers.put(method, (self, request) -> {
+                    try {
+                        return (Packet) handler.invoke(self, request);
+                    } catch (IllegalAccessException | InvocationTargetException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+        return Collections.unmodifiableMap(handlers);
     }
 
     /**
-     * Search for all request handlers in a class.
+     * Search for all request handlers in a class by reflection.
      * Discovers all methods with an {@code @}{@link HandlesMethod} annotation, including in superclasses.
      * @param kind The class to search.
      * @return A mapping from protocol methods to their handler methods.
@@ -77,12 +128,6 @@ public abstract class PacketHandler {
         var handler = requestHandlers.get(method);
         if (handler == null)
             throw new IllegalArgumentException("Server lacks a handler for method '%s'".formatted(method));
-        Packet response;
-        try {
-            response = (Packet) handler.invoke(this, request);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
-        return response;
+        return handler.handle(this, request);
     }
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+package server;
+
+import protocol.Packet;
+
+/**
+ * Calls one {@link HandlesMethod} handler on a {@link PacketHandler}.
+ * The tables of these that the annotation processor generates let a handler be called without reflection.
+ */
+@FunctionalInterface
+public interface RequestHandler {
+    Packet handle(PacketHandler handler, Packet request);
+}